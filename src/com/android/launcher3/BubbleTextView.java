@@ -51,6 +51,7 @@ import com.android.launcher3.graphics.HolographicOutlineHelper;
 import com.android.launcher3.graphics.IconPalette;
 import com.android.launcher3.graphics.PreloadIconDrawable;
 import com.android.launcher3.model.PackageItemInfo;
+import com.android.launcher3.popup.PopupPopulator;
 
 import java.text.NumberFormat;
 
@@ -170,6 +171,15 @@ public class BubbleTextView extends TextView implements ItemInfoUpdateReceiver {
         a.recycle();
 
         mLongPressHelper = new CheckLongPressHelper(this);
+        mLongPressHelper.setLongPressStartCallback(new Runnable() {
+            @Override
+            public void run() {
+                // Load the shortcuts while waiting, in case this turns into a long press.
+                if (getTag() instanceof ItemInfo) {
+                    PopupPopulator.prefetchShortcuts(mLauncher, (ItemInfo) getTag());
+                }
+            }
+        });
         mStylusEventHelper = new StylusEventHelper(new SimpleOnStylusPressListener(this), this);
 
         mOutlineHelper = HolographicOutlineHelper.getInstance(getContext());
@@ -17,6 +17,7 @@
 package com.android.launcher3;
 
 import android.view.View;
+import android.view.ViewConfiguration;
 
 import com.android.launcher3.util.Thunk;
 
@@ -29,6 +30,7 @@ public class CheckLongPressHelper {
     @Thunk boolean mHasPerformedLongPress;
     private int mLongPressTimeout = DEFAULT_LONG_PRESS_TIMEOUT;
     private CheckForLongPress mPendingCheckForLongPress;
+    private Runnable mLongPressStartCallback;
 
     class CheckForLongPress implements Runnable {
         public void run() {
@@ -64,6 +66,14 @@ public class CheckLongPressHelper {
         mLongPressTimeout = longPressTimeout;
     }
 
+    /**
+     * Sets a callback which is run once the view has been pressed for longer than a tap, while
+     * waiting for the long press.
+     */
+    public void setLongPressStartCallback(Runnable callback) {
+        mLongPressStartCallback = callback;
+    }
+
     public void postCheckForLongPress() {
         mHasPerformedLongPress = false;
 
@@ -71,6 +81,11 @@ public class CheckLongPressHelper {
             mPendingCheckForLongPress = new CheckForLongPress();
         }
         mView.postDelayed(mPendingCheckForLongPress, mLongPressTimeout);
+        if (mLongPressStartCallback != null) {
+            mView.removeCallbacks(mLongPressStartCallback);
+            mView.postDelayed(mLongPressStartCallback,
+                    Math.min(ViewConfiguration.getTapTimeout(), mLongPressTimeout));
+        }
     }
 
     public void cancelLongPress() {
@@ -79,6 +94,9 @@ public class CheckLongPressHelper {
             mView.removeCallbacks(mPendingCheckForLongPress);
             mPendingCheckForLongPress = null;
         }
+        if (mLongPressStartCallback != null) {
+            mView.removeCallbacks(mLongPressStartCallback);
+        }
     }
 
     public boolean hasPerformedLongPress() {
@@ -32,6 +32,10 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
@@ -44,6 +48,8 @@ import android.util.Log;
 import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.graphics.BitmapPool;
+import com.android.launcher3.graphics.IconNormalizationCache;
 import com.android.launcher3.graphics.LauncherIcons;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.util.ComponentKey;
@@ -98,10 +104,13 @@ public class IconCache {
     private final InstantAppResolver mInstantAppResolver;
     private final int mIconDpi;
     @Thunk final IconDB mIconDb;
+    // Normalization results of legacy icons, which outlive icon DB resets
+    private final IconNormalizationCache mNormalizationCache;
 
     @Thunk final Handler mWorkerHandler;
 
     private final BitmapFactory.Options mLowResOptions;
+    private final Paint mLowResPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
 
     public IconCache(Context context, InvariantDeviceProfile inv) {
         mContext = context;
@@ -111,6 +120,7 @@ public class IconCache {
         mInstantAppResolver = InstantAppResolver.newInstance(mContext);
         mIconDpi = inv.fillResIconDpi;
         mIconDb = new IconDB(context, inv.iconBitmapSize);
+        mNormalizationCache = IconNormalizationCache.getInstance(context);
 
         mIconProvider = Utilities.getOverrideObject(
                 IconProvider.class, context, R.string.icon_provider_class);
@@ -233,6 +243,7 @@ public class IconCache {
         mIconDb.delete(
                 IconDB.COLUMN_COMPONENT + " LIKE ? AND " + IconDB.COLUMN_USER + " = ?",
                 new String[]{packageName + "/%", Long.toString(userSerial)});
+        mNormalizationCache.removePackage(packageName, user);
     }
 
     public void updateDbIcons(Set<String> ignorePackagesForMainUser) {
@@ -366,7 +377,8 @@ public class IconCache {
         if (entry == null) {
             entry = new CacheEntry();
             entry.icon = LauncherIcons.createBadgedIconBitmap(getFullResIcon(app), app.getUser(),
-                    mContext,  app.getApplicationInfo().targetSdkVersion);
+                    mContext,  app.getApplicationInfo().targetSdkVersion, key,
+                    info.lastUpdateTime, mIconProvider.getIconSystemState(info.packageName));
         }
         entry.title = app.getLabel();
         entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, app.getUser());
@@ -375,6 +387,8 @@ public class IconCache {
         Bitmap lowResIcon = generateLowResIcon(entry.icon);
         ContentValues values = newContentValues(entry.icon, lowResIcon, entry.title.toString(),
                 app.getApplicationInfo().packageName);
+        // The low res icon is only written to the DB.
+        BitmapPool.getShared().release(lowResIcon);
         addIconToDB(values, app.getComponentName(), info, userSerial);
     }
 
@@ -522,9 +536,12 @@ public class IconCache {
                 providerFetchedOnce = true;
 
                 if (info != null) {
+                    String packageName = componentName.getPackageName();
                     entry.icon = LauncherIcons.createBadgedIconBitmap(
                             getFullResIcon(info), info.getUser(), mContext,
-                            infoProvider.get().getApplicationInfo().targetSdkVersion);
+                            infoProvider.get().getApplicationInfo().targetSdkVersion, cacheKey,
+                            getLastUpdateTime(packageName),
+                            mIconProvider.getIconSystemState(packageName));
                 } else {
                     if (usePackageIcon) {
                         CacheEntry packageEntry = getEntryForPackageLocked(
@@ -564,6 +581,18 @@ public class IconCache {
         mIconDb.clear();
     }
 
+    /**
+     * Returns the last update time of the package, or 0 if it is not installed.
+     */
+    private long getLastUpdateTime(String packageName) {
+        try {
+            return mPackageManager.getPackageInfo(packageName,
+                    PackageManager.GET_UNINSTALLED_PACKAGES).lastUpdateTime;
+        } catch (NameNotFoundException e) {
+            return 0;
+        }
+    }
+
     /**
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
@@ -623,7 +652,9 @@ public class IconCache {
                     // Load the full res icon for the application, but if useLowResIcon is set, then
                     // only keep the low resolution icon instead of the larger full-sized icon
                     Bitmap icon = LauncherIcons.createBadgedIconBitmap(
-                            appInfo.loadIcon(mPackageManager), user, mContext, appInfo.targetSdkVersion);
+                            appInfo.loadIcon(mPackageManager), user, mContext,
+                            appInfo.targetSdkVersion, cacheKey, info.lastUpdateTime,
+                            mIconProvider.getIconSystemState(packageName));
                     if (mInstantAppResolver.isInstantApp(appInfo)) {
                         icon = LauncherIcons.badgeWithDrawable(icon,
                                 mContext.getDrawable(R.drawable.ic_instant_app_badge), mContext);
@@ -638,6 +669,9 @@ public class IconCache {
                     // package updates.
                     ContentValues values =
                             newContentValues(icon, lowResIcon, entry.title.toString(), packageName);
+                    if (!useLowResIcon) {
+                        BitmapPool.getShared().release(lowResIcon);
+                    }
                     addIconToDB(values, cacheKey.componentName, info,
                             mUserManager.getSerialNumberForUser(user));
 
@@ -814,9 +848,14 @@ public class IconCache {
      * Generates a new low-res icon given a high-res icon.
      */
     private Bitmap generateLowResIcon(Bitmap icon) {
-        return Bitmap.createScaledBitmap(icon,
-                icon.getWidth() / LOW_RES_SCALE_FACTOR,
-                icon.getHeight() / LOW_RES_SCALE_FACTOR, true);
+        int width = icon.getWidth() / LOW_RES_SCALE_FACTOR;
+        int height = icon.getHeight() / LOW_RES_SCALE_FACTOR;
+        Bitmap lowResIcon = BitmapPool.getShared().get(width, height, Bitmap.Config.ARGB_8888);
+        lowResIcon.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(lowResIcon);
+        canvas.drawBitmap(icon, null, new Rect(0, 0, width, height), mLowResPaint);
+        canvas.setBitmap(null);
+        return lowResIcon;
     }
 
     private static Bitmap loadIconNoResize(Cursor c, int iconIndex, BitmapFactory.Options options) {
@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.support.annotation.VisibleForTesting;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Append-only journal of the items pending install on the workspace.
+ *
+ * Each item is stored with its package and user, and an opaque encoding of the item. Adding or
+ * removing items appends a record to the file, and the items are indexed by package in memory so
+ * that removing the items of a package does not decode any item. The file is truncated when it
+ * is drained, and rewritten when it has many more records than pending items.
+ *
+ * The file is read on first use, but written on the given executor, in order. Appends are not
+ * synced to the disk, so the last changes can be lost if the device shuts down unexpectedly.
+ *
+ * This class is not thread safe.
+ */
+class InstallQueueJournal {
+
+    private static final String TAG = "InstallQueueJournal";
+
+    private static final int FILE_MAGIC = 0x49514A31; // "IQJ1"
+    private static final int FILE_VERSION = 1;
+
+    private static final byte RECORD_ADD = 1; // id, package, user, data
+    private static final byte RECORD_REMOVE = 2; // id
+
+    // Records in the file beyond the pending items after which the file is rewritten.
+    @VisibleForTesting
+    static final int MAX_EXTRA_RECORDS = 64;
+
+    /**
+     * An item pending install.
+     */
+    static class Entry {
+        final int id;
+        // Package of the item, or null if the item does not target a package.
+        final String packageName;
+        final long userSerial;
+        final byte[] data;
+
+        /**
+         * Creates an item which is not added to a journal.
+         */
+        Entry(String packageName, long userSerial, byte[] data) {
+            this(-1, packageName, userSerial, data);
+        }
+
+        private Entry(int id, String packageName, long userSerial, byte[] data) {
+            this.id = id;
+            this.packageName = packageName;
+            this.userSerial = userSerial;
+            this.data = data;
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final Executor mWriteExecutor;
+
+    private boolean mLoaded;
+    private final LinkedHashMap<Integer, Entry> mEntries = new LinkedHashMap<>();
+    // Ids of the entries of each package and user.
+    private final HashMap<String, ArrayList<Integer>> mPackageIndex = new HashMap<>();
+    private int mNextId;
+    // Whether the file starts with a valid header, and the number of records after it, once the
+    // pending writes are done.
+    private boolean mHasHeader;
+    private int mRecordCount;
+    // Set on the write executor when a write fails, so that the next change rewrites the file.
+    private volatile boolean mWriteFailed;
+
+    InstallQueueJournal(AtomicFile file, Executor writeExecutor) {
+        mFile = file;
+        mWriteExecutor = writeExecutor;
+    }
+
+    boolean isEmpty() {
+        ensureLoaded();
+        return mEntries.isEmpty();
+    }
+
+    void add(String packageName, long userSerial, byte[] data) {
+        ensureLoaded();
+        Entry entry = new Entry(mNextId++, packageName, userSerial, data);
+        addToIndex(entry);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeAddRecord(out, entry);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+        }
+        append(bytes.toByteArray(), 1);
+    }
+
+    /**
+     * Removes all the items of the packages for the user.
+     */
+    void removePackages(Collection<String> packageNames, long userSerial) {
+        ensureLoaded();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int count = 0;
+        try {
+            for (String packageName : packageNames) {
+                ArrayList<Integer> ids =
+                        mPackageIndex.remove(getPackageKey(packageName, userSerial));
+                if (ids == null) {
+                    continue;
+                }
+                for (int id : ids) {
+                    mEntries.remove(id);
+                    out.writeByte(RECORD_REMOVE);
+                    out.writeInt(id);
+                    count++;
+                }
+            }
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+        }
+        if (count > 0) {
+            append(bytes.toByteArray(), count);
+        }
+    }
+
+    /**
+     * Returns the pending items, in the order they were added.
+     */
+    List<Entry> getEntries() {
+        ensureLoaded();
+        return new ArrayList<>(mEntries.values());
+    }
+
+    /**
+     * Returns and removes all the pending items, in the order they were added.
+     */
+    List<Entry> drain() {
+        ensureLoaded();
+        List<Entry> entries = new ArrayList<>(mEntries.values());
+        if (!entries.isEmpty()) {
+            mEntries.clear();
+            mPackageIndex.clear();
+            if (mWriteFailed) {
+                rewrite();
+            } else {
+                truncate();
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Runs {@param r} on the write executor once the pending changes are written, unless writing
+     * them failed.
+     */
+    void runAfterWrites(final Runnable r) {
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mWriteFailed) {
+                    r.run();
+                }
+            }
+        });
+    }
+
+    private void addToIndex(Entry entry) {
+        mEntries.put(entry.id, entry);
+        if (entry.packageName != null) {
+            String key = getPackageKey(entry.packageName, entry.userSerial);
+            ArrayList<Integer> ids = mPackageIndex.get(key);
+            if (ids == null) {
+                ids = new ArrayList<>(1);
+                mPackageIndex.put(key, ids);
+            }
+            ids.add(entry.id);
+        }
+    }
+
+    private void removeFromIndex(int id) {
+        Entry entry = mEntries.remove(id);
+        if (entry != null && entry.packageName != null) {
+            String key = getPackageKey(entry.packageName, entry.userSerial);
+            ArrayList<Integer> ids = mPackageIndex.get(key);
+            if (ids != null) {
+                ids.remove(Integer.valueOf(id));
+                if (ids.isEmpty()) {
+                    mPackageIndex.remove(key);
+                }
+            }
+        }
+    }
+
+    private static String getPackageKey(String packageName, long userSerial) {
+        return userSerial + "/" + packageName;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        DataInputStream in = null;
+        try {
+            // The file only holds the pending items, so it is small.
+            in = new DataInputStream(new ByteArrayInputStream(mFile.readFully()));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring install queue with unknown format");
+                return;
+            }
+            mHasHeader = true;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                int id = in.readInt();
+                if (type == RECORD_ADD) {
+                    String packageName = in.readBoolean() ? in.readUTF() : null;
+                    long userSerial = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > in.available()) {
+                        throw new EOFException("Invalid item length " + length);
+                    }
+                    byte[] data = new byte[length];
+                    in.readFully(data);
+                    addToIndex(new Entry(id, packageName, userSerial, data));
+                } else if (type == RECORD_REMOVE) {
+                    removeFromIndex(id);
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+                mNextId = Math.max(mNextId, id + 1);
+                mRecordCount++;
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing pending.
+        } catch (IOException e) {
+            // The last record may be incomplete, keep the items read so far.
+            Log.e(TAG, "Error reading install queue", e);
+            rewrite();
+        } finally {
+            Utilities.closeSilently(in);
+        }
+    }
+
+    private void append(final byte[] records, int count) {
+        if (!mHasHeader || mWriteFailed
+                || mRecordCount + count > mEntries.size() + MAX_EXTRA_RECORDS) {
+            rewrite();
+            return;
+        }
+        mRecordCount += count;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream out = null;
+                try {
+                    deleteBackup();
+                    out = new FileOutputStream(mFile.getBaseFile(), true);
+                    out.write(records);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error appending to install queue", e);
+                    mWriteFailed = true;
+                } finally {
+                    Utilities.closeSilently(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the file with a single record for each pending item.
+     */
+    private void rewrite() {
+        final ArrayList<Entry> entries = new ArrayList<>(mEntries.values());
+        mHasHeader = true;
+        mRecordCount = entries.size();
+        mWriteFailed = false;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                FileOutputStream fos = null;
+                try {
+                    fos = mFile.startWrite();
+                    DataOutputStream out = new DataOutputStream(fos);
+                    out.writeInt(FILE_MAGIC);
+                    out.writeInt(FILE_VERSION);
+                    for (Entry entry : entries) {
+                        writeAddRecord(out, entry);
+                    }
+                    out.flush();
+                    mFile.finishWrite(fos);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing install queue", e);
+                    if (fos != null) {
+                        mFile.failWrite(fos);
+                    }
+                    mWriteFailed = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes all the records from the file. This is not synced to the disk, as drained items
+     * which are read again are only added once to the workspace.
+     */
+    private void truncate() {
+        mHasHeader = true;
+        mRecordCount = 0;
+        mWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                DataOutputStream out = null;
+                try {
+                    deleteBackup();
+                    out = new DataOutputStream(new FileOutputStream(mFile.getBaseFile()));
+                    out.writeInt(FILE_MAGIC);
+                    out.writeInt(FILE_VERSION);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error clearing install queue", e);
+                    mWriteFailed = true;
+                } finally {
+                    Utilities.closeSilently(out);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes the backup left by a failed rewrite, as it would replace the file written directly
+     * when the file is read.
+     */
+    private void deleteBackup() {
+        new File(mFile.getBaseFile().getPath() + ".bak").delete();
+    }
+
+    private static void writeAddRecord(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeInt(entry.id);
+        out.writeBoolean(entry.packageName != null);
+        if (entry.packageName != null) {
+            out.writeUTF(entry.packageName);
+        }
+        out.writeLong(entry.userSerial);
+        out.writeInt(entry.data.length);
+        out.write(entry.data);
+    }
+}
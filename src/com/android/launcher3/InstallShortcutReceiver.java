@@ -27,11 +27,14 @@ import android.content.pm.LauncherActivityInfo;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Handler;
 import android.os.Looper;
 import android.os.Parcelable;
 import android.os.Process;
 import android.os.UserHandle;
+import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Log;
 import android.util.Pair;
@@ -49,15 +52,20 @@ import com.android.launcher3.util.Thunk;
 
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONStringer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class InstallShortcutReceiver extends BroadcastReceiver {
 
@@ -87,25 +95,76 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     private static final String APP_WIDGET_TYPE_KEY = "isAppWidget";
     private static final String USER_HANDLE_KEY = "userHandle";
 
-    // The set of shortcuts that are pending install
-    private static final String APPS_PENDING_INSTALL = "apps_to_install";
+    // The set of shortcuts that were pending install, before the install queue was moved to
+    // an InstallQueueJournal.
+    @VisibleForTesting
+    static final String APPS_PENDING_INSTALL = "apps_to_install";
+
+    // Types of the items in the install queue.
+    private static final byte TYPE_SHORTCUT = 0;
+    private static final byte TYPE_APP = 1;
+    private static final byte TYPE_DEEP_SHORTCUT = 2;
+    private static final byte TYPE_WIDGET = 3;
+    // An item encoded as JSON, migrated from APPS_PENDING_INSTALL.
+    private static final byte TYPE_JSON = 4;
 
     public static final int NEW_SHORTCUT_BOUNCE_DURATION = 450;
     public static final int NEW_SHORTCUT_STAGGER_DELAY = 85;
 
     private static final Object sLock = new Object();
 
-    private static void addToInstallQueue(
-            SharedPreferences sharedPrefs, PendingInstallShortcutInfo info) {
-        synchronized(sLock) {
-            String encoded = info.encodeToString();
-            if (encoded != null) {
-                Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-                strings = (strings != null) ? new HashSet<>(strings) : new HashSet<String>(1);
-                strings.add(encoded);
-                sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, strings).apply();
+    // Guarded by sLock
+    private static InstallQueueJournal sInstallQueue;
+
+    private static InstallQueueJournal getInstallQueueLocked(Context context) {
+        if (sInstallQueue == null) {
+            // Always posted, so that the writes are done in order even when the queue is
+            // changed on the worker thread.
+            final Handler workerHandler = new Handler(LauncherModel.getWorkerLooper());
+            Executor writeExecutor = new Executor() {
+                @Override
+                public void execute(Runnable r) {
+                    workerHandler.post(r);
+                }
+            };
+            sInstallQueue = new InstallQueueJournal(new AtomicFile(
+                    context.getFileStreamPath(LauncherFiles.INSTALL_QUEUE)), writeExecutor);
+            migrateInstallQueueLocked(context, sInstallQueue);
+        }
+        return sInstallQueue;
+    }
+
+    /**
+     * Moves the items queued in APPS_PENDING_INSTALL to the journal. The preference is only
+     * removed once the items are written to the journal.
+     */
+    @VisibleForTesting
+    static void migrateInstallQueueLocked(Context context, InstallQueueJournal queue) {
+        final SharedPreferences sharedPrefs = Utilities.getPrefs(context);
+        Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
+        if (strings == null) {
+            return;
+        }
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        for (String encoded : strings) {
+            try {
+                Decoder decoder = new Decoder(encoded, context);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(TYPE_JSON);
+                writeString(out, encoded);
+                queue.add(getIntentPackage(decoder.launcherIntent),
+                        userManager.getSerialNumberForUser(decoder.user), bytes.toByteArray());
+            } catch (JSONException | URISyntaxException | IOException e) {
+                Log.d(TAG, "Exception reading shortcut to add: " + e);
             }
         }
+        queue.runAfterWrites(new Runnable() {
+            @Override
+            public void run() {
+                sharedPrefs.edit().remove(APPS_PENDING_INSTALL).apply();
+            }
+        });
     }
 
     public static void removeFromInstallQueue(Context context, HashSet<String> packageNames,
@@ -113,52 +172,22 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
         if (packageNames.isEmpty()) {
             return;
         }
-        SharedPreferences sp = Utilities.getPrefs(context);
+        if (DBG) Log.d(TAG, "Removing packages from install queue: " + packageNames);
+        long userSerial = UserManagerCompat.getInstance(context).getSerialNumberForUser(user);
         synchronized(sLock) {
-            Set<String> strings = sp.getStringSet(APPS_PENDING_INSTALL, null);
-            if (DBG) {
-                Log.d(TAG, "APPS_PENDING_INSTALL: " + strings
-                        + ", removing packages: " + packageNames);
-            }
-            if (Utilities.isEmpty(strings)) {
-                return;
-            }
-            Set<String> newStrings = new HashSet<>(strings);
-            Iterator<String> newStringsIter = newStrings.iterator();
-            while (newStringsIter.hasNext()) {
-                String encoded = newStringsIter.next();
-                try {
-                    Decoder decoder = new Decoder(encoded, context);
-                    if (packageNames.contains(getIntentPackage(decoder.launcherIntent)) &&
-                            user.equals(decoder.user)) {
-                        newStringsIter.remove();
-                    }
-                } catch (JSONException | URISyntaxException e) {
-                    Log.d(TAG, "Exception reading shortcut to add: " + e);
-                    newStringsIter.remove();
-                }
-            }
-            sp.edit().putStringSet(APPS_PENDING_INSTALL, newStrings).apply();
+            getInstallQueueLocked(context).removePackages(packageNames, userSerial);
         }
     }
 
-    private static ArrayList<PendingInstallShortcutInfo> getAndClearInstallQueue(Context context) {
-        SharedPreferences sharedPrefs = Utilities.getPrefs(context);
+    /**
+     * Returns the encoded items pending install and clears the queue. The items are decoded by
+     * {@link LazyShortcutsProvider} on the worker thread.
+     */
+    private static List<InstallQueueJournal.Entry> getAndClearInstallQueue(Context context) {
         synchronized(sLock) {
-            ArrayList<PendingInstallShortcutInfo> infos = new ArrayList<>();
-            Set<String> strings = sharedPrefs.getStringSet(APPS_PENDING_INSTALL, null);
-            if (DBG) Log.d(TAG, "Getting and clearing APPS_PENDING_INSTALL: " + strings);
-            if (strings == null) {
-                return infos;
-            }
-            for (String encoded : strings) {
-                PendingInstallShortcutInfo info = decode(encoded, context);
-                if (info != null) {
-                    infos.add(info);
-                }
-            }
-            sharedPrefs.edit().putStringSet(APPS_PENDING_INSTALL, new HashSet<String>()).apply();
-            return infos;
+            List<InstallQueueJournal.Entry> entries = getInstallQueueLocked(context).drain();
+            if (DBG) Log.d(TAG, "Getting and clearing install queue: " + entries.size());
+            return entries;
         }
     }
 
@@ -236,18 +265,32 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     public static HashSet<ShortcutKey> getPendingShortcuts(Context context) {
         HashSet<ShortcutKey> result = new HashSet<>();
 
-        Set<String> strings = Utilities.getPrefs(context).getStringSet(APPS_PENDING_INSTALL, null);
-        if (Utilities.isEmpty(strings)) {
+        List<InstallQueueJournal.Entry> entries;
+        synchronized(sLock) {
+            entries = getInstallQueueLocked(context).getEntries();
+        }
+        if (entries.isEmpty()) {
             return result;
         }
 
-        for (String encoded : strings) {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        for (InstallQueueJournal.Entry entry : entries) {
             try {
-                Decoder decoder = new Decoder(encoded, context);
-                if (decoder.optBoolean(DEEPSHORTCUT_TYPE_KEY)) {
-                    result.add(ShortcutKey.fromIntent(decoder.launcherIntent, decoder.user));
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.data));
+                byte type = in.readByte();
+                if (type == TYPE_DEEP_SHORTCUT) {
+                    UserHandle user = userManager.getUserForSerialNumber(entry.userSerial);
+                    if (user != null) {
+                        result.add(ShortcutKey.fromIntent(
+                                Intent.parseUri(readString(in), 0), user));
+                    }
+                } else if (type == TYPE_JSON) {
+                    Decoder decoder = new Decoder(readString(in), context);
+                    if (decoder.optBoolean(DEEPSHORTCUT_TYPE_KEY)) {
+                        result.add(ShortcutKey.fromIntent(decoder.launcherIntent, decoder.user));
+                    }
                 }
-            } catch (JSONException | URISyntaxException e) {
+            } catch (JSONException | URISyntaxException | IOException e) {
                 Log.d(TAG, "Exception reading shortcut to add: " + e);
             }
         }
@@ -255,9 +298,33 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     }
 
     private static void queuePendingShortcutInfo(PendingInstallShortcutInfo info, Context context) {
-        // Queue the item up for adding if launcher has not loaded properly yet
-        addToInstallQueue(Utilities.getPrefs(context), info);
-        flushInstallQueue(context);
+        byte[] encoded = info.encode();
+        if (encoded == null) {
+            return;
+        }
+        InstallQueueJournal.Entry entry = new InstallQueueJournal.Entry(
+                getIntentPackage(info.launchIntent),
+                UserManagerCompat.getInstance(context).getSerialNumberForUser(info.user),
+                encoded);
+
+        LauncherModel model = LauncherAppState.getInstance(context).getModel();
+        if (canFlushInstallQueue(model)) {
+            // Added right away after the queued items, so the item does not need to be persisted.
+            List<InstallQueueJournal.Entry> items = getAndClearInstallQueue(context);
+            items.add(entry);
+            model.addAndBindAddedWorkspaceItems(
+                    new LazyShortcutsProvider(context.getApplicationContext(), items));
+        } else {
+            // Queue the item up for adding if launcher has not loaded properly yet
+            synchronized(sLock) {
+                getInstallQueueLocked(context).add(
+                        entry.packageName, entry.userSerial, entry.data);
+            }
+        }
+    }
+
+    private static boolean canFlushInstallQueue(LauncherModel model) {
+        return sInstallQueueDisabledFlags == 0 && model.getCallback() != null;
     }
 
     public static void enableInstallQueue(int flag) {
@@ -270,12 +337,11 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
 
     static void flushInstallQueue(Context context) {
         LauncherModel model = LauncherAppState.getInstance(context).getModel();
-        boolean launcherNotLoaded = model.getCallback() == null;
-        if (sInstallQueueDisabledFlags != 0 || launcherNotLoaded) {
+        if (!canFlushInstallQueue(model)) {
             return;
         }
 
-        ArrayList<PendingInstallShortcutInfo> items = getAndClearInstallQueue(context);
+        List<InstallQueueJournal.Entry> items = getAndClearInstallQueue(context);
         if (!items.isEmpty()) {
             model.addAndBindAddedWorkspaceItems(
                     new LazyShortcutsProvider(context.getApplicationContext(), items));
@@ -378,38 +444,21 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
             label = info.label;
         }
 
-        public String encodeToString() {
+        /**
+         * Returns the encoding of the item in the install queue, without the user which is
+         * stored separately.
+         */
+        public byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
             try {
-                if (activityInfo != null) {
-                    // If it a launcher target, we only need component name, and user to
-                    // recreate this.
-                    return new JSONStringer()
-                        .object()
-                        .key(LAUNCH_INTENT_KEY).value(launchIntent.toUri(0))
-                        .key(APP_SHORTCUT_TYPE_KEY).value(true)
-                        .key(USER_HANDLE_KEY).value(UserManagerCompat.getInstance(mContext)
-                                .getSerialNumberForUser(user))
-                        .endObject().toString();
-                } else if (shortcutInfo != null) {
-                    // If it a launcher target, we only need component name, and user to
-                    // recreate this.
-                    return new JSONStringer()
-                            .object()
-                            .key(LAUNCH_INTENT_KEY).value(launchIntent.toUri(0))
-                            .key(DEEPSHORTCUT_TYPE_KEY).value(true)
-                            .key(USER_HANDLE_KEY).value(UserManagerCompat.getInstance(mContext)
-                                    .getSerialNumberForUser(user))
-                            .endObject().toString();
-                } else if (providerInfo != null) {
+                if (activityInfo != null || shortcutInfo != null || providerInfo != null) {
                     // If it a launcher target, we only need component name, and user to
                     // recreate this.
-                    return new JSONStringer()
-                            .object()
-                            .key(LAUNCH_INTENT_KEY).value(launchIntent.toUri(0))
-                            .key(APP_WIDGET_TYPE_KEY).value(true)
-                            .key(USER_HANDLE_KEY).value(UserManagerCompat.getInstance(mContext)
-                                    .getSerialNumberForUser(user))
-                            .endObject().toString();
+                    out.writeByte(activityInfo != null ? TYPE_APP
+                            : shortcutInfo != null ? TYPE_DEEP_SHORTCUT : TYPE_WIDGET);
+                    writeString(out, launchIntent.toUri(0));
+                    return bytes.toByteArray();
                 }
 
                 if (launchIntent.getAction() == null) {
@@ -429,23 +478,23 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
                     data.getParcelableExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE);
 
                 // Only encode the parameters which are supported by the API.
-                JSONStringer json = new JSONStringer()
-                    .object()
-                    .key(LAUNCH_INTENT_KEY).value(launchIntent.toUri(0))
-                    .key(NAME_KEY).value(name);
-                if (icon != null) {
-                    byte[] iconByteArray = Utilities.flattenBitmap(icon);
-                    json = json.key(ICON_KEY).value(
-                            Base64.encodeToString(
-                                    iconByteArray, 0, iconByteArray.length, Base64.DEFAULT));
+                out.writeByte(TYPE_SHORTCUT);
+                writeString(out, launchIntent.toUri(0));
+                writeString(out, name);
+                byte[] iconByteArray = icon == null ? null : Utilities.flattenBitmap(icon);
+                if (iconByteArray != null) {
+                    out.writeInt(iconByteArray.length);
+                    out.write(iconByteArray);
+                } else {
+                    out.writeInt(0);
                 }
+                out.writeBoolean(iconResource != null);
                 if (iconResource != null) {
-                    json = json.key(ICON_RESOURCE_NAME_KEY).value(iconResource.resourceName);
-                    json = json.key(ICON_RESOURCE_PACKAGE_NAME_KEY)
-                            .value(iconResource.packageName);
+                    writeString(out, iconResource.resourceName);
+                    writeString(out, iconResource.packageName);
                 }
-                return json.endObject().toString();
-            } catch (JSONException e) {
+                return bytes.toByteArray();
+            } catch (IOException e) {
                 Log.d(TAG, "Exception when adding shortcut: " + e);
                 return null;
             }
@@ -504,63 +553,147 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
                 ? intent.getPackage() : intent.getComponent().getPackageName();
     }
 
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // Unlike writeUTF, not limited to 64k, as intents can have large extras.
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static PendingInstallShortcutInfo decode(
+            InstallQueueJournal.Entry entry, Context context) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry.data));
+            byte type = in.readByte();
+            if (type == TYPE_JSON) {
+                return decode(readString(in), context);
+            }
+            Intent launcherIntent = Intent.parseUri(readString(in), 0);
+            UserHandle user = UserManagerCompat.getInstance(context)
+                    .getUserForSerialNumber(entry.userSerial);
+            if (user == null) {
+                Log.d(TAG, "Invalid user for shortcut to add: " + entry.userSerial);
+                return null;
+            }
+
+            Intent data = null;
+            if (type == TYPE_SHORTCUT) {
+                data = new Intent();
+                data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, launcherIntent);
+                data.putExtra(Intent.EXTRA_SHORTCUT_NAME, readString(in));
+
+                byte[] iconArray = new byte[in.readInt()];
+                in.readFully(iconArray);
+                String iconResourceName = null;
+                String iconResourcePackageName = null;
+                if (in.readBoolean()) {
+                    iconResourceName = readString(in);
+                    iconResourcePackageName = readString(in);
+                }
+                addIconExtra(data, iconArray, iconResourceName, iconResourcePackageName);
+            }
+            return decode(context, type, launcherIntent, user, data);
+        } catch (IOException | URISyntaxException e) {
+            Log.d(TAG, "Exception reading shortcut to add: " + e);
+        }
+        return null;
+    }
+
     private static PendingInstallShortcutInfo decode(String encoded, Context context) {
         try {
             Decoder decoder = new Decoder(encoded, context);
+            Intent data = null;
+            byte type;
             if (decoder.optBoolean(APP_SHORTCUT_TYPE_KEY)) {
-                LauncherActivityInfo info = LauncherAppsCompat.getInstance(context)
-                        .resolveActivity(decoder.launcherIntent, decoder.user);
-                return info == null ? null : new PendingInstallShortcutInfo(info, context);
+                type = TYPE_APP;
             } else if (decoder.optBoolean(DEEPSHORTCUT_TYPE_KEY)) {
-                DeepShortcutManager sm = DeepShortcutManager.getInstance(context);
-                List<ShortcutInfoCompat> si = sm.queryForFullDetails(
-                        decoder.launcherIntent.getPackage(),
-                        Arrays.asList(decoder.launcherIntent.getStringExtra(
-                                ShortcutInfoCompat.EXTRA_SHORTCUT_ID)),
-                        decoder.user);
-                if (si.isEmpty()) {
-                    return null;
-                } else {
-                    return new PendingInstallShortcutInfo(si.get(0), context);
-                }
+                type = TYPE_DEEP_SHORTCUT;
             } else if (decoder.optBoolean(APP_WIDGET_TYPE_KEY)) {
-                int widgetId = decoder.launcherIntent
-                        .getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, 0);
-                AppWidgetProviderInfo info = AppWidgetManager.getInstance(context)
-                        .getAppWidgetInfo(widgetId);
-                if (info == null || !info.provider.equals(decoder.launcherIntent.getComponent()) ||
-                        !info.getProfile().equals(decoder.user)) {
-                    return null;
-                }
-                return new PendingInstallShortcutInfo(info, widgetId, context);
-            }
-
-            Intent data = new Intent();
-            data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, decoder.launcherIntent);
-            data.putExtra(Intent.EXTRA_SHORTCUT_NAME, decoder.getString(NAME_KEY));
-
-            String iconBase64 = decoder.optString(ICON_KEY);
-            String iconResourceName = decoder.optString(ICON_RESOURCE_NAME_KEY);
-            String iconResourcePackageName = decoder.optString(ICON_RESOURCE_PACKAGE_NAME_KEY);
-            if (iconBase64 != null && !iconBase64.isEmpty()) {
-                byte[] iconArray = Base64.decode(iconBase64, Base64.DEFAULT);
-                Bitmap b = BitmapFactory.decodeByteArray(iconArray, 0, iconArray.length);
-                data.putExtra(Intent.EXTRA_SHORTCUT_ICON, b);
-            } else if (iconResourceName != null && !iconResourceName.isEmpty()) {
-                Intent.ShortcutIconResource iconResource =
-                    new Intent.ShortcutIconResource();
-                iconResource.resourceName = iconResourceName;
-                iconResource.packageName = iconResourcePackageName;
-                data.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, iconResource);
+                type = TYPE_WIDGET;
+            } else {
+                type = TYPE_SHORTCUT;
+                data = new Intent();
+                data.putExtra(Intent.EXTRA_SHORTCUT_INTENT, decoder.launcherIntent);
+                data.putExtra(Intent.EXTRA_SHORTCUT_NAME, decoder.getString(NAME_KEY));
+
+                String iconBase64 = decoder.optString(ICON_KEY);
+                addIconExtra(data, iconBase64 == null || iconBase64.isEmpty() ? null
+                        : Base64.decode(iconBase64, Base64.DEFAULT),
+                        decoder.optString(ICON_RESOURCE_NAME_KEY),
+                        decoder.optString(ICON_RESOURCE_PACKAGE_NAME_KEY));
             }
-
-            return new PendingInstallShortcutInfo(data, decoder.user, context);
+            return decode(context, type, decoder.launcherIntent, decoder.user, data);
         } catch (JSONException | URISyntaxException e) {
             Log.d(TAG, "Exception reading shortcut to add: " + e);
         }
         return null;
     }
 
+    private static void addIconExtra(Intent data, byte[] iconArray, String iconResourceName,
+            String iconResourcePackageName) {
+        if (iconArray != null && iconArray.length > 0) {
+            Bitmap b = BitmapFactory.decodeByteArray(iconArray, 0, iconArray.length);
+            data.putExtra(Intent.EXTRA_SHORTCUT_ICON, b);
+        } else if (iconResourceName != null && !iconResourceName.isEmpty()) {
+            Intent.ShortcutIconResource iconResource =
+                new Intent.ShortcutIconResource();
+            iconResource.resourceName = iconResourceName;
+            iconResource.packageName = iconResourcePackageName;
+            data.putExtra(Intent.EXTRA_SHORTCUT_ICON_RESOURCE, iconResource);
+        }
+    }
+
+    /**
+     * @param data the install shortcut intent, for {@link #TYPE_SHORTCUT} only.
+     */
+    private static PendingInstallShortcutInfo decode(Context context, byte type,
+            Intent launcherIntent, UserHandle user, Intent data) {
+        if (type == TYPE_APP) {
+            LauncherActivityInfo info = LauncherAppsCompat.getInstance(context)
+                    .resolveActivity(launcherIntent, user);
+            return info == null ? null : new PendingInstallShortcutInfo(info, context);
+        } else if (type == TYPE_DEEP_SHORTCUT) {
+            DeepShortcutManager sm = DeepShortcutManager.getInstance(context);
+            List<ShortcutInfoCompat> si = sm.queryForFullDetails(
+                    launcherIntent.getPackage(),
+                    Arrays.asList(launcherIntent.getStringExtra(
+                            ShortcutInfoCompat.EXTRA_SHORTCUT_ID)),
+                    user);
+            if (si.isEmpty()) {
+                return null;
+            } else {
+                return new PendingInstallShortcutInfo(si.get(0), context);
+            }
+        } else if (type == TYPE_WIDGET) {
+            int widgetId = launcherIntent.getIntExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, 0);
+            AppWidgetProviderInfo info = AppWidgetManager.getInstance(context)
+                    .getAppWidgetInfo(widgetId);
+            if (info == null || !info.provider.equals(launcherIntent.getComponent()) ||
+                    !info.getProfile().equals(user)) {
+                return null;
+            }
+            return new PendingInstallShortcutInfo(info, widgetId, context);
+        } else if (type == TYPE_SHORTCUT) {
+            return new PendingInstallShortcutInfo(data, user, context);
+        }
+        Log.d(TAG, "Unknown type of shortcut to add: " + type);
+        return null;
+    }
+
     private static class Decoder extends JSONObject {
         public final Intent launcherIntent;
         public final UserHandle user;
@@ -604,9 +737,9 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
     private static class LazyShortcutsProvider extends Provider<List<Pair<ItemInfo, Object>>> {
 
         private final Context mContext;
-        private final ArrayList<PendingInstallShortcutInfo> mPendingItems;
+        private final List<InstallQueueJournal.Entry> mPendingItems;
 
-        public LazyShortcutsProvider(Context context, ArrayList<PendingInstallShortcutInfo> items) {
+        public LazyShortcutsProvider(Context context, List<InstallQueueJournal.Entry> items) {
             mContext = context;
             mPendingItems = items;
         }
@@ -620,7 +753,12 @@ public class InstallShortcutReceiver extends BroadcastReceiver {
             Preconditions.assertNonUiThread();
             ArrayList<Pair<ItemInfo, Object>> installQueue = new ArrayList<>();
             LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(mContext);
-            for (PendingInstallShortcutInfo pendingInfo : mPendingItems) {
+            for (InstallQueueJournal.Entry entry : mPendingItems) {
+                PendingInstallShortcutInfo pendingInfo = decode(entry, mContext);
+                if (pendingInfo == null) {
+                    continue;
+                }
+
                 // If the intent specifies a package, make sure the package exists
                 String packageName = getIntentPackage(pendingInfo.launchIntent);
                 if (!TextUtils.isEmpty(packageName) && !launcherApps.isPackageEnabledForProfile(
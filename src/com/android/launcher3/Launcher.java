@@ -102,6 +102,7 @@ import com.android.launcher3.dynamicui.ExtractedColors;
 import com.android.launcher3.dynamicui.WallpaperColorInfo;
 import com.android.launcher3.folder.Folder;
 import com.android.launcher3.folder.FolderIcon;
+import com.android.launcher3.graphics.BitmapPool;
 import com.android.launcher3.keyboard.CustomActionsPopup;
 import com.android.launcher3.keyboard.ViewGroupFocusHelper;
 import com.android.launcher3.logging.FileLog;
@@ -1561,6 +1562,7 @@ public class Launcher extends BaseActivity
         Runnable r = new Runnable() {
             @Override
             public void run() {
+                mDeviceProfile.mBadgeRenderer.evictNotificationIcons();
                 mWorkspace.updateIconBadges(updatedBadges);
                 mAppsView.updateIconBadges(updatedBadges);
 
@@ -2826,10 +2828,9 @@ public class Launcher extends BaseActivity
             // The widget preview db can result in holding onto over
             // 3MB of memory for caching which isn't necessary.
             SQLiteDatabase.releaseMemory();
-
-            // This clears all widget bitmaps from the widget tray
-            // TODO(hyunyoungs)
         }
+        // This clears the decoded widget previews which are not needed anymore
+        LauncherAppState.getInstance(this).getWidgetCache().onTrimMemory(level);
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.onTrimMemory(level);
         }
@@ -3949,6 +3950,10 @@ public class Launcher extends BaseActivity
         writer.println(" mPendingActivityResult=" + mPendingActivityResult);
 
         mModel.dumpState(prefix, fd, writer, args);
+        LauncherAppState.getInstance(this).getWidgetCache().dump(prefix, writer);
+        BitmapPool.getShared().dump(prefix, writer);
+        getUserEventDispatcher().dump(prefix, writer);
+        mPopupDataProvider.dump(prefix, writer);
 
         if (mLauncherCallbacks != null) {
             mLauncherCallbacks.dump(prefix, fd, writer, args);
@@ -657,8 +657,9 @@ public class LauncherModel extends BroadcastReceiver
         enqueueModelUpdateTask(new BaseModelUpdateTask() {
             @Override
             public void execute(LauncherAppState app, BgDataModel dataModel, AllAppsList apps) {
-                dataModel.widgetsModel.update(app, packageUser);
-                bindUpdatedWidgets(dataModel);
+                if (dataModel.widgetsModel.update(app, packageUser)) {
+                    bindUpdatedWidgets(dataModel);
+                }
             }
         });
     }
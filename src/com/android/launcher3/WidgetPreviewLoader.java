@@ -1,5 +1,6 @@
 package com.android.launcher3;
 
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.ContentValues;
 import android.content.Context;
@@ -12,7 +13,6 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -21,18 +21,23 @@ import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
-import android.os.Build;
 import android.os.CancellationSignal;
 import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.support.annotation.Nullable;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.util.LongSparseArray;
+import android.util.LruCache;
 
 import com.android.launcher3.compat.AppWidgetManagerCompat;
 import com.android.launcher3.compat.ShortcutConfigActivityInfo;
 import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.graphics.BitmapFileStore;
+import com.android.launcher3.graphics.BitmapPool;
 import com.android.launcher3.graphics.LauncherIcons;
 import com.android.launcher3.graphics.ShadowGenerator;
 import com.android.launcher3.model.WidgetItem;
@@ -43,14 +48,22 @@ import com.android.launcher3.util.SQLiteCacheHelper;
 import com.android.launcher3.util.Thunk;
 import com.android.launcher3.widget.WidgetCell;
 
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.IdentityHashMap;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class WidgetPreviewLoader {
 
@@ -59,35 +72,88 @@ public class WidgetPreviewLoader {
 
     private final HashMap<String, long[]> mPackageVersions = new HashMap<>();
 
+    // Upper bound for the decoded previews kept in memory.
+    private static final long MAX_MEMORY_CACHE_SIZE = 16 << 20;  // 16 mb
+
+    // Previews are stored uncompressed, the least recently used are removed above this size.
+    private static final long MAX_FILE_STORE_SIZE = 32 << 20;  // 32 mb
+    private static final long LAST_USED_UPDATE_INTERVAL = DateUtils.HOUR_IN_MILLIS;
+    private static final String PREVIEWS_DIR = "widget_previews";
+
     /**
-     * Weak reference objects, do not prevent their referents from being made finalizable,
-     * finalized, and then reclaimed.
-     * Note: synchronized block used for this variable is expensive and the block should always
-     * be posted to a background thread.
+     * Decoded previews, keyed by component, user and size. A preview bitmap can be shared by
+     * the cache and any number of {@link WidgetCell}s, so bitmaps are reference counted in
+     * {@link #mPreviewRefCounts} and only returned to {@link #mBitmapPool} once unused.
+     * All access is guarded by {@link #mPreviewLock}.
      */
-    @Thunk final Set<Bitmap> mUnusedBitmaps =
-            Collections.newSetFromMap(new WeakHashMap<Bitmap, Boolean>());
+    private final LruCache<WidgetCacheKey, Bitmap> mPreviewCache;
+    private final IdentityHashMap<Bitmap, Integer> mPreviewRefCounts = new IdentityHashMap<>();
+    private final Object mPreviewLock = new Object();
+
+    /**
+     * Bitmaps which are not referenced anymore and can be reused for loading other previews.
+     * The pool is shared with the icon rendering.
+     */
+    @Thunk final BitmapPool mBitmapPool = BitmapPool.getShared();
 
     private final Context mContext;
     private final IconCache mIconCache;
     private final UserManagerCompat mUserManager;
     private final AppWidgetManagerCompat mWidgetManager;
-    private final CacheDb mDb;
+    @Thunk final CacheDb mDb;
+    private final BitmapFileStore mFileStore;
+    // Total size of the stored previews, or -1 if unknown. Worker thread only.
+    @Thunk long mFileStoreSize = -1;
 
     private final MainThreadExecutor mMainThreadExecutor = new MainThreadExecutor();
     @Thunk final Handler mWorkerHandler;
 
+    /**
+     * Previews are loaded in two stages: reading from the DB, which is serial anyway, and
+     * generating the previews which are not in the DB. Both stages run the most recent request
+     * first, as it most likely belongs to the rows currently visible.
+     */
+    @Thunk final ThreadPoolExecutor mDbReadExecutor = newLifoExecutor("widget-preview-db", 1);
+    @Thunk final ThreadPoolExecutor mGenerateExecutor = newLifoExecutor("widget-preview-gen", 2);
+
+    // Loads in progress, used to share a load between requests with the same key. UI thread only.
+    @Thunk final HashMap<WidgetCacheKey, PreviewLoadTask> mPendingTasks = new HashMap<>();
+
+    // Time-to-first-preview instrumentation, UI thread only.
+    private long mBatchStartTime;
+    private long mLastTimeToFirstPreview = -1;
+    private int mPreviewsLoaded;
+    private long mTotalLoadTime;
+    private long mMaxLoadTime;
+
     public WidgetPreviewLoader(Context context, IconCache iconCache) {
         mContext = context;
         mIconCache = iconCache;
         mWidgetManager = AppWidgetManagerCompat.getInstance(context);
         mUserManager = UserManagerCompat.getInstance(context);
         mDb = new CacheDb(context);
+        mFileStore = new BitmapFileStore(new File(context.getCacheDir(), PREVIEWS_DIR));
         mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+
+        int cacheSize = (int) Math.min(MAX_MEMORY_CACHE_SIZE, Runtime.getRuntime().maxMemory() / 16);
+        mPreviewCache = new LruCache<WidgetCacheKey, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(WidgetCacheKey key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, WidgetCacheKey key, Bitmap oldValue,
+                    Bitmap newValue) {
+                if (oldValue != newValue) {
+                    releasePreview(oldValue);
+                }
+            }
+        };
     }
 
     /**
-     * Generates the widget preview on {@link AsyncTask#THREAD_POOL_EXECUTOR}. Must be
+     * Returns the widget preview from memory or loads it on the preview executors. Must be
      * called on UI thread
      *
      * @return a request id which can be used to cancel the request.
@@ -97,21 +163,117 @@ public class WidgetPreviewLoader {
         String size = previewWidth + "x" + previewHeight;
         WidgetCacheKey key = new WidgetCacheKey(item.componentName, item.user, size);
 
-        PreviewLoadTask task = new PreviewLoadTask(key, item, previewWidth, previewHeight, caller,
-                animate);
-        task.executeOnExecutor(Utilities.THREAD_POOL_EXECUTOR);
+        final Bitmap cached;
+        synchronized (mPreviewLock) {
+            cached = mPreviewCache.get(key);
+            if (cached != null) {
+                retainPreview(cached);
+            }
+        }
+        if (cached != null) {
+            caller.applyPreview(cached, animate);
+            CancellationSignal signal = new CancellationSignal();
+            signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    releasePreview(cached);
+                }
+            });
+            return signal;
+        }
+
+        PreviewLoadTask task = mPendingTasks.get(key);
+        if (task == null) {
+            if (mPendingTasks.isEmpty()) {
+                mBatchStartTime = SystemClock.uptimeMillis();
+            }
+            task = new PreviewLoadTask(key, item, previewWidth, previewHeight,
+                    BaseActivity.fromContext(caller.getContext()));
+            mPendingTasks.put(key, task);
+            task.start();
+        }
+
+        PreviewRequest request = new PreviewRequest(task, caller, animate);
+        task.mRequests.add(request);
 
         CancellationSignal signal = new CancellationSignal();
-        signal.setOnCancelListener(task);
+        signal.setOnCancelListener(request);
         return signal;
     }
 
     /**
-     * The DB holds the generated previews for various components. Previews can also have different
-     * sizes (landscape vs portrait).
+     * Adds the preview to the memory cache. The cache holds its own reference to the preview,
+     * released when the entry is removed.
+     */
+    @Thunk void addToMemoryCache(WidgetCacheKey key, Bitmap preview) {
+        synchronized (mPreviewLock) {
+            if (mPreviewCache.get(key) != preview) {
+                retainPreview(preview);
+                mPreviewCache.put(key, preview);
+            }
+        }
+    }
+
+    @Thunk void retainPreview(Bitmap preview) {
+        synchronized (mPreviewLock) {
+            Integer count = mPreviewRefCounts.get(preview);
+            mPreviewRefCounts.put(preview, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * Releases a reference acquired through {@link #retainPreview}. Once the preview is not
+     * referenced anymore, it is moved to the bitmap pool.
+     */
+    @Thunk void releasePreview(Bitmap preview) {
+        synchronized (mPreviewLock) {
+            Integer count = mPreviewRefCounts.get(preview);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mPreviewRefCounts.put(preview, count - 1);
+                return;
+            }
+            mPreviewRefCounts.remove(preview);
+        }
+        mBitmapPool.release(preview);
+    }
+
+    /**
+     * Removes the cached previews from memory, based on the trim memory level.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            synchronized (mPreviewLock) {
+                mPreviewCache.evictAll();
+            }
+            mBitmapPool.clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            synchronized (mPreviewLock) {
+                mPreviewCache.trimToSize(mPreviewCache.maxSize() / 2);
+            }
+            mBitmapPool.clear();
+        }
+    }
+
+    private void removeFromMemoryCache(String packageName, UserHandle user) {
+        synchronized (mPreviewLock) {
+            for (WidgetCacheKey key : mPreviewCache.snapshot().keySet()) {
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    mPreviewCache.remove(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * The DB indexes the generated previews for various components, the pixels are stored in
+     * {@link #mFileStore}. Previews can also have different sizes (landscape vs portrait).
      */
     private static class CacheDb extends SQLiteCacheHelper {
-        private static final int DB_VERSION = 9;
+        private static final int DB_VERSION = 11;
 
         private static final String TABLE_NAME = "shortcut_and_widget_previews";
         private static final String COLUMN_COMPONENT = "componentName";
@@ -120,7 +282,8 @@ public class WidgetPreviewLoader {
         private static final String COLUMN_PACKAGE = "packageName";
         private static final String COLUMN_LAST_UPDATED = "lastUpdated";
         private static final String COLUMN_VERSION = "version";
-        private static final String COLUMN_PREVIEW_BITMAP = "preview_bitmap";
+        private static final String COLUMN_FILE_SIZE = "fileSize";
+        private static final String COLUMN_LAST_USED = "lastUsed";
 
         public CacheDb(Context context) {
             super(context, LauncherFiles.WIDGET_PREVIEWS_DB, DB_VERSION, TABLE_NAME);
@@ -135,22 +298,106 @@ public class WidgetPreviewLoader {
                     COLUMN_PACKAGE + " TEXT NOT NULL, " +
                     COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
                     COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
-                    COLUMN_PREVIEW_BITMAP + " BLOB, " +
+                    COLUMN_FILE_SIZE + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_LAST_USED + " INTEGER NOT NULL DEFAULT 0, " +
                     "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ", " + COLUMN_SIZE + ") " +
                     ");");
+            // Package updates only touch the rows of that package.
+            database.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_package ON "
+                    + TABLE_NAME + " (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ");");
+        }
+    }
+
+    /**
+     * Returns the name of the preview file, unique for the component, user and size.
+     */
+    private static String getFileName(String component, long userSerial, String size) {
+        try {
+            // The encoded component does not contain any '/', and the other parts no '_'.
+            return userSerial + "_" + size + "_" + URLEncoder.encode(component, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
         }
     }
 
     @Thunk void writeToDb(WidgetCacheKey key, long[] versions, Bitmap preview) {
+        String component = key.componentName.flattenToShortString();
+        long userSerial = mUserManager.getSerialNumberForUser(key.user);
+        long fileSize = mFileStore.write(getFileName(component, userSerial, key.size), preview);
+        if (fileSize < 0) {
+            return;
+        }
+
         ContentValues values = new ContentValues();
-        values.put(CacheDb.COLUMN_COMPONENT, key.componentName.flattenToShortString());
-        values.put(CacheDb.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
+        values.put(CacheDb.COLUMN_COMPONENT, component);
+        values.put(CacheDb.COLUMN_USER, userSerial);
         values.put(CacheDb.COLUMN_SIZE, key.size);
         values.put(CacheDb.COLUMN_PACKAGE, key.componentName.getPackageName());
         values.put(CacheDb.COLUMN_VERSION, versions[0]);
         values.put(CacheDb.COLUMN_LAST_UPDATED, versions[1]);
-        values.put(CacheDb.COLUMN_PREVIEW_BITMAP, Utilities.flattenBitmap(preview));
+        values.put(CacheDb.COLUMN_FILE_SIZE, fileSize);
+        values.put(CacheDb.COLUMN_LAST_USED, System.currentTimeMillis());
         mDb.insertOrReplace(values);
+
+        if (mFileStoreSize >= 0) {
+            mFileStoreSize += fileSize;
+        }
+        trimFileStore();
+    }
+
+    /**
+     * Removes the least recently used previews if the stored previews exceed
+     * {@link #MAX_FILE_STORE_SIZE}. Must be called on the worker thread.
+     */
+    private void trimFileStore() {
+        Cursor c = null;
+        try {
+            if (mFileStoreSize < 0) {
+                c = mDb.query(new String[] {"SUM(" + CacheDb.COLUMN_FILE_SIZE + ")"}, null, null);
+                mFileStoreSize = c.moveToNext() ? c.getLong(0) : 0;
+                c.close();
+                c = null;
+            }
+            if (mFileStoreSize <= MAX_FILE_STORE_SIZE) {
+                return;
+            }
+
+            c = mDb.query(new String[] {CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_USER,
+                            CacheDb.COLUMN_SIZE, CacheDb.COLUMN_FILE_SIZE,
+                            CacheDb.COLUMN_LAST_USED},
+                    null, null);
+            ArrayList<StoredPreview> previews = new ArrayList<>(c.getCount());
+            while (c.moveToNext()) {
+                StoredPreview preview = new StoredPreview();
+                preview.component = c.getString(0);
+                preview.userSerial = c.getLong(1);
+                preview.size = c.getString(2);
+                preview.fileSize = c.getLong(3);
+                preview.lastUsed = c.getLong(4);
+                previews.add(preview);
+            }
+            Collections.sort(previews);
+
+            long targetSize = MAX_FILE_STORE_SIZE * 3 / 4;
+            for (StoredPreview preview : previews) {
+                if (mFileStoreSize <= targetSize) {
+                    break;
+                }
+                mFileStore.delete(getFileName(preview.component, preview.userSerial,
+                        preview.size));
+                mDb.delete(CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER
+                        + " = ? AND " + CacheDb.COLUMN_SIZE + " = ?",
+                        new String[] {preview.component, Long.toString(preview.userSerial),
+                                preview.size});
+                mFileStoreSize -= preview.fileSize;
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error trimming widget previews", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
     }
 
     public void removePackage(String packageName, UserHandle user) {
@@ -161,10 +408,27 @@ public class WidgetPreviewLoader {
         synchronized(mPackageVersions) {
             mPackageVersions.remove(packageName);
         }
+        removeFromMemoryCache(packageName, user);
 
-        mDb.delete(
-                CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?",
-                new String[]{packageName, Long.toString(userSerial)});
+        String selection = CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?";
+        String[] selectionArgs = new String[]{packageName, Long.toString(userSerial)};
+        Cursor c = null;
+        try {
+            c = mDb.query(new String[] {CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_SIZE},
+                    selection, selectionArgs);
+            while (c.moveToNext()) {
+                mFileStore.delete(getFileName(c.getString(0), userSerial, c.getString(1)));
+            }
+        } catch (SQLException e) {
+            Log.e(TAG, "Error removing widget previews", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        mDb.delete(selection, selectionArgs);
+        // Recomputed on the next write.
+        mFileStoreSize = -1;
     }
 
     /**
@@ -195,29 +459,35 @@ public class WidgetPreviewLoader {
         LongSparseArray<HashSet<String>> packagesToDelete = new LongSparseArray<>();
         long passedUserId = packageUser == null ? 0
                 : mUserManager.getSerialNumberForUser(packageUser.mUser);
+        String selection = null;
+        String[] selectionArgs = null;
+        if (packageUser != null) {
+            selection = CacheDb.COLUMN_PACKAGE + " = ? AND " + CacheDb.COLUMN_USER + " = ?";
+            selectionArgs = new String[] {packageUser.mPackageName, Long.toString(passedUserId)};
+        }
         Cursor c = null;
         try {
             c = mDb.query(
                     new String[]{CacheDb.COLUMN_USER, CacheDb.COLUMN_PACKAGE,
-                            CacheDb.COLUMN_LAST_UPDATED, CacheDb.COLUMN_VERSION},
-                    null, null);
+                            CacheDb.COLUMN_LAST_UPDATED, CacheDb.COLUMN_VERSION,
+                            CacheDb.COLUMN_COMPONENT, CacheDb.COLUMN_SIZE},
+                    selection, selectionArgs);
+            // Files of the previews which are kept, when checking all previews.
+            HashSet<String> validFiles = packageUser == null ? new HashSet<String>() : null;
             while (c.moveToNext()) {
                 long userId = c.getLong(0);
                 String pkg = c.getString(1);
                 long lastUpdated = c.getLong(2);
                 long version = c.getLong(3);
 
-                if (packageUser != null && (!pkg.equals(packageUser.mPackageName)
-                        || userId != passedUserId)) {
-                    // This preview is associated with a different package/user, no need to remove.
-                    continue;
-                }
-
                 HashSet<String> packages = validPackages.get(userId);
                 if (packages != null && packages.contains(pkg)) {
                     long[] versions = getPackageVersion(pkg);
                     if (versions[0] == version && versions[1] == lastUpdated) {
                         // Every thing checks out
+                        if (validFiles != null) {
+                            validFiles.add(getFileName(c.getString(4), userId, c.getString(5)));
+                        }
                         continue;
                     }
                 }
@@ -238,6 +508,11 @@ public class WidgetPreviewLoader {
                     removePackage(pkg, user, userId);
                 }
             }
+
+            if (validFiles != null) {
+                // Remove files which are no longer indexed, eg. after the DB was reset.
+                mFileStore.retainAll(validFiles);
+            }
         } catch (SQLException e) {
             Log.e(TAG, "Error updating widget previews", e);
         } finally {
@@ -250,52 +525,76 @@ public class WidgetPreviewLoader {
     /**
      * Reads the preview bitmap from the DB or null if the preview is not in the DB.
      */
-    @Thunk Bitmap readFromDb(WidgetCacheKey key, Bitmap recycle, PreviewLoadTask loadTask) {
+    @Thunk Bitmap readFromDb(WidgetCacheKey key, Bitmap recycle, CancellationSignal signal) {
+        final String component = key.componentName.flattenToShortString();
+        final long userSerial = mUserManager.getSerialNumberForUser(key.user);
+        long lastUsed;
         Cursor cursor = null;
         try {
             cursor = mDb.query(
-                    new String[]{CacheDb.COLUMN_PREVIEW_BITMAP},
+                    new String[]{CacheDb.COLUMN_LAST_USED},
                     CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER + " = ? AND "
                             + CacheDb.COLUMN_SIZE + " = ?",
-                    new String[]{
-                            key.componentName.flattenToShortString(),
-                            Long.toString(mUserManager.getSerialNumberForUser(key.user)),
-                            key.size
-                    });
-            // If cancelled, skip getting the blob and decoding it into a bitmap
-            if (loadTask.isCancelled()) {
+                    new String[]{component, Long.toString(userSerial), key.size});
+            if (!cursor.moveToNext()) {
                 return null;
             }
-            if (cursor.moveToNext()) {
-                byte[] blob = cursor.getBlob(0);
-                BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inBitmap = recycle;
-                try {
-                    if (!loadTask.isCancelled()) {
-                        return BitmapFactory.decodeByteArray(blob, 0, blob.length, opts);
-                    }
-                } catch (Exception e) {
-                    return null;
-                }
-            }
+            lastUsed = cursor.getLong(0);
         } catch (SQLException e) {
             Log.w(TAG, "Error loading preview from DB", e);
+            return null;
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
-        return null;
+
+        // If cancelled, skip reading the pixels
+        if (signal.isCanceled()) {
+            return null;
+        }
+        final String size = key.size;
+        final String[] whereArgs = new String[]{component, Long.toString(userSerial), size};
+        final String where = CacheDb.COLUMN_COMPONENT + " = ? AND " + CacheDb.COLUMN_USER
+                + " = ? AND " + CacheDb.COLUMN_SIZE + " = ?";
+        Bitmap preview = mFileStore.read(getFileName(component, userSerial, size), recycle);
+        if (preview == null) {
+            // The file is missing or invalid, it will be generated again.
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mDb.delete(where, whereArgs);
+                    mFileStoreSize = -1;
+                }
+            });
+        } else {
+            final long now = System.currentTimeMillis();
+            if (now - lastUsed > LAST_USED_UPDATE_INTERVAL) {
+                // Only update the LRU order occasionally, to avoid a write for every read.
+                mWorkerHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        ContentValues values = new ContentValues();
+                        values.put(CacheDb.COLUMN_LAST_USED, now);
+                        mDb.update(values, where, whereArgs);
+                    }
+                });
+            }
+        }
+        return preview;
     }
 
-    private Bitmap generatePreview(BaseActivity launcher, WidgetItem item, Bitmap recycle,
-            int previewWidth, int previewHeight) {
+    /**
+     * @throws OperationCanceledException if the signal is cancelled while generating
+     */
+    @Thunk Bitmap generatePreview(BaseActivity launcher, WidgetItem item, Bitmap recycle,
+            int previewWidth, int previewHeight, CancellationSignal signal) {
         if (item.widgetInfo != null) {
             return generateWidgetPreview(launcher, item.widgetInfo,
-                    previewWidth, recycle, null);
+                    previewWidth, recycle, null, signal);
         } else {
             return generateShortcutPreview(launcher, item.activityInfo,
-                    previewWidth, previewHeight, recycle);
+                    previewWidth, previewHeight, recycle, signal);
         }
     }
 
@@ -312,6 +611,13 @@ public class WidgetPreviewLoader {
      */
     public Bitmap generateWidgetPreview(BaseActivity launcher, LauncherAppWidgetProviderInfo info,
             int maxPreviewWidth, Bitmap preview, int[] preScaledWidthOut) {
+        return generateWidgetPreview(launcher, info, maxPreviewWidth, preview, preScaledWidthOut,
+                null);
+    }
+
+    private Bitmap generateWidgetPreview(BaseActivity launcher,
+            LauncherAppWidgetProviderInfo info, int maxPreviewWidth, Bitmap preview,
+            int[] preScaledWidthOut, @Nullable CancellationSignal signal) {
         // Load the preview image if possible
         if (maxPreviewWidth < 0) maxPreviewWidth = Integer.MAX_VALUE;
 
@@ -333,6 +639,8 @@ public class WidgetPreviewLoader {
             }
         }
 
+        throwIfCanceled(signal);
+
         final boolean widgetPreviewExists = (drawable != null);
         final int spanX = info.spanX;
         final int spanY = info.spanY;
@@ -382,6 +690,7 @@ public class WidgetPreviewLoader {
         }
 
         // Draw the scaled preview into the final bitmap
+        throwIfCanceled(signal);
         int x = (preview.getWidth() - previewWidth) / 2;
         if (widgetPreviewExists) {
             drawable.setBounds(x, 0, x + previewWidth, previewHeight);
@@ -399,6 +708,7 @@ public class WidgetPreviewLoader {
             float t = boxRect.left;
             float tileSize = boxRect.width() / spanX;
             for (int i = 1; i < spanX; i++) {
+                throwIfCanceled(signal);
                 t += tileSize;
                 c.drawLine(t, 0, t, previewHeight, p);
             }
@@ -406,11 +716,13 @@ public class WidgetPreviewLoader {
             t = boxRect.top;
             tileSize = boxRect.height() / spanY;
             for (int i = 1; i < spanY; i++) {
+                throwIfCanceled(signal);
                 t += tileSize;
                 c.drawLine(0, t, previewWidth, t, p);
             }
 
             // Draw icon in the center.
+            throwIfCanceled(signal);
             try {
                 Drawable icon = info.getIcon(launcher, mIconCache);
                 if (icon != null) {
@@ -430,6 +742,12 @@ public class WidgetPreviewLoader {
         return preview;
     }
 
+    private static void throwIfCanceled(@Nullable CancellationSignal signal) {
+        if (signal != null) {
+            signal.throwIfCanceled();
+        }
+    }
+
     private RectF drawBoxWithShadow(Canvas c, int width, int height) {
         Resources res = mContext.getResources();
 
@@ -446,7 +764,7 @@ public class WidgetPreviewLoader {
     }
 
     private Bitmap generateShortcutPreview(BaseActivity launcher, ShortcutConfigActivityInfo info,
-            int maxWidth, int maxHeight, Bitmap preview) {
+            int maxWidth, int maxHeight, Bitmap preview, CancellationSignal signal) {
         int iconSize = launcher.getDeviceProfile().iconSizePx;
         int padding = launcher.getResources()
                 .getDimensionPixelSize(R.dimen.widget_preview_shortcut_padding);
@@ -470,6 +788,7 @@ public class WidgetPreviewLoader {
         }
         RectF boxRect = drawBoxWithShadow(c, size, size);
 
+        throwIfCanceled(signal);
         Bitmap icon = LauncherIcons.createScaledBitmapWithoutShadow(
                 mutateOnMainThread(info.getFullResIcon(mIconCache)), mContext, 0);
         Rect src = new Rect(0, 0, icon.getWidth(), icon.getHeight());
@@ -520,146 +839,261 @@ public class WidgetPreviewLoader {
         }
     }
 
-    public class PreviewLoadTask extends AsyncTask<Void, Void, Bitmap>
-            implements CancellationSignal.OnCancelListener {
+    /**
+     * Called on the UI thread once a preview load completes.
+     */
+    @Thunk void onPreviewLoaded(PreviewLoadTask task, Bitmap preview) {
+        if (mPendingTasks.get(task.mKey) == task) {
+            mPendingTasks.remove(task.mKey);
+        }
+        if (task.mCancelSignal.isCanceled()) {
+            mBitmapPool.release(preview);
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        long loadTime = now - task.mStartTime;
+        mPreviewsLoaded++;
+        mTotalLoadTime += loadTime;
+        mMaxLoadTime = Math.max(mMaxLoadTime, loadTime);
+        if (mBatchStartTime > 0) {
+            mLastTimeToFirstPreview = now - mBatchStartTime;
+            mBatchStartTime = 0;
+            if (DEBUG) {
+                Log.d(TAG, "Time to first preview: " + mLastTimeToFirstPreview + "ms");
+            }
+        }
+
+        // The preview is now shared through the memory cache, each request keeps a reference
+        // which is released when the request is cancelled.
+        addToMemoryCache(task.mKey, preview);
+        for (PreviewRequest request : task.mRequests) {
+            retainPreview(preview);
+            request.mPreview = preview;
+            request.mCaller.applyPreview(preview, request.mAnimatePreviewIn);
+        }
+        task.mRequests.clear();
+
+        // Write the generated preview to the DB in the worker thread
+        if (task.mVersions != null) {
+            final WidgetCacheKey key = task.mKey;
+            final long[] versions = task.mVersions;
+            final Bitmap bitmap = preview;
+            // Make sure the bitmap is not reused while it is being written.
+            retainPreview(bitmap);
+            mWorkerHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    writeToDb(key, versions, bitmap);
+                    releasePreview(bitmap);
+                }
+            });
+        }
+    }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "WidgetPreviewLoader:");
+        writer.println(prefix + "  previewsLoaded=" + mPreviewsLoaded
+                + " avgLoadTime=" + (mPreviewsLoaded == 0 ? 0 : mTotalLoadTime / mPreviewsLoaded)
+                + "ms maxLoadTime=" + mMaxLoadTime
+                + "ms lastTimeToFirstPreview=" + mLastTimeToFirstPreview + "ms");
+        writer.println(prefix + "  pendingLoads=" + mPendingTasks.size()
+                + " memoryCacheSize=" + mPreviewCache.size());
+    }
+
+    /**
+     * A single preview load, shared by all the {@link PreviewRequest}s for the same key.
+     */
+    private class PreviewLoadTask {
         @Thunk final WidgetCacheKey mKey;
         private final WidgetItem mInfo;
         private final int mPreviewHeight;
         private final int mPreviewWidth;
-        private final WidgetCell mCaller;
-        private final boolean mAnimatePreviewIn;
         private final BaseActivity mActivity;
+
+        // Cancelled once all requests are cancelled. Checked by every stage of the load.
+        @Thunk final CancellationSignal mCancelSignal = new CancellationSignal();
+        // Requests waiting for this load, UI thread only.
+        @Thunk final ArrayList<PreviewRequest> mRequests = new ArrayList<>();
+        @Thunk long mStartTime;
         @Thunk long[] mVersions;
-        @Thunk Bitmap mBitmapToRecycle;
+
+        private final Runnable mReadStage = new Runnable() {
+            @Override
+            public void run() {
+                readPreview();
+            }
+        };
 
         PreviewLoadTask(WidgetCacheKey key, WidgetItem info, int previewWidth,
-                int previewHeight, WidgetCell caller, boolean animate) {
+                int previewHeight, BaseActivity activity) {
             mKey = key;
             mInfo = info;
             mPreviewHeight = previewHeight;
             mPreviewWidth = previewWidth;
-            mCaller = caller;
-            mAnimatePreviewIn = animate;
-            mActivity = BaseActivity.fromContext(mCaller.getContext());
+            mActivity = activity;
             if (DEBUG) {
                 Log.d(TAG, String.format("%s, %s, %d, %d",
                         mKey, mInfo, mPreviewHeight, mPreviewWidth));
             }
         }
 
-        @Override
-        protected Bitmap doInBackground(Void... params) {
-            Bitmap unusedBitmap = null;
+        void start() {
+            mStartTime = SystemClock.uptimeMillis();
+            mDbReadExecutor.execute(mReadStage);
+        }
 
+        void cancel() {
+            mCancelSignal.cancel();
+            // Drop the load if it has not started yet.
+            mDbReadExecutor.remove(mReadStage);
+        }
+
+        @Thunk void readPreview() {
             // If already cancelled before this gets to run in the background, then return early
-            if (isCancelled()) {
-                return null;
+            if (mCancelSignal.isCanceled()) {
+                return;
             }
-            synchronized (mUnusedBitmaps) {
-                // Check if we can re-use a bitmap
-                for (Bitmap candidate : mUnusedBitmaps) {
-                    if (candidate != null && candidate.isMutable() &&
-                            candidate.getWidth() == mPreviewWidth &&
-                            candidate.getHeight() == mPreviewHeight) {
-                        unusedBitmap = candidate;
-                        mUnusedBitmaps.remove(unusedBitmap);
-                        break;
+            // Re-use a bitmap from the pool if possible
+            final Bitmap unusedBitmap =
+                    mBitmapPool.get(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
+            Bitmap preview = readFromDb(mKey, unusedBitmap, mCancelSignal);
+            if (preview != null && preview != unusedBitmap) {
+                // The stored preview did not fit in the pooled bitmap.
+                mBitmapPool.release(unusedBitmap);
+            }
+            if (mCancelSignal.isCanceled()) {
+                mBitmapPool.release(preview != null ? preview : unusedBitmap);
+            } else if (preview != null) {
+                deliver(preview);
+            } else {
+                // it's not in the db... we need to generate it
+                mGenerateExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        generate(unusedBitmap);
                     }
-                }
+                });
             }
+        }
 
-            // creating a bitmap is expensive. Do not do this inside synchronized block.
-            if (unusedBitmap == null) {
-                unusedBitmap = Bitmap.createBitmap(mPreviewWidth, mPreviewHeight, Config.ARGB_8888);
+        @Thunk void generate(Bitmap unusedBitmap) {
+            if (mCancelSignal.isCanceled()) {
+                mBitmapPool.release(unusedBitmap);
+                return;
             }
-            // If cancelled now, don't bother reading the preview from the DB
-            if (isCancelled()) {
-                return unusedBitmap;
+            // Fetch the version info before we generate the preview, so that, in-case the
+            // app was updated while we are generating the preview, we use the old version info,
+            // which would gets re-written next time.
+            boolean persistable = mInfo.activityInfo == null
+                    || mInfo.activityInfo.isPersistable();
+            mVersions = persistable ? getPackageVersion(mKey.componentName.getPackageName())
+                    : null;
+
+            Bitmap preview;
+            try {
+                preview = generatePreview(mActivity, mInfo, unusedBitmap, mPreviewWidth,
+                        mPreviewHeight, mCancelSignal);
+            } catch (OperationCanceledException e) {
+                mBitmapPool.release(unusedBitmap);
+                return;
             }
-            Bitmap preview = readFromDb(mKey, unusedBitmap, this);
-            // Only consider generating the preview if we have not cancelled the task already
-            if (!isCancelled() && preview == null) {
-                // Fetch the version info before we generate the preview, so that, in-case the
-                // app was updated while we are generating the preview, we use the old version info,
-                // which would gets re-written next time.
-                boolean persistable = mInfo.activityInfo == null
-                        || mInfo.activityInfo.isPersistable();
-                mVersions = persistable ? getPackageVersion(mKey.componentName.getPackageName())
-                        : null;
-
-                // it's not in the db... we need to generate it
-                preview = generatePreview(mActivity, mInfo, unusedBitmap, mPreviewWidth, mPreviewHeight);
+            if (preview != unusedBitmap) {
+                // The pooled bitmap was too small for the preview.
+                mBitmapPool.release(unusedBitmap);
+            }
+            if (mCancelSignal.isCanceled()) {
+                mBitmapPool.release(preview);
+                return;
             }
-            return preview;
+            deliver(preview);
         }
 
-        @Override
-        protected void onPostExecute(final Bitmap preview) {
-            mCaller.applyPreview(preview, mAnimatePreviewIn);
+        private void deliver(final Bitmap preview) {
+            mMainThreadExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    onPreviewLoaded(PreviewLoadTask.this, preview);
+                }
+            });
+        }
+    }
 
-            // Write the generated preview to the DB in the worker thread
-            if (mVersions != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (!isCancelled()) {
-                            // If we are still using this preview, then write it to the DB and then
-                            // let the normal clear mechanism recycle the bitmap
-                            writeToDb(mKey, mVersions, preview);
-                            mBitmapToRecycle = preview;
-                        } else {
-                            // If we've already cancelled, then skip writing the bitmap to the DB
-                            // and manually add the bitmap back to the recycled set
-                            synchronized (mUnusedBitmaps) {
-                                mUnusedBitmaps.add(preview);
-                            }
-                        }
-                    }
-                });
-            } else {
-                // If we don't need to write to disk, then ensure the preview gets recycled by
-                // the normal clear mechanism
-                mBitmapToRecycle = preview;
-            }
+    /**
+     * A request for a preview by a {@link WidgetCell}, cancelled when the cell is recycled.
+     */
+    private class PreviewRequest implements CancellationSignal.OnCancelListener {
+        private final PreviewLoadTask mTask;
+        @Thunk final WidgetCell mCaller;
+        @Thunk final boolean mAnimatePreviewIn;
+        // The preview applied to the caller, UI thread only.
+        @Thunk Bitmap mPreview;
+
+        PreviewRequest(PreviewLoadTask task, WidgetCell caller, boolean animate) {
+            mTask = task;
+            mCaller = caller;
+            mAnimatePreviewIn = animate;
         }
 
         @Override
-        protected void onCancelled(final Bitmap preview) {
-            // If we've cancelled while the task is running, then can return the bitmap to the
-            // recycled set immediately. Otherwise, it will be recycled after the preview is written
-            // to disk.
-            if (preview != null) {
-                mWorkerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(preview);
-                        }
-                    }
-                });
+        public void onCancel() {
+            if (mPreview != null) {
+                releasePreview(mPreview);
+                mPreview = null;
+                return;
+            }
+            // The preview has not been loaded yet, cancel the load if nobody else waits for it.
+            mTask.mRequests.remove(this);
+            if (mTask.mRequests.isEmpty()) {
+                mTask.cancel();
+                if (mPendingTasks.get(mTask.mKey) == mTask) {
+                    mPendingTasks.remove(mTask.mKey);
+                }
             }
         }
+    }
 
-        @Override
-        public void onCancel() {
-            cancel(true);
-
-            // This only handles the case where the PreviewLoadTask is cancelled after the task has
-            // successfully completed (including having written to disk when necessary).  In the
-            // other cases where it is cancelled while the task is running, it will be cleaned up
-            // in the tasks's onCancelled() call, and if cancelled while the task is writing to
-            // disk, it will be cancelled in the task's onPostExecute() call.
-            if (mBitmapToRecycle != null) {
-                mWorkerHandler.post(new Runnable() {
+    /**
+     * Creates an executor which runs the most recently submitted task first.
+     */
+    private static ThreadPoolExecutor newLifoExecutor(final String name, int threads) {
+        BlockingQueue<Runnable> queue = new LinkedBlockingDeque<Runnable>() {
+            @Override
+            public boolean offer(Runnable r) {
+                return offerFirst(r);
+            }
+        };
+        ThreadFactory factory = new ThreadFactory() {
+            private int mCount;
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
                     @Override
                     public void run() {
-                        synchronized (mUnusedBitmaps) {
-                            mUnusedBitmaps.add(mBitmapToRecycle);
-                        }
-                        mBitmapToRecycle = null;
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
                     }
-                });
+                }, name + "-" + mCount++);
             }
+        };
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 1,
+                TimeUnit.SECONDS, queue, factory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static class StoredPreview implements Comparable<StoredPreview> {
+        String component;
+        long userSerial;
+        String size;
+        long fileSize;
+        long lastUsed;
+
+        @Override
+        public int compareTo(StoredPreview another) {
+            // Least recently used first
+            return Long.compare(lastUsed, another.lastUsed);
         }
     }
 
@@ -3832,15 +3832,9 @@ public class Workspace extends PagedView
                 ItemInfo info = (ItemInfo) item.getTag();
                 if (recurse && info instanceof FolderInfo && item instanceof FolderIcon) {
                     FolderIcon folder = (FolderIcon) item;
-                    ArrayList<View> folderChildren = folder.getFolder().getItemsInReadingOrder();
-                    // map over all the children in the folder
-                    final int childCount = folderChildren.size();
-                    for (int childIdx = 0; childIdx < childCount; childIdx++) {
-                        View child = folderChildren.get(childIdx);
-                        info = (ItemInfo) child.getTag();
-                        if (op.evaluate(info, child)) {
-                            return;
-                        }
+                    // map over all the children in the folder which have a view
+                    if (folder.getFolder().iterateOverBoundItems(op) != null) {
+                        return;
                     }
                 } else {
                     if (op.evaluate(info, item)) {
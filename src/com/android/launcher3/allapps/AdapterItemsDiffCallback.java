@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.allapps;
+
+import android.support.v7.util.DiffUtil;
+
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.allapps.AlphabeticalAppsList.AdapterItem;
+import com.android.launcher3.util.ComponentKey;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Computes the difference between two lists of {@link AdapterItem}s. App items are identified by
+ * their component and user, all other items by their view type.
+ *
+ * This is safe to run on a background thread as long as neither list is modified meanwhile.
+ */
+class AdapterItemsDiffCallback extends DiffUtil.Callback {
+
+    private final List<AdapterItem> mOldItems;
+    private final List<AdapterItem> mNewItems;
+    // Apps which were updated in place since the old items were created
+    private final Set<ComponentKey> mUpdatedApps;
+
+    AdapterItemsDiffCallback(List<AdapterItem> oldItems, List<AdapterItem> newItems,
+            Set<ComponentKey> updatedApps) {
+        mOldItems = oldItems;
+        mNewItems = newItems;
+        mUpdatedApps = updatedApps;
+    }
+
+    @Override
+    public int getOldListSize() {
+        return mOldItems.size();
+    }
+
+    @Override
+    public int getNewListSize() {
+        return mNewItems.size();
+    }
+
+    @Override
+    public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+        AdapterItem oldItem = mOldItems.get(oldItemPosition);
+        AdapterItem newItem = mNewItems.get(newItemPosition);
+        if (oldItem.viewType != newItem.viewType) {
+            return false;
+        }
+        AppInfo oldApp = oldItem.appInfo;
+        AppInfo newApp = newItem.appInfo;
+        if (oldApp == null || newApp == null) {
+            return oldApp == newApp;
+        }
+        if (oldApp.componentName == null || newApp.componentName == null) {
+            // App discovery results do not always have a component.
+            return oldApp == newApp;
+        }
+        return oldApp.componentName.equals(newApp.componentName)
+                && oldApp.user.equals(newApp.user);
+    }
+
+    @Override
+    public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+        AdapterItem oldItem = mOldItems.get(oldItemPosition);
+        AdapterItem newItem = mNewItems.get(newItemPosition);
+        if (oldItem.appInfo == null) {
+            // Dividers and search items depend on the list state, always rebind them.
+            return false;
+        }
+        if (oldItem.appInfo != newItem.appInfo) {
+            return false;
+        }
+        return newItem.appInfo.componentName == null
+                || !mUpdatedApps.contains(newItem.appInfo.toComponentKey());
+    }
+}
@@ -19,10 +19,13 @@ import android.content.Context;
 import android.os.Process;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.v7.util.DiffUtil;
 import android.util.Log;
 
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.Launcher;
+import com.android.launcher3.MainThreadExecutor;
+import com.android.launcher3.Utilities;
 import com.android.launcher3.compat.AlphabeticIndexCompat;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.discovery.AppDiscoveryAppInfo;
@@ -35,9 +38,11 @@ import com.android.launcher3.util.LabelComparator;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -161,6 +166,19 @@ public class AlphabeticalAppsList {
         }
     }
 
+    /**
+     * The adapter items and derived state computed for one version of the list.
+     */
+    private static class AdapterItems {
+        final List<AppInfo> filteredApps = new ArrayList<>();
+        final List<AdapterItem> adapterItems = new ArrayList<>();
+        final List<FastScrollSectionInfo> fastScrollerSections = new ArrayList<>();
+        final List<AppInfo> predictedApps = new ArrayList<>();
+        int numAppRows;
+        // The search results these items were created for
+        ArrayList<ComponentKey> searchResults;
+    }
+
     private final Launcher mLauncher;
 
     // The set of apps from the system not including predictions
@@ -179,8 +197,10 @@ public class AlphabeticalAppsList {
     private final List<AppInfo> mPredictedApps = new ArrayList<>();
     private final List<AppDiscoveryAppInfo> mDiscoveredApps = new ArrayList<>();
 
-    // The of ordered component names as a result of a search query
+    // The of ordered component names as a result of a search query, as currently displayed
     private ArrayList<ComponentKey> mSearchResults;
+    // The latest search results, which are displayed once the pending update is applied
+    private ArrayList<ComponentKey> mRequestedSearchResults;
     private HashMap<CharSequence, String> mCachedSectionNames = new HashMap<>();
     private AllAppsGridAdapter mAdapter;
     private AlphabeticIndexCompat mIndexer;
@@ -189,6 +209,15 @@ public class AlphabeticalAppsList {
     private int mNumPredictedAppsPerRow;
     private int mNumAppRowsInAdapter;
 
+    // Used to drop adapter diffs which have been superseded by a newer update
+    private final MainThreadExecutor mUiExecutor = new MainThreadExecutor();
+    private int mUpdateGeneration;
+    private int mAppliedGeneration;
+    // Apps updated since the adapter items were last rebuilt
+    private final HashSet<ComponentKey> mUpdatedApps = new HashSet<>();
+    // Callbacks to run once the pending update is displayed
+    private final ArrayList<Runnable> mOnUpdateAppliedCallbacks = new ArrayList<>();
+
     public AlphabeticalAppsList(Context context) {
         mLauncher = Launcher.getLauncher(context);
         mIndexer = new AlphabeticIndexCompat(context);
@@ -202,7 +231,7 @@ public class AlphabeticalAppsList {
         mNumAppsPerRow = numAppsPerRow;
         mNumPredictedAppsPerRow = numPredictedAppsPerRow;
 
-        updateAdapterItems();
+        updateAdapterItemsImmediately();
     }
 
     /**
@@ -273,18 +302,32 @@ public class AlphabeticalAppsList {
     }
 
     /**
-     * Sets the sorted list of filtered components.
+     * Sets the sorted list of filtered components. The filter, and the state depending on it
+     * such as {@link #hasFilter()}, only changes once the adapter displays the filtered items,
+     * see {@link #runAfterPendingUpdate(Runnable)}.
      */
     public boolean setOrderedFilter(ArrayList<ComponentKey> f) {
-        if (mSearchResults != f) {
-            boolean same = mSearchResults != null && mSearchResults.equals(f);
-            mSearchResults = f;
+        if (mRequestedSearchResults != f) {
+            boolean same = mRequestedSearchResults != null && mRequestedSearchResults.equals(f);
+            mRequestedSearchResults = f;
             updateAdapterItems();
             return !same;
         }
         return false;
     }
 
+    /**
+     * Runs the callback once the adapter displays the latest update of the list, or immediately
+     * if there is no pending update.
+     */
+    public void runAfterPendingUpdate(Runnable callback) {
+        if (!hasPendingUpdate()) {
+            callback.run();
+        } else if (!mOnUpdateAppliedCallbacks.contains(callback)) {
+            mOnUpdateAppliedCallbacks.add(callback);
+        }
+    }
+
     public void onAppDiscoverySearchUpdate(@Nullable AppDiscoveryItem app,
                 @NonNull AppDiscoveryUpdateState state) {
         mAppDiscoveryUpdateState = state;
@@ -339,7 +382,7 @@ public class AlphabeticalAppsList {
         List<AppInfo> newPredictedApps = processPredictedAppComponents(apps);
         // We only need to do work if any of the visible predicted apps have changed.
         if (!newPredictedApps.equals(mPredictedApps)) {
-            if (newPredictedApps.size() == mPredictedApps.size()) {
+            if (newPredictedApps.size() == mPredictedApps.size() && !hasPendingUpdate()) {
                 swapInNewPredictedApps(newPredictedApps);
             } else {
                 // We need to update the appIndex of all the items.
@@ -383,7 +426,9 @@ public class AlphabeticalAppsList {
      */
     public void addOrUpdateApps(List<AppInfo> apps) {
         for (AppInfo app : apps) {
-            mComponentToAppMap.put(app.toComponentKey(), app);
+            ComponentKey key = app.toComponentKey();
+            mComponentToAppMap.put(key, app);
+            mUpdatedApps.add(key);
         }
         onAppsUpdated();
     }
@@ -450,8 +495,82 @@ public class AlphabeticalAppsList {
      * mCachedSectionNames to have been calculated for the set of all apps in mApps.
      */
     private void updateAdapterItems() {
-        refillAdapterItems();
+        final AdapterItems newItems = refillAdapterItems();
+        if (mAdapter == null || mAdapterItems.isEmpty() || newItems.adapterItems.isEmpty()) {
+            // Nothing to animate, apply the new items immediately.
+            applyAdapterItems(newItems);
+            refreshRecyclerView();
+            onUpdateApplied();
+            return;
+        }
+
+        // Compute the minimal set of changes in the background. The adapter keeps showing the
+        // current items until the diff is dispatched, so both always stay consistent.
+        final List<AdapterItem> oldItems = new ArrayList<>(mAdapterItems);
+        final Set<ComponentKey> updatedApps = new HashSet<>(mUpdatedApps);
+        final int generation = ++mUpdateGeneration;
+        Utilities.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new AdapterItemsDiffCallback(oldItems, newItems.adapterItems, updatedApps));
+                mUiExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mUpdateGeneration) {
+                            // A newer update was requested, which will be diffed against the
+                            // items currently displayed.
+                            return;
+                        }
+                        applyAdapterItems(newItems);
+                        diff.dispatchUpdatesTo(mAdapter);
+                        onUpdateApplied();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the adapter items and fully refreshes the adapter without diffing.
+     */
+    private void updateAdapterItemsImmediately() {
+        applyAdapterItems(refillAdapterItems());
         refreshRecyclerView();
+        onUpdateApplied();
+    }
+
+    private void onUpdateApplied() {
+        if (mOnUpdateAppliedCallbacks.isEmpty()) {
+            return;
+        }
+        ArrayList<Runnable> callbacks = new ArrayList<>(mOnUpdateAppliedCallbacks);
+        mOnUpdateAppliedCallbacks.clear();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private void applyAdapterItems(AdapterItems items) {
+        // Invalidate any pending diff, since it was computed against the previous items.
+        mUpdateGeneration++;
+        mAppliedGeneration = mUpdateGeneration;
+        mUpdatedApps.clear();
+
+        mFilteredApps.clear();
+        mFilteredApps.addAll(items.filteredApps);
+        mAdapterItems.clear();
+        mAdapterItems.addAll(items.adapterItems);
+        mFastScrollerSections.clear();
+        mFastScrollerSections.addAll(items.fastScrollerSections);
+        mPredictedApps.clear();
+        mPredictedApps.addAll(items.predictedApps);
+        mNumAppRowsInAdapter = items.numAppRows;
+        mSearchResults = items.searchResults;
+    }
+
+    private boolean hasPendingUpdate() {
+        return mUpdateGeneration != mAppliedGeneration;
     }
 
     private void refreshRecyclerView() {
@@ -460,17 +579,15 @@ public class AlphabeticalAppsList {
         }
     }
 
-    private void refillAdapterItems() {
+    private AdapterItems refillAdapterItems() {
+        AdapterItems items = new AdapterItems();
+        items.searchResults = mRequestedSearchResults;
+        boolean hasFilter = mRequestedSearchResults != null;
         String lastSectionName = null;
         FastScrollSectionInfo lastFastScrollerSectionInfo = null;
         int position = 0;
         int appIndex = 0;
 
-        // Prepare to update the list of sections, filtered apps, etc.
-        mFilteredApps.clear();
-        mFastScrollerSections.clear();
-        mAdapterItems.clear();
-
         if (DEBUG_PREDICTIONS) {
             if (mPredictedAppComponents.isEmpty() && !mApps.isEmpty()) {
                 mPredictedAppComponents.add(new ComponentKeyMapper<AppInfo>(new ComponentKey(mApps.get(0).componentName,
@@ -485,27 +602,26 @@ public class AlphabeticalAppsList {
         }
 
         // Process the predicted app components
-        mPredictedApps.clear();
-        if (mPredictedAppComponents != null && !mPredictedAppComponents.isEmpty() && !hasFilter()) {
-            mPredictedApps.addAll(processPredictedAppComponents(mPredictedAppComponents));
+        if (mPredictedAppComponents != null && !mPredictedAppComponents.isEmpty() && !hasFilter) {
+            items.predictedApps.addAll(processPredictedAppComponents(mPredictedAppComponents));
 
-            if (!mPredictedApps.isEmpty()) {
+            if (!items.predictedApps.isEmpty()) {
                 // Add a section for the predictions
                 lastFastScrollerSectionInfo = new FastScrollSectionInfo("");
-                mFastScrollerSections.add(lastFastScrollerSectionInfo);
+                items.fastScrollerSections.add(lastFastScrollerSectionInfo);
 
                 // Add the predicted app items
-                for (AppInfo info : mPredictedApps) {
+                for (AppInfo info : items.predictedApps) {
                     AdapterItem appItem = AdapterItem.asPredictedApp(position++, "", info,
                             appIndex++);
                     if (lastFastScrollerSectionInfo.fastScrollToItem == null) {
                         lastFastScrollerSectionInfo.fastScrollToItem = appItem;
                     }
-                    mAdapterItems.add(appItem);
-                    mFilteredApps.add(info);
+                    items.adapterItems.add(appItem);
+                    items.filteredApps.add(info);
                 }
 
-                mAdapterItems.add(AdapterItem.asPredictionDivider(position++));
+                items.adapterItems.add(AdapterItem.asPredictionDivider(position++));
             }
         }
 
@@ -518,7 +634,7 @@ public class AlphabeticalAppsList {
             if (!sectionName.equals(lastSectionName)) {
                 lastSectionName = sectionName;
                 lastFastScrollerSectionInfo = new FastScrollSectionInfo(sectionName);
-                mFastScrollerSections.add(lastFastScrollerSectionInfo);
+                items.fastScrollerSections.add(lastFastScrollerSectionInfo);
             }
 
             // Create an app item
@@ -526,13 +642,13 @@ public class AlphabeticalAppsList {
             if (lastFastScrollerSectionInfo.fastScrollToItem == null) {
                 lastFastScrollerSectionInfo.fastScrollToItem = appItem;
             }
-            mAdapterItems.add(appItem);
-            mFilteredApps.add(info);
+            items.adapterItems.add(appItem);
+            items.filteredApps.add(info);
         }
 
-        if (hasFilter()) {
+        if (hasFilter) {
             if (isAppDiscoveryRunning() || mDiscoveredApps.size() > 0) {
-                mAdapterItems.add(AdapterItem.asLoadingDivider(position++));
+                items.adapterItems.add(AdapterItem.asLoadingDivider(position++));
                 // Append all app discovery results
                 for (int i = 0; i < mDiscoveredApps.size(); i++) {
                     AppDiscoveryAppInfo appDiscoveryAppInfo = mDiscoveredApps.get(i);
@@ -542,20 +658,20 @@ public class AlphabeticalAppsList {
                     }
                     AdapterItem item = AdapterItem.asDiscoveryItem(position++,
                             "", appDiscoveryAppInfo, appIndex++);
-                    mAdapterItems.add(item);
+                    items.adapterItems.add(item);
                 }
 
                 if (!isAppDiscoveryRunning()) {
-                    mAdapterItems.add(AdapterItem.asMarketSearch(position++));
+                    items.adapterItems.add(AdapterItem.asMarketSearch(position++));
                 }
             } else {
                 // Append the search market item
-                if (hasNoFilteredResults()) {
-                    mAdapterItems.add(AdapterItem.asEmptySearch(position++));
+                if (items.filteredApps.isEmpty()) {
+                    items.adapterItems.add(AdapterItem.asEmptySearch(position++));
                 } else {
-                    mAdapterItems.add(AdapterItem.asMarketDivider(position++));
+                    items.adapterItems.add(AdapterItem.asMarketDivider(position++));
                 }
-                mAdapterItems.add(AdapterItem.asMarketSearch(position++));
+                items.adapterItems.add(AdapterItem.asMarketSearch(position++));
             }
         }
 
@@ -565,7 +681,7 @@ public class AlphabeticalAppsList {
             int numAppsInSection = 0;
             int numAppsInRow = 0;
             int rowIndex = -1;
-            for (AdapterItem item : mAdapterItems) {
+            for (AdapterItem item : items.adapterItems) {
                 item.rowIndex = 0;
                 if (AllAppsGridAdapter.isDividerViewType(item.viewType)) {
                     numAppsInSection = 0;
@@ -580,13 +696,13 @@ public class AlphabeticalAppsList {
                     numAppsInRow++;
                 }
             }
-            mNumAppRowsInAdapter = rowIndex + 1;
+            items.numAppRows = rowIndex + 1;
 
             // Pre-calculate all the fast scroller fractions
             switch (mFastScrollDistributionMode) {
                 case FAST_SCROLL_FRACTION_DISTRIBUTE_BY_ROWS_FRACTION:
-                    float rowFraction = 1f / mNumAppRowsInAdapter;
-                    for (FastScrollSectionInfo info : mFastScrollerSections) {
+                    float rowFraction = 1f / items.numAppRows;
+                    for (FastScrollSectionInfo info : items.fastScrollerSections) {
                         AdapterItem item = info.fastScrollToItem;
                         if (!AllAppsGridAdapter.isIconViewType(item.viewType)) {
                             info.touchFraction = 0f;
@@ -598,9 +714,9 @@ public class AlphabeticalAppsList {
                     }
                     break;
                 case FAST_SCROLL_FRACTION_DISTRIBUTE_BY_NUM_SECTIONS:
-                    float perSectionTouchFraction = 1f / mFastScrollerSections.size();
+                    float perSectionTouchFraction = 1f / items.fastScrollerSections.size();
                     float cumulativeTouchFraction = 0f;
-                    for (FastScrollSectionInfo info : mFastScrollerSections) {
+                    for (FastScrollSectionInfo info : items.fastScrollerSections) {
                         AdapterItem item = info.fastScrollToItem;
                         if (!AllAppsGridAdapter.isIconViewType(item.viewType)) {
                             info.touchFraction = 0f;
@@ -612,6 +728,7 @@ public class AlphabeticalAppsList {
                     break;
             }
         }
+        return items;
     }
 
     public boolean isAppDiscoveryRunning() {
@@ -620,12 +737,12 @@ public class AlphabeticalAppsList {
     }
 
     private List<AppInfo> getFiltersAppInfos() {
-        if (mSearchResults == null) {
+        if (mRequestedSearchResults == null) {
             return mApps;
         }
 
         ArrayList<AppInfo> result = new ArrayList<>();
-        for (ComponentKey key : mSearchResults) {
+        for (ComponentKey key : mRequestedSearchResults) {
             AppInfo match = mComponentToAppMap.get(key);
             if (match != null) {
                 result.add(match);
@@ -43,6 +43,7 @@ import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.discovery.AppDiscoveryItem;
 import com.android.launcher3.discovery.AppDiscoveryUpdateState;
 import com.android.launcher3.graphics.TintedDrawableSpan;
+import com.android.launcher3.model.LaunchFrequencyModel;
 import com.android.launcher3.util.ComponentKey;
 import java.util.ArrayList;
 
@@ -131,7 +132,9 @@ public class AppsSearchContainerLayout extends FrameLayout
         mAppsRecyclerView.addOnScrollListener(mElevationController);
         mAdapter = (AllAppsGridAdapter) mAppsRecyclerView.getAdapter();
         mSearchBarController.initialize(
-                new DefaultAppSearchAlgorithm(appsList.getApps()), mSearchInput, mLauncher, this);
+                new DefaultAppSearchAlgorithm(appsList.getApps(),
+                        LaunchFrequencyModel.getInstance(getContext())),
+                mSearchInput, mLauncher, this);
     }
 
     @Override
@@ -200,10 +203,18 @@ public class AppsSearchContainerLayout extends FrameLayout
     }
 
     private void notifyResultChanged() {
-        mElevationController.reset();
-        mAppsRecyclerView.onSearchResultsChanged();
+        // The results are displayed once the adapter items have been diffed.
+        mApps.runAfterPendingUpdate(mResultChangedRunnable);
     }
 
+    private final Runnable mResultChangedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mElevationController.reset();
+            mAppsRecyclerView.onSearchResultsChanged();
+        }
+    };
+
     @Override
     public void addOnScrollRangeChangeListener(final OnScrollRangeChangeListener listener) {
         mLauncher.getHotseat().addOnLayoutChangeListener(new OnLayoutChangeListener() {
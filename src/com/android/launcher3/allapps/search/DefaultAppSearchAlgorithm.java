@@ -16,12 +16,16 @@
 package com.android.launcher3.allapps.search;
 
 import android.os.Handler;
+import android.support.annotation.Nullable;
 
 import com.android.launcher3.AppInfo;
+import com.android.launcher3.model.LaunchFrequencyModel;
 import com.android.launcher3.util.ComponentKey;
 
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -30,10 +34,17 @@ import java.util.List;
 public class DefaultAppSearchAlgorithm implements SearchAlgorithm {
 
     private final List<AppInfo> mApps;
+    @Nullable private final LaunchFrequencyModel mLaunchModel;
     protected final Handler mResultHandler;
 
     public DefaultAppSearchAlgorithm(List<AppInfo> apps) {
+        this(apps, null);
+    }
+
+    public DefaultAppSearchAlgorithm(List<AppInfo> apps,
+            @Nullable LaunchFrequencyModel launchModel) {
         mApps = apps;
+        mLaunchModel = launchModel;
         mResultHandler = new Handler();
     }
 
@@ -61,16 +72,73 @@ public class DefaultAppSearchAlgorithm implements SearchAlgorithm {
         // Do an intersection of the words in the query and each title, and filter out all the
         // apps that don't match all of the words in the query.
         final String queryTextLower = query.toLowerCase();
-        final ArrayList<ComponentKey> result = new ArrayList<>();
+        final ArrayList<AppInfo> matches = new ArrayList<>();
         StringMatcher matcher = StringMatcher.getInstance();
         for (AppInfo info : mApps) {
             if (matches(info, queryTextLower, matcher)) {
-                result.add(info.toComponentKey());
+                matches.add(info);
             }
         }
+        sortByLaunchFrequency(matches, mLaunchModel);
+
+        final ArrayList<ComponentKey> result = new ArrayList<>(matches.size());
+        for (AppInfo info : matches) {
+            result.add(info.toComponentKey());
+        }
         return result;
     }
 
+    /**
+     * Orders the matched apps by launch frequency, most launched first. The sort is stable, so
+     * apps which were never launched keep their original order.
+     */
+    public static void sortByLaunchFrequency(List<AppInfo> apps,
+            @Nullable LaunchFrequencyModel launchModel) {
+        if (apps.size() < 2 || launchModel == null || launchModel.isEmpty()) {
+            return;
+        }
+        // Look up the ranks once per query, rather than in the comparator.
+        double[] ranks = new double[apps.size()];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = launchModel.getRank(apps.get(i).toComponentKey());
+        }
+        sortByRank(apps, ranks);
+    }
+
+    /**
+     * Stable sort of the apps by decreasing rank, where {@param ranks} contains the rank of each
+     * app in {@param apps}.
+     */
+    static void sortByRank(List<AppInfo> apps, double[] ranks) {
+        int size = apps.size();
+        RankedApp[] ranked = new RankedApp[size];
+        for (int i = 0; i < size; i++) {
+            ranked[i] = new RankedApp(apps.get(i), ranks[i]);
+        }
+        Arrays.sort(ranked, RANKED_APP_COMPARATOR);
+        for (int i = 0; i < size; i++) {
+            apps.set(i, ranked[i].info);
+        }
+    }
+
+    private static class RankedApp {
+        final AppInfo info;
+        final double launchRank;
+
+        RankedApp(AppInfo info, double launchRank) {
+            this.info = info;
+            this.launchRank = launchRank;
+        }
+    }
+
+    private static final Comparator<RankedApp> RANKED_APP_COMPARATOR =
+            new Comparator<RankedApp>() {
+                @Override
+                public int compare(RankedApp a, RankedApp b) {
+                    return Double.compare(b.launchRank, a.launchRank);
+                }
+            };
+
     public static boolean matches(AppInfo info, String query, StringMatcher matcher) {
         int queryLength = query.length();
 
@@ -26,6 +26,7 @@ import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.Shader;
 import android.support.annotation.Nullable;
+import android.util.LruCache;
 import android.util.SparseArray;
 
 import com.android.launcher3.R;
@@ -50,6 +51,10 @@ public class BadgeRenderer {
     private static final float STACK_OFFSET_PERCENTAGE_Y = 0.06f;
     private static final float DOT_SCALE = 0.6f;
 
+    // Number of distinct scales a badge is rendered at while animating in and out.
+    private static final int SCALE_BUCKETS = 4;
+    private static final int MAX_CACHE_BYTES = 512 * 1024;
+
     private final Context mContext;
     private final int mSize;
     private final int mCharSize;
@@ -64,6 +69,17 @@ public class BadgeRenderer {
             | Paint.FILTER_BITMAP_FLAG);
     private final SparseArray<Bitmap> mBackgroundsWithShadow;
 
+    // Rendered badges, only accessed on the UI thread.
+    private final LruCache<BadgeKey, Bitmap> mBadgeCache =
+            new LruCache<BadgeKey, Bitmap>(MAX_CACHE_BYTES) {
+                @Override
+                protected int sizeOf(BadgeKey key, Bitmap value) {
+                    return value.getByteCount();
+                }
+            };
+    private final BadgeKey mTempKey = new BadgeKey();
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
     public BadgeRenderer(Context context, int iconSizePx) {
         mContext = context;
         Resources res = context.getResources();
@@ -87,6 +103,10 @@ public class BadgeRenderer {
     /**
      * Draw a circle in the top right corner of the given bounds, and draw
      * {@link BadgeInfo#getNotificationCount()} on top of the circle.
+     *
+     * The badge is rendered once per palette, content and scale bucket, and then drawn as a
+     * single bitmap from the cache.
+     *
      * @param palette The colors (based on the icon) to use for the badge.
      * @param badgeInfo Contains data to draw on the badge. Could be null if we are animating out.
      * @param iconBounds The bounds of the icon being badged.
@@ -95,44 +115,80 @@ public class BadgeRenderer {
      */
     public void draw(Canvas canvas, IconPalette palette, @Nullable BadgeInfo badgeInfo,
             Rect iconBounds, float badgeScale, Point spaceForOffset) {
-        mTextPaint.setColor(palette.textColor);
-        IconDrawer iconDrawer = badgeInfo != null && badgeInfo.isIconLarge()
-                ? mLargeIconDrawer : mSmallIconDrawer;
-        Shader icon = badgeInfo == null ? null : badgeInfo.getNotificationIconForBadge(
+        if (badgeScale <= 0) {
+            return;
+        }
+        boolean isIconLarge = badgeInfo != null && badgeInfo.isIconLarge();
+        IconDrawer iconDrawer = isIconLarge ? mLargeIconDrawer : mSmallIconDrawer;
+        Shader icon = DOTS_ONLY || badgeInfo == null ? null : badgeInfo.getNotificationIconForBadge(
                 mContext, palette.backgroundColor, mSize, iconDrawer.mPadding);
         String notificationCount = badgeInfo == null ? "0"
                 : String.valueOf(badgeInfo.getNotificationCount());
         int numChars = notificationCount.length();
         int width = DOTS_ONLY ? mSize : mSize + mCharSize * (numChars - 1);
-        // Lazily load the background with shadow.
-        Bitmap backgroundWithShadow = mBackgroundsWithShadow.get(numChars);
-        if (backgroundWithShadow == null) {
-            backgroundWithShadow = new ShadowGenerator.Builder(Color.WHITE)
-                    .setupBlurForSize(mSize).createPill(width, mSize);
-            mBackgroundsWithShadow.put(numChars, backgroundWithShadow);
+        boolean isText = !DOTS_ONLY && badgeInfo != null && badgeInfo.getNotificationCount() != 0;
+        boolean isIcon = !DOTS_ONLY && icon != null;
+        boolean isDot = !(isText || isIcon);
+        boolean shouldStack = !isDot && badgeInfo != null
+                && badgeInfo.getNotificationKeys().size() > 1;
+
+        // Render the badge at the smallest scale bucket which is not smaller than the requested
+        // scale, so that the cached bitmap is only ever scaled down when drawn.
+        float scaleBucket = Math.min(SCALE_BUCKETS,
+                (int) Math.ceil(badgeScale * SCALE_BUCKETS)) / (float) SCALE_BUCKETS;
+        float renderScale = isDot ? scaleBucket * DOT_SCALE : scaleBucket;
+        mTempKey.set(palette, isText ? notificationCount : null, isIcon ? icon : null,
+                isIconLarge, shouldStack, scaleBucket);
+        Bitmap badge = mBadgeCache.get(mTempKey);
+        if (badge == null) {
+            badge = renderBadge(palette, notificationCount, numChars, width, icon, iconDrawer,
+                    isText, isIcon, shouldStack, renderScale);
+            mBadgeCache.put(mTempKey.copy(), badge);
         }
+
         canvas.save(Canvas.MATRIX_SAVE_FLAG);
         // We draw the badge relative to its center.
         int badgeCenterX = iconBounds.right - width / 2;
         int badgeCenterY = iconBounds.top + mSize / 2;
-        boolean isText = !DOTS_ONLY && badgeInfo != null && badgeInfo.getNotificationCount() != 0;
-        boolean isIcon = !DOTS_ONLY && icon != null;
-        boolean isDot = !(isText || isIcon);
-        if (isDot) {
-            badgeScale *= DOT_SCALE;
-        }
         int offsetX = Math.min(mOffset, spaceForOffset.x);
         int offsetY = Math.min(mOffset, spaceForOffset.y);
         canvas.translate(badgeCenterX + offsetX, badgeCenterY - offsetY);
-        canvas.scale(badgeScale, badgeScale);
+        float drawScale = badgeScale / scaleBucket;
+        canvas.scale(drawScale, drawScale);
+        canvas.drawBitmap(badge, -badge.getWidth() / 2, -badge.getHeight() / 2, mBitmapPaint);
+        canvas.restore();
+    }
+
+    /**
+     * Renders the badge centered in a new bitmap, at the given scale.
+     */
+    private Bitmap renderBadge(IconPalette palette, String notificationCount, int numChars,
+            int width, Shader icon, IconDrawer iconDrawer, boolean isText, boolean isIcon,
+            boolean shouldStack, float scale) {
+        // Lazily load the background with shadow.
+        Bitmap backgroundWithShadow = mBackgroundsWithShadow.get(numChars);
+        if (backgroundWithShadow == null) {
+            backgroundWithShadow = new ShadowGenerator.Builder(Color.WHITE)
+                    .setupBlurForSize(mSize).createPill(width, mSize);
+            mBackgroundsWithShadow.put(numChars, backgroundWithShadow);
+        }
+        int backgroundWithShadowSize = backgroundWithShadow.getHeight(); // Same as width.
+        int offsetDiffX = mStackOffsetX - mOffset;
+        int offsetDiffY = mStackOffsetY - mOffset;
+        int halfSize = backgroundWithShadowSize / 2;
+        if (shouldStack) {
+            halfSize += Math.max(Math.abs(offsetDiffX), Math.abs(offsetDiffY));
+        }
+        int bitmapSize = Math.max(1, (int) Math.ceil(2 * halfSize * scale));
+        Bitmap badge = Bitmap.createBitmap(bitmapSize, bitmapSize, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(badge);
+        canvas.translate(bitmapSize / 2f, bitmapSize / 2f);
+        canvas.scale(scale, scale);
+
+        mTextPaint.setColor(palette.textColor);
         // Prepare the background and shadow and possible stacking effect.
         mBackgroundPaint.setColorFilter(palette.backgroundColorMatrixFilter);
-        int backgroundWithShadowSize = backgroundWithShadow.getHeight(); // Same as width.
-        boolean shouldStack = !isDot && badgeInfo != null
-                && badgeInfo.getNotificationKeys().size() > 1;
         if (shouldStack) {
-            int offsetDiffX = mStackOffsetX - mOffset;
-            int offsetDiffY = mStackOffsetY - mOffset;
             canvas.translate(offsetDiffX, offsetDiffY);
             canvas.drawBitmap(backgroundWithShadow, -backgroundWithShadowSize / 2,
                     -backgroundWithShadowSize / 2, mBackgroundPaint);
@@ -147,12 +203,25 @@ public class BadgeRenderer {
             canvas.drawBitmap(backgroundWithShadow, -backgroundWithShadowSize / 2,
                     -backgroundWithShadowSize / 2, mBackgroundPaint);
             iconDrawer.drawIcon(icon, canvas);
-        } else if (isDot) {
+        } else {
             mBackgroundPaint.setColorFilter(palette.saturatedBackgroundColorMatrixFilter);
             canvas.drawBitmap(backgroundWithShadow, -backgroundWithShadowSize / 2,
                     -backgroundWithShadowSize / 2, mBackgroundPaint);
         }
-        canvas.restore();
+        canvas.setBitmap(null);
+        return badge;
+    }
+
+    /**
+     * Removes the cached badges which show a notification icon, as the icons they were rendered
+     * from are replaced when notifications change.
+     */
+    public void evictNotificationIcons() {
+        for (BadgeKey key : mBadgeCache.snapshot().keySet()) {
+            if (key.mIcon != null) {
+                mBadgeCache.remove(key);
+            }
+        }
     }
 
     /** Draws the notification icon with padding of a given size. */
@@ -177,4 +246,68 @@ public class BadgeRenderer {
             mPaint.setShader(null);
         }
     }
+
+    /**
+     * Identifies a rendered badge. Palettes are compared by their colors, since every icon has
+     * its own palette instance.
+     */
+    private static class BadgeKey {
+        private int mDominantColor;
+        private int mBackgroundColor;
+        private int mTextColor;
+        private String mText;
+        private Shader mIcon;
+        private boolean mIconLarge;
+        private boolean mStacked;
+        private float mScaleBucket;
+
+        void set(IconPalette palette, @Nullable String text, @Nullable Shader icon,
+                boolean iconLarge, boolean stacked, float scaleBucket) {
+            mDominantColor = palette.dominantColor;
+            mBackgroundColor = palette.backgroundColor;
+            mTextColor = palette.textColor;
+            mText = text;
+            mIcon = icon;
+            mIconLarge = iconLarge;
+            mStacked = stacked;
+            mScaleBucket = scaleBucket;
+        }
+
+        BadgeKey copy() {
+            BadgeKey key = new BadgeKey();
+            key.mDominantColor = mDominantColor;
+            key.mBackgroundColor = mBackgroundColor;
+            key.mTextColor = mTextColor;
+            key.mText = mText;
+            key.mIcon = mIcon;
+            key.mIconLarge = mIconLarge;
+            key.mStacked = mStacked;
+            key.mScaleBucket = mScaleBucket;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BadgeKey)) return false;
+            BadgeKey other = (BadgeKey) o;
+            return mDominantColor == other.mDominantColor
+                    && mBackgroundColor == other.mBackgroundColor
+                    && mTextColor == other.mTextColor
+                    && (mText == null ? other.mText == null : mText.equals(other.mText))
+                    && mIcon == other.mIcon
+                    && mIconLarge == other.mIconLarge
+                    && mStacked == other.mStacked
+                    && mScaleBucket == other.mScaleBucket;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mDominantColor;
+            result = 31 * result + mBackgroundColor;
+            result = 31 * result + (mText == null ? 0 : mText.hashCode());
+            result = 31 * result + System.identityHashCode(mIcon);
+            result = 31 * result + Float.floatToIntBits(mScaleBucket);
+            return 31 * result + (mStacked ? 1 : 0);
+        }
+    }
 }
@@ -26,6 +26,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.PermissionInfo;
 import android.graphics.Bitmap;
@@ -38,6 +39,7 @@ import android.graphics.drawable.Drawable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.PersistableBundle;
 import android.support.annotation.Nullable;
 import android.support.v4.graphics.ColorUtils;
 import android.support.v7.graphics.Palette;
@@ -51,6 +53,9 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import static android.app.WallpaperManager.FLAG_SYSTEM;
 import static com.android.launcher3.Utilities.getDevicePrefs;
@@ -61,6 +66,9 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
 
     private static final String VERSION_PREFIX = "1,";
     private static final String KEY_COLORS = "wallpaper_parsed_colors";
+    // Results of recent extractions, keyed by wallpaper id and size. See ColorCache.
+    private static final String KEY_COLORS_CACHE = "wallpaper_parsed_colors_cache";
+    private static final String EXTRA_CACHE_KEY = "cache_key";
     private static final String ACTION_EXTRACTION_COMPLETE =
             "com.android.launcher3.compat.WallpaperManagerCompatVL.EXTRACTION_COMPLETE";
 
@@ -68,24 +76,32 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
 
     private final Context mContext;
     private WallpaperColorsCompat mColorsCompat;
+    // Id of the wallpaper for which mColorsCompat was extracted
+    private int mWallpaperId = -1;
 
     WallpaperManagerCompatVL(Context context) {
         mContext = context;
 
         String colors = getDevicePrefs(mContext).getString(KEY_COLORS, "");
-        int wallpaperId = -1;
         if (colors.startsWith(VERSION_PREFIX)) {
             Pair<Integer, WallpaperColorsCompat> storedValue = parseValue(colors);
-            wallpaperId = storedValue.first;
+            mWallpaperId = storedValue.first;
             mColorsCompat = storedValue.second;
         }
 
-        if (wallpaperId == -1 || wallpaperId != getWallpaperId(context)) {
+        if (mWallpaperId == -1 || mWallpaperId != getWallpaperId(context)) {
             reloadColors();
         }
         context.registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
+                // Wallpaper ids change whenever a new wallpaper is set, so repeated broadcasts
+                // for the current wallpaper can be ignored. Before N, the id is computed by
+                // drawing the wallpaper, which is not worth doing on the main thread.
+                if (Utilities.ATLEAST_NOUGAT && mWallpaperId != -1
+                        && mWallpaperId == getWallpaperId(context)) {
+                    return;
+                }
                 reloadColors();
             }
         }, new IntentFilter(Intent.ACTION_WALLPAPER_CHANGED));
@@ -108,7 +124,8 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
         mContext.registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                handleResult(intent.getStringExtra(KEY_COLORS));
+                handleResult(intent.getStringExtra(KEY_COLORS),
+                        intent.getStringExtra(EXTRA_CACHE_KEY));
             }
         }, new IntentFilter(ACTION_EXTRACTION_COMPLETE), permission, new Handler());
     }
@@ -125,15 +142,28 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
     }
 
     private void reloadColors() {
+        // The service runs in a different process, so it gets the cached results with the job
+        // instead of reading the preferences.
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(KEY_COLORS_CACHE,
+                getDevicePrefs(mContext).getString(KEY_COLORS_CACHE, ""));
         JobInfo job = new JobInfo.Builder(Utilities.WALLPAPER_COMPAT_JOB_ID,
                 new ComponentName(mContext, ColorExtractionService.class))
-                .setMinimumLatency(0).build();
+                .setMinimumLatency(0).setExtras(extras).build();
         ((JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE)).schedule(job);
     }
 
-    private void handleResult(String result) {
-        getDevicePrefs(mContext).edit().putString(KEY_COLORS, result).apply();
-        mColorsCompat = parseValue(result).second;
+    private void handleResult(String result, @Nullable String cacheKey) {
+        SharedPreferences prefs = getDevicePrefs(mContext);
+        SharedPreferences.Editor editor = prefs.edit().putString(KEY_COLORS, result);
+        if (cacheKey != null) {
+            editor.putString(KEY_COLORS_CACHE,
+                    ColorCache.put(prefs.getString(KEY_COLORS_CACHE, ""), cacheKey, result));
+        }
+        editor.apply();
+        Pair<Integer, WallpaperColorsCompat> value = parseValue(result);
+        mWallpaperId = value.first;
+        mColorsCompat = value.second;
         for (OnColorsChangedListenerCompat listener : mListeners) {
             listener.onColorsChanged(mColorsCompat, FLAG_SYSTEM);
         }
@@ -176,6 +206,46 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
                 hints));
     }
 
+    /**
+     * Recently extracted colors, stored as a single string of "key=value" entries separated by
+     * ';', most recent first. The key is the wallpaper id and size, and the value is in the format
+     * of {@link #KEY_COLORS}, which contains neither '=' nor ';'.
+     */
+    static class ColorCache {
+        private static final int MAX_ENTRIES = 4;
+
+        static String getKey(int wallpaperId, int width, int height) {
+            return wallpaperId + "," + width + "," + height;
+        }
+
+        @Nullable
+        static String get(String cache, String key) {
+            String prefix = key + '=';
+            for (String entry : cache.split(";")) {
+                if (entry.startsWith(prefix)) {
+                    return entry.substring(prefix.length());
+                }
+            }
+            return null;
+        }
+
+        static String put(String cache, String key, String value) {
+            StringBuilder builder = new StringBuilder(key).append('=').append(value);
+            String prefix = key + '=';
+            int count = 1;
+            for (String entry : cache.split(";")) {
+                if (count >= MAX_ENTRIES) {
+                    break;
+                }
+                if (!entry.isEmpty() && !entry.startsWith(prefix)) {
+                    builder.append(';').append(entry);
+                    count++;
+                }
+            }
+            return builder.toString();
+        }
+    }
+
     /**
      * Intent service to handle color extraction
      */
@@ -193,6 +263,8 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
 
         private HandlerThread mWorkerThread;
         private Handler mWorkerHandler;
+        // Cached results sent by the launcher process with the job
+        private volatile String mColorsCache = "";
 
         @Override
         public void onCreate() {
@@ -210,6 +282,7 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
 
         @Override
         public boolean onStartJob(final JobParameters jobParameters) {
+            mColorsCache = jobParameters.getExtras().getString(KEY_COLORS_CACHE, "");
             mWorkerHandler.post(this);
             return true;
         }
@@ -230,6 +303,8 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
             Bitmap bitmap = null;
             Drawable drawable = null;
 
+            String cacheKey = null;
+
             WallpaperManager wm = WallpaperManager.getInstance(this);
             WallpaperInfo info = wm.getWallpaperInfo();
             if (info != null) {
@@ -241,6 +316,17 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
                         BitmapRegionDecoder decoder = BitmapRegionDecoder
                                 .newInstance(fd.getFileDescriptor(), false);
 
+                        // Only the header has been read so far, skip decoding if the colors of
+                        // this wallpaper are already known.
+                        cacheKey = ColorCache.getKey(
+                                wallpaperId, decoder.getWidth(), decoder.getHeight());
+                        String cachedValue = ColorCache.get(mColorsCache, cacheKey);
+                        if (cachedValue != null) {
+                            decoder.recycle();
+                            sendResult(cachedValue, cacheKey);
+                            return;
+                        }
+
                         int requestedArea = decoder.getWidth() * decoder.getHeight();
                         BitmapFactory.Options options = new BitmapFactory.Options();
 
@@ -282,8 +368,23 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
             String value = VERSION_PREFIX + wallpaperId;
 
             if (bitmap != null) {
-                Palette palette = Palette.from(bitmap).generate();
+                // Generate the palette in parallel with the luminance pass.
+                final Bitmap paletteSource = bitmap;
+                FutureTask<Palette> paletteTask = new FutureTask<>(new Callable<Palette>() {
+                    @Override
+                    public Palette call() {
+                        return Palette.from(paletteSource).generate();
+                    }
+                });
+                Utilities.THREAD_POOL_EXECUTOR.execute(paletteTask);
                 int hints = calculateDarkHints(bitmap);
+                Palette palette;
+                try {
+                    palette = paletteTask.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Palette generation failed", e);
+                    palette = Palette.from(bitmap).generate();
+                }
                 bitmap.recycle();
 
                 StringBuilder builder = new StringBuilder(value);
@@ -305,12 +406,19 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
                 }
 
                 value = builder.toString();
+            } else {
+                // Do not cache the lack of a result, the wallpaper might be readable later.
+                cacheKey = null;
             }
 
-            // Send the result
+            sendResult(value, cacheKey);
+        }
+
+        private void sendResult(String value, @Nullable String cacheKey) {
             sendBroadcast(new Intent(ACTION_EXTRACTION_COMPLETE)
                     .setPackage(getPackageName())
-                    .putExtra(KEY_COLORS, value));
+                    .putExtra(KEY_COLORS, value)
+                    .putExtra(EXTRA_CACHE_KEY, cacheKey));
         }
 
         /**
@@ -331,11 +439,10 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
                     source.getWidth(), source.getHeight());
             // This bitmap was already resized to fit the maximum allowed area.
             // Let's just loop through the pixels, no sweat!
-            float[] tmpHsl = new float[3];
             for (int i = 0; i < pixels.length; i++) {
-                ColorUtils.colorToHSL(pixels[i], tmpHsl);
-                final float luminance = tmpHsl[2];
-                final int alpha = Color.alpha(pixels[i]);
+                final int pixel = pixels[i];
+                final float luminance = getLightness(pixel);
+                final int alpha = Color.alpha(pixel);
                 // Make sure we don't have a dark pixel mass that will
                 // make text illegible.
                 if (luminance < DARK_PIXEL_LUMINANCE && alpha != 0) {
@@ -353,5 +460,18 @@ public class WallpaperManagerCompatVL extends WallpaperManagerCompat {
             }
             return hints;
         }
+
+        /**
+         * Returns the HSL lightness of the color, as computed by
+         * {@link ColorUtils#colorToHSL(int, float[])}, without computing the hue and saturation.
+         */
+        private static float getLightness(int color) {
+            final float r = Color.red(color) / 255f;
+            final float g = Color.green(color) / 255f;
+            final float b = Color.blue(color) / 255f;
+            final float max = Math.max(r, Math.max(g, b));
+            final float min = Math.min(r, Math.min(g, b));
+            return (max + min) / 2f;
+        }
     }
 }
@@ -178,9 +178,15 @@ public class ColorExtractionAlgorithm {
      * @param hsl float array with 3 components (H 0..360, S 0..1 and L 0..1)
      * @return true if color should be avoided
      */
-    private boolean isBlacklisted(float[] hsl) {
-        for (ColorRange badRange: BLACKLISTED_COLORS) {
-            if (badRange.containsColor(hsl[0], hsl[1], hsl[2])) {
+    static boolean isBlacklisted(float[] hsl) {
+        final float h = hsl[0];
+        final float s = hsl[1];
+        final float l = hsl[2];
+        final float[] table = BLACKLIST_TABLE;
+        for (int i = 0; i < table.length; i += 6) {
+            if (h >= table[i] && h <= table[i + 1]
+                    && s >= table[i + 2] && s <= table[i + 3]
+                    && l >= table[i + 4] && l <= table[i + 5]) {
                 return true;
             }
         }
@@ -236,18 +242,26 @@ public class ColorExtractionAlgorithm {
     }
 
     @Nullable
-    private static TonalPalette findTonalPalette(float h, float s) {
+    static TonalPalette findTonalPalette(float h, float s) {
         // Fallback to a grey palette if the color is too desaturated.
         // This avoids hue shifts.
         if (s < 0.05f) {
             return GREY_PALETTE;
         }
+        return TONAL_PALETTE_INDEX.find(h);
+    }
 
+    /**
+     * Finds the palette which contains the hue, or the closest one, by checking all the palettes.
+     * Only used to build {@link #TONAL_PALETTE_INDEX}, which returns the same results.
+     */
+    @Nullable
+    static TonalPalette findTonalPaletteLinear(TonalPalette[] palettes, float h) {
         TonalPalette best = null;
         float error = Float.POSITIVE_INFINITY;
 
-        for (int i = 0; i < TONAL_PALETTES.length; i++) {
-            final TonalPalette candidate = TONAL_PALETTES[i];
+        for (int i = 0; i < palettes.length; i++) {
+            final TonalPalette candidate = palettes[i];
 
             if (h >= candidate.minHue && h <= candidate.maxHue) {
                 best = candidate;
@@ -284,7 +298,7 @@ public class ColorExtractionAlgorithm {
         return best;
     }
 
-    private static float fract(float v) {
+    static float fract(float v) {
         return v - (float) Math.floor(v);
     }
 
@@ -322,7 +336,8 @@ public class ColorExtractionAlgorithm {
     // Data definition of Material Design tonal palettes
     // When the sort type is set to TONAL, these palettes are used to find
     // a best fit. Each palette is defined as 22 HSL colors
-    private static final TonalPalette[] TONAL_PALETTES = {
+    @SuppressWarnings("WeakerAccess")
+    static final TonalPalette[] TONAL_PALETTES = {
             new TonalPalette(
                     new float[] {1f, 1f, 0.991f, 0.991f, 0.9833333333333333f, 0f, 0f, 0f,
                             0.01134380453752181f, 0.015625000000000003f, 0.024193548387096798f,
@@ -590,6 +605,9 @@ public class ColorExtractionAlgorithm {
             )
     };
 
+    private static final TonalPaletteIndex TONAL_PALETTE_INDEX =
+            new TonalPaletteIndex(TONAL_PALETTES);
+
     private static final TonalPalette GREY_PALETTE = new TonalPalette(
             new float[]{0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f},
             new float[]{0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f, 0f},
@@ -742,6 +760,24 @@ public class ColorExtractionAlgorithm {
                     new Range<>(0.437f, 0.596f))
     };
 
+    // BLACKLISTED_COLORS as a flat table of {hMin, hMax, sMin, sMax, lMin, lMax} per range,
+    // so that checking a color does not box any value.
+    private static final float[] BLACKLIST_TABLE = createBlacklistTable(BLACKLISTED_COLORS);
+
+    private static float[] createBlacklistTable(ColorRange[] ranges) {
+        float[] table = new float[ranges.length * 6];
+        for (int i = 0; i < ranges.length; i++) {
+            ColorRange range = ranges[i];
+            table[i * 6] = range.mHue.getLower();
+            table[i * 6 + 1] = range.mHue.getUpper();
+            table[i * 6 + 2] = range.mSaturation.getLower();
+            table[i * 6 + 3] = range.mSaturation.getUpper();
+            table[i * 6 + 4] = range.mLightness.getLower();
+            table[i * 6 + 5] = range.mLightness.getUpper();
+        }
+        return table;
+    }
+
     /**
      * Representation of an HSL color range.
      * <ul>
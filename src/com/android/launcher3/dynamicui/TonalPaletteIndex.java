@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.dynamicui;
+
+import com.android.launcher3.dynamicui.ColorExtractionAlgorithm.TonalPalette;
+
+import java.util.Arrays;
+
+/**
+ * Immutable lookup of the tonal palette for a hue, which returns the same palette as
+ * {@link ColorExtractionAlgorithm#findTonalPaletteLinear} without scanning all the palettes.
+ *
+ * The linear search only compares the hue against the palette hue bounds, and the distances to
+ * those bounds against each other. So its result can only change at a bound, or halfway between
+ * two bounds. The index stores these hues sorted, along with the result for each of them and for
+ * each interval between them, so a lookup is a binary search and does not allocate.
+ */
+class TonalPaletteIndex {
+
+    // Sorted distinct hues at which the result of the linear search can change.
+    private final float[] mBreakpoints;
+    // Palette for a hue equal to mBreakpoints[i].
+    private final TonalPalette[] mPalettesAt;
+    // Palette for a hue between mBreakpoints[i - 1] and mBreakpoints[i]. The first and last
+    // entries are for the hues below and above all the breakpoints.
+    private final TonalPalette[] mPalettesBefore;
+
+    TonalPaletteIndex(TonalPalette[] palettes) {
+        // All the hue bounds, as compared by the linear search.
+        float[] bounds = new float[palettes.length * 4];
+        for (int i = 0; i < palettes.length; i++) {
+            TonalPalette palette = palettes[i];
+            bounds[i * 4] = palette.minHue;
+            bounds[i * 4 + 1] = palette.maxHue;
+            bounds[i * 4 + 2] = ColorExtractionAlgorithm.fract(palette.minHue);
+            bounds[i * 4 + 3] = ColorExtractionAlgorithm.fract(palette.maxHue);
+        }
+
+        float[] breakpoints = new float[bounds.length * (bounds.length + 1) / 2];
+        int count = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            breakpoints[count++] = bounds[i];
+            for (int j = i + 1; j < bounds.length; j++) {
+                breakpoints[count++] = (bounds[i] + bounds[j]) / 2;
+            }
+        }
+        Arrays.sort(breakpoints, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || breakpoints[i] != breakpoints[distinct - 1]) {
+                breakpoints[distinct++] = breakpoints[i];
+            }
+        }
+        mBreakpoints = Arrays.copyOf(breakpoints, distinct);
+
+        mPalettesAt = new TonalPalette[distinct];
+        mPalettesBefore = new TonalPalette[distinct + 1];
+        for (int i = 0; i < distinct; i++) {
+            float hue = mBreakpoints[i];
+            mPalettesAt[i] = ColorExtractionAlgorithm.findTonalPaletteLinear(palettes, hue);
+            float before = i == 0 ? hue - 1 : (mBreakpoints[i - 1] + hue) / 2;
+            mPalettesBefore[i] = ColorExtractionAlgorithm.findTonalPaletteLinear(palettes, before);
+        }
+        mPalettesBefore[distinct] = distinct == 0 ? null : ColorExtractionAlgorithm
+                .findTonalPaletteLinear(palettes, mBreakpoints[distinct - 1] + 1);
+    }
+
+    TonalPalette find(float hue) {
+        int index = Arrays.binarySearch(mBreakpoints, hue);
+        return index >= 0 ? mPalettesAt[index] : mPalettesBefore[-index - 1];
+    }
+}
@@ -313,6 +313,8 @@ public class Folder extends AbstractFloatingView implements DragSource, View.OnC
             return;
         }
 
+        // Reordering moves views across all the pages.
+        mContent.bindAllPages();
         mContent.removeItem(mCurrentDragView);
         if (dragObject.dragInfo instanceof ShortcutInfo) {
             mItemsInvalidated = true;
@@ -822,6 +824,7 @@ public class Folder extends AbstractFloatingView implements DragSource, View.OnC
         clearDragInfo();
         mState = STATE_SMALL;
         mContent.setCurrentPage(0);
+        mContent.recycleFarPages();
     }
 
     public boolean acceptDrop(DragObject d) {
@@ -1507,6 +1510,7 @@ public class Folder extends AbstractFloatingView implements DragSource, View.OnC
     }
 
     public ArrayList<View> getItemsInReadingOrder() {
+        mContent.bindAllPages();
         if (mItemsInvalidated) {
             mItemsInReadingOrder.clear();
             mContent.iterateOverItems(new ItemOperator() {
@@ -1523,22 +1527,20 @@ public class Folder extends AbstractFloatingView implements DragSource, View.OnC
     }
 
     public List<BubbleTextView> getItemsOnPage(int page) {
-        ArrayList<View> allItems = getItemsInReadingOrder();
-        int lastPage = mContent.getPageCount() - 1;
-        int totalItemsInFolder = allItems.size();
-        int itemsPerPage = mContent.itemsPerPage();
-        int numItemsOnCurrentPage = page == lastPage
-                ? totalItemsInFolder - (itemsPerPage * page)
-                : itemsPerPage;
-
-        int startIndex = page * itemsPerPage;
-        int endIndex = Math.min(startIndex + numItemsOnCurrentPage, allItems.size());
-
-        List<BubbleTextView> itemsOnCurrentPage = new ArrayList<>(numItemsOnCurrentPage);
-        for (int i = startIndex; i < endIndex; ++i) {
-            itemsOnCurrentPage.add((BubbleTextView) allItems.get(i));
-        }
-        return itemsOnCurrentPage;
+        return mContent.getItemsOnPage(page);
+    }
+
+    /**
+     * Iterates over the items which have a view. Items on pages which have not been shown yet
+     * have no view, and pick up any change to their info once their view is created.
+     * @return the view for which the operator returned true.
+     */
+    public View iterateOverBoundItems(ItemOperator op) {
+        return mContent.iterateOverBoundItems(op);
+    }
+
+    boolean isDragInProgress() {
+        return mDragInProgress;
     }
 
     public void onFocusChange(View v, boolean hasFocus) {
@@ -467,6 +467,20 @@ public class FolderIcon extends FrameLayout implements FolderListener {
         if (mFolder == null) return;
         if (mFolder.getItemCount() == 0 && !mAnimating) return;
 
+        if (mPreviewItemManager.canUsePreviewLayer()) {
+            mPreviewItemManager.drawPreviewLayer(canvas);
+        } else {
+            drawPreviewItems(canvas);
+        }
+
+        if (mPreviewLayoutRule.clipToBackground() && !mBackground.drawingDelegated()) {
+            mBackground.drawBackgroundStroke(canvas);
+        }
+
+        drawBadge(canvas);
+    }
+
+    private void drawPreviewItems(Canvas canvas) {
         final int saveCount;
 
         if (canvas.isHardwareAccelerated()) {
@@ -485,12 +499,6 @@ public class FolderIcon extends FrameLayout implements FolderListener {
             mBackground.clipCanvasHardware(canvas);
         }
         canvas.restoreToCount(saveCount);
-
-        if (mPreviewLayoutRule.clipToBackground() && !mBackground.drawingDelegated()) {
-            mBackground.drawBackgroundStroke(canvas);
-        }
-
-        drawBadge(canvas);
     }
 
     public void drawBadge(Canvas canvas) {
@@ -554,6 +562,12 @@ public class FolderIcon extends FrameLayout implements FolderListener {
         return mPreviewItemManager.verifyDrawable(who) || super.verifyDrawable(who);
     }
 
+    @Override
+    public void invalidateDrawable(@NonNull Drawable drawable) {
+        mPreviewItemManager.onDrawableInvalidated(drawable);
+        super.invalidateDrawable(drawable);
+    }
+
     @Override
     public void onItemsChanged(boolean animate) {
         mPreviewItemManager.updateItemDrawingParams(animate);
@@ -700,6 +714,7 @@ public class FolderIcon extends FrameLayout implements FolderListener {
     }
 
     public void onFolderClose(int currentPage) {
+        mPreviewItemManager.invalidatePreviewLayer();
         mPreviewItemManager.onFolderClose(currentPage);
     }
 
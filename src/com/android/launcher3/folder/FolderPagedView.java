@@ -16,6 +16,7 @@
 
 package com.android.launcher3.folder;
 
+import android.animation.TimeInterpolator;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Canvas;
@@ -23,6 +24,7 @@ import android.graphics.drawable.Drawable;
 import android.util.ArrayMap;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -49,6 +51,7 @@ import com.android.launcher3.util.Thunk;
 
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 public class FolderPagedView extends PagedView {
@@ -75,6 +78,15 @@ public class FolderPagedView extends PagedView {
 
     @Thunk final ArrayMap<View, Runnable> mPendingAnimations = new ArrayMap<>();
 
+    /**
+     * Items of the pages which currently have no views, in reading order, keyed by page. Views are
+     * only created for the first page (used by the folder icon preview) and the pages around the
+     * current page, so that binding or opening a large folder does not inflate all its items.
+     */
+    private final SparseArray<ArrayList<ShortcutInfo>> mUnboundPages = new SparseArray<>();
+    // Views removed from unbound pages, reused when binding other pages.
+    private final ArrayList<BubbleTextView> mViewPool = new ArrayList<>();
+
     @ViewDebug.ExportedProperty(category = "launcher")
     private final int mMaxCountX;
     @ViewDebug.ExportedProperty(category = "launcher")
@@ -181,25 +193,153 @@ public class FolderPagedView extends PagedView {
         super.dispatchDraw(canvas);
     }
 
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        // The folder is being opened.
+        bindPagesAround(getNextPage());
+    }
+
     /**
-     * Binds items to the layout.
+     * Binds items to the layout. Only the views for the first page are created, the other pages
+     * are bound when they are about to be shown.
      * @return list of items that could not be bound, probably because we hit the max size limit.
      */
     public ArrayList<ShortcutInfo> bindItems(ArrayList<ShortcutInfo> items) {
-        ArrayList<View> icons = new ArrayList<>();
+        ArrayList<ShortcutInfo> bound = new ArrayList<>();
         ArrayList<ShortcutInfo> extra = new ArrayList<>();
 
         for (ShortcutInfo item : items) {
-            if (!ALLOW_FOLDER_SCROLL && icons.size() >= mMaxItemsPerPage) {
+            if (!ALLOW_FOLDER_SCROLL && bound.size() >= mMaxItemsPerPage) {
                 extra.add(item);
             } else {
-                icons.add(createNewView(item));
+                bound.add(item);
+            }
+        }
+
+        mUnboundPages.clear();
+        ArrayList<View> icons = new ArrayList<>();
+        int firstPageCount = Math.min(bound.size(), mMaxItemsPerPage);
+        for (int i = 0; i < firstPageCount; i++) {
+            icons.add(createNewView(bound.get(i)));
+        }
+        arrangeChildren(icons, bound.size(), false);
+
+        for (int rank = firstPageCount; rank < bound.size(); rank++) {
+            ShortcutInfo item = bound.get(rank);
+            int pagePos = rank % mMaxItemsPerPage;
+            int pageNo = rank / mMaxItemsPerPage;
+            item.rank = rank;
+            item.cellX = pagePos % mGridCountX;
+            item.cellY = pagePos / mGridCountX;
+
+            ArrayList<ShortcutInfo> pageItems = mUnboundPages.get(pageNo);
+            if (pageItems == null) {
+                pageItems = new ArrayList<>(mMaxItemsPerPage);
+                mUnboundPages.put(pageNo, pageItems);
             }
+            pageItems.add(item);
         }
-        arrangeChildren(icons, icons.size(), false);
         return extra;
     }
 
+    /**
+     * Creates the views for the given page if they were not created yet.
+     * @return true if any view was created.
+     */
+    private boolean bindPage(int pageNo) {
+        ArrayList<ShortcutInfo> items = mUnboundPages.get(pageNo);
+        if (items == null) {
+            return false;
+        }
+        mUnboundPages.remove(pageNo);
+        CellLayout page = getPageAt(pageNo);
+        for (ShortcutInfo item : items) {
+            View icon = createNewView(item);
+            page.addViewToCellLayout(icon, -1, mFolder.mLauncher.getViewIdForItem(item),
+                    (CellLayout.LayoutParams) icon.getLayoutParams(), true);
+        }
+        mFolder.mItemsInvalidated = true;
+        return true;
+    }
+
+    /**
+     * Binds the given page and its neighbours, so that they can be scrolled to.
+     */
+    public void bindPagesAround(int pageNo) {
+        bindPage(pageNo - 1);
+        bindPage(pageNo);
+        bindPage(pageNo + 1);
+    }
+
+    /**
+     * Binds all the pages. This must be called before any operation which needs the views of all
+     * the items, like rearranging or reordering them.
+     */
+    public void bindAllPages() {
+        while (mUnboundPages.size() > 0) {
+            bindPage(mUnboundPages.keyAt(0));
+        }
+    }
+
+    /**
+     * Removes the views of the pages which are not around the current page, and keeps them for
+     * reuse. The first page is always kept for the folder icon preview.
+     */
+    public void recycleFarPages() {
+        if (mFolder.isDragInProgress() || !mPendingAnimations.isEmpty()) {
+            return;
+        }
+        int currentPage = getNextPage();
+        for (int pageNo = getPageCount() - 1; pageNo > 0; pageNo--) {
+            if (Math.abs(pageNo - currentPage) > 1 && mUnboundPages.get(pageNo) == null) {
+                unbindPage(pageNo);
+            }
+        }
+    }
+
+    private void unbindPage(int pageNo) {
+        CellLayout page = getPageAt(pageNo);
+        if (page.hasFocus()) {
+            return;
+        }
+        ArrayList<ShortcutInfo> items = new ArrayList<>(mMaxItemsPerPage);
+        ArrayList<View> views = new ArrayList<>(mMaxItemsPerPage);
+        for (int j = 0; j < page.getCountY(); j++) {
+            for (int i = 0; i < page.getCountX(); i++) {
+                View v = page.getChildAt(i, j);
+                if (v != null) {
+                    items.add((ShortcutInfo) v.getTag());
+                    views.add(v);
+                }
+            }
+        }
+        page.removeAllViews();
+        for (View v : views) {
+            recycleView(v);
+        }
+        mUnboundPages.put(pageNo, items);
+        mFolder.mItemsInvalidated = true;
+    }
+
+    private void recycleView(View view) {
+        if (!(view instanceof BubbleTextView) || mViewPool.size() >= mMaxItemsPerPage) {
+            return;
+        }
+        BubbleTextView icon = (BubbleTextView) view;
+        icon.animate().cancel();
+        icon.setTranslationX(0);
+        icon.setTranslationY(0);
+        icon.setScaleX(1f);
+        icon.setScaleY(1f);
+        icon.setAlpha(1f);
+        icon.setVisibility(VISIBLE);
+        icon.setTextVisibility(true);
+        icon.setIconVisible(true);
+        icon.forceHideBadge(false);
+        mViewPool.add(icon);
+    }
+
     public void allocateSpaceForRank(int rank) {
         ArrayList<View> views = new ArrayList<>(mFolder.getItemsInReadingOrder());
         views.add(rank, null);
@@ -245,14 +385,19 @@ public class FolderPagedView extends PagedView {
 
     @SuppressLint("InflateParams")
     public View createNewView(ShortcutInfo item) {
-        final BubbleTextView textView = (BubbleTextView) mInflater.inflate(
-                R.layout.folder_application, null, false);
+        final BubbleTextView textView;
+        if (!mViewPool.isEmpty()) {
+            textView = mViewPool.remove(mViewPool.size() - 1);
+        } else {
+            textView = (BubbleTextView) mInflater.inflate(
+                    R.layout.folder_application, null, false);
+            textView.setHapticFeedbackEnabled(false);
+            textView.setOnClickListener(mFolder);
+            textView.setOnLongClickListener(mFolder);
+            textView.setOnFocusChangeListener(mFocusIndicatorHelper);
+            textView.setOnKeyListener(mKeyListener);
+        }
         textView.applyFromShortcutInfo(item);
-        textView.setHapticFeedbackEnabled(false);
-        textView.setOnClickListener(mFolder);
-        textView.setOnLongClickListener(mFolder);
-        textView.setOnFocusChangeListener(mFocusIndicatorHelper);
-        textView.setOnKeyListener(mKeyListener);
 
         textView.setLayoutParams(new CellLayout.LayoutParams(
                 item.cellX, item.cellY, item.spanX, item.spanY));
@@ -413,8 +558,10 @@ public class FolderPagedView extends PagedView {
             // If there are no pages, nothing has yet been added to the folder.
             return 0;
         }
-        return getPageAt(lastPageIndex).getShortcutsAndWidgets().getChildCount()
-                + lastPageIndex * mMaxItemsPerPage;
+        ArrayList<ShortcutInfo> unboundItems = mUnboundPages.get(lastPageIndex);
+        int lastPageCount = unboundItems != null ? unboundItems.size()
+                : getPageAt(lastPageIndex).getShortcutsAndWidgets().getChildCount();
+        return lastPageCount + lastPageIndex * mMaxItemsPerPage;
     }
 
     /**
@@ -461,10 +608,19 @@ public class FolderPagedView extends PagedView {
     }
 
     /**
-     * Iterates over all its items in a reading order.
+     * Iterates over all its items in a reading order, binding all the pages first.
      * @return the view for which the operator returned true.
      */
     public View iterateOverItems(ItemOperator op) {
+        bindAllPages();
+        return iterateOverBoundItems(op);
+    }
+
+    /**
+     * Iterates over the items which have a view in a reading order.
+     * @return the view for which the operator returned true.
+     */
+    public View iterateOverBoundItems(ItemOperator op) {
         for (int k = 0 ; k < getChildCount(); k++) {
             CellLayout page = getPageAt(k);
             for (int j = 0; j < page.getCountY(); j++) {
@@ -479,6 +635,27 @@ public class FolderPagedView extends PagedView {
         return null;
     }
 
+    /**
+     * Returns the views of the given page in a reading order, binding the page if needed.
+     */
+    public List<BubbleTextView> getItemsOnPage(int pageNo) {
+        bindPage(pageNo);
+        CellLayout page = getPageAt(pageNo);
+        ArrayList<BubbleTextView> items = new ArrayList<>(mMaxItemsPerPage);
+        if (page == null) {
+            return items;
+        }
+        for (int j = 0; j < page.getCountY(); j++) {
+            for (int i = 0; i < page.getCountX(); i++) {
+                View v = page.getChildAt(i, j);
+                if (v != null) {
+                    items.add((BubbleTextView) v);
+                }
+            }
+        }
+        return items;
+    }
+
     public String getAccessibilityDescription() {
         return getContext().getString(R.string.folder_opened, mGridCountX, mGridCountY);
     }
@@ -497,6 +674,7 @@ public class FolderPagedView extends PagedView {
     protected void notifyPageSwitchListener(int prevPage) {
         super.notifyPageSwitchListener(prevPage);
         if (mFolder != null) {
+            bindPagesAround(getNextPage());
             mFolder.updateTextViewFocus();
         }
     }
@@ -541,6 +719,19 @@ public class FolderPagedView extends PagedView {
         return p == getNextPage();
     }
 
+    @Override
+    protected void snapToPage(int whichPage, int delta, int duration, boolean immediate,
+            TimeInterpolator interpolator) {
+        bindPagesAround(whichPage);
+        super.snapToPage(whichPage, delta, duration, immediate, interpolator);
+    }
+
+    @Override
+    protected void onPageEndTransition() {
+        super.onPageEndTransition();
+        recycleFarPages();
+    }
+
     @Override
     protected void onPageBeginTransition() {
         super.onPageBeginTransition();
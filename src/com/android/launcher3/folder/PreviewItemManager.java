@@ -19,6 +19,7 @@ package com.android.launcher3.folder;
 import android.animation.Animator;
 import android.animation.AnimatorListenerAdapter;
 import android.animation.ValueAnimator;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
@@ -58,6 +59,11 @@ public class PreviewItemManager {
     private float mCurrentPageItemsTransX = 0;
     private boolean mShouldSlideInFirstPage;
 
+    // The clipped preview items rendered into a bitmap, drawn as is while nothing is animating.
+    private Bitmap mPreviewLayer;
+    private final Canvas mPreviewLayerCanvas = new Canvas();
+    private boolean mPreviewLayerValid;
+
     static final int INITIAL_ITEM_ANIMATION_DURATION = 350;
     private static final int FINAL_ITEM_ANIMATION_DURATION = 200;
 
@@ -103,6 +109,7 @@ public class PreviewItemManager {
             mIntrinsicIconSize = drawableSize;
             mTotalWidth = totalSize;
             mPrevTopPadding = mIcon.getPaddingTop();
+            invalidatePreviewLayer();
 
             mIcon.mBackground.setup(mIcon.mLauncher, mIcon, mTotalWidth, mIcon.getPaddingTop());
             mIcon.mPreviewLayoutRule.init(mIcon.mBackground.previewSize, mIntrinsicIconSize,
@@ -162,9 +169,64 @@ public class PreviewItemManager {
     }
 
     public void onParamsChanged() {
+        invalidatePreviewLayer();
         mIcon.invalidate();
     }
 
+    /**
+     * Marks the cached preview layer as stale, so that it is rendered again on the next draw.
+     */
+    void invalidatePreviewLayer() {
+        mPreviewLayerValid = false;
+    }
+
+    /**
+     * Returns whether the preview is at rest, in which case it can be drawn from a cached layer
+     * instead of drawing and clipping each item on every frame.
+     */
+    boolean canUsePreviewLayer() {
+        PreviewBackground bg = mIcon.getFolderBackground();
+        if (mShouldSlideInFirstPage || mIcon.mAnimating || bg.mScale != 1f
+                || !mIcon.mPreviewLayoutRule.clipToBackground() || mIcon.mFolder.isOpen()) {
+            return false;
+        }
+        for (int i = 0; i < mFirstPageParams.size(); i++) {
+            if (mFirstPageParams.get(i).anim != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Draws the clipped preview items from the cached layer, rendering it first if needed.
+     * Should only be called if {@link #canUsePreviewLayer()} is true.
+     */
+    void drawPreviewLayer(Canvas canvas) {
+        PreviewBackground bg = mIcon.getFolderBackground();
+        int size = bg.previewSize;
+        if (size <= 0) {
+            return;
+        }
+        if (mPreviewLayer == null || mPreviewLayer.getWidth() != size) {
+            mPreviewLayer = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            mPreviewLayerValid = false;
+        }
+        if (!mPreviewLayerValid) {
+            mPreviewLayer.eraseColor(0);
+            Canvas layerCanvas = mPreviewLayerCanvas;
+            layerCanvas.setBitmap(mPreviewLayer);
+            int saveCount = layerCanvas.save(Canvas.MATRIX_SAVE_FLAG);
+            layerCanvas.translate(-bg.getOffsetX(), -bg.getOffsetY());
+            draw(layerCanvas);
+            bg.clipCanvasHardware(layerCanvas);
+            layerCanvas.restoreToCount(saveCount);
+            layerCanvas.setBitmap(null);
+            mPreviewLayerValid = true;
+        }
+        canvas.drawBitmap(mPreviewLayer, bg.getOffsetX(), bg.getOffsetY(), null);
+    }
+
     private void drawPreviewItem(Canvas canvas, PreviewItemDrawingParams params) {
         canvas.save(Canvas.MATRIX_SAVE_FLAG);
         canvas.translate(params.transX, params.transY);
@@ -187,12 +249,14 @@ public class PreviewItemManager {
                 mFirstPageParams.get(index) : null;
         if (params != null) {
             params.hidden = hidden;
+            invalidatePreviewLayer();
         }
     }
 
     void buildParamsForPage(int page, ArrayList<PreviewItemDrawingParams> params, boolean animate) {
         List<BubbleTextView> items = mIcon.getPreviewItemsOnPage(page);
         int prevNumItems = params.size();
+        invalidatePreviewLayer();
 
         // We adjust the size of the list to match the number of items in the preview.
         while (items.size() < params.size()) {
@@ -277,6 +341,15 @@ public class PreviewItemManager {
         return false;
     }
 
+    /**
+     * Called when one of the preview drawables requests to be redrawn.
+     */
+    void onDrawableInvalidated(@NonNull Drawable who) {
+        if (verifyDrawable(who)) {
+            invalidatePreviewLayer();
+        }
+    }
+
     float getIntrinsicIconSize() {
         return mIntrinsicIconSize;
     }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+
+/**
+ * Stores bitmaps as uncompressed pixel files in a directory. Reading a bitmap maps the file into
+ * memory and copies the pixels directly into the target bitmap, without decoding or going through
+ * an intermediate byte array.
+ *
+ * Only {@link Config#ARGB_8888} bitmaps are supported. File names are chosen by the caller.
+ */
+public class BitmapFileStore {
+
+    private static final String TAG = "BitmapFileStore";
+
+    private static final int FILE_MAGIC = 0x424D5031; // "BMP1"
+    // magic, width, height
+    private static final int HEADER_SIZE = 12;
+    private static final int BYTES_PER_PIXEL = 4;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File mDir;
+
+    public BitmapFileStore(File dir) {
+        mDir = dir;
+    }
+
+    /**
+     * Writes the bitmap to the file with the given name, replacing any existing file.
+     *
+     * @return the size of the file, or -1 if the bitmap could not be written.
+     */
+    public long write(String name, Bitmap bitmap) {
+        if (bitmap.getConfig() != Config.ARGB_8888) {
+            return -1;
+        }
+        if (!mDir.exists() && !mDir.mkdirs()) {
+            Log.e(TAG, "Unable to create " + mDir);
+            return -1;
+        }
+
+        int pixelBytes = bitmap.getWidth() * bitmap.getHeight() * BYTES_PER_PIXEL;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HEADER_SIZE + pixelBytes)
+                .order(ByteOrder.nativeOrder());
+        buffer.putInt(FILE_MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        File file = new File(mDir, name);
+        File tempFile = new File(mDir, name + TEMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            FileChannel channel = out.getChannel();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to rename " + tempFile);
+            }
+            return file.length();
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing bitmap " + name, e);
+            tempFile.delete();
+            return -1;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    /**
+     * Reads the bitmap with the given name, or returns null if the file does not exist or is
+     * invalid.
+     *
+     * @param recycle if not null, the pixels are read into this bitmap if it is large enough.
+     */
+    public Bitmap read(String name, Bitmap recycle) {
+        File file = new File(mDir, name);
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            FileChannel channel = in.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != FILE_MAGIC) {
+                Log.w(TAG, "Ignoring invalid bitmap file " + name);
+                return null;
+            }
+            int width = buffer.getInt();
+            int height = buffer.getInt();
+            int pixelBytes = width * height * BYTES_PER_PIXEL;
+            if (width <= 0 || height <= 0 || buffer.remaining() != pixelBytes) {
+                Log.w(TAG, "Ignoring truncated bitmap file " + name);
+                return null;
+            }
+
+            Bitmap bitmap;
+            if (recycle != null && recycle.isMutable() && !recycle.isRecycled()
+                    && recycle.getAllocationByteCount() >= pixelBytes) {
+                recycle.reconfigure(width, height, Config.ARGB_8888);
+                bitmap = recycle;
+            } else {
+                bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+            }
+            bitmap.copyPixelsFromBuffer(buffer);
+            return bitmap;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading bitmap " + name, e);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    public void delete(String name) {
+        new File(mDir, name).delete();
+    }
+
+    /**
+     * Deletes all the files whose name is not in the given set.
+     */
+    public void retainAll(Set<String> names) {
+        String[] files = mDir.list();
+        if (files == null) {
+            return;
+        }
+        for (String name : files) {
+            if (!names.contains(name)) {
+                delete(name);
+            }
+        }
+    }
+}
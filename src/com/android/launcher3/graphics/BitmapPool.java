@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A bounded pool of mutable bitmaps which can be reused for drawing or as
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}. Bitmaps are grouped by config and
+ * allocation size, and a released bitmap is reused for any request which fits in its allocation.
+ *
+ * Intermediate bitmaps of icon and preview rendering should be obtained from and released to
+ * the {@link #getShared() shared pool}.
+ *
+ * This class is thread safe.
+ */
+public class BitmapPool {
+
+    // A pooled bitmap is not used for requests smaller than 1 / MAX_SIZE_RATIO of its allocation.
+    private static final int MAX_SIZE_RATIO = 2;
+
+    private static final long SHARED_POOL_MAX_BYTES = 8 << 20;  // 8 mb
+    private static final BitmapPool sSharedPool = new BitmapPool(SHARED_POOL_MAX_BYTES);
+
+    private final long mMaxBytes;
+
+    private final HashMap<Config, TreeMap<Integer, ArrayList<Bitmap>>> mBitmaps = new HashMap<>();
+    // Pooled bitmaps, least recently released first
+    private final LinkedList<Bitmap> mReleaseOrder = new LinkedList<>();
+    private long mCurrentBytes;
+
+    // Stats reported in dump
+    private int mRequestCount;
+    private int mHitCount;
+    private int mReleaseCount;
+
+    public BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the pool shared by the whole process.
+     */
+    public static BitmapPool getShared() {
+        return sSharedPool;
+    }
+
+    /**
+     * Returns a mutable bitmap of the requested size and config, reusing a pooled bitmap if
+     * possible. The contents of the returned bitmap are undefined.
+     */
+    public Bitmap get(int width, int height, Config config) {
+        Bitmap bitmap = getPooled(width, height, config);
+        return bitmap != null ? bitmap : Bitmap.createBitmap(width, height, config);
+    }
+
+    /**
+     * Returns a pooled bitmap reconfigured to the requested size and config, or null if there is
+     * no suitable bitmap in the pool.
+     */
+    public synchronized Bitmap getPooled(int width, int height, Config config) {
+        mRequestCount++;
+        TreeMap<Integer, ArrayList<Bitmap>> sizes = mBitmaps.get(config);
+        if (sizes == null) {
+            return null;
+        }
+        int byteCount = width * height * getBytesPerPixel(config);
+        Map.Entry<Integer, ArrayList<Bitmap>> entry = sizes.ceilingEntry(byteCount);
+        if (entry == null || entry.getKey() > byteCount * MAX_SIZE_RATIO) {
+            return null;
+        }
+
+        ArrayList<Bitmap> bitmaps = entry.getValue();
+        Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        if (bitmaps.isEmpty()) {
+            sizes.remove(entry.getKey());
+        }
+        mReleaseOrder.remove(bitmap);
+        mCurrentBytes -= bitmap.getAllocationByteCount();
+        mHitCount++;
+
+        bitmap.reconfigure(width, height, config);
+        return bitmap;
+    }
+
+    /**
+     * Adds the bitmap to the pool. The caller must not use the bitmap afterwards.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null) {
+            return;
+        }
+        int byteCount = bitmap.getAllocationByteCount();
+        if (byteCount > mMaxBytes) {
+            return;
+        }
+
+        TreeMap<Integer, ArrayList<Bitmap>> sizes = mBitmaps.get(bitmap.getConfig());
+        if (sizes == null) {
+            sizes = new TreeMap<>();
+            mBitmaps.put(bitmap.getConfig(), sizes);
+        }
+        ArrayList<Bitmap> bitmaps = sizes.get(byteCount);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<>();
+            sizes.put(byteCount, bitmaps);
+        } else if (bitmaps.contains(bitmap)) {
+            return;
+        }
+        bitmaps.add(bitmap);
+        mReleaseOrder.addLast(bitmap);
+        mCurrentBytes += byteCount;
+        mReleaseCount++;
+
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Removes the least recently released bitmaps until the pool holds at most maxBytes.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Bitmap> iterator = mReleaseOrder.iterator();
+        while (mCurrentBytes > maxBytes && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+
+            int byteCount = bitmap.getAllocationByteCount();
+            TreeMap<Integer, ArrayList<Bitmap>> sizes = mBitmaps.get(bitmap.getConfig());
+            ArrayList<Bitmap> bitmaps = sizes.get(byteCount);
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                sizes.remove(byteCount);
+            }
+            mCurrentBytes -= byteCount;
+        }
+    }
+
+    public synchronized void clear() {
+        mBitmaps.clear();
+        mReleaseOrder.clear();
+        mCurrentBytes = 0;
+    }
+
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "BitmapPool:");
+        writer.println(prefix + "  requests=" + mRequestCount + " hits=" + mHitCount
+                + " hitRate=" + (mRequestCount == 0 ? 0 : mHitCount * 100 / mRequestCount)
+                + "% releases=" + mReleaseCount
+                + " pooledBytes=" + mCurrentBytes + "/" + mMaxBytes
+                + " pooledBitmaps=" + mReleaseOrder.size());
+    }
+
+    private static int getBytesPerPixel(Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
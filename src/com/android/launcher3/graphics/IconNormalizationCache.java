@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.graphics;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.RectF;
+import android.os.UserHandle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.launcher3.LauncherFiles;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.SQLiteCacheHelper;
+
+/**
+ * Persists the results of {@link IconNormalizer#getScale} for legacy icons, so that the icon
+ * does not need to be analyzed again when the icon cache is rebuilt, e.g. after a density change.
+ * Results are keyed by component and are only valid for the last update time of the package
+ * and the icon system state they were computed for. The mask shape verdict is additionally tied
+ * to the system icon mask.
+ *
+ * The results do not depend on the icon size, so unlike the icon DB this is not reset when the
+ * icon size changes.
+ */
+public class IconNormalizationCache {
+
+    private static final String TAG = "IconNormalizationCache";
+
+    private static final Object LOCK = new Object();
+    private static IconNormalizationCache sInstance;
+
+    private final UserManagerCompat mUserManager;
+    private final NormalizationDB mDb;
+    // The icon mask used for the shape detection, which only changes when the process restarts.
+    private final String mIconMask;
+
+    private IconNormalizationCache(Context context) {
+        mUserManager = UserManagerCompat.getInstance(context);
+        mDb = new NormalizationDB(context);
+        mIconMask = getIconMask();
+    }
+
+    /**
+     * Returns the stored result for the icon of the component, or null if there is no result
+     * for the given package update time and icon system state.
+     *
+     * @param needsMaskShape whether the result must include the mask shape verdict.
+     */
+    public Entry get(ComponentKey key, long lastUpdateTime, String systemState,
+            boolean needsMaskShape) {
+        Cursor c = null;
+        try {
+            c = mDb.query(new String[] {NormalizationDB.COLUMN_LAST_UPDATED,
+                            NormalizationDB.COLUMN_SCALE,
+                            NormalizationDB.COLUMN_BOUNDS_LEFT, NormalizationDB.COLUMN_BOUNDS_TOP,
+                            NormalizationDB.COLUMN_BOUNDS_RIGHT,
+                            NormalizationDB.COLUMN_BOUNDS_BOTTOM,
+                            NormalizationDB.COLUMN_ICON_MASK, NormalizationDB.COLUMN_MASK_SHAPE,
+                            NormalizationDB.COLUMN_SYSTEM_STATE},
+                    NormalizationDB.COLUMN_COMPONENT + " = ? AND "
+                            + NormalizationDB.COLUMN_USER + " = ?",
+                    new String[] {key.componentName.flattenToString(),
+                            Long.toString(mUserManager.getSerialNumberForUser(key.user))});
+            if (!c.moveToNext() || c.getLong(0) != lastUpdateTime
+                    || !TextUtils.equals(c.getString(8), systemState)) {
+                return null;
+            }
+            Entry entry = new Entry();
+            entry.scale = c.getFloat(1);
+            entry.bounds.set(c.getFloat(2), c.getFloat(3), c.getFloat(4), c.getFloat(5));
+            if (!c.isNull(6) && TextUtils.equals(c.getString(6), mIconMask)) {
+                entry.hasMaskShape = true;
+                entry.isMaskShape = c.getInt(7) != 0;
+            }
+            return needsMaskShape && !entry.hasMaskShape ? null : entry;
+        } catch (SQLException e) {
+            Log.w(TAG, "Error reading icon normalization", e);
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    public void put(ComponentKey key, long lastUpdateTime, String systemState, Entry entry) {
+        ContentValues values = new ContentValues();
+        values.put(NormalizationDB.COLUMN_COMPONENT, key.componentName.flattenToString());
+        values.put(NormalizationDB.COLUMN_USER, mUserManager.getSerialNumberForUser(key.user));
+        values.put(NormalizationDB.COLUMN_LAST_UPDATED, lastUpdateTime);
+        values.put(NormalizationDB.COLUMN_SYSTEM_STATE, systemState);
+        values.put(NormalizationDB.COLUMN_SCALE, entry.scale);
+        values.put(NormalizationDB.COLUMN_BOUNDS_LEFT, entry.bounds.left);
+        values.put(NormalizationDB.COLUMN_BOUNDS_TOP, entry.bounds.top);
+        values.put(NormalizationDB.COLUMN_BOUNDS_RIGHT, entry.bounds.right);
+        values.put(NormalizationDB.COLUMN_BOUNDS_BOTTOM, entry.bounds.bottom);
+        if (entry.hasMaskShape) {
+            values.put(NormalizationDB.COLUMN_ICON_MASK, mIconMask);
+            values.put(NormalizationDB.COLUMN_MASK_SHAPE, entry.isMaskShape ? 1 : 0);
+        } else {
+            values.putNull(NormalizationDB.COLUMN_ICON_MASK);
+            values.put(NormalizationDB.COLUMN_MASK_SHAPE, 0);
+        }
+        mDb.insertOrReplace(values);
+    }
+
+    /**
+     * Removes the results for all the components of the package.
+     */
+    public void removePackage(String packageName, UserHandle user) {
+        mDb.delete(NormalizationDB.COLUMN_COMPONENT + " LIKE ? AND "
+                        + NormalizationDB.COLUMN_USER + " = ?",
+                new String[] {packageName + "/%",
+                        Long.toString(mUserManager.getSerialNumberForUser(user))});
+    }
+
+    private static String getIconMask() {
+        int resId = IconShapeOverride.getConfigResId();
+        if (resId == 0) {
+            return "";
+        }
+        try {
+            return Resources.getSystem().getString(resId);
+        } catch (Resources.NotFoundException e) {
+            return "";
+        }
+    }
+
+    public static IconNormalizationCache getInstance(Context context) {
+        synchronized (LOCK) {
+            if (sInstance == null) {
+                sInstance = new IconNormalizationCache(context.getApplicationContext());
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * The normalization result of a single icon.
+     */
+    public static class Entry {
+        public float scale = 1;
+        // Fraction of the icon size from each edge to the visible bounds of the icon.
+        public final RectF bounds = new RectF();
+        // Whether the shape detection was run against the current icon mask.
+        public boolean hasMaskShape;
+        public boolean isMaskShape;
+    }
+
+    private static final class NormalizationDB extends SQLiteCacheHelper {
+        private final static int DB_VERSION = 2;
+
+        private final static String TABLE_NAME = "icon_normalization";
+        private final static String COLUMN_COMPONENT = "componentName";
+        private final static String COLUMN_USER = "profileId";
+        private final static String COLUMN_LAST_UPDATED = "lastUpdated";
+        private final static String COLUMN_SCALE = "scale";
+        private final static String COLUMN_BOUNDS_LEFT = "boundsLeft";
+        private final static String COLUMN_BOUNDS_TOP = "boundsTop";
+        private final static String COLUMN_BOUNDS_RIGHT = "boundsRight";
+        private final static String COLUMN_BOUNDS_BOTTOM = "boundsBottom";
+        private final static String COLUMN_ICON_MASK = "iconMask";
+        private final static String COLUMN_MASK_SHAPE = "maskShape";
+        private final static String COLUMN_SYSTEM_STATE = "system_state";
+
+        public NormalizationDB(Context context) {
+            super(context, LauncherFiles.ICON_NORMALIZATION_DB, DB_VERSION, TABLE_NAME);
+        }
+
+        @Override
+        protected void onCreateTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_SCALE + " REAL NOT NULL DEFAULT 1, " +
+                    COLUMN_BOUNDS_LEFT + " REAL NOT NULL DEFAULT 0, " +
+                    COLUMN_BOUNDS_TOP + " REAL NOT NULL DEFAULT 0, " +
+                    COLUMN_BOUNDS_RIGHT + " REAL NOT NULL DEFAULT 0, " +
+                    COLUMN_BOUNDS_BOTTOM + " REAL NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON_MASK + " TEXT, " +
+                    COLUMN_MASK_SHAPE + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_SYSTEM_STATE + " TEXT, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
+                    ");");
+        }
+    }
+}
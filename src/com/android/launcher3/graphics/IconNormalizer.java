@@ -38,6 +38,8 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.nio.ByteBuffer;
 import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IconNormalizer {
 
@@ -64,77 +66,116 @@ public class IconNormalizer {
     private static final Object LOCK = new Object();
     private static IconNormalizer sIconNormalizer;
 
+    // Number of idle render contexts kept for reuse.
+    private static final int MAX_POOLED_CONTEXTS = Runtime.getRuntime().availableProcessors();
+
     private final int mMaxSize;
-    private final Bitmap mBitmap;
-    private final Bitmap mBitmapARGB;
-    private final Canvas mCanvas;
-    private final Paint mPaintMaskShape;
-    private final Paint mPaintMaskShapeOutline;
-    private final byte[] mPixels;
-    private final int[] mPixelsARGB;
-
-    private final Rect mAdaptiveIconBounds;
-    private float mAdaptiveIconScale;
-
-    // for each y, stores the position of the leftmost x and the rightmost x
-    private final float[] mLeftBorder;
-    private final float[] mRightBorder;
-    private final Rect mBounds;
-    private final Matrix mMatrix;
-
-    private final Paint mPaintIcon;
-    private final Canvas mCanvasARGB;
+    private final float mOutlineStrokeWidth;
+
+    // The scale of adaptive icons only depends on the mask, so it is computed once. The bounds
+    // are written before the scale, so a reader which sees the scale also sees the bounds.
+    private volatile Rect mAdaptiveIconBounds;
+    private volatile float mAdaptiveIconScale;
+
+    // Idle render contexts, which hold the scratch buffers used by getScale. A context is used
+    // by a single thread at a time, so icons can be normalized on several threads in parallel.
+    private final ConcurrentLinkedQueue<RenderContext> mContextPool =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPooledContextCount = new AtomicInteger();
 
     private final File mDir;
-    private int mFileId;
     private final Random mRandom;
 
     private IconNormalizer(Context context) {
         // Use twice the icon size as maximum size to avoid scaling down twice.
         mMaxSize = LauncherAppState.getIDP(context).iconBitmapSize * 2;
-        mBitmap = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ALPHA_8);
-        mCanvas = new Canvas(mBitmap);
-        mPixels = new byte[mMaxSize * mMaxSize];
-        mPixelsARGB = new int[mMaxSize * mMaxSize];
-        mLeftBorder = new float[mMaxSize];
-        mRightBorder = new float[mMaxSize];
-        mBounds = new Rect();
-        mAdaptiveIconBounds = new Rect();
-
-        // Needed for isShape() method
-        mBitmapARGB = Bitmap.createBitmap(mMaxSize, mMaxSize, Bitmap.Config.ARGB_8888);
-        mCanvasARGB = new Canvas(mBitmapARGB);
-
-        mPaintIcon = new Paint();
-        mPaintIcon.setColor(Color.WHITE);
-
-        mPaintMaskShape = new Paint();
-        mPaintMaskShape.setColor(Color.RED);
-        mPaintMaskShape.setStyle(Paint.Style.FILL);
-        mPaintMaskShape.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.XOR));
-
-        mPaintMaskShapeOutline = new Paint();
-        mPaintMaskShapeOutline.setStrokeWidth(2 * context.getResources().getDisplayMetrics().density);
-        mPaintMaskShapeOutline.setStyle(Paint.Style.STROKE);
-        mPaintMaskShapeOutline.setColor(Color.BLACK);
-        mPaintMaskShapeOutline.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
-
-        mMatrix = new Matrix();
+        mOutlineStrokeWidth = 2 * context.getResources().getDisplayMetrics().density;
         mAdaptiveIconScale = SCALE_NOT_INITIALIZED;
 
         mDir = context.getExternalFilesDir(null);
         mRandom = new Random();
     }
 
+    private RenderContext obtainContext() {
+        RenderContext renderContext = mContextPool.poll();
+        if (renderContext == null) {
+            return new RenderContext(mMaxSize, mOutlineStrokeWidth);
+        }
+        mPooledContextCount.decrementAndGet();
+        return renderContext;
+    }
+
+    private void releaseContext(RenderContext renderContext) {
+        if (mPooledContextCount.incrementAndGet() <= MAX_POOLED_CONTEXTS) {
+            mContextPool.offer(renderContext);
+        } else {
+            mPooledContextCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Scratch bitmaps, buffers and paints for normalizing a single icon.
+     */
+    private static class RenderContext {
+        final Bitmap mBitmap;
+        final Bitmap mBitmapARGB;
+        final Canvas mCanvas;
+        final Paint mPaintMaskShape;
+        final Paint mPaintMaskShapeOutline;
+        final byte[] mPixels;
+        final int[] mPixelsARGB;
+
+        // for each y, stores the position of the leftmost x and the rightmost x
+        final float[] mLeftBorder;
+        final float[] mRightBorder;
+        final Rect mBounds;
+        final Matrix mMatrix;
+
+        final Paint mPaintIcon;
+        final Canvas mCanvasARGB;
+
+        int mFileId;
+
+        RenderContext(int maxSize, float outlineStrokeWidth) {
+            mBitmap = Bitmap.createBitmap(maxSize, maxSize, Bitmap.Config.ALPHA_8);
+            mCanvas = new Canvas(mBitmap);
+            mPixels = new byte[maxSize * maxSize];
+            mPixelsARGB = new int[maxSize * maxSize];
+            mLeftBorder = new float[maxSize];
+            mRightBorder = new float[maxSize];
+            mBounds = new Rect();
+
+            // Needed for isShape() method
+            mBitmapARGB = Bitmap.createBitmap(maxSize, maxSize, Bitmap.Config.ARGB_8888);
+            mCanvasARGB = new Canvas(mBitmapARGB);
+
+            mPaintIcon = new Paint();
+            mPaintIcon.setColor(Color.WHITE);
+
+            mPaintMaskShape = new Paint();
+            mPaintMaskShape.setColor(Color.RED);
+            mPaintMaskShape.setStyle(Paint.Style.FILL);
+            mPaintMaskShape.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.XOR));
+
+            mPaintMaskShapeOutline = new Paint();
+            mPaintMaskShapeOutline.setStrokeWidth(outlineStrokeWidth);
+            mPaintMaskShapeOutline.setStyle(Paint.Style.STROKE);
+            mPaintMaskShapeOutline.setColor(Color.BLACK);
+            mPaintMaskShapeOutline.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+
+            mMatrix = new Matrix();
+        }
+    }
+
     /**
      * Returns if the shape of the icon is same as the path.
      * For this method to work, the shape path bounds should be in [0,1]x[0,1] bounds.
      */
-    private boolean isShape(Path maskPath) {
+    private boolean isShape(RenderContext c, Path maskPath) {
         // Condition1:
         // If width and height of the path not close to a square, then the icon shape is
         // not same as the mask shape.
-        float iconRatio = ((float) mBounds.width()) / mBounds.height();
+        float iconRatio = ((float) c.mBounds.width()) / c.mBounds.height();
         if (Math.abs(iconRatio - 1) > BOUND_RATIO_MARGIN) {
             if (DEBUG) {
                 Log.d(TAG, "Not same as mask shape because width != height. " + iconRatio);
@@ -145,36 +186,36 @@ public class IconNormalizer {
         // Condition 2:
         // Actual icon (white) and the fitted shape (e.g., circle)(red) XOR operation
         // should generate transparent image, if the actual icon is equivalent to the shape.
-        mFileId = mRandom.nextInt();
-        mBitmapARGB.eraseColor(Color.TRANSPARENT);
-        mCanvasARGB.drawBitmap(mBitmap, 0, 0, mPaintIcon);
+        c.mFileId = mRandom.nextInt();
+        c.mBitmapARGB.eraseColor(Color.TRANSPARENT);
+        c.mCanvasARGB.drawBitmap(c.mBitmap, 0, 0, c.mPaintIcon);
 
         if (DEBUG) {
-            final File beforeFile = new File(mDir, "isShape" + mFileId + "_before.png");
+            final File beforeFile = new File(mDir, "isShape" + c.mFileId + "_before.png");
             try {
-                mBitmapARGB.compress(Bitmap.CompressFormat.PNG, 100,
+                c.mBitmapARGB.compress(Bitmap.CompressFormat.PNG, 100,
                         new FileOutputStream(beforeFile));
             } catch (Exception e) {}
         }
 
         // Fit the shape within the icon's bounding box
-        mMatrix.reset();
-        mMatrix.setScale(mBounds.width(), mBounds.height());
-        mMatrix.postTranslate(mBounds.left, mBounds.top);
-        maskPath.transform(mMatrix);
+        c.mMatrix.reset();
+        c.mMatrix.setScale(c.mBounds.width(), c.mBounds.height());
+        c.mMatrix.postTranslate(c.mBounds.left, c.mBounds.top);
+        maskPath.transform(c.mMatrix);
 
         // XOR operation
-        mCanvasARGB.drawPath(maskPath, mPaintMaskShape);
+        c.mCanvasARGB.drawPath(maskPath, c.mPaintMaskShape);
 
         // DST_OUT operation around the mask path outline
-        mCanvasARGB.drawPath(maskPath, mPaintMaskShapeOutline);
+        c.mCanvasARGB.drawPath(maskPath, c.mPaintMaskShapeOutline);
 
-        boolean isTrans = isTransparentBitmap(mBitmapARGB);
+        boolean isTrans = isTransparentBitmap(c);
         if (DEBUG) {
             final File afterFile = new File(mDir,
-                    "isShape" + mFileId + "_after_" + isTrans + ".png");
+                    "isShape" + c.mFileId + "_after_" + isTrans + ".png");
             try {
-                mBitmapARGB.compress(Bitmap.CompressFormat.PNG, 100,
+                c.mBitmapARGB.compress(Bitmap.CompressFormat.PNG, 100,
                         new FileOutputStream(afterFile));
             } catch (Exception e) {}
         }
@@ -192,25 +233,26 @@ public class IconNormalizer {
     /**
      * Used to determine if certain the bitmap is transparent.
      */
-    private boolean isTransparentBitmap(Bitmap bitmap) {
-        int w = mBounds.width();
-        int h = mBounds.height();
-        bitmap.getPixels(mPixelsARGB, 0 /* the first index to write into the array */,
+    private boolean isTransparentBitmap(RenderContext c) {
+        Bitmap bitmap = c.mBitmapARGB;
+        int w = c.mBounds.width();
+        int h = c.mBounds.height();
+        bitmap.getPixels(c.mPixelsARGB, 0 /* the first index to write into the array */,
                 w /* stride */,
-                mBounds.left, mBounds.top,
+                c.mBounds.left, c.mBounds.top,
                 w, h);
         int sum = 0;
         for (int i = 0; i < w * h; i++) {
-            if(Color.alpha(mPixelsARGB[i]) > MIN_VISIBLE_ALPHA) {
+            if(Color.alpha(c.mPixelsARGB[i]) > MIN_VISIBLE_ALPHA) {
                     sum++;
             }
         }
-        float percentageDiffPixels = ((float) sum) / (mBounds.width() * mBounds.height());
+        float percentageDiffPixels = ((float) sum) / (c.mBounds.width() * c.mBounds.height());
         boolean transparentImage = percentageDiffPixels < PIXEL_DIFF_PERCENTAGE_THRESHOLD;
         if (DEBUG) {
             Log.d(TAG,
-                    "Total # pixel that is different (id=" + mFileId + "):" + percentageDiffPixels
-                            + "=" + sum + "/" + mBounds.width() * mBounds.height());
+                    "Total # pixel that is different (id=" + c.mFileId + "):" + percentageDiffPixels
+                            + "=" + sum + "/" + c.mBounds.width() * c.mBounds.height());
         }
         return transparentImage;
     }
@@ -229,15 +271,27 @@ public class IconNormalizer {
      *
      * @param outBounds optional rect to receive the fraction distance from each edge.
      */
-    public synchronized float getScale(@NonNull Drawable d, @Nullable RectF outBounds,
+    public float getScale(@NonNull Drawable d, @Nullable RectF outBounds,
             @Nullable Path path, @Nullable boolean[] outMaskShape) {
-        if (Utilities.ATLEAST_OREO && d instanceof AdaptiveIconDrawable &&
-                mAdaptiveIconScale != SCALE_NOT_INITIALIZED) {
-            if (outBounds != null) {
-                outBounds.set(mAdaptiveIconBounds);
+        if (Utilities.ATLEAST_OREO && d instanceof AdaptiveIconDrawable) {
+            float adaptiveIconScale = mAdaptiveIconScale;
+            if (adaptiveIconScale != SCALE_NOT_INITIALIZED) {
+                if (outBounds != null) {
+                    outBounds.set(mAdaptiveIconBounds);
+                }
+                return adaptiveIconScale;
             }
-            return mAdaptiveIconScale;
         }
+        RenderContext renderContext = obtainContext();
+        try {
+            return getScale(renderContext, d, outBounds, path, outMaskShape);
+        } finally {
+            releaseContext(renderContext);
+        }
+    }
+
+    private float getScale(RenderContext c, @NonNull Drawable d, @Nullable RectF outBounds,
+            @Nullable Path path, @Nullable boolean[] outMaskShape) {
         int width = d.getIntrinsicWidth();
         int height = d.getIntrinsicHeight();
         if (width <= 0 || height <= 0) {
@@ -249,13 +303,13 @@ public class IconNormalizer {
             height = mMaxSize * height / max;
         }
 
-        mBitmap.eraseColor(Color.TRANSPARENT);
+        c.mBitmap.eraseColor(Color.TRANSPARENT);
         d.setBounds(0, 0, width, height);
-        d.draw(mCanvas);
+        d.draw(c.mCanvas);
 
-        ByteBuffer buffer = ByteBuffer.wrap(mPixels);
+        ByteBuffer buffer = ByteBuffer.wrap(c.mPixels);
         buffer.rewind();
-        mBitmap.copyPixelsToBuffer(buffer);
+        c.mBitmap.copyPixelsToBuffer(buffer);
 
         // Overall bounds of the visible icon.
         int topY = -1;
@@ -277,7 +331,7 @@ public class IconNormalizer {
         for (int y = 0; y < height; y++) {
             firstX = lastX = -1;
             for (int x = 0; x < width; x++) {
-                if ((mPixels[index] & 0xFF) > MIN_VISIBLE_ALPHA) {
+                if ((c.mPixels[index] & 0xFF) > MIN_VISIBLE_ALPHA) {
                     if (firstX == -1) {
                         firstX = x;
                     }
@@ -287,8 +341,8 @@ public class IconNormalizer {
             }
             index += rowSizeDiff;
 
-            mLeftBorder[y] = firstX;
-            mRightBorder[y] = lastX;
+            c.mLeftBorder[y] = firstX;
+            c.mRightBorder[y] = lastX;
 
             // If there is at least one visible pixel, update the overall bounds.
             if (firstX != -1) {
@@ -307,16 +361,16 @@ public class IconNormalizer {
             return 1;
         }
 
-        convertToConvexArray(mLeftBorder, 1, topY, bottomY);
-        convertToConvexArray(mRightBorder, -1, topY, bottomY);
+        convertToConvexArray(c.mLeftBorder, 1, topY, bottomY);
+        convertToConvexArray(c.mRightBorder, -1, topY, bottomY);
 
         // Area of the convex hull
         float area = 0;
         for (int y = 0; y < height; y++) {
-            if (mLeftBorder[y] <= -1) {
+            if (c.mLeftBorder[y] <= -1) {
                 continue;
             }
-            area += mRightBorder[y] - mLeftBorder[y] + 1;
+            area += c.mRightBorder[y] - c.mLeftBorder[y] + 1;
         }
 
         // Area of the rectangle required to fit the convex hull
@@ -329,28 +383,29 @@ public class IconNormalizer {
         } else {
             scaleRequired = MAX_SQUARE_AREA_FACTOR + LINEAR_SCALE_SLOPE * (1 - hullByRect);
         }
-        mBounds.left = leftX;
-        mBounds.right = rightX;
+        c.mBounds.left = leftX;
+        c.mBounds.right = rightX;
 
-        mBounds.top = topY;
-        mBounds.bottom = bottomY;
+        c.mBounds.top = topY;
+        c.mBounds.bottom = bottomY;
 
         if (outBounds != null) {
-            outBounds.set(((float) mBounds.left) / width, ((float) mBounds.top),
-                    1 - ((float) mBounds.right) / width,
-                    1 - ((float) mBounds.bottom) / height);
+            outBounds.set(((float) c.mBounds.left) / width, ((float) c.mBounds.top),
+                    1 - ((float) c.mBounds.right) / width,
+                    1 - ((float) c.mBounds.bottom) / height);
         }
 
         if (outMaskShape != null && outMaskShape.length > 0) {
-            outMaskShape[0] = isShape(path);
+            outMaskShape[0] = isShape(c, path);
         }
         float areaScale = area / (width * height);
         // Use sqrt of the final ratio as the images is scaled across both width and height.
         float scale = areaScale > scaleRequired ? (float) Math.sqrt(scaleRequired / areaScale) : 1;
         if (Utilities.ATLEAST_OREO && d instanceof AdaptiveIconDrawable &&
                 mAdaptiveIconScale == SCALE_NOT_INITIALIZED) {
+            // Concurrent callers compute the same value, so the last write wins.
+            mAdaptiveIconBounds = new Rect(c.mBounds);
             mAdaptiveIconScale = scale;
-            mAdaptiveIconBounds.set(mBounds);
         }
         return scale;
     }
@@ -38,6 +38,7 @@ import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.LauncherModel;
 import com.android.launcher3.R;
 import com.android.launcher3.Utilities;
+import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.util.LooperExecutor;
 
 import java.lang.reflect.Field;
@@ -106,7 +107,7 @@ public class IconShapeOverride {
         return staticField;
     }
 
-    private static int getConfigResId() {
+    static int getConfigResId() {
         return Resources.getSystem().getIdentifier("config_icon_mask", "string", "android");
     }
 
@@ -181,8 +182,11 @@ public class IconShapeOverride {
         public void run() {
             // Synchronously write the preference.
             getDevicePrefs(mContext).edit().putString(KEY_PREFERENCE, mValue).commit();
-            // Clear the icon cache.
-            LauncherAppState.getInstance(mContext).getIconCache().clear();
+            // Clear the icon caches.
+            LauncherAppState app = LauncherAppState.getInstance(mContext);
+            app.getIconCache().clear();
+            app.getShortcutIconCache().clear();
+            DeepShortcutManager.getInstance(mContext).getShortcutCache().clear();
 
             // Wait for it
             try {
@@ -24,8 +24,10 @@ import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.drawable.AdaptiveIconDrawable;
@@ -47,6 +49,7 @@ import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.model.PackageItemInfo;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.shortcuts.ShortcutInfoCompat;
+import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.Provider;
 
 /**
@@ -54,13 +57,16 @@ import com.android.launcher3.util.Provider;
  */
 public class LauncherIcons {
 
-    private static final Rect sOldBounds = new Rect();
-    private static final Canvas sCanvas = new Canvas();
-
-    static {
-        sCanvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
-                Paint.FILTER_BITMAP_FLAG));
-    }
+    // Each thread draws into its own canvas, so that icons can be created in parallel.
+    private static final ThreadLocal<Canvas> sCanvas = new ThreadLocal<Canvas>() {
+        @Override
+        protected Canvas initialValue() {
+            Canvas canvas = new Canvas();
+            canvas.setDrawFilter(new PaintFlagsDrawFilter(Paint.DITHER_FLAG,
+                    Paint.FILTER_BITMAP_FLAG));
+            return canvas;
+        }
+    };
 
     /**
      * Returns a bitmap suitable for the all apps view. If the package or the resource do not
@@ -99,6 +105,21 @@ public class LauncherIcons {
      */
     public static Bitmap createBadgedIconBitmap(
             Drawable icon, UserHandle user, Context context, int iconAppTargetSdk) {
+        return createBadgedIconBitmap(icon, user, context, iconAppTargetSdk, null, 0, null);
+    }
+
+    /**
+     * Same as {@link #createBadgedIconBitmap(Drawable, UserHandle, Context, int)}, but reuses
+     * the normalization computed for the same component, package update and icon system state,
+     * if any.
+     *
+     * @param key the component of the icon, or null if the normalization should not be persisted.
+     * @param lastUpdateTime the last update time of the package of {@param key}.
+     * @param systemState the icon system state of the package of {@param key}.
+     */
+    public static Bitmap createBadgedIconBitmap(Drawable icon, UserHandle user, Context context,
+            int iconAppTargetSdk, @Nullable ComponentKey key, long lastUpdateTime,
+            @Nullable String systemState) {
 
         IconNormalizer normalizer;
         float scale = 1f;
@@ -109,7 +130,8 @@ public class LauncherIcons {
                 AdaptiveIconDrawable dr = (AdaptiveIconDrawable)
                         context.getDrawable(R.drawable.adaptive_icon_drawable_wrapper).mutate();
                 dr.setBounds(0, 0, 1, 1);
-                scale = normalizer.getScale(icon, null, dr.getIconMask(), outShape);
+                scale = getNormalizedScale(context, icon, dr.getIconMask(), outShape,
+                        key, lastUpdateTime, systemState);
                 if (FeatureFlags.LEGACY_ICON_TREATMENT &&
                         !outShape[0]){
                     Drawable wrappedIcon = wrapToAdaptiveIconDrawable(context, icon, scale);
@@ -119,17 +141,46 @@ public class LauncherIcons {
                     }
                 }
             } else {
-                scale = normalizer.getScale(icon, null, null, null);
+                scale = getNormalizedScale(context, icon, null, null, key, lastUpdateTime,
+                        systemState);
             }
         }
         Bitmap bitmap = createIconBitmap(icon, context, scale);
         if (FeatureFlags.ADAPTIVE_ICON_SHADOW && Utilities.ATLEAST_OREO &&
                 icon instanceof AdaptiveIconDrawable) {
-            bitmap = ShadowGenerator.getInstance(context).recreateIcon(bitmap);
+            bitmap = addShadowAndRelease(bitmap, context);
         }
         return badgeIconForUser(bitmap, user, context);
     }
 
+    /**
+     * Returns the normalized scale of the icon, using the persisted result for {@param key} if
+     * it is still valid. Adaptive icons are not persisted as their scale is computed only once.
+     */
+    private static float getNormalizedScale(Context context, Drawable icon, @Nullable Path path,
+            @Nullable boolean[] outMaskShape, @Nullable ComponentKey key, long lastUpdateTime,
+            @Nullable String systemState) {
+        IconNormalizer normalizer = IconNormalizer.getInstance(context);
+        if (key == null || (Utilities.ATLEAST_OREO && icon instanceof AdaptiveIconDrawable)) {
+            return normalizer.getScale(icon, null, path, outMaskShape);
+        }
+
+        IconNormalizationCache cache = IconNormalizationCache.getInstance(context);
+        boolean needsMaskShape = path != null && outMaskShape != null;
+        IconNormalizationCache.Entry entry = cache.get(key, lastUpdateTime, systemState,
+                needsMaskShape);
+        if (entry == null) {
+            entry = new IconNormalizationCache.Entry();
+            entry.scale = normalizer.getScale(icon, entry.bounds, path, outMaskShape);
+            entry.hasMaskShape = needsMaskShape;
+            entry.isMaskShape = needsMaskShape && outMaskShape[0];
+            cache.put(key, lastUpdateTime, systemState, entry);
+        } else if (needsMaskShape) {
+            outMaskShape[0] = entry.isMaskShape;
+        }
+        return entry.scale;
+    }
+
     /**
      * Badges the provided icon with the user badge if required.
      */
@@ -181,6 +232,16 @@ public class LauncherIcons {
         return createIconBitmap(icon, context, scale);
     }
 
+    /**
+     * Adds a shadow to the provided icon and returns the unshadowed icon to the shared
+     * {@link BitmapPool}. The caller must not use {@param icon} afterwards.
+     */
+    private static Bitmap addShadowAndRelease(Bitmap icon, Context context) {
+        Bitmap result = ShadowGenerator.getInstance(context).recreateIcon(icon);
+        BitmapPool.getShared().release(icon);
+        return result;
+    }
+
     /**
      * Adds a shadow to the provided icon. It assumes that the icon has already been scaled using
      * {@link #createScaledBitmapWithoutShadow(Drawable, Context, int)}
@@ -198,13 +259,12 @@ public class LauncherIcons {
 
     public static Bitmap badgeWithDrawable(Bitmap srcTgt, Drawable badge, Context context) {
         int badgeSize = context.getResources().getDimensionPixelSize(R.dimen.profile_badge_size);
-        synchronized (sCanvas) {
-            sCanvas.setBitmap(srcTgt);
-            int iconSize = srcTgt.getWidth();
-            badge.setBounds(iconSize - badgeSize, iconSize - badgeSize, iconSize, iconSize);
-            badge.draw(sCanvas);
-            sCanvas.setBitmap(null);
-        }
+        Canvas canvas = sCanvas.get();
+        canvas.setBitmap(srcTgt);
+        int iconSize = srcTgt.getWidth();
+        badge.setBounds(iconSize - badgeSize, iconSize - badgeSize, iconSize, iconSize);
+        badge.draw(canvas);
+        canvas.setBitmap(null);
         return srcTgt;
     }
 
@@ -220,7 +280,7 @@ public class LauncherIcons {
         Bitmap bitmap =  createIconBitmap(icon, context, scale);
         if (FeatureFlags.ADAPTIVE_ICON_SHADOW && Utilities.ATLEAST_OREO &&
                 icon instanceof AdaptiveIconDrawable) {
-            bitmap = ShadowGenerator.getInstance(context).recreateIcon(bitmap);
+            bitmap = addShadowAndRelease(bitmap, context);
         }
         return bitmap;
     }
@@ -229,65 +289,64 @@ public class LauncherIcons {
      * @param scale the scale to apply before drawing {@param icon} on the canvas
      */
     public static Bitmap createIconBitmap(Drawable icon, Context context, float scale) {
-        synchronized (sCanvas) {
-            final int iconBitmapSize = LauncherAppState.getIDP(context).iconBitmapSize;
-            int width = iconBitmapSize;
-            int height = iconBitmapSize;
-
-            if (icon instanceof PaintDrawable) {
-                PaintDrawable painter = (PaintDrawable) icon;
-                painter.setIntrinsicWidth(width);
-                painter.setIntrinsicHeight(height);
-            } else if (icon instanceof BitmapDrawable) {
-                // Ensure the bitmap has a density.
-                BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
-                Bitmap bitmap = bitmapDrawable.getBitmap();
-                if (bitmap != null && bitmap.getDensity() == Bitmap.DENSITY_NONE) {
-                    bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
-                }
+        final int iconBitmapSize = LauncherAppState.getIDP(context).iconBitmapSize;
+        int width = iconBitmapSize;
+        int height = iconBitmapSize;
+
+        if (icon instanceof PaintDrawable) {
+            PaintDrawable painter = (PaintDrawable) icon;
+            painter.setIntrinsicWidth(width);
+            painter.setIntrinsicHeight(height);
+        } else if (icon instanceof BitmapDrawable) {
+            // Ensure the bitmap has a density.
+            BitmapDrawable bitmapDrawable = (BitmapDrawable) icon;
+            Bitmap bitmap = bitmapDrawable.getBitmap();
+            if (bitmap != null && bitmap.getDensity() == Bitmap.DENSITY_NONE) {
+                bitmapDrawable.setTargetDensity(context.getResources().getDisplayMetrics());
             }
+        }
 
-            int sourceWidth = icon.getIntrinsicWidth();
-            int sourceHeight = icon.getIntrinsicHeight();
-            if (sourceWidth > 0 && sourceHeight > 0) {
-                // Scale the icon proportionally to the icon dimensions
-                final float ratio = (float) sourceWidth / sourceHeight;
-                if (sourceWidth > sourceHeight) {
-                    height = (int) (width / ratio);
-                } else if (sourceHeight > sourceWidth) {
-                    width = (int) (height * ratio);
-                }
-            }
-            // no intrinsic size --> use default size
-            int textureWidth = iconBitmapSize;
-            int textureHeight = iconBitmapSize;
-
-            Bitmap bitmap = Bitmap.createBitmap(textureWidth, textureHeight,
-                    Bitmap.Config.ARGB_8888);
-            final Canvas canvas = sCanvas;
-            canvas.setBitmap(bitmap);
-
-            final int left = (textureWidth-width) / 2;
-            final int top = (textureHeight-height) / 2;
-
-            sOldBounds.set(icon.getBounds());
-            if (Utilities.ATLEAST_OREO && icon instanceof AdaptiveIconDrawable) {
-                int offset = Math.max((int)(ShadowGenerator.BLUR_FACTOR * iconBitmapSize),
-                        Math.min(left, top));
-                int size = Math.max(width, height);
-                icon.setBounds(offset, offset, size, size);
-            } else {
-                icon.setBounds(left, top, left+width, top+height);
+        int sourceWidth = icon.getIntrinsicWidth();
+        int sourceHeight = icon.getIntrinsicHeight();
+        if (sourceWidth > 0 && sourceHeight > 0) {
+            // Scale the icon proportionally to the icon dimensions
+            final float ratio = (float) sourceWidth / sourceHeight;
+            if (sourceWidth > sourceHeight) {
+                height = (int) (width / ratio);
+            } else if (sourceHeight > sourceWidth) {
+                width = (int) (height * ratio);
             }
-            canvas.save(Canvas.MATRIX_SAVE_FLAG);
-            canvas.scale(scale, scale, textureWidth / 2, textureHeight / 2);
-            icon.draw(canvas);
-            canvas.restore();
-            icon.setBounds(sOldBounds);
-            canvas.setBitmap(null);
-
-            return bitmap;
         }
+        // no intrinsic size --> use default size
+        int textureWidth = iconBitmapSize;
+        int textureHeight = iconBitmapSize;
+
+        Bitmap bitmap = BitmapPool.getShared().get(textureWidth, textureHeight,
+                Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        final Canvas canvas = sCanvas.get();
+        canvas.setBitmap(bitmap);
+
+        final int left = (textureWidth-width) / 2;
+        final int top = (textureHeight-height) / 2;
+
+        final Rect oldBounds = new Rect(icon.getBounds());
+        if (Utilities.ATLEAST_OREO && icon instanceof AdaptiveIconDrawable) {
+            int offset = Math.max((int)(ShadowGenerator.BLUR_FACTOR * iconBitmapSize),
+                    Math.min(left, top));
+            int size = Math.max(width, height);
+            icon.setBounds(offset, offset, size, size);
+        } else {
+            icon.setBounds(left, top, left+width, top+height);
+        }
+        canvas.save(Canvas.MATRIX_SAVE_FLAG);
+        canvas.scale(scale, scale, textureWidth / 2, textureHeight / 2);
+        icon.draw(canvas);
+        canvas.restore();
+        icon.setBounds(oldBounds);
+        canvas.setBitmap(null);
+
+        return bitmap;
     }
 
     /**
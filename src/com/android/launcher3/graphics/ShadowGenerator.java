@@ -16,6 +16,7 @@
 
 package com.android.launcher3.graphics;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
@@ -25,9 +26,14 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.RectF;
+import android.graphics.drawable.AdaptiveIconDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.support.v4.graphics.ColorUtils;
 
 import com.android.launcher3.LauncherAppState;
+import com.android.launcher3.Utilities;
 
 /**
  * Utility class to add shadows to bitmaps.
@@ -48,51 +54,139 @@ public class ShadowGenerator {
     // Singleton object guarded by {@link #LOCK}
     private static ShadowGenerator sShadowGenerator;
 
+    private final Context mContext;
     private final int mIconSize;
 
-    private final Canvas mCanvas;
-    private final Paint mBlurPaint;
-    private final Paint mDrawPaint;
+    // Icons are rendered on several threads at once, so the canvas and paints are not shared.
     private final BlurMaskFilter mDefaultBlurMaskFilter;
 
+    // Shadow of the adaptive icon shape, shared by all the icons with the same silhouette.
+    private volatile ShadowTemplate mAdaptiveShadowTemplate;
+
     private ShadowGenerator(Context context) {
+        mContext = context.getApplicationContext();
         mIconSize = LauncherAppState.getIDP(context).iconBitmapSize;
-        mCanvas = new Canvas();
-        mBlurPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
-        mDrawPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
         mDefaultBlurMaskFilter = new BlurMaskFilter(mIconSize * BLUR_FACTOR, Blur.NORMAL);
     }
 
-    public synchronized Bitmap recreateIcon(Bitmap icon) {
+    public Bitmap recreateIcon(Bitmap icon) {
+        if (Utilities.ATLEAST_OREO) {
+            // Most icons are adaptive icons, whose alpha is exactly the icon shape. Reuse the
+            // shadow of the shape instead of blurring every icon.
+            ShadowTemplate template = getAdaptiveShadowTemplate();
+            if (template.matches(icon)) {
+                return template.apply(icon);
+            }
+        }
         return recreateIcon(icon, true, mDefaultBlurMaskFilter, AMBIENT_SHADOW_ALPHA,
                 KEY_SHADOW_ALPHA);
     }
 
-    public synchronized Bitmap recreateIcon(Bitmap icon, boolean resize,
+    public Bitmap recreateIcon(Bitmap icon, boolean resize,
             BlurMaskFilter blurMaskFilter, int ambientAlpha, int keyAlpha) {
         int width = resize ? mIconSize : icon.getWidth();
         int height = resize ? mIconSize : icon.getHeight();
-        int[] offset = new int[2];
 
-        mBlurPaint.setMaskFilter(blurMaskFilter);
-        Bitmap shadow = icon.extractAlpha(mBlurPaint, offset);
-        Bitmap result = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-        mCanvas.setBitmap(result);
+        Bitmap result = BitmapPool.getShared().get(width, height, Config.ARGB_8888);
+        result.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(result);
+        drawShadow(canvas, icon, blurMaskFilter, ambientAlpha, keyAlpha);
+
+        // Draw the icon
+        Paint drawPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        canvas.drawBitmap(icon, 0, 0, drawPaint);
+
+        canvas.setBitmap(null);
+        return result;
+    }
+
+    /**
+     * Draws the ambient and key shadows of {@param icon} on the canvas.
+     */
+    private void drawShadow(Canvas canvas, Bitmap icon, BlurMaskFilter blurMaskFilter,
+            int ambientAlpha, int keyAlpha) {
+        int[] offset = new int[2];
+        Paint blurPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        blurPaint.setMaskFilter(blurMaskFilter);
+        Bitmap shadow = icon.extractAlpha(blurPaint, offset);
+        Paint drawPaint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
 
         // Draw ambient shadow
-        mDrawPaint.setAlpha(ambientAlpha);
-        mCanvas.drawBitmap(shadow, offset[0], offset[1], mDrawPaint);
+        drawPaint.setAlpha(ambientAlpha);
+        canvas.drawBitmap(shadow, offset[0], offset[1], drawPaint);
 
         // Draw key shadow
-        mDrawPaint.setAlpha(keyAlpha);
-        mCanvas.drawBitmap(shadow, offset[0], offset[1] + KEY_SHADOW_DISTANCE * mIconSize, mDrawPaint);
+        drawPaint.setAlpha(keyAlpha);
+        canvas.drawBitmap(shadow, offset[0], offset[1] + KEY_SHADOW_DISTANCE * mIconSize, drawPaint);
+    }
 
-        // Draw the icon
-        mDrawPaint.setAlpha(255);
-        mCanvas.drawBitmap(icon, 0, 0, mDrawPaint);
+    private ShadowTemplate getAdaptiveShadowTemplate() {
+        ShadowTemplate template = mAdaptiveShadowTemplate;
+        if (template == null) {
+            synchronized (this) {
+                template = mAdaptiveShadowTemplate;
+                if (template == null) {
+                    template = createAdaptiveShadowTemplate();
+                    mAdaptiveShadowTemplate = template;
+                }
+            }
+        }
+        return template;
+    }
 
-        mCanvas.setBitmap(null);
-        return result;
+    /**
+     * Renders an opaque adaptive icon the same way as {@link LauncherIcons} renders app icons,
+     * and precomputes the shadows of its shape. The icon shape only changes with a process
+     * restart, see {@link IconShapeOverride}.
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    private ShadowTemplate createAdaptiveShadowTemplate() {
+        Drawable shape = new AdaptiveIconDrawable(
+                new ColorDrawable(Color.BLACK), new ColorDrawable(Color.TRANSPARENT));
+        float scale = IconNormalizer.getInstance(mContext).getScale(shape, null, null, null);
+        Bitmap shapeBitmap = LauncherIcons.createIconBitmap(shape, mContext, scale);
+
+        Bitmap shadowLayer = Bitmap.createBitmap(mIconSize, mIconSize, Config.ARGB_8888);
+        Canvas canvas = new Canvas(shadowLayer);
+        drawShadow(canvas, shapeBitmap, mDefaultBlurMaskFilter, AMBIENT_SHADOW_ALPHA,
+                KEY_SHADOW_ALPHA);
+        canvas.setBitmap(null);
+        return new ShadowTemplate(shapeBitmap.extractAlpha(), shadowLayer);
+    }
+
+    /**
+     * The precomputed shadows of an icon silhouette.
+     */
+    private static class ShadowTemplate {
+        private final Bitmap mAlpha;
+        private final Bitmap mShadowLayer;
+
+        ShadowTemplate(Bitmap alpha, Bitmap shadowLayer) {
+            mAlpha = alpha;
+            mShadowLayer = shadowLayer;
+        }
+
+        /**
+         * Returns true if {@param icon} has exactly the silhouette of this template. Extracting
+         * the alpha without a blur is much cheaper than blurring it.
+         */
+        boolean matches(Bitmap icon) {
+            return icon.getWidth() == mShadowLayer.getWidth()
+                    && icon.getHeight() == mShadowLayer.getHeight()
+                    && mAlpha.sameAs(icon.extractAlpha());
+        }
+
+        Bitmap apply(Bitmap icon) {
+            Bitmap result = BitmapPool.getShared().get(
+                    mShadowLayer.getWidth(), mShadowLayer.getHeight(), Config.ARGB_8888);
+            result.eraseColor(Color.TRANSPARENT);
+            Canvas canvas = new Canvas(result);
+            canvas.drawBitmap(mShadowLayer, 0, 0, null);
+            canvas.drawBitmap(icon, 0, 0,
+                    new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG));
+            canvas.setBitmap(null);
+            return result;
+        }
     }
 
     public static ShadowGenerator getInstance(Context context) {
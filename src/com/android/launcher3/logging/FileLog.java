@@ -3,27 +3,39 @@ package com.android.launcher3.logging;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 import android.util.Pair;
 
 import com.android.launcher3.Utilities;
 import com.android.launcher3.config.FeatureFlags;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Wrapper around {@link Log} to allow writing to a file.
  * This class can safely be called from main thread.
  *
+ * Logs are appended as binary records to a memory-mapped ring buffer on the calling thread,
+ * without any locking or formatting. They are only formatted as text in {@link #flushAll}.
+ * The file is opened on a background thread, and logs written until it is ready are handed
+ * to that thread.
+ *
  * Note: This should only be used for logging errors which have a persistent effect on user's data,
  * but whose effect may not be visible immediately.
  */
@@ -35,22 +47,27 @@ public final class FileLog {
     private static final DateFormat DATE_FORMAT =
             DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
 
-    private static final long MAX_LOG_FILE_SIZE = 4 << 20;  // 4 mb
+    // Size of each log file. Once a file is full, the oldest logs are overwritten.
+    @VisibleForTesting
+    static final int LOG_FILE_SIZE = 1 << 20;  // 1 mb
 
+    private static final Object LOCK = new Object();
     private static Handler sHandler = null;
     private static File sLogsDirectory = null;
+    // Ring buffer of the current day. Only replaced with LOCK held, but read without it.
+    private static volatile LogRing sCurrentRing = null;
+
+    // UTF-8 bytes of each tag, so that they are only encoded once.
+    private static final ConcurrentHashMap<String, byte[]> sTagBytes = new ConcurrentHashMap<>();
 
     public static void setDir(File logsDir) {
-        if (ENABLED) {
-            synchronized (DATE_FORMAT) {
-                // If the target directory changes, stop any active thread.
-                if (sHandler != null && !logsDir.equals(sLogsDirectory)) {
-                    ((HandlerThread) sHandler.getLooper().getThread()).quit();
-                    sHandler = null;
-                }
+        synchronized (LOCK) {
+            // If the target directory changes, stop writing to the current file.
+            if (!logsDir.equals(sLogsDirectory)) {
+                detachCurrentRing();
             }
+            sLogsDirectory = logsDir;
         }
-        sLogsDirectory = logsDir;
     }
 
     public static void d(String tag, String msg, Exception e) {
@@ -81,15 +98,38 @@ public final class FileLog {
         if (!ENABLED) {
             return;
         }
-        String out = String.format("%s %s %s", DATE_FORMAT.format(new Date()), tag, msg);
-        if (e != null) {
-            out += "\n" + Log.getStackTraceString(e);
+        long now = System.currentTimeMillis();
+        byte[] tagBytes = getTagBytes(String.valueOf(tag));
+        String message = e == null ? String.valueOf(msg) : msg + "\n" + Log.getStackTraceString(e);
+
+        LogRing ring = sCurrentRing;
+        if (ring != null && ring.coversTime(now) && ring.acquire()) {
+            try {
+                ring.append(now, tagBytes, message);
+            } finally {
+                ring.release();
+            }
+        } else {
+            // The file needs to be opened first, which is done on the logger thread.
+            Message.obtain(getHandler(), LogWriterCallback.MSG_WRITE,
+                    new PendingLog(now, tagBytes, message)).sendToTarget();
         }
-        Message.obtain(getHandler(), LogWriterCallback.MSG_WRITE, out).sendToTarget();
+    }
+
+    private static byte[] getTagBytes(String tag) {
+        byte[] bytes = sTagBytes.get(tag);
+        if (bytes == null) {
+            bytes = tag.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > Short.MAX_VALUE) {
+                bytes = new byte[0];
+            }
+            sTagBytes.putIfAbsent(tag, bytes);
+        }
+        return bytes;
     }
 
     private static Handler getHandler() {
-        synchronized (DATE_FORMAT) {
+        synchronized (LOCK) {
             if (sHandler == null) {
                 HandlerThread thread = new HandlerThread("file-logger");
                 thread.start();
@@ -99,6 +139,19 @@ public final class FileLog {
         return sHandler;
     }
 
+    /**
+     * Stops writing new logs to the current ring buffer. The ring is closed once the logs being
+     * written to it are done.
+     */
+    private static LogRing detachCurrentRing() {
+        LogRing ring = sCurrentRing;
+        if (ring != null) {
+            sCurrentRing = null;
+            ring.release();
+        }
+        return ring;
+    }
+
     /**
      * Blocks until all the pending logs are written to the disk
      * @param out if not null, all the persisted logs are copied to the writer.
@@ -115,85 +168,61 @@ public final class FileLog {
     }
 
     /**
-     * Writes logs to the file.
-     * Log files are named log-0 for even days of the year and log-1 for odd days of the year.
-     * Logs older than 36 hours are purged.
+     * A log written before its ring buffer was ready.
      */
-    private static class LogWriterCallback implements Handler.Callback {
+    private static class PendingLog {
+        final long time;
+        final byte[] tag;
+        final String message;
+
+        PendingLog(long time, byte[] tag, String message) {
+            this.time = time;
+            this.tag = tag;
+            this.message = message;
+        }
+    }
 
-        private static final long CLOSE_DELAY = 5000;  // 5 seconds
+    /**
+     * Opens the ring buffers, and writes the logs received before they were opened.
+     */
+    private static class LogWriterCallback implements Handler.Callback {
 
         private static final int MSG_WRITE = 1;
-        private static final int MSG_CLOSE = 2;
-        private static final int MSG_FLUSH = 3;
-
-        private String mCurrentFileName = null;
-        private PrintWriter mCurrentWriter = null;
-
-        private void closeWriter() {
-            Utilities.closeSilently(mCurrentWriter);
-            mCurrentWriter = null;
-        }
+        private static final int MSG_FLUSH = 2;
 
         @Override
         public boolean handleMessage(Message msg) {
-            if (sLogsDirectory == null || !ENABLED) {
-                return true;
-            }
             switch (msg.what) {
                 case MSG_WRITE: {
-                    Calendar cal = Calendar.getInstance();
-                    // suffix with 0 or 1 based on the day of the year.
-                    String fileName = FILE_NAME_PREFIX + (cal.get(Calendar.DAY_OF_YEAR) & 1);
-
-                    if (!fileName.equals(mCurrentFileName)) {
-                        closeWriter();
-                    }
-
-                    try {
-                        if (mCurrentWriter == null) {
-                            mCurrentFileName = fileName;
-
-                            boolean append = false;
-                            File logFile = new File(sLogsDirectory, fileName);
-                            if (logFile.exists()) {
-                                Calendar modifiedTime = Calendar.getInstance();
-                                modifiedTime.setTimeInMillis(logFile.lastModified());
-
-                                // If the file was modified more that 36 hours ago, purge the file.
-                                // We use instead of 24 to account for day-365 followed by day-1
-                                modifiedTime.add(Calendar.HOUR, 36);
-                                append = cal.before(modifiedTime)
-                                        && logFile.length() < MAX_LOG_FILE_SIZE;
-                            }
-                            mCurrentWriter = new PrintWriter(new FileWriter(logFile, append));
+                    PendingLog log = (PendingLog) msg.obj;
+                    LogRing ring = getRing(log.time);
+                    if (ring != null && ring.acquire()) {
+                        try {
+                            ring.append(log.time, log.tag, log.message);
+                        } finally {
+                            ring.release();
                         }
-
-                        mCurrentWriter.println((String) msg.obj);
-                        mCurrentWriter.flush();
-
-                        // Auto close file stream after some time.
-                        sHandler.removeMessages(MSG_CLOSE);
-                        sHandler.sendEmptyMessageDelayed(MSG_CLOSE, CLOSE_DELAY);
-                    } catch (Exception e) {
-                        Log.e("FileLog", "Error writing logs to file", e);
-                        // Close stream, will try reopening during next log
-                        closeWriter();
                     }
                     return true;
                 }
-                case MSG_CLOSE: {
-                    closeWriter();
-                    return true;
-                }
                 case MSG_FLUSH: {
-                    closeWriter();
                     Pair<PrintWriter, CountDownLatch> p =
                             (Pair<PrintWriter, CountDownLatch>) msg.obj;
-
-                    if (p.first != null) {
-                        dumpFile(p.first, FILE_NAME_PREFIX + 0);
-                        dumpFile(p.first, FILE_NAME_PREFIX + 1);
+                    synchronized (LOCK) {
+                        LogRing ring = sCurrentRing;
+                        if (ring != null) {
+                            ring.force();
+                        }
+                        // The file is reopened on the next log, which also purges it if it is
+                        // outdated.
+                        ring = detachCurrentRing();
+                        if (ring != null) {
+                            ring.awaitClosed();
+                        }
+                        if (p.first != null && sLogsDirectory != null) {
+                            dumpFile(p.first, FILE_NAME_PREFIX + 0);
+                            dumpFile(p.first, FILE_NAME_PREFIX + 1);
+                        }
                     }
                     p.second.countDown();
                     return true;
@@ -201,25 +230,394 @@ public final class FileLog {
             }
             return true;
         }
+
+        /**
+         * Returns the ring buffer for logs written at {@param now}, opening the file for that
+         * day if needed, or null if the logs can not be written.
+         */
+        private static LogRing getRing(long now) {
+            synchronized (LOCK) {
+                LogRing ring = sCurrentRing;
+                if (ring != null && ring.coversTime(now)) {
+                    return ring;
+                }
+                ring = detachCurrentRing();
+                if (ring != null) {
+                    // The same file may be opened again, which requires its write position.
+                    ring.awaitClosed();
+                }
+                if (sLogsDirectory == null) {
+                    return null;
+                }
+                sCurrentRing = LogRing.open(sLogsDirectory, now);
+                return sCurrentRing;
+            }
+        }
     }
 
     private static void dumpFile(PrintWriter out, String fileName) {
         File logFile = new File(sLogsDirectory, fileName);
         if (logFile.exists()) {
-
-            BufferedReader in = null;
+            RandomAccessFile file = null;
             try {
-                in = new BufferedReader(new FileReader(logFile));
+                file = new RandomAccessFile(logFile, "r");
                 out.println();
                 out.println("--- logfile: " + fileName + " ---");
-                String line;
-                while ((line = in.readLine()) != null) {
-                    out.println(line);
+                if (file.length() == LOG_FILE_SIZE) {
+                    LogRing.dump(out, file.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY, 0, LOG_FILE_SIZE));
                 }
             } catch (Exception e) {
                 // ignore
             } finally {
-                Utilities.closeSilently(in);
+                Utilities.closeSilently(file);
+            }
+        }
+    }
+
+    /**
+     * A log file mapped in memory, used as a ring buffer of log records.
+     * Log files are named log-0 for even days of the year and log-1 for odd days of the year.
+     * Logs older than 36 hours are purged.
+     *
+     * The file starts with a header holding the logical write position, followed by the records.
+     * Records are aligned to {@link #SLOT_SIZE} and never wrap around the end of the buffer: space
+     * at the end which is too small for a record is skipped with a padding record. Each record
+     * stores its own logical position, so that records overwritten, or left over from before the
+     * file was purged, are not mistaken for valid ones.
+     *
+     * Record layout: marker, logical position, size, timestamp, tag length, tag, message length,
+     * message.
+     *
+     * The ring is reference counted: writers acquire it for the duration of an append, and it is
+     * closed once it is released by its owner and all the writers.
+     */
+    @VisibleForTesting
+    static class LogRing {
+
+        private static final int FILE_MAGIC = 0x4C4C4F47;  // LLOG
+        private static final int FILE_VERSION = 1;
+        @VisibleForTesting
+        static final int HEADER_SIZE = 64;
+        private static final int HEADER_VERSION_OFFSET = 4;
+        private static final int HEADER_POSITION_OFFSET = 8;
+
+        @VisibleForTesting
+        static final int CAPACITY = LOG_FILE_SIZE - HEADER_SIZE;
+        @VisibleForTesting
+        static final int SLOT_SIZE = 64;
+
+        private static final int MARKER_RECORD = 0x52454331;  // REC1
+        private static final int MARKER_PADDING = 0x50414431;  // PAD1
+        // marker, logical position, size, timestamp, tag length, message length
+        @VisibleForTesting
+        static final int RECORD_OVERHEAD = 4 + 8 + 4 + 8 + 2 + 4;
+
+        // Null if the buffer is not backed by a file.
+        private final File mFile;
+        private final ByteBuffer mBuffer;
+        private final long mDayStart;
+        private final long mDayEnd;
+        private final AtomicLong mWritePosition;
+        // Starts with the reference of the owner of the ring.
+        private final AtomicInteger mRefCount = new AtomicInteger(1);
+        private boolean mClosed;
+
+        private LogRing(File file, ByteBuffer buffer, long dayStart, long dayEnd) {
+            mFile = file;
+            mBuffer = buffer;
+            mDayStart = dayStart;
+            mDayEnd = dayEnd;
+            mWritePosition = new AtomicLong(buffer.getLong(HEADER_POSITION_OFFSET));
+        }
+
+        /**
+         * Returns an empty ring using the given buffer of {@link #LOG_FILE_SIZE} bytes, which
+         * covers any time.
+         */
+        @VisibleForTesting
+        static LogRing create(ByteBuffer buffer) {
+            initHeader(buffer);
+            return new LogRing(null, buffer, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        private static void initHeader(ByteBuffer buffer) {
+            buffer.putInt(0, FILE_MAGIC);
+            buffer.putInt(HEADER_VERSION_OFFSET, FILE_VERSION);
+            buffer.putLong(HEADER_POSITION_OFFSET, 0);
+        }
+
+        static LogRing open(File dir, long now) {
+            Calendar cal = Calendar.getInstance();
+            cal.setTimeInMillis(now);
+            // suffix with 0 or 1 based on the day of the year.
+            File logFile = new File(dir, FILE_NAME_PREFIX + (cal.get(Calendar.DAY_OF_YEAR) & 1));
+
+            // If the file was modified more that 36 hours ago, purge the file.
+            // We use instead of 24 to account for day-365 followed by day-1
+            boolean append = logFile.exists()
+                    && now < logFile.lastModified() + 36 * 60 * 60 * 1000;
+
+            cal.set(Calendar.HOUR_OF_DAY, 0);
+            cal.set(Calendar.MINUTE, 0);
+            cal.set(Calendar.SECOND, 0);
+            cal.set(Calendar.MILLISECOND, 0);
+            long dayStart = cal.getTimeInMillis();
+            cal.add(Calendar.DAY_OF_YEAR, 1);
+            long dayEnd = cal.getTimeInMillis();
+
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(logFile, "rw");
+                if (append && file.length() == LOG_FILE_SIZE) {
+                    file.seek(0);
+                    append = file.readInt() == FILE_MAGIC && file.readInt() == FILE_VERSION;
+                } else {
+                    append = false;
+                }
+                if (!append) {
+                    // Start from an empty, preallocated file.
+                    file.setLength(0);
+                    file.setLength(LOG_FILE_SIZE);
+                }
+                MappedByteBuffer buffer = file.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, LOG_FILE_SIZE);
+                if (!append) {
+                    initHeader(buffer);
+                }
+                logFile.setLastModified(now);
+                return new LogRing(logFile, buffer, dayStart, dayEnd);
+            } catch (IOException e) {
+                Log.e("FileLog", "Error opening log file", e);
+                return null;
+            } finally {
+                Utilities.closeSilently(file);
+            }
+        }
+
+        /**
+         * Takes a reference to the ring, unless it is already closed.
+         */
+        boolean acquire() {
+            while (true) {
+                int count = mRefCount.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (mRefCount.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Releases a reference to the ring, and closes it if it was the last one.
+         */
+        void release() {
+            if (mRefCount.decrementAndGet() == 0) {
+                close();
+                synchronized (this) {
+                    mClosed = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until the ring is closed, after its owner released it.
+         */
+        synchronized void awaitClosed() {
+            while (!mClosed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        boolean coversTime(long time) {
+            return time >= mDayStart && time < mDayEnd;
+        }
+
+        /**
+         * Writes a record to the buffer. Concurrent appends reserve disjoint space in the buffer,
+         * and only use absolute puts, so they do not need to be synchronized.
+         */
+        void append(long timestamp, byte[] tag, String message) {
+            int maxMessageLength = CAPACITY - RECORD_OVERHEAD - tag.length;
+            int messageLength = utf8Length(message);
+            if (messageLength > maxMessageLength) {
+                int end = maxMessageLength / 3;
+                if (Character.isHighSurrogate(message.charAt(end - 1))) {
+                    // Do not split a surrogate pair.
+                    end--;
+                }
+                message = message.substring(0, end);
+                messageLength = utf8Length(message);
+            }
+            int size = RECORD_OVERHEAD + tag.length + messageLength;
+            long position = reserve(size);
+            int index = HEADER_SIZE + (int) (position % CAPACITY);
+
+            ByteBuffer buffer = mBuffer;
+            // The marker is cleared first and written last, so that a record which is being
+            // written, over an older one, is not read back.
+            buffer.putInt(index, 0);
+            int offset = index + 4;
+            buffer.putLong(offset, position);
+            buffer.putInt(offset + 8, size);
+            buffer.putLong(offset + 12, timestamp);
+            offset += 20;
+            buffer.putShort(offset, (short) tag.length);
+            offset += 2;
+            for (byte b : tag) {
+                buffer.put(offset++, b);
+            }
+            buffer.putInt(offset, messageLength);
+            writeUtf8(buffer, offset + 4, message);
+            buffer.putInt(index, MARKER_RECORD);
+        }
+
+        /**
+         * Reserves space for a record of {@param size} bytes and returns its logical position.
+         */
+        @VisibleForTesting
+        long reserve(int size) {
+            long length = roundToSlot(size);
+            while (true) {
+                long position = mWritePosition.get();
+                long offset = position % CAPACITY;
+                long start = offset + length > CAPACITY ? position + CAPACITY - offset : position;
+                if (mWritePosition.compareAndSet(position, start + length)) {
+                    if (start != position) {
+                        int index = HEADER_SIZE + (int) offset;
+                        mBuffer.putInt(index, 0);
+                        mBuffer.putLong(index + 4, position);
+                        mBuffer.putInt(index + 12, (int) (start - position));
+                        mBuffer.putInt(index, MARKER_PADDING);
+                    }
+                    // Best effort, as a concurrent append can store a lower position. The
+                    // position is stored again when the file is closed.
+                    mBuffer.putLong(HEADER_POSITION_OFFSET, start + length);
+                    return start;
+                }
+            }
+        }
+
+        void force() {
+            mBuffer.putLong(HEADER_POSITION_OFFSET, mWritePosition.get());
+            if (mBuffer instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) mBuffer).force();
+            }
+        }
+
+        /**
+         * Stops using the file. The mapped pages are written back by the system, so this does not
+         * block on the disk.
+         */
+        private void close() {
+            mBuffer.putLong(HEADER_POSITION_OFFSET, mWritePosition.get());
+            if (mFile != null) {
+                mFile.setLastModified(System.currentTimeMillis());
+            }
+        }
+
+        /**
+         * Formats all the valid records of the buffer, from the oldest to the newest.
+         */
+        static void dump(PrintWriter out, ByteBuffer buffer) {
+            if (buffer.getInt(0) != FILE_MAGIC || buffer.getInt(HEADER_VERSION_OFFSET)
+                    != FILE_VERSION) {
+                return;
+            }
+            long end = buffer.getLong(HEADER_POSITION_OFFSET);
+            long position = Math.max(0, end - CAPACITY);
+            Date date = new Date();
+            while (position < end) {
+                int index = HEADER_SIZE + (int) (position % CAPACITY);
+                int marker = buffer.getInt(index);
+                int size = buffer.getInt(index + 12);
+                if (buffer.getLong(index + 4) != position || size <= 0
+                        || position + size > end
+                        || index - HEADER_SIZE + size > CAPACITY) {
+                    // Overwritten or incomplete record, look for the next one.
+                    position += SLOT_SIZE;
+                } else if (marker == MARKER_PADDING) {
+                    position += size;
+                } else if (marker == MARKER_RECORD) {
+                    int offset = index + 24;
+                    int tagLength = buffer.getShort(offset);
+                    String tag = readUtf8(buffer, offset + 2, tagLength);
+                    offset += 2 + tagLength;
+                    String message = readUtf8(buffer, offset + 4, buffer.getInt(offset));
+
+                    date.setTime(buffer.getLong(index + 16));
+                    out.println(String.format("%s %s %s", DATE_FORMAT.format(date), tag, message));
+                    position += roundToSlot(size);
+                } else {
+                    position += SLOT_SIZE;
+                }
+            }
+        }
+
+        private static long roundToSlot(long size) {
+            return (size + SLOT_SIZE - 1) / SLOT_SIZE * SLOT_SIZE;
+        }
+
+        private static String readUtf8(ByteBuffer buffer, int index, int length) {
+            byte[] bytes = new byte[Math.max(0, length)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(index + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private static int utf8Length(String s) {
+            int length = 0;
+            int count = s.length();
+            for (int i = 0; i < count; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    length++;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < count
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Encodes the string in place, using the same rules as {@link #utf8Length}.
+         */
+        private static void writeUtf8(ByteBuffer buffer, int index, String s) {
+            int count = s.length();
+            for (int i = 0; i < count; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer.put(index++, (byte) c);
+                } else if (c < 0x800) {
+                    buffer.put(index++, (byte) (0xC0 | (c >> 6)));
+                    buffer.put(index++, (byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < count
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer.put(index++, (byte) (0xF0 | (cp >> 18)));
+                    buffer.put(index++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    buffer.put(index++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    buffer.put(index++, (byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    buffer.put(index++, (byte) (0xE0 | (c >> 12)));
+                    buffer.put(index++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                    buffer.put(index++, (byte) (0x80 | (c & 0x3F)));
+                }
             }
         }
     }
@@ -21,7 +21,9 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.os.Process;
 import android.os.SystemClock;
+import android.os.UserHandle;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.View;
@@ -32,12 +34,16 @@ import com.android.launcher3.ItemInfo;
 import com.android.launcher3.R;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.config.FeatureFlags;
+import com.android.launcher3.logging.UserEventQueue.PendingEvent;
+import com.android.launcher3.model.LaunchFrequencyModel;
 import com.android.launcher3.userevent.nano.LauncherLogProto.Action;
 import com.android.launcher3.userevent.nano.LauncherLogProto.ContainerType;
 import com.android.launcher3.userevent.nano.LauncherLogProto.LauncherEvent;
 import com.android.launcher3.userevent.nano.LauncherLogProto.Target;
+import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.LogConfig;
 
+import java.io.PrintWriter;
 import java.util.Locale;
 import java.util.UUID;
 
@@ -51,6 +57,11 @@ import static com.android.launcher3.logging.LoggerUtils.newTouchAction;
 
 /**
  * Manages the creation of {@link LauncherEvent}.
+ *
+ * Events are created on the UI thread, as the containers fill them from their views, and are then
+ * recorded into a {@link UserEventQueue}. Hashing the launched intents and logging the events
+ * happens in batches on a background thread, see {@link #processUserEvent}.
+ *
  * To debug this class, execute following command before side loading a new apk.
  *
  * $ adb shell setprop log.tag.UserEvent VERBOSE
@@ -77,6 +88,7 @@ public class UserEventDispatcher {
         ued.mIsInLandscapeMode = isInLandscapeMode;
         ued.mIsInMultiWindowMode = isInMultiWindowMode;
         ued.mUuidStr = uuidStr;
+        ued.mLaunchFrequencyModel = LaunchFrequencyModel.getInstance(context);
         return ued;
     }
 
@@ -125,6 +137,23 @@ public class UserEventDispatcher {
     private boolean mIsInMultiWindowMode;
     private boolean mIsInLandscapeMode;
     private String mUuidStr;
+    private LaunchFrequencyModel mLaunchFrequencyModel;
+
+    private final UserEventQueue mQueue = new UserEventQueue(
+            new UserEventQueue.EventProcessor() {
+                @Override
+                public void processEvent(PendingEvent event) {
+                    if (event.target != null) {
+                        if (event.pendingIntent != null) {
+                            event.target.packageNameHash = (mUuidStr
+                                    + event.pendingIntent.getCreatorPackage()).hashCode();
+                        } else {
+                            fillIntentInfo(event.target, event.intentHash, event.component);
+                        }
+                    }
+                    processUserEvent(event.event);
+                }
+            });
 
     //                      APP_ICON    SHORTCUT    WIDGET
     // --------------------------------------------------------------
@@ -152,15 +181,30 @@ public class UserEventDispatcher {
         LauncherEvent event = newLauncherEvent(newTouchAction(Action.Touch.TAP),
                 newItemTarget(v), newTarget(Target.Type.CONTAINER));
 
-        if (fillInLogContainerData(event, v)) {
-            fillIntentInfo(event.srcTarget[0], intent);
+        Target intentTarget = fillInLogContainerData(event, v) ? event.srcTarget[0] : null;
+        dispatchUserEvent(event, intentTarget, intent, null);
+        recordAppLaunch(v, intent);
+    }
+
+    private void recordAppLaunch(View v, Intent intent) {
+        ComponentName cn = intent.getComponent();
+        if (mLaunchFrequencyModel == null || cn == null) {
+            return;
+        }
+        UserHandle user = v != null && v.getTag() instanceof ItemInfo
+                ? ((ItemInfo) v.getTag()).user : null;
+        if (user == null) {
+            user = Process.myUserHandle();
         }
-        dispatchUserEvent(event, intent);
+        mLaunchFrequencyModel.onAppLaunched(new ComponentKey(cn, user));
     }
 
     protected void fillIntentInfo(Target target, Intent intent) {
-        target.intentHash = intent.hashCode();
-        ComponentName cn = intent.getComponent();
+        fillIntentInfo(target, intent.hashCode(), intent.getComponent());
+    }
+
+    private void fillIntentInfo(Target target, int intentHash, @Nullable ComponentName cn) {
+        target.intentHash = intentHash;
         if (cn != null) {
             target.packageNameHash = (mUuidStr + cn.getPackageName()).hashCode();
             target.componentHash = (mUuidStr + cn.flattenToString()).hashCode();
@@ -170,10 +214,9 @@ public class UserEventDispatcher {
     public void logNotificationLaunch(View v, PendingIntent intent) {
         LauncherEvent event = newLauncherEvent(newTouchAction(Action.Touch.TAP),
                 newItemTarget(v), newTarget(Target.Type.CONTAINER));
-        if (fillInLogContainerData(event, v)) {
-            event.srcTarget[0].packageNameHash = (mUuidStr + intent.getCreatorPackage()).hashCode();
-        }
-        dispatchUserEvent(event, null);
+        // The creator package is resolved in the background, as it requires a binder call.
+        Target creatorTarget = fillInLogContainerData(event, v) ? event.srcTarget[0] : null;
+        dispatchUserEvent(event, creatorTarget, null, intent);
     }
 
     public void logActionCommand(int command, int containerType) {
@@ -303,11 +346,45 @@ public class UserEventDispatcher {
     }
 
     public void dispatchUserEvent(LauncherEvent ev, Intent intent) {
+        dispatchUserEvent(ev, null, null, null);
+    }
+
+    /**
+     * Records the event to be processed in the background. The event must not be modified after
+     * this call.
+     *
+     * @param target if not null, target to fill with the intent or the pending intent info.
+     */
+    private void dispatchUserEvent(LauncherEvent ev, @Nullable Target target,
+            @Nullable Intent intent, @Nullable PendingIntent pendingIntent) {
+        long now = SystemClock.uptimeMillis();
         ev.isInLandscapeMode = mIsInLandscapeMode;
         ev.isInMultiWindowMode = mIsInMultiWindowMode;
-        ev.elapsedContainerMillis = SystemClock.uptimeMillis() - mElapsedContainerMillis;
-        ev.elapsedSessionMillis = SystemClock.uptimeMillis() - mElapsedSessionMillis;
+        ev.elapsedContainerMillis = now - mElapsedContainerMillis;
+        ev.elapsedSessionMillis = now - mElapsedSessionMillis;
 
+        PendingEvent pending = mQueue.obtain();
+        if (pending == null) {
+            // The queue is full, the event is dropped and counted.
+            return;
+        }
+        pending.event = ev;
+        if (target != null && (intent != null || pendingIntent != null)) {
+            pending.target = target;
+            pending.pendingIntent = pendingIntent;
+            if (intent != null) {
+                pending.intentHash = intent.hashCode();
+                pending.component = intent.getComponent();
+            }
+        }
+        mQueue.publish(pending);
+    }
+
+    /**
+     * Called on a background thread, in the order the events were dispatched, once the event is
+     * complete.
+     */
+    protected void processUserEvent(LauncherEvent ev) {
         if (!IS_VERBOSE) {
             return;
         }
@@ -328,6 +405,10 @@ public class UserEventDispatcher {
         Log.d(TAG, log);
     }
 
+    public void dump(String prefix, PrintWriter writer) {
+        mQueue.dump(prefix, writer);
+    }
+
     private static String getTargetsStr(Target[] targets) {
         String result = "child:" + LoggerUtils.getTargetStr(targets[0]);
         for (int i = 1; i < targets.length; i++) {
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.logging;
+
+import android.app.PendingIntent;
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+
+import com.android.launcher3.userevent.nano.LauncherLogProto.LauncherEvent;
+import com.android.launcher3.userevent.nano.LauncherLogProto.Target;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded queue of user events, which are recorded on the UI thread and processed in batches on
+ * a background thread.
+ *
+ * Events are recorded into a fixed number of preallocated slots. Recording does not lock or
+ * allocate: a slot is reserved with a CAS on the write position, and handed over to the
+ * background thread through its sequence number. When all the slots are in use, the event is
+ * dropped and counted, so the memory used by pending events is bounded.
+ */
+class UserEventQueue implements Handler.Callback {
+
+    /**
+     * Processes the events on the background thread.
+     */
+    interface EventProcessor {
+        void processEvent(PendingEvent event);
+    }
+
+    private static final int CAPACITY = 64;
+    private static final int MASK = CAPACITY - 1;
+
+    // Delay before processing the recorded events, so that bursts are processed together.
+    private static final long BATCH_DELAY_MS = 500;
+
+    private static final int MSG_PROCESS = 1;
+
+    private static final Object LOCK = new Object();
+    private static HandlerThread sThread;
+
+    private final EventProcessor mProcessor;
+    private final Handler mHandler;
+
+    private final PendingEvent[] mSlots = new PendingEvent[CAPACITY];
+    // For each slot, the write position it can be recorded at, or that position + 1 once the
+    // event is recorded and can be processed.
+    private final AtomicLongArray mSequences = new AtomicLongArray(CAPACITY);
+    private final AtomicLong mWritePosition = new AtomicLong();
+    // Only accessed on the background thread.
+    private long mReadPosition;
+
+    private final AtomicBoolean mProcessScheduled = new AtomicBoolean();
+
+    // Back-pressure counters
+    private final AtomicInteger mRecordedCount = new AtomicInteger();
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+    private volatile int mBatchCount;
+    private volatile int mLargestBatch;
+
+    UserEventQueue(EventProcessor processor) {
+        mProcessor = processor;
+        mHandler = new Handler(getThread().getLooper(), this);
+        for (int i = 0; i < CAPACITY; i++) {
+            mSlots[i] = new PendingEvent();
+            mSequences.set(i, i);
+        }
+    }
+
+    private static HandlerThread getThread() {
+        synchronized (LOCK) {
+            if (sThread == null) {
+                sThread = new HandlerThread("user-events", Process.THREAD_PRIORITY_BACKGROUND);
+                sThread.start();
+            }
+            return sThread;
+        }
+    }
+
+    /**
+     * Reserves a slot for a new event, or returns null if the queue is full. The slot must be
+     * filled and passed to {@link #publish}.
+     */
+    PendingEvent obtain() {
+        while (true) {
+            long position = mWritePosition.get();
+            int index = (int) (position & MASK);
+            long sequence = mSequences.get(index);
+            if (sequence < position) {
+                // The slot still holds an event from the previous cycle.
+                mDroppedCount.incrementAndGet();
+                return null;
+            } else if (sequence == position
+                    && mWritePosition.compareAndSet(position, position + 1)) {
+                PendingEvent event = mSlots[index];
+                event.mPosition = position;
+                return event;
+            }
+        }
+    }
+
+    void publish(PendingEvent event) {
+        mSequences.set((int) (event.mPosition & MASK), event.mPosition + 1);
+        mRecordedCount.incrementAndGet();
+        if (mProcessScheduled.compareAndSet(false, true)) {
+            mHandler.sendEmptyMessageDelayed(MSG_PROCESS, BATCH_DELAY_MS);
+        }
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        if (msg.what == MSG_PROCESS) {
+            // Cleared before processing, so that any event recorded after this schedules a new
+            // batch.
+            mProcessScheduled.set(false);
+            int count = 0;
+            while (true) {
+                int index = (int) (mReadPosition & MASK);
+                if (mSequences.get(index) != mReadPosition + 1) {
+                    break;
+                }
+                PendingEvent event = mSlots[index];
+                mProcessor.processEvent(event);
+                event.clear();
+                mSequences.set(index, mReadPosition + CAPACITY);
+                mReadPosition++;
+                count++;
+            }
+            if (count > 0) {
+                mBatchCount++;
+                mLargestBatch = Math.max(mLargestBatch, count);
+            }
+        }
+        return true;
+    }
+
+    void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "UserEventQueue:");
+        writer.println(prefix + "\trecorded=" + mRecordedCount.get()
+                + " dropped=" + mDroppedCount.get()
+                + " batches=" + mBatchCount
+                + " largestBatch=" + mLargestBatch
+                + " capacity=" + CAPACITY);
+    }
+
+    /**
+     * An event recorded on the UI thread, with the data needed to complete it in the background.
+     */
+    static final class PendingEvent {
+        private long mPosition;
+
+        LauncherEvent event;
+        // Target to fill with the launched intent or notification, if any.
+        Target target;
+        int intentHash;
+        ComponentName component;
+        PendingIntent pendingIntent;
+
+        private void clear() {
+            event = null;
+            target = null;
+            intentHash = 0;
+            component = null;
+            pendingIntent = null;
+        }
+    }
+}
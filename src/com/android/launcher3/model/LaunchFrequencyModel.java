@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.model;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Handler;
+import android.os.UserHandle;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.launcher3.LauncherFiles;
+import com.android.launcher3.LauncherModel;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.ComponentKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Keeps an exponentially decaying launch count for every app launched from the launcher.
+ *
+ * Instead of decaying every entry periodically, each entry stores its score in the log domain
+ * relative to a fixed epoch: rank = ln(score) + lastLaunchTime / tau. Comparing two ranks is
+ * therefore equivalent to comparing their decayed scores at any common point in time, which
+ * keeps lookups during search a single map access.
+ *
+ * The model is persisted in a compact binary file and written lazily on the worker thread.
+ */
+public class LaunchFrequencyModel {
+
+    private static final String TAG = "LaunchFrequencyModel";
+
+    private static final int FILE_MAGIC = 0x4C465131; // "LFQ1"
+    private static final int FILE_VERSION = 1;
+
+    // Launch scores halve every week.
+    private static final long HALF_LIFE_MS = 7 * 24 * 60 * 60 * 1000L;
+    private static final double TAU_MS = HALF_LIFE_MS / Math.log(2);
+
+    // Entries whose decayed score falls below this value are dropped when saving.
+    private static final double MIN_SCORE = 0.05;
+    private static final int MAX_ENTRIES = 256;
+
+    private static final long SAVE_DELAY_MS = 5000;
+
+    /**
+     * Rank returned for components which have never been launched.
+     */
+    public static final double NO_RANK = Double.NEGATIVE_INFINITY;
+
+    private static LaunchFrequencyModel sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    public static LaunchFrequencyModel getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new LaunchFrequencyModel(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mWorkerHandler;
+    private final HashMap<ComponentKey, Entry> mEntries = new HashMap<>();
+
+    private final Runnable mSaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private LaunchFrequencyModel(Context context) {
+        mContext = context;
+        mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Records a launch of the given component at the current time.
+     */
+    public void onAppLaunched(ComponentKey key) {
+        long now = System.currentTimeMillis();
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(key, entry);
+            }
+            entry.addLaunch(now);
+        }
+        mWorkerHandler.removeCallbacks(mSaveRunnable);
+        mWorkerHandler.postDelayed(mSaveRunnable, SAVE_DELAY_MS);
+    }
+
+    /**
+     * Returns a time independent rank for the component, where a higher rank means the app has
+     * been launched more frequently and more recently. Returns {@link #NO_RANK} if the component
+     * has never been launched.
+     */
+    public double getRank(ComponentKey key) {
+        synchronized (mEntries) {
+            Entry entry = mEntries.get(key);
+            return entry == null ? NO_RANK : entry.rank;
+        }
+    }
+
+    /**
+     * Returns true if no launches have been recorded yet.
+     */
+    public boolean isEmpty() {
+        synchronized (mEntries) {
+            return mEntries.isEmpty();
+        }
+    }
+
+    /**
+     * Returns the rank after one more launch at {@param launchTime}.
+     */
+    public static double addLaunch(double rank, long launchTime) {
+        // score(now) = exp(rank - now / tau), add one launch and convert back.
+        double nowRank = launchTime / TAU_MS;
+        double score = rank == NO_RANK ? 0 : Math.exp(rank - nowRank);
+        return Math.log(score + 1) + nowRank;
+    }
+
+    /**
+     * Returns the rank of a decayed score of {@param score} at {@param time}.
+     */
+    public static double getRank(double score, long time) {
+        return score <= 0 ? NO_RANK : Math.log(score) + time / TAU_MS;
+    }
+
+    /**
+     * Returns the decayed score of {@param rank} at {@param time}.
+     */
+    public static double getScore(double rank, long time) {
+        return rank == NO_RANK ? 0 : Math.exp(rank - time / TAU_MS);
+    }
+
+    /**
+     * Returns the rank corresponding to the sum of the scores of both ranks.
+     */
+    public static double mergeRanks(double a, double b) {
+        if (a == NO_RANK) {
+            return b;
+        }
+        if (b == NO_RANK) {
+            return a;
+        }
+        // ln(e^a + e^b) computed without overflow.
+        double max = Math.max(a, b);
+        double min = Math.min(a, b);
+        return max + Math.log1p(Math.exp(min - max));
+    }
+
+    /**
+     * Returns the rank below which the decayed score at {@param now} is negligible.
+     */
+    public static double getMinRank(long now) {
+        return getRank(MIN_SCORE, now);
+    }
+
+    private AtomicFile getFile() {
+        return new AtomicFile(mContext.getFileStreamPath(LauncherFiles.APP_LAUNCH_STATS));
+    }
+
+    private void load() {
+        UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+        HashMap<ComponentKey, Entry> loaded = new HashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(getFile().openRead()));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "Ignoring launch stats with unknown format");
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ComponentName cn = ComponentName.unflattenFromString(in.readUTF());
+                UserHandle user = userManager.getUserForSerialNumber(in.readLong());
+                double rank = in.readDouble();
+                if (cn != null && user != null) {
+                    Entry entry = new Entry();
+                    entry.rank = rank;
+                    loaded.put(new ComponentKey(cn, user), entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No launches recorded yet.
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading launch stats", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+
+        synchronized (mEntries) {
+            // Launches recorded while loading are added to the persisted scores.
+            for (HashMap.Entry<ComponentKey, Entry> e : loaded.entrySet()) {
+                Entry current = mEntries.get(e.getKey());
+                if (current == null) {
+                    mEntries.put(e.getKey(), e.getValue());
+                } else {
+                    current.merge(e.getValue());
+                }
+            }
+        }
+    }
+
+    private void save() {
+        ArrayList<HashMap.Entry<ComponentKey, Double>> entries = new ArrayList<>();
+        double minRank = getMinRank(System.currentTimeMillis());
+        synchronized (mEntries) {
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().rank < minRank) {
+                    iterator.remove();
+                }
+            }
+            for (HashMap.Entry<ComponentKey, Entry> e : mEntries.entrySet()) {
+                entries.add(new HashMap.SimpleEntry<>(e.getKey(), e.getValue().rank));
+            }
+        }
+
+        if (entries.size() > MAX_ENTRIES) {
+            Collections.sort(entries, new Comparator<HashMap.Entry<ComponentKey, Double>>() {
+                @Override
+                public int compare(HashMap.Entry<ComponentKey, Double> a,
+                        HashMap.Entry<ComponentKey, Double> b) {
+                    return Double.compare(b.getValue(), a.getValue());
+                }
+            });
+            entries = new ArrayList<>(entries.subList(0, MAX_ENTRIES));
+        }
+
+        UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+        AtomicFile file = getFile();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(entries.size());
+            for (HashMap.Entry<ComponentKey, Double> e : entries) {
+                out.writeUTF(e.getKey().componentName.flattenToString());
+                out.writeLong(userManager.getSerialNumberForUser(e.getKey().user));
+                out.writeDouble(e.getValue());
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing launch stats", e);
+            if (fos != null) {
+                file.failWrite(fos);
+            }
+        }
+    }
+
+    private static class Entry {
+        double rank = NO_RANK;
+
+        void addLaunch(long now) {
+            rank = LaunchFrequencyModel.addLaunch(rank, now);
+        }
+
+        void merge(Entry other) {
+            rank = mergeRanks(rank, other.rank);
+        }
+    }
+}
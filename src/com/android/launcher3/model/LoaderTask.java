@@ -59,6 +59,7 @@ import com.android.launcher3.graphics.LauncherIcons;
 import com.android.launcher3.logging.FileLog;
 import com.android.launcher3.provider.ImportDataTask;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
+import com.android.launcher3.shortcuts.ShortcutIconCache;
 import com.android.launcher3.shortcuts.ShortcutInfoCompat;
 import com.android.launcher3.shortcuts.ShortcutKey;
 import com.android.launcher3.util.ComponentKey;
@@ -307,6 +308,12 @@ public class LoaderTask implements Runnable {
                     unlockedUsers.put(serialNo, userUnlocked);
                 }
 
+                // Look up the icons of all the pinned shortcuts at once, instead of rendering
+                // them again one by one.
+                final ShortcutIconCache shortcutIconCache = mApp.getShortcutIconCache();
+                final HashMap<ShortcutKey, Bitmap> cachedShortcutIcons =
+                        shortcutIconCache.getIcons(shortcutKeyToPinnedShortcuts.values());
+
                 ShortcutInfo info;
                 LauncherAppWidgetInfo appWidgetInfo;
                 Intent intent;
@@ -465,17 +472,25 @@ public class LoaderTask implements Runnable {
                                     }
                                     info = new ShortcutInfo(pinnedShortcut, context);
                                     final ShortcutInfo finalInfo = info;
-                                    Provider<Bitmap> fallbackIconProvider = new Provider<Bitmap>() {
+                                    ShortcutIconCache.FallbackIconProvider fallbackIconProvider =
+                                            new ShortcutIconCache.FallbackIconProvider(
+                                                    new Provider<Bitmap>() {
                                         @Override
                                         public Bitmap get() {
                                             // If the pinned deep shortcut is no longer published,
                                             // use the last saved icon instead of the default.
                                             return c.loadIcon(finalInfo);
                                         }
-                                    };
-                                    info.iconBitmap = LauncherIcons
-                                            .createShortcutIcon(pinnedShortcut, context,
-                                                    true /* badged */, fallbackIconProvider);
+                                    });
+                                    Bitmap icon = cachedShortcutIcons.get(key);
+                                    if (icon == null) {
+                                        icon = LauncherIcons.createShortcutIcon(pinnedShortcut,
+                                                context, true /* badged */, fallbackIconProvider);
+                                        if (!fallbackIconProvider.isUsed()) {
+                                            shortcutIconCache.put(pinnedShortcut, icon);
+                                        }
+                                    }
+                                    info.iconBitmap = icon;
                                     if (pmHelper.isAppSuspended(
                                             pinnedShortcut.getPackage(), info.user)) {
                                         info.isDisabled |= ShortcutInfo.FLAG_DISABLED_SUSPENDED;
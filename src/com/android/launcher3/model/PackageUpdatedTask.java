@@ -41,6 +41,7 @@ import com.android.launcher3.compat.LauncherAppsCompat;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.config.FeatureFlags;
 import com.android.launcher3.graphics.LauncherIcons;
+import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.util.FlagOp;
 import com.android.launcher3.util.ItemInfoMatcher;
 import com.android.launcher3.util.LongArrayMap;
@@ -90,6 +91,17 @@ public class PackageUpdatedTask extends BaseModelUpdateTask {
         FlagOp flagOp = FlagOp.NO_OP;
         final HashSet<String> packageSet = new HashSet<>(Arrays.asList(packages));
         ItemInfoMatcher matcher = ItemInfoMatcher.ofPackages(packageSet, mUser);
+        if (mOp == OP_ADD || mOp == OP_UPDATE || mOp == OP_REMOVE || mOp == OP_UNAVAILABLE) {
+            // The shortcuts of the package may have changed along with it.
+            DeepShortcutManager deepShortcutManager = DeepShortcutManager.getInstance(context);
+            for (int i = 0; i < N; i++) {
+                deepShortcutManager.onShortcutsChanged(packages[i], mUser);
+                if (mOp == OP_UPDATE || mOp == OP_REMOVE) {
+                    // Shortcut icons are badged with the app icon.
+                    app.getShortcutIconCache().remove(packages[i], mUser, null);
+                }
+            }
+        }
         switch (mOp) {
             case OP_ADD: {
                 for (int i = 0; i < N; i++) {
@@ -349,10 +361,14 @@ public class PackageUpdatedTask extends BaseModelUpdateTask {
         } else if (Utilities.ATLEAST_OREO && mOp == OP_ADD) {
             // Load widgets for the new package. Changes due to app updates are handled through
             // AppWidgetHost events, this is just to initialize the long-press options.
+            boolean widgetsChanged = false;
             for (int i = 0; i < N; i++) {
-                dataModel.widgetsModel.update(app, new PackageUserKey(packages[i], mUser));
+                widgetsChanged |= dataModel.widgetsModel.update(
+                        app, new PackageUserKey(packages[i], mUser));
+            }
+            if (widgetsChanged) {
+                bindUpdatedWidgets(dataModel);
             }
-            bindUpdatedWidgets(dataModel);
         }
     }
 }
@@ -16,6 +16,7 @@
 package com.android.launcher3.model;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.os.UserHandle;
 
 import com.android.launcher3.AllAppsList;
@@ -25,6 +26,7 @@ import com.android.launcher3.LauncherSettings;
 import com.android.launcher3.ShortcutInfo;
 import com.android.launcher3.graphics.LauncherIcons;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
+import com.android.launcher3.shortcuts.ShortcutIconCache;
 import com.android.launcher3.shortcuts.ShortcutInfoCompat;
 import com.android.launcher3.shortcuts.ShortcutKey;
 import com.android.launcher3.util.ItemInfoMatcher;
@@ -56,7 +58,8 @@ public class ShortcutsChangedTask extends BaseModelUpdateTask {
     public void execute(LauncherAppState app, BgDataModel dataModel, AllAppsList apps) {
         final Context context = app.getContext();
         DeepShortcutManager deepShortcutManager = DeepShortcutManager.getInstance(context);
-        deepShortcutManager.onShortcutsChanged(mShortcuts);
+        deepShortcutManager.onShortcutsChanged(mPackageName, mUser);
+        ShortcutIconCache shortcutIconCache = app.getShortcutIconCache();
 
         // Find ShortcutInfo's that have changed on the workspace.
         HashSet<ShortcutKey> removedKeys = new HashSet<>();
@@ -90,10 +93,22 @@ public class ShortcutsChangedTask extends BaseModelUpdateTask {
                     removedKeys.add(key);
                     continue;
                 }
+                Bitmap cachedIcon = shortcutIconCache.getIcon(fullDetails);
                 for (final ShortcutInfo shortcutInfo : shortcutInfos) {
                     shortcutInfo.updateFromDeepShortcutInfo(fullDetails, context);
-                    shortcutInfo.iconBitmap = LauncherIcons.createShortcutIcon(fullDetails, context,
-                            shortcutInfo.iconBitmap);
+                    Bitmap icon = cachedIcon;
+                    if (icon == null) {
+                        ShortcutIconCache.FallbackIconProvider fallbackIconProvider =
+                                new ShortcutIconCache.FallbackIconProvider(
+                                        shortcutInfo.iconBitmap);
+                        icon = LauncherIcons.createShortcutIcon(fullDetails, context,
+                                true /* badged */, fallbackIconProvider);
+                        if (!fallbackIconProvider.isUsed()) {
+                            shortcutIconCache.put(fullDetails, icon);
+                            cachedIcon = icon;
+                        }
+                    }
+                    shortcutInfo.iconBitmap = icon;
                     updatedShortcutInfos.add(shortcutInfo);
                 }
             }
@@ -103,6 +118,13 @@ public class ShortcutsChangedTask extends BaseModelUpdateTask {
         // the corresponding shortcuts weren't passed in onShortcutsChanged(). This
         // means they were cleared, so we remove and unpin them now.
         removedKeys.addAll(keyToShortcutInfo.keySet());
+        if (!removedKeys.isEmpty()) {
+            ArrayList<String> removedIds = new ArrayList<>(removedKeys.size());
+            for (ShortcutKey key : removedKeys) {
+                removedIds.add(key.getId());
+            }
+            shortcutIconCache.remove(mPackageName, mUser, removedIds);
+        }
 
         bindUpdatedShortcuts(updatedShortcutInfos, mUser);
         if (!keyToShortcutInfo.isEmpty()) {
@@ -16,6 +16,7 @@
 package com.android.launcher3.model;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.os.UserHandle;
 
 import com.android.launcher3.AllAppsList;
@@ -26,6 +27,7 @@ import com.android.launcher3.ShortcutInfo;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.graphics.LauncherIcons;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
+import com.android.launcher3.shortcuts.ShortcutIconCache;
 import com.android.launcher3.shortcuts.ShortcutInfoCompat;
 import com.android.launcher3.shortcuts.ShortcutKey;
 import com.android.launcher3.util.ComponentKey;
@@ -74,6 +76,10 @@ public class UserLockStateChangedTask extends BaseModelUpdateTask {
         ArrayList<ShortcutInfo> updatedShortcutInfos = new ArrayList<>();
         HashSet<ShortcutKey> removedKeys = new HashSet<>();
 
+        ShortcutIconCache shortcutIconCache = app.getShortcutIconCache();
+        HashMap<ShortcutKey, Bitmap> cachedIcons = isUserUnlocked
+                ? shortcutIconCache.getIcons(pinnedShortcuts.values())
+                : new HashMap<ShortcutKey, Bitmap>();
         for (ItemInfo itemInfo : dataModel.itemsIdMap) {
             if (itemInfo.itemType == LauncherSettings.Favorites.ITEM_TYPE_DEEP_SHORTCUT
                     && mUser.equals(itemInfo.user)) {
@@ -89,8 +95,18 @@ public class UserLockStateChangedTask extends BaseModelUpdateTask {
                     }
                     si.isDisabled &= ~ShortcutInfo.FLAG_DISABLED_LOCKED_USER;
                     si.updateFromDeepShortcutInfo(shortcut, context);
-                    si.iconBitmap = LauncherIcons.createShortcutIcon(shortcut, context,
-                            si.iconBitmap);
+                    Bitmap icon = cachedIcons.get(key);
+                    if (icon == null) {
+                        ShortcutIconCache.FallbackIconProvider fallbackIconProvider =
+                                new ShortcutIconCache.FallbackIconProvider(si.iconBitmap);
+                        icon = LauncherIcons.createShortcutIcon(shortcut, context,
+                                true /* badged */, fallbackIconProvider);
+                        if (!fallbackIconProvider.isUsed()) {
+                            shortcutIconCache.put(shortcut, icon);
+                            cachedIcons.put(key, icon);
+                        }
+                    }
+                    si.iconBitmap = icon;
                 } else {
                     si.isDisabled |= ShortcutInfo.FLAG_DISABLED_LOCKED_USER;
                 }
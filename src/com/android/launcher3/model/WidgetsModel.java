@@ -7,6 +7,7 @@ import android.content.pm.PackageManager;
 import android.os.Process;
 import android.os.UserHandle;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.launcher3.AppFilter;
@@ -24,8 +25,10 @@ import com.android.launcher3.util.PackageUserKey;
 import com.android.launcher3.util.Preconditions;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
  * Widgets data model that is used by the adapters of the widget views and controllers.
@@ -37,24 +40,37 @@ public class WidgetsModel {
     private static final String TAG = "WidgetsModel";
     private static final boolean DEBUG = false;
 
-    /* Map of widgets and shortcuts that are tracked per package. */
+    /*
+     * Map of widgets and shortcuts that are tracked per package. The lists are sorted and are
+     * never modified once added, a package update replaces the list instead.
+     */
     private final MultiHashMap<PackageItemInfo, WidgetItem> mWidgetsList = new MultiHashMap<>();
+    /* Keys of {@link #mWidgetsList} indexed by package name. */
+    private final HashMap<String, PackageItemInfo> mPackageItemInfos = new HashMap<>();
 
     private AppFilter mAppFilter;
 
+    /**
+     * Returns a copy of the widgets map. The lists are shared with the model, and a row whose
+     * key and list are the same instances as in a previous copy has not changed since.
+     */
     public synchronized MultiHashMap<PackageItemInfo, WidgetItem> getWidgetsMap() {
-        return mWidgetsList.clone();
+        MultiHashMap<PackageItemInfo, WidgetItem> map = new MultiHashMap<>(mWidgetsList.size());
+        map.putAll(mWidgetsList);
+        return map;
     }
 
     /**
      * @param packageUser If null, all widgets and shortcuts are updated and returned, otherwise
      *                    only widgets and shortcuts associated with the package/user are.
+     * @return true if the widgets or shortcuts changed.
      */
-    public void update(LauncherAppState app, @Nullable PackageUserKey packageUser) {
+    public boolean update(LauncherAppState app, @Nullable PackageUserKey packageUser) {
         Preconditions.assertWorkerThread();
 
         Context context = app.getContext();
         final ArrayList<WidgetItem> widgetsAndShortcuts = new ArrayList<>();
+        boolean changed = false;
         try {
             PackageManager pm = context.getPackageManager();
             InvariantDeviceProfile idp = app.getInvariantDeviceProfile();
@@ -71,7 +87,7 @@ public class WidgetsModel {
                     .getCustomShortcutActivityList(packageUser)) {
                 widgetsAndShortcuts.add(new WidgetItem(info));
             }
-            setWidgetsAndShortcuts(widgetsAndShortcuts, app, packageUser);
+            changed = setWidgetsAndShortcuts(widgetsAndShortcuts, app, packageUser);
         } catch (Exception e) {
             if (!FeatureFlags.IS_DOGFOOD_BUILD && Utilities.isBinderSizeError(e)) {
                 // the returned value may be incomplete and will not be refreshed until the next
@@ -83,51 +99,32 @@ public class WidgetsModel {
             }
         }
 
+        // Previews can be outdated even if the widgets did not change, eg. after an app update.
         app.getWidgetCache().removeObsoletePreviews(widgetsAndShortcuts, packageUser);
+        return changed;
     }
 
-    private synchronized void setWidgetsAndShortcuts(ArrayList<WidgetItem> rawWidgetsShortcuts,
+    private synchronized boolean setWidgetsAndShortcuts(ArrayList<WidgetItem> rawWidgetsShortcuts,
             LauncherAppState app, @Nullable PackageUserKey packageUser) {
         if (DEBUG) {
             Log.d(TAG, "addWidgetsAndShortcuts, widgetsShortcuts#=" + rawWidgetsShortcuts.size());
         }
 
-        // Temporary list for {@link PackageItemInfos} to avoid having to go through
-        // {@link mPackageItemInfos} to locate the key to be used for {@link #mWidgetsList}
-        HashMap<String, PackageItemInfo> tmpPackageItemInfos = new HashMap<>();
-
-        // clear the lists.
-        if (packageUser == null) {
-            mWidgetsList.clear();
-        } else {
-            // Only clear the widgets for the given package/user.
-            PackageItemInfo packageItem = null;
-            for (PackageItemInfo item : mWidgetsList.keySet()) {
-                if (item.packageName.equals(packageUser.mPackageName)) {
-                    packageItem = item;
-                    break;
-                }
-            }
+        // New widgets and shortcuts, grouped by package
+        MultiHashMap<String, WidgetItem> newItems = new MultiHashMap<>();
+        if (packageUser != null) {
+            // Only the widgets of the given package/user are updated, keep the other users.
+            PackageItemInfo packageItem = mPackageItemInfos.get(packageUser.mPackageName);
             if (packageItem != null) {
-                // We want to preserve the user that was on the packageItem previously,
-                // so add it to tmpPackageItemInfos here to avoid creating a new entry.
-                tmpPackageItemInfos.put(packageItem.packageName, packageItem);
-
-                Iterator<WidgetItem> widgetItemIterator = mWidgetsList.get(packageItem).iterator();
-                while (widgetItemIterator.hasNext()) {
-                    WidgetItem nextWidget = widgetItemIterator.next();
-                    if (nextWidget.componentName.getPackageName().equals(packageUser.mPackageName)
-                            && nextWidget.user.equals(packageUser.mUser)) {
-                        widgetItemIterator.remove();
+                for (WidgetItem item : mWidgetsList.get(packageItem)) {
+                    if (!item.user.equals(packageUser.mUser)) {
+                        newItems.addToList(packageUser.mPackageName, item);
                     }
                 }
             }
         }
 
         InvariantDeviceProfile idp = app.getInvariantDeviceProfile();
-        UserHandle myUser = Process.myUserHandle();
-
-        // add and update.
         for (WidgetItem item : rawWidgetsShortcuts) {
             if (item.widgetInfo != null) {
                 // Ensure that all widgets we show can be added on a workspace of this size
@@ -153,24 +150,97 @@ public class WidgetsModel {
                 }
                 continue;
             }
+            newItems.addToList(item.componentName.getPackageName(), item);
+        }
 
-            String packageName = item.componentName.getPackageName();
-            PackageItemInfo pInfo = tmpPackageItemInfos.get(packageName);
-            if (pInfo == null) {
-                pInfo = new PackageItemInfo(packageName);
-                pInfo.user = item.user;
-                tmpPackageItemInfos.put(packageName,  pInfo);
-            } else if (!myUser.equals(pInfo.user)) {
-                // Keep updating the user, until we get the primary user.
-                pInfo.user = item.user;
+        boolean changed = false;
+        if (packageUser == null) {
+            // Remove the packages which no longer have any widgets or shortcuts.
+            Iterator<PackageItemInfo> iterator = mPackageItemInfos.values().iterator();
+            while (iterator.hasNext()) {
+                PackageItemInfo packageItem = iterator.next();
+                if (!newItems.containsKey(packageItem.packageName)) {
+                    iterator.remove();
+                    mWidgetsList.remove(packageItem);
+                    changed = true;
+                }
+            }
+        } else if (!newItems.containsKey(packageUser.mPackageName)) {
+            PackageItemInfo packageItem = mPackageItemInfos.remove(packageUser.mPackageName);
+            if (packageItem != null) {
+                mWidgetsList.remove(packageItem);
+                changed = true;
             }
-            mWidgetsList.addToList(pInfo, item);
         }
 
-        // Update each package entry
         IconCache iconCache = app.getIconCache();
-        for (PackageItemInfo p : tmpPackageItemInfos.values()) {
-            iconCache.getTitleAndIconForApp(p, true /* userLowResIcon */);
+        for (Map.Entry<String, ArrayList<WidgetItem>> entry : newItems.entrySet()) {
+            changed |= updatePackage(entry.getKey(), entry.getValue(), iconCache);
+        }
+        return changed;
+    }
+
+    /**
+     * Replaces the widgets and shortcuts of a package, and its title and icon, if they changed.
+     *
+     * @return true if the package was added or changed.
+     */
+    private boolean updatePackage(String packageName, ArrayList<WidgetItem> items,
+            IconCache iconCache) {
+        Collections.sort(items);
+        PackageItemInfo oldPackageItem = mPackageItemInfos.get(packageName);
+        ArrayList<WidgetItem> oldItems =
+                oldPackageItem == null ? null : mWidgetsList.get(oldPackageItem);
+
+        // Use a new package item, so that the change is visible to the consumers of the previous
+        // widgets map.
+        PackageItemInfo packageItem = new PackageItemInfo(packageName);
+        packageItem.user = items.get(0).user;
+        UserHandle myUser = Process.myUserHandle();
+        for (WidgetItem item : items) {
+            // Prefer the primary user.
+            if (myUser.equals(item.user)) {
+                packageItem.user = item.user;
+                break;
+            }
+        }
+        iconCache.getTitleAndIconForApp(packageItem, true /* userLowResIcon */);
+
+        if (isSameWidgets(oldItems, items)) {
+            if (packageItem.user.equals(oldPackageItem.user)
+                    && TextUtils.equals(packageItem.title, oldPackageItem.title)
+                    && packageItem.iconBitmap == oldPackageItem.iconBitmap) {
+                return false;
+            }
+            // Only the label or icon of the package changed, keep the published widgets.
+            items = oldItems;
+        }
+
+        if (oldPackageItem != null) {
+            mWidgetsList.remove(oldPackageItem);
+        }
+        mPackageItemInfos.put(packageName, packageItem);
+        mWidgetsList.put(packageItem, items);
+        return true;
+    }
+
+    /**
+     * Returns true if both sorted lists contain the same widgets and shortcuts, with the same
+     * label and size.
+     */
+    private static boolean isSameWidgets(ArrayList<WidgetItem> oldItems,
+            ArrayList<WidgetItem> newItems) {
+        if (oldItems == null || oldItems.size() != newItems.size()) {
+            return false;
+        }
+        for (int i = 0; i < oldItems.size(); i++) {
+            WidgetItem oldItem = oldItems.get(i);
+            WidgetItem newItem = newItems.get(i);
+            if (!oldItem.equals(newItem) || !TextUtils.equals(oldItem.label, newItem.label)
+                    || oldItem.spanX != newItem.spanX || oldItem.spanY != newItem.spanY) {
+                return false;
+            }
         }
+        return true;
     }
-}
\ No newline at end of file
+}
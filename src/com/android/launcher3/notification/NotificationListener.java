@@ -29,7 +29,6 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
-import android.util.Pair;
 
 import com.android.launcher3.LauncherModel;
 import com.android.launcher3.Utilities;
@@ -39,6 +38,7 @@ import com.android.launcher3.util.SettingsObserver;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -58,6 +58,13 @@ public class NotificationListener extends NotificationListenerService {
     private static final int MSG_NOTIFICATION_POSTED = 1;
     private static final int MSG_NOTIFICATION_REMOVED = 2;
     private static final int MSG_NOTIFICATION_FULL_REFRESH = 3;
+    private static final int MSG_NOTIFICATION_BATCH = 4;
+
+    /**
+     * Posted and removed notifications are collected on the worker thread and delivered to the
+     * listener at most once per frame, so that a burst of updates results in a single badge pass.
+     */
+    private static final long BATCH_DELAY_MS = 16;
 
     private static NotificationListener sNotificationListenerInstance = null;
     private static NotificationsChangedListener sNotificationsChangedListener;
@@ -68,6 +75,13 @@ public class NotificationListener extends NotificationListenerService {
     private final Handler mUiHandler;
     private final Ranking mTempRanking = new Ranking();
 
+    /**
+     * Pending changes keyed by notification key, in the order they were first seen. Only the
+     * latest change of each notification is kept. Only accessed on the worker thread.
+     */
+    private final LinkedHashMap<String, NotificationChange> mPendingChanges =
+            new LinkedHashMap<>();
+
     private SettingsObserver mNotificationBadgingObserver;
 
     private final Handler.Callback mWorkerCallback = new Handler.Callback() {
@@ -75,12 +89,21 @@ public class NotificationListener extends NotificationListenerService {
         public boolean handleMessage(Message message) {
             switch (message.what) {
                 case MSG_NOTIFICATION_POSTED:
-                    mUiHandler.obtainMessage(message.what, message.obj).sendToTarget();
-                    break;
                 case MSG_NOTIFICATION_REMOVED:
-                    mUiHandler.obtainMessage(message.what, message.obj).sendToTarget();
+                    addPendingChange((NotificationChange) message.obj);
+                    break;
+                case MSG_NOTIFICATION_BATCH:
+                    if (!mPendingChanges.isEmpty()) {
+                        List<NotificationChange> changes =
+                                new ArrayList<>(mPendingChanges.values());
+                        mPendingChanges.clear();
+                        mUiHandler.obtainMessage(message.what, changes).sendToTarget();
+                    }
                     break;
                 case MSG_NOTIFICATION_FULL_REFRESH:
+                    // The active notifications already reflect any pending change.
+                    mPendingChanges.clear();
+                    mWorkerHandler.removeMessages(MSG_NOTIFICATION_BATCH);
                     List<StatusBarNotification> activeNotifications;
                     if (sIsConnected) {
                         try {
@@ -105,18 +128,10 @@ public class NotificationListener extends NotificationListenerService {
         @Override
         public boolean handleMessage(Message message) {
             switch (message.what) {
-                case MSG_NOTIFICATION_POSTED:
+                case MSG_NOTIFICATION_BATCH:
                     if (sNotificationsChangedListener != null) {
-                        NotificationPostedMsg msg = (NotificationPostedMsg) message.obj;
-                        sNotificationsChangedListener.onNotificationPosted(msg.packageUserKey,
-                                msg.notificationKey, msg.shouldBeFilteredOut);
-                    }
-                    break;
-                case MSG_NOTIFICATION_REMOVED:
-                    if (sNotificationsChangedListener != null) {
-                        Pair<PackageUserKey, NotificationKeyData> pair
-                                = (Pair<PackageUserKey, NotificationKeyData>) message.obj;
-                        sNotificationsChangedListener.onNotificationRemoved(pair.first, pair.second);
+                        sNotificationsChangedListener.onNotificationsChanged(
+                                (List<NotificationChange>) message.obj);
                     }
                     break;
                 case MSG_NOTIFICATION_FULL_REFRESH:
@@ -201,35 +216,55 @@ public class NotificationListener extends NotificationListenerService {
     @Override
     public void onNotificationPosted(final StatusBarNotification sbn) {
         super.onNotificationPosted(sbn);
-        mWorkerHandler.obtainMessage(MSG_NOTIFICATION_POSTED, new NotificationPostedMsg(sbn))
-                .sendToTarget();
+        mWorkerHandler.obtainMessage(MSG_NOTIFICATION_POSTED,
+                new NotificationChange(sbn, false, shouldBeFilteredOut(sbn))).sendToTarget();
+    }
+
+    @Override
+    public void onNotificationRemoved(final StatusBarNotification sbn) {
+        super.onNotificationRemoved(sbn);
+        mWorkerHandler.obtainMessage(MSG_NOTIFICATION_REMOVED,
+                new NotificationChange(sbn, true, false)).sendToTarget();
     }
 
     /**
-     * An object containing data to send to MSG_NOTIFICATION_POSTED targets.
+     * Merges the change into the pending batch, and schedules the batch to be delivered if it
+     * isn't already. Must be called on the worker thread.
      */
-    private class NotificationPostedMsg {
-        final PackageUserKey packageUserKey;
-        final NotificationKeyData notificationKey;
-        final boolean shouldBeFilteredOut;
+    private void addPendingChange(NotificationChange change) {
+        String key = change.notificationKey.notificationKey;
+        NotificationChange prevChange = mPendingChanges.get(key);
+        if (prevChange != null) {
+            change.eventCount += prevChange.eventCount;
+        }
+        mPendingChanges.put(key, change);
+        if (!mWorkerHandler.hasMessages(MSG_NOTIFICATION_BATCH)) {
+            mWorkerHandler.sendEmptyMessageDelayed(MSG_NOTIFICATION_BATCH, BATCH_DELAY_MS);
+        }
+    }
 
-        NotificationPostedMsg(StatusBarNotification sbn) {
+    /**
+     * The latest state of a notification which was posted or removed since the last batch.
+     */
+    public static class NotificationChange {
+        public final PackageUserKey packageUserKey;
+        public final NotificationKeyData notificationKey;
+        /** Whether the notification was removed, as opposed to posted or updated. */
+        public final boolean removed;
+        /** Whether a posted notification should not be badged. */
+        public final boolean shouldBeFilteredOut;
+        /** The number of posted and removed events which were coalesced into this change. */
+        public int eventCount = 1;
+
+        NotificationChange(StatusBarNotification sbn, boolean removed,
+                boolean shouldBeFilteredOut) {
             packageUserKey = PackageUserKey.fromNotification(sbn);
             notificationKey = NotificationKeyData.fromNotification(sbn);
-            shouldBeFilteredOut = shouldBeFilteredOut(sbn);
+            this.removed = removed;
+            this.shouldBeFilteredOut = shouldBeFilteredOut;
         }
     }
 
-    @Override
-    public void onNotificationRemoved(final StatusBarNotification sbn) {
-        super.onNotificationRemoved(sbn);
-        Pair<PackageUserKey, NotificationKeyData> packageUserKeyAndNotificationKey
-                = new Pair<>(PackageUserKey.fromNotification(sbn),
-                        NotificationKeyData.fromNotification(sbn));
-        mWorkerHandler.obtainMessage(MSG_NOTIFICATION_REMOVED, packageUserKeyAndNotificationKey)
-                .sendToTarget();
-    }
-
     /** This makes a potentially expensive binder call and should be run on a background thread. */
     public List<StatusBarNotification> getNotificationsForKeys(List<NotificationKeyData> keys) {
         StatusBarNotification[] notifications = NotificationListener.this
@@ -286,10 +321,11 @@ public class NotificationListener extends NotificationListenerService {
     }
 
     public interface NotificationsChangedListener {
-        void onNotificationPosted(PackageUserKey postedPackageUserKey,
-                NotificationKeyData notificationKey, boolean shouldBeFilteredOut);
-        void onNotificationRemoved(PackageUserKey removedPackageUserKey,
-                NotificationKeyData notificationKey);
+        /**
+         * Called with the notifications which were posted or removed since the last call. Each
+         * notification appears at most once.
+         */
+        void onNotificationsChanged(List<NotificationChange> changes);
         void onNotificationFullRefresh(List<StatusBarNotification> activeNotifications);
     }
 }
@@ -23,19 +23,21 @@ import android.util.Log;
 
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.Launcher;
-import com.android.launcher3.Utilities;
 import com.android.launcher3.badge.BadgeInfo;
 import com.android.launcher3.notification.NotificationInfo;
 import com.android.launcher3.notification.NotificationKeyData;
 import com.android.launcher3.notification.NotificationListener;
+import com.android.launcher3.notification.NotificationListener.NotificationChange;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.MultiHashMap;
 import com.android.launcher3.util.PackageUserKey;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -62,46 +64,68 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
     /** Maps packages to their BadgeInfo's . */
     private Map<PackageUserKey, BadgeInfo> mPackageUserToBadgeInfos = new HashMap<>();
 
+    // Notification ingestion stats, see dump()
+    private int mNotificationEventCount;
+    private int mNotificationBatchCount;
+    private int mBadgeUpdateCount;
+
     public PopupDataProvider(Launcher launcher) {
         mLauncher = launcher;
     }
 
     @Override
-    public void onNotificationPosted(PackageUserKey postedPackageUserKey,
-            NotificationKeyData notificationKey, boolean shouldBeFilteredOut) {
-        BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(postedPackageUserKey);
-        boolean badgeShouldBeRefreshed;
-        if (badgeInfo == null) {
-            if (!shouldBeFilteredOut) {
-                BadgeInfo newBadgeInfo = new BadgeInfo(postedPackageUserKey);
-                newBadgeInfo.addOrUpdateNotificationKey(notificationKey);
-                mPackageUserToBadgeInfos.put(postedPackageUserKey, newBadgeInfo);
-                badgeShouldBeRefreshed = true;
+    public void onNotificationsChanged(List<NotificationChange> changes) {
+        mNotificationBatchCount++;
+        // The packages whose badges should be refreshed even if they don't show an icon.
+        HashSet<PackageUserKey> changedBadges = new HashSet<>();
+        // All the packages which had a notification change, checked for a new badge icon.
+        HashSet<PackageUserKey> updatedBadges = new HashSet<>();
+        boolean notificationsRemoved = false;
+        for (NotificationChange change : changes) {
+            mNotificationEventCount += change.eventCount;
+            PackageUserKey packageUserKey = change.packageUserKey;
+            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(packageUserKey);
+            boolean badgeChanged;
+            if (change.removed || change.shouldBeFilteredOut) {
+                badgeChanged = badgeInfo != null
+                        && badgeInfo.removeNotificationKey(change.notificationKey);
+                notificationsRemoved |= badgeChanged && change.removed;
+            } else if (badgeInfo == null) {
+                badgeInfo = new BadgeInfo(packageUserKey);
+                mPackageUserToBadgeInfos.put(packageUserKey, badgeInfo);
+                badgeChanged = badgeInfo.addOrUpdateNotificationKey(change.notificationKey);
             } else {
-                badgeShouldBeRefreshed = false;
+                badgeChanged = badgeInfo.addOrUpdateNotificationKey(change.notificationKey);
             }
-        } else {
-            badgeShouldBeRefreshed = shouldBeFilteredOut
-                    ? badgeInfo.removeNotificationKey(notificationKey)
-                    : badgeInfo.addOrUpdateNotificationKey(notificationKey);
-            if (badgeInfo.getNotificationKeys().size() == 0) {
-                mPackageUserToBadgeInfos.remove(postedPackageUserKey);
+            if (badgeInfo != null && badgeInfo.getNotificationKeys().size() == 0) {
+                mPackageUserToBadgeInfos.remove(packageUserKey);
+            }
+
+            if (badgeChanged) {
+                changedBadges.add(packageUserKey);
+                updatedBadges.add(packageUserKey);
+            } else if (!change.removed) {
+                // An updated notification can still change the icon shown in the badge.
+                updatedBadges.add(packageUserKey);
             }
         }
-        updateLauncherIconBadges(Utilities.singletonHashSet(postedPackageUserKey),
-                badgeShouldBeRefreshed);
-    }
 
-    @Override
-    public void onNotificationRemoved(PackageUserKey removedPackageUserKey,
-            NotificationKeyData notificationKey) {
-        BadgeInfo oldBadgeInfo = mPackageUserToBadgeInfos.get(removedPackageUserKey);
-        if (oldBadgeInfo != null && oldBadgeInfo.removeNotificationKey(notificationKey)) {
-            if (oldBadgeInfo.getNotificationKeys().size() == 0) {
-                mPackageUserToBadgeInfos.remove(removedPackageUserKey);
+        // Refresh each icon once, after all the changes of this batch have been applied.
+        Iterator<PackageUserKey> iterator = updatedBadges.iterator();
+        while (iterator.hasNext()) {
+            PackageUserKey packageUserKey = iterator.next();
+            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(packageUserKey);
+            boolean iconChanged = badgeInfo != null && updateBadgeIcon(badgeInfo);
+            if (!iconChanged && !changedBadges.contains(packageUserKey)) {
+                iterator.remove();
             }
-            updateLauncherIconBadges(Utilities.singletonHashSet(removedPackageUserKey));
+        }
+        if (!updatedBadges.isEmpty()) {
+            mBadgeUpdateCount += updatedBadges.size();
+            mLauncher.updateIconBadges(updatedBadges);
+        }
 
+        if (notificationsRemoved) {
             PopupContainerWithArrow openContainer = PopupContainerWithArrow.getOpen(mLauncher);
             if (openContainer != null) {
                 openContainer.trimNotifications(mPackageUserToBadgeInfos);
@@ -149,30 +173,20 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
         }
     }
 
-    private void updateLauncherIconBadges(Set<PackageUserKey> updatedBadges) {
-        updateLauncherIconBadges(updatedBadges, true);
-    }
-
     /**
      * Updates the icons on launcher (workspace, folders, all apps) to refresh their badges.
      * @param updatedBadges The packages whose badges should be refreshed (either a notification was
      *                      added or removed, or the badge should show the notification icon).
-     * @param shouldRefresh An optional parameter that will allow us to only refresh badges that
-     *                      have actually changed. If a notification updated its content but not
-     *                      its count or icon, then the badge doesn't change.
      */
-    private void updateLauncherIconBadges(Set<PackageUserKey> updatedBadges,
-            boolean shouldRefresh) {
-        Iterator<PackageUserKey> iterator = updatedBadges.iterator();
-        while (iterator.hasNext()) {
-            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(iterator.next());
-            if (badgeInfo != null && !updateBadgeIcon(badgeInfo) && !shouldRefresh) {
-                // The notification icon isn't used, and the badge hasn't changed
-                // so there is no update to be made.
-                iterator.remove();
+    private void updateLauncherIconBadges(Set<PackageUserKey> updatedBadges) {
+        for (PackageUserKey packageUserKey : updatedBadges) {
+            BadgeInfo badgeInfo = mPackageUserToBadgeInfos.get(packageUserKey);
+            if (badgeInfo != null) {
+                updateBadgeIcon(badgeInfo);
             }
         }
         if (!updatedBadges.isEmpty()) {
+            mBadgeUpdateCount += updatedBadges.size();
             mLauncher.updateIconBadges(updatedBadges);
         }
     }
@@ -265,4 +279,12 @@ public class PopupDataProvider implements NotificationListener.NotificationsChan
         }
         notificationListener.cancelNotification(notificationKey);
     }
+
+    public void dump(String prefix, PrintWriter writer) {
+        writer.println(prefix + "PopupDataProvider:");
+        writer.println(prefix + "\tnotificationEvents=" + mNotificationEventCount
+                + " batches=" + mNotificationBatchCount
+                + " badgeUpdates=" + mBadgeUpdateCount
+                + " badges=" + mPackageUserToBadgeInfos.size());
+    }
 }
@@ -18,6 +18,7 @@ package com.android.launcher3.popup;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.os.Handler;
 import android.os.UserHandle;
 import android.service.notification.StatusBarNotification;
@@ -29,6 +30,7 @@ import android.widget.ImageView;
 
 import com.android.launcher3.ItemInfo;
 import com.android.launcher3.Launcher;
+import com.android.launcher3.LauncherModel;
 import com.android.launcher3.R;
 import com.android.launcher3.ShortcutInfo;
 import com.android.launcher3.graphics.LauncherIcons;
@@ -37,12 +39,17 @@ import com.android.launcher3.notification.NotificationItemView;
 import com.android.launcher3.notification.NotificationKeyData;
 import com.android.launcher3.shortcuts.DeepShortcutManager;
 import com.android.launcher3.shortcuts.DeepShortcutView;
+import com.android.launcher3.shortcuts.ShortcutCache;
+import com.android.launcher3.shortcuts.ShortcutIconCache.FallbackIconProvider;
 import com.android.launcher3.shortcuts.ShortcutInfoCompat;
+import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.PackageUserKey;
+import com.android.launcher3.util.Preconditions;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -198,17 +205,16 @@ public class PopupPopulator {
                     uiHandler.post(new UpdateNotificationChild(notificationView, infos));
                 }
 
-                List<ShortcutInfoCompat> shortcuts = DeepShortcutManager.getInstance(launcher)
-                        .queryForShortcutsContainer(activity, shortcutIds, user);
+                ShortcutCache.Entry entry = loadShortcuts(launcher, activity, user, shortcutIds);
                 String shortcutIdToDeDupe = notificationKeys.isEmpty() ? null
                         : notificationKeys.get(0).shortcutId;
-                shortcuts = PopupPopulator.sortAndFilterShortcuts(shortcuts, shortcutIdToDeDupe);
+                List<ShortcutInfoCompat> shortcuts = PopupPopulator.sortAndFilterShortcuts(
+                        new ArrayList<>(entry.shortcuts), shortcutIdToDeDupe);
                 for (int i = 0; i < shortcuts.size() && i < shortcutViews.size(); i++) {
                     final ShortcutInfoCompat shortcut = shortcuts.get(i);
                     ShortcutInfo si = new ShortcutInfo(shortcut, launcher);
                     // Use unbadged icon for the menu.
-                    si.iconBitmap = LauncherIcons.createShortcutIcon(
-                            shortcut, launcher, false /* badged */);
+                    si.iconBitmap = entry.icons.get(shortcut.getId());
                     si.rank = i;
                     uiHandler.post(new UpdateShortcutChild(container, shortcutViews.get(i),
                             si, shortcut));
@@ -232,6 +238,78 @@ public class PopupPopulator {
         };
     }
 
+    /**
+     * Returns the shortcuts to show in the container of the given activity, along with their
+     * unbadged icons. This is served from the {@link ShortcutCache} when possible, otherwise the
+     * shortcuts are queried and cached, and only the icons which were not persisted are created.
+     * Must be called on the worker thread.
+     */
+    private static ShortcutCache.Entry loadShortcuts(Context context, ComponentName activity,
+            UserHandle user, List<String> shortcutIds) {
+        Preconditions.assertWorkerThread();
+        DeepShortcutManager shortcutManager = DeepShortcutManager.getInstance(context);
+        ShortcutCache cache = shortcutManager.getShortcutCache();
+        ComponentKey key = new ComponentKey(activity, user);
+        ShortcutCache.Entry entry = cache.get(key, shortcutIds);
+        if (entry != null) {
+            return entry;
+        }
+
+        int generation = cache.getGeneration();
+        List<ShortcutInfoCompat> shortcuts = shortcutManager.queryForShortcutsContainer(
+                activity, shortcutIds, user);
+        if (!shortcutManager.wasLastCallSuccess()) {
+            return new ShortcutCache.Entry(shortcutIds, shortcuts,
+                    Collections.<String, Bitmap>emptyMap());
+        }
+        HashMap<String, Bitmap> icons = cache.getPersistedIcons(key, shortcutIds, shortcuts);
+        boolean iconsChanged = icons.size() < shortcuts.size();
+        // Icons which can be persisted, excluding the default icon of shortcuts without one.
+        HashMap<String, Bitmap> persistableIcons = new HashMap<>(icons);
+        for (ShortcutInfoCompat shortcut : shortcuts) {
+            if (icons.containsKey(shortcut.getId())) {
+                continue;
+            }
+            FallbackIconProvider fallbackIconProvider = new FallbackIconProvider((Bitmap) null);
+            Bitmap icon = LauncherIcons.createShortcutIcon(shortcut, context,
+                    false /* badged */, fallbackIconProvider);
+            icons.put(shortcut.getId(), icon);
+            if (!fallbackIconProvider.isUsed()) {
+                persistableIcons.put(shortcut.getId(), icon);
+            }
+        }
+        entry = new ShortcutCache.Entry(new ArrayList<>(shortcutIds), shortcuts, icons);
+        cache.put(key, entry, generation);
+        if (iconsChanged) {
+            cache.persistIcons(key, shortcutIds, shortcuts, persistableIcons);
+        }
+        return entry;
+    }
+
+    /**
+     * Loads the shortcuts of the item in the background, if they are not cached yet, so that
+     * the shortcuts container can be populated immediately if it is opened.
+     */
+    public static void prefetchShortcuts(final Launcher launcher, ItemInfo info) {
+        final List<String> shortcutIds =
+                launcher.getPopupDataProvider().getShortcutIdsForItem(info);
+        if (shortcutIds.isEmpty()) {
+            return;
+        }
+        final ComponentName activity = info.getTargetComponent();
+        final UserHandle user = info.user;
+        if (DeepShortcutManager.getInstance(launcher).getShortcutCache()
+                .get(new ComponentKey(activity, user), shortcutIds) != null) {
+            return;
+        }
+        new Handler(LauncherModel.getWorkerLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                loadShortcuts(launcher, activity, user, shortcutIds);
+            }
+        });
+    }
+
     /** Updates the shortcut child of this container based on the given shortcut info. */
     private static class UpdateShortcutChild implements Runnable {
         private final PopupContainerWithArrow mContainer;
@@ -58,10 +58,19 @@ public class DeepShortcutManager {
     }
 
     private final LauncherApps mLauncherApps;
+    private final ShortcutCache mShortcutCache;
     private boolean mWasLastCallSuccess;
 
     private DeepShortcutManager(Context context) {
         mLauncherApps = (LauncherApps) context.getSystemService(Context.LAUNCHER_APPS_SERVICE);
+        mShortcutCache = new ShortcutCache(context);
+    }
+
+    /**
+     * Returns the cache of the shortcuts shown in the shortcuts container.
+     */
+    public ShortcutCache getShortcutCache() {
+        return mShortcutCache;
     }
 
     public static boolean supportsShortcuts(ItemInfo info) {
@@ -75,8 +84,11 @@ public class DeepShortcutManager {
         return mWasLastCallSuccess;
     }
 
-    public void onShortcutsChanged(List<ShortcutInfoCompat> shortcuts) {
-        // mShortcutCache.removeShortcuts(shortcuts);
+    /**
+     * Called when the shortcuts of the package changed, or the package itself was changed.
+     */
+    public void onShortcutsChanged(String packageName, UserHandle user) {
+        mShortcutCache.removePackage(packageName, user);
     }
 
     /**
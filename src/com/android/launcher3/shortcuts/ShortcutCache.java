@@ -17,57 +17,287 @@
 package com.android.launcher3.shortcuts;
 
 import android.annotation.TargetApi;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.UserHandle;
-import android.util.ArrayMap;
+import android.util.Log;
 import android.util.LruCache;
+
+import com.android.launcher3.LauncherAppState;
+import com.android.launcher3.LauncherFiles;
+import com.android.launcher3.Utilities;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.ComponentKey;
+import com.android.launcher3.util.Preconditions;
+import com.android.launcher3.util.SQLiteCacheHelper;
+
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Loads {@link ShortcutInfoCompat}s on demand (e.g. when launcher
- * loads for pinned shortcuts and on long-press for dynamic shortcuts), and caches them
- * for handful of apps in an LruCache while launcher lives.
+ * Caches the deep shortcuts of an activity along with their popup icons, so that the shortcuts
+ * container can be populated without any binder call once the shortcuts were loaded (e.g. when
+ * they are prefetched on touch down). Entries are removed when the shortcuts of their package
+ * change, and the least recently used are evicted once the icons exceed {@link #MAX_SIZE}.
+ *
+ * The icons are also persisted in a DB along with the ordered shortcut ids of the activity, so
+ * that they do not need to be rendered again after the process restarts. An icon is only valid
+ * for the last changed timestamp of the shortcut it was created for. The shortcuts themselves
+ * are not persisted, as their labels and enabled state must come from the system.
+ *
+ * This class is thread safe. The methods accessing the DB must be called on the worker thread.
  */
 @TargetApi(Build.VERSION_CODES.N)
 public class ShortcutCache {
-    private static final int CACHE_SIZE = 30; // Max number shortcuts we cache.
+    private static final String TAG = "ShortcutCache";
 
-    private final LruCache<ShortcutKey, ShortcutInfoCompat> mCachedShortcuts;
-    // We always keep pinned shortcuts in the cache.
-    private final ArrayMap<ShortcutKey, ShortcutInfoCompat> mPinnedShortcuts;
+    private static final int MAX_SIZE = 2 << 20; // 2 mb
+    // Rough size of a shortcut without its icon.
+    private static final int SHORTCUT_OVERHEAD = 512;
 
-    public ShortcutCache() {
-        mCachedShortcuts = new LruCache<>(CACHE_SIZE);
-        mPinnedShortcuts = new ArrayMap<>();
+    private final Context mContext;
+    private final LruCache<ComponentKey, Entry> mEntries;
+    // Incremented whenever entries are invalidated, guarded by this.
+    private int mGeneration;
+
+    // Created on first use, only accessed on the worker thread.
+    private ShortcutCacheDB mDb;
+
+    public ShortcutCache(Context context) {
+        mContext = context;
+        mEntries = new LruCache<ComponentKey, Entry>(MAX_SIZE) {
+            @Override
+            protected int sizeOf(ComponentKey key, Entry entry) {
+                int size = entry.shortcuts.size() * SHORTCUT_OVERHEAD;
+                for (Bitmap icon : entry.icons.values()) {
+                    size += icon.getAllocationByteCount();
+                }
+                return size;
+            }
+        };
     }
 
     /**
-     * Removes shortcuts from the cache when shortcuts change for a given package.
-     *
-     * Returns a map of ids to their evicted shortcuts.
+     * Returns the cached shortcuts of the activity, or null if they are not cached or were
+     * cached for a different set of ids.
+     */
+    public Entry get(ComponentKey activity, List<String> shortcutIds) {
+        Entry entry = mEntries.get(activity);
+        return entry != null && entry.shortcutIds.equals(shortcutIds) ? entry : null;
+    }
+
+    /**
+     * Returns the current generation, to be passed to {@link #put} once the shortcuts are loaded.
+     */
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Adds the shortcuts loaded since {@param generation} was returned by {@link #getGeneration},
+     * unless entries were invalidated meanwhile, as the shortcuts may then be outdated.
+     */
+    public synchronized void put(ComponentKey activity, Entry entry, int generation) {
+        if (generation == mGeneration) {
+            mEntries.put(activity, entry);
+        }
+    }
+
+    /**
+     * Removes all the shortcuts of the given package/user.
      *
      * @see android.content.pm.LauncherApps.Callback#onShortcutsChanged(String, List, UserHandle).
      */
-    public void removeShortcuts(List<ShortcutInfoCompat> shortcuts) {
+    public void removePackage(String packageName, UserHandle user) {
+        Preconditions.assertWorkerThread();
+        synchronized (this) {
+            mGeneration++;
+            for (ComponentKey key : mEntries.snapshot().keySet()) {
+                if (key.componentName.getPackageName().equals(packageName)
+                        && key.user.equals(user)) {
+                    mEntries.remove(key);
+                }
+            }
+        }
+        getDb().delete(ShortcutCacheDB.COLUMN_PACKAGE + " = ? AND "
+                + ShortcutCacheDB.COLUMN_USER + " = ?",
+                new String[] {packageName, Long.toString(getUserSerial(user))});
+    }
+
+    /**
+     * Removes all the shortcuts, e.g. when the icon shape changes.
+     */
+    public void clear() {
+        Preconditions.assertWorkerThread();
+        synchronized (this) {
+            mGeneration++;
+            mEntries.evictAll();
+        }
+        getDb().clear();
+    }
+
+    /**
+     * Returns the persisted icons of the shortcuts of the activity which did not change since,
+     * keyed by shortcut id. Nothing is returned if the icons were persisted for a different set
+     * of ids.
+     */
+    public HashMap<String, Bitmap> getPersistedIcons(ComponentKey activity,
+            List<String> shortcutIds, List<ShortcutInfoCompat> shortcuts) {
+        Preconditions.assertWorkerThread();
+        HashMap<String, Bitmap> icons = new HashMap<>();
+        String[] persistedIds = new String[shortcutIds.size()];
+        HashMap<String, Long> lastChanged = new HashMap<>();
+        HashMap<String, byte[]> data = new HashMap<>();
+        Cursor c = null;
+        try {
+            c = getDb().query(new String[] {ShortcutCacheDB.COLUMN_SHORTCUT_ID,
+                            ShortcutCacheDB.COLUMN_RANK, ShortcutCacheDB.COLUMN_LAST_CHANGED,
+                            ShortcutCacheDB.COLUMN_ICON},
+                    ShortcutCacheDB.COLUMN_ACTIVITY + " = ? AND "
+                            + ShortcutCacheDB.COLUMN_USER + " = ?",
+                    new String[] {activity.componentName.flattenToString(),
+                            Long.toString(getUserSerial(activity.user))});
+            while (c.moveToNext()) {
+                int rank = c.getInt(1);
+                if (rank < 0 || rank >= persistedIds.length) {
+                    return icons;
+                }
+                persistedIds[rank] = c.getString(0);
+                lastChanged.put(persistedIds[rank], c.getLong(2));
+                data.put(persistedIds[rank], c.getBlob(3));
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Error reading shortcut icons", e);
+            return icons;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        for (int i = 0; i < persistedIds.length; i++) {
+            if (!shortcutIds.get(i).equals(persistedIds[i])) {
+                return icons;
+            }
+        }
+        for (ShortcutInfoCompat shortcut : shortcuts) {
+            Long timestamp = lastChanged.get(shortcut.getId());
+            byte[] iconData = data.get(shortcut.getId());
+            if (timestamp == null || timestamp != shortcut.getLastChangedTimestamp()
+                    || iconData == null) {
+                continue;
+            }
+            Bitmap icon = BitmapFactory.decodeByteArray(iconData, 0, iconData.length);
+            if (icon != null) {
+                icons.put(shortcut.getId(), icon);
+            }
+        }
+        return icons;
+    }
+
+    /**
+     * Persists the icons of the shortcuts of the activity, replacing the icons persisted for the
+     * activity before. Shortcuts without an icon are persisted without one, so that the ordered
+     * ids are complete.
+     */
+    public void persistIcons(ComponentKey activity, List<String> shortcutIds,
+            List<ShortcutInfoCompat> shortcuts, Map<String, Bitmap> icons) {
+        Preconditions.assertWorkerThread();
+        String userSerial = Long.toString(getUserSerial(activity.user));
+        String flattenedActivity = activity.componentName.flattenToString();
+        getDb().delete(ShortcutCacheDB.COLUMN_ACTIVITY + " = ? AND "
+                + ShortcutCacheDB.COLUMN_USER + " = ?",
+                new String[] {flattenedActivity, userSerial});
+
+        HashMap<String, ShortcutInfoCompat> shortcutsById = new HashMap<>();
         for (ShortcutInfoCompat shortcut : shortcuts) {
-            ShortcutKey key = ShortcutKey.fromInfo(shortcut);
-            mCachedShortcuts.remove(key);
-            mPinnedShortcuts.remove(key);
+            shortcutsById.put(shortcut.getId(), shortcut);
         }
+        for (int i = 0; i < shortcutIds.size(); i++) {
+            String id = shortcutIds.get(i);
+            ShortcutInfoCompat shortcut = shortcutsById.get(id);
+            Bitmap icon = icons.get(id);
+            ContentValues values = new ContentValues();
+            values.put(ShortcutCacheDB.COLUMN_PACKAGE, activity.componentName.getPackageName());
+            values.put(ShortcutCacheDB.COLUMN_ACTIVITY, flattenedActivity);
+            values.put(ShortcutCacheDB.COLUMN_USER, userSerial);
+            values.put(ShortcutCacheDB.COLUMN_SHORTCUT_ID, id);
+            values.put(ShortcutCacheDB.COLUMN_RANK, i);
+            values.put(ShortcutCacheDB.COLUMN_LAST_CHANGED,
+                    shortcut == null ? 0 : shortcut.getLastChangedTimestamp());
+            values.put(ShortcutCacheDB.COLUMN_ICON,
+                    shortcut == null || icon == null ? null : Utilities.flattenBitmap(icon));
+            getDb().insertOrReplace(values);
+        }
+    }
+
+    private long getUserSerial(UserHandle user) {
+        return UserManagerCompat.getInstance(mContext).getSerialNumberForUser(user);
     }
 
-    public ShortcutInfoCompat get(ShortcutKey key) {
-        if (mPinnedShortcuts.containsKey(key)) {
-            return mPinnedShortcuts.get(key);
+    private ShortcutCacheDB getDb() {
+        if (mDb == null) {
+            mDb = new ShortcutCacheDB(mContext,
+                    LauncherAppState.getIDP(mContext).iconBitmapSize);
         }
-        return mCachedShortcuts.get(key);
+        return mDb;
     }
 
-    public void put(ShortcutKey key, ShortcutInfoCompat shortcut) {
-        if (shortcut.isPinned()) {
-            mPinnedShortcuts.put(key, shortcut);
-        } else {
-            mCachedShortcuts.put(key, shortcut);
+    /**
+     * The shortcuts of an activity. Must not be modified once added to the cache.
+     */
+    public static class Entry {
+        public final List<String> shortcutIds;
+        public final List<ShortcutInfoCompat> shortcuts;
+        // Unbadged icons, keyed by shortcut id.
+        public final Map<String, Bitmap> icons;
+
+        public Entry(List<String> shortcutIds, List<ShortcutInfoCompat> shortcuts,
+                Map<String, Bitmap> icons) {
+            this.shortcutIds = shortcutIds;
+            this.shortcuts = shortcuts;
+            this.icons = icons;
+        }
+    }
+
+    private static final class ShortcutCacheDB extends SQLiteCacheHelper {
+        private final static int DB_VERSION = 1;
+
+        private final static String TABLE_NAME = "shortcuts";
+        private final static String COLUMN_PACKAGE = "packageName";
+        private final static String COLUMN_ACTIVITY = "activity";
+        private final static String COLUMN_USER = "profileId";
+        private final static String COLUMN_SHORTCUT_ID = "shortcutId";
+        // Position of the shortcut in the ids of the activity.
+        private final static String COLUMN_RANK = "rank";
+        private final static String COLUMN_LAST_CHANGED = "lastChanged";
+        private final static String COLUMN_ICON = "icon";
+
+        public ShortcutCacheDB(Context context, int iconPixelSize) {
+            super(context, LauncherFiles.SHORTCUT_CACHE_DB, (DB_VERSION << 16) + iconPixelSize,
+                    TABLE_NAME);
+        }
+
+        @Override
+        protected void onCreateTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_ACTIVITY + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_SHORTCUT_ID + " TEXT NOT NULL, " +
+                    COLUMN_RANK + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_CHANGED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON + " BLOB, " +
+                    "PRIMARY KEY (" + COLUMN_ACTIVITY + ", " + COLUMN_USER + ", "
+                    + COLUMN_SHORTCUT_ID + ") " +
+                    ");");
         }
     }
 }
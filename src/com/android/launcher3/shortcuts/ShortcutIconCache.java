@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3.shortcuts;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.UserHandle;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.launcher3.InvariantDeviceProfile;
+import com.android.launcher3.LauncherFiles;
+import com.android.launcher3.Utilities;
+import com.android.launcher3.compat.UserManagerCompat;
+import com.android.launcher3.util.Preconditions;
+import com.android.launcher3.util.Provider;
+import com.android.launcher3.util.SQLiteCacheHelper;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Persists the badged icons of deep shortcuts, so that pinned shortcuts do not need to be
+ * rendered again on every load. Icons are keyed by {@link ShortcutKey} and are only valid for
+ * the last changed timestamp of the shortcut they were created for.
+ *
+ * All methods must be called on the worker thread.
+ */
+public class ShortcutIconCache {
+
+    private static final String TAG = "ShortcutIconCache";
+
+    private final UserManagerCompat mUserManager;
+    private final ShortcutIconDB mDb;
+
+    public ShortcutIconCache(Context context, InvariantDeviceProfile inv) {
+        mUserManager = UserManagerCompat.getInstance(context);
+        mDb = new ShortcutIconDB(context, inv.iconBitmapSize);
+    }
+
+    /**
+     * Returns the cached icon of the shortcut, or null if it is not cached or the shortcut
+     * changed since.
+     */
+    public Bitmap getIcon(ShortcutInfoCompat shortcut) {
+        return getIcons(Collections.singletonList(shortcut)).get(ShortcutKey.fromInfo(shortcut));
+    }
+
+    /**
+     * Returns the cached icons of the shortcuts which did not change since they were cached.
+     * The DB is queried once per user, regardless of the number of shortcuts.
+     */
+    public HashMap<ShortcutKey, Bitmap> getIcons(Collection<ShortcutInfoCompat> shortcuts) {
+        Preconditions.assertWorkerThread();
+        HashMap<ShortcutKey, Bitmap> icons = new HashMap<>();
+
+        // Shortcuts to look up, grouped by user
+        LongSparseArray<HashMap<ShortcutKey, ShortcutInfoCompat>> shortcutsByUser =
+                new LongSparseArray<>();
+        for (ShortcutInfoCompat shortcut : shortcuts) {
+            long serial = mUserManager.getSerialNumberForUser(shortcut.getUserHandle());
+            HashMap<ShortcutKey, ShortcutInfoCompat> userShortcuts = shortcutsByUser.get(serial);
+            if (userShortcuts == null) {
+                userShortcuts = new HashMap<>();
+                shortcutsByUser.put(serial, userShortcuts);
+            }
+            userShortcuts.put(ShortcutKey.fromInfo(shortcut), shortcut);
+        }
+
+        for (int i = 0; i < shortcutsByUser.size(); i++) {
+            HashMap<ShortcutKey, ShortcutInfoCompat> userShortcuts = shortcutsByUser.valueAt(i);
+            UserHandle user = userShortcuts.values().iterator().next().getUserHandle();
+            Cursor c = null;
+            try {
+                c = mDb.query(new String[] {ShortcutIconDB.COLUMN_PACKAGE,
+                                ShortcutIconDB.COLUMN_SHORTCUT_ID,
+                                ShortcutIconDB.COLUMN_LAST_CHANGED, ShortcutIconDB.COLUMN_ICON},
+                        ShortcutIconDB.COLUMN_USER + " = ?",
+                        new String[] {Long.toString(shortcutsByUser.keyAt(i))});
+                while (c.moveToNext()) {
+                    ShortcutKey key = new ShortcutKey(c.getString(0), user, c.getString(1));
+                    ShortcutInfoCompat shortcut = userShortcuts.get(key);
+                    if (shortcut == null || shortcut.getLastChangedTimestamp() != c.getLong(2)) {
+                        continue;
+                    }
+                    byte[] data = c.getBlob(3);
+                    Bitmap icon = data == null ? null
+                            : BitmapFactory.decodeByteArray(data, 0, data.length);
+                    if (icon != null) {
+                        icons.put(key, icon);
+                    }
+                }
+            } catch (SQLException e) {
+                Log.w(TAG, "Error reading shortcut icons", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        return icons;
+    }
+
+    public void put(ShortcutInfoCompat shortcut, Bitmap icon) {
+        Preconditions.assertWorkerThread();
+        byte[] data = Utilities.flattenBitmap(icon);
+        if (data == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(ShortcutIconDB.COLUMN_PACKAGE, shortcut.getPackage());
+        values.put(ShortcutIconDB.COLUMN_SHORTCUT_ID, shortcut.getId());
+        values.put(ShortcutIconDB.COLUMN_USER,
+                mUserManager.getSerialNumberForUser(shortcut.getUserHandle()));
+        values.put(ShortcutIconDB.COLUMN_LAST_CHANGED, shortcut.getLastChangedTimestamp());
+        values.put(ShortcutIconDB.COLUMN_ICON, data);
+        mDb.insertOrReplace(values);
+    }
+
+    /**
+     * Removes the icons of the given shortcuts, or of all the shortcuts of the package if
+     * shortcutIds is null.
+     */
+    public void remove(String packageName, UserHandle user,
+            @Nullable Collection<String> shortcutIds) {
+        Preconditions.assertWorkerThread();
+        String userSerial = Long.toString(mUserManager.getSerialNumberForUser(user));
+        if (shortcutIds == null) {
+            mDb.delete(ShortcutIconDB.COLUMN_PACKAGE + " = ? AND "
+                    + ShortcutIconDB.COLUMN_USER + " = ?", new String[] {packageName, userSerial});
+            return;
+        }
+        for (String id : shortcutIds) {
+            mDb.delete(ShortcutIconDB.COLUMN_PACKAGE + " = ? AND "
+                    + ShortcutIconDB.COLUMN_USER + " = ? AND "
+                    + ShortcutIconDB.COLUMN_SHORTCUT_ID + " = ?",
+                    new String[] {packageName, userSerial, id});
+        }
+    }
+
+    /**
+     * Removes all the icons, e.g. when the icon shape changes.
+     */
+    public void clear() {
+        Preconditions.assertWorkerThread();
+        mDb.clear();
+    }
+
+    /**
+     * Provider of the icon of a shortcut which has no icon in the system. The icons created with
+     * it must not be persisted when it was used, as they depend on the icon previously shown
+     * rather than on the shortcut.
+     */
+    public static class FallbackIconProvider extends Provider<Bitmap> {
+
+        private final Bitmap mFallbackIcon;
+        private final Provider<Bitmap> mFallbackIconProvider;
+        private boolean mUsed;
+
+        public FallbackIconProvider(@Nullable Bitmap fallbackIcon) {
+            this(fallbackIcon, null);
+        }
+
+        public FallbackIconProvider(Provider<Bitmap> fallbackIconProvider) {
+            this(null, fallbackIconProvider);
+        }
+
+        private FallbackIconProvider(Bitmap fallbackIcon, Provider<Bitmap> fallbackIconProvider) {
+            mFallbackIcon = fallbackIcon;
+            mFallbackIconProvider = fallbackIconProvider;
+        }
+
+        @Override
+        public Bitmap get() {
+            mUsed = true;
+            return mFallbackIconProvider != null ? mFallbackIconProvider.get() : mFallbackIcon;
+        }
+
+        /**
+         * Returns true if the shortcut had no icon in the system.
+         */
+        public boolean isUsed() {
+            return mUsed;
+        }
+    }
+
+    private static final class ShortcutIconDB extends SQLiteCacheHelper {
+        private final static int DB_VERSION = 1;
+
+        private final static String TABLE_NAME = "shortcut_icons";
+        private final static String COLUMN_PACKAGE = "packageName";
+        private final static String COLUMN_SHORTCUT_ID = "shortcutId";
+        private final static String COLUMN_USER = "profileId";
+        private final static String COLUMN_LAST_CHANGED = "lastChanged";
+        private final static String COLUMN_ICON = "icon";
+
+        public ShortcutIconDB(Context context, int iconPixelSize) {
+            super(context, LauncherFiles.SHORTCUT_ICONS_DB, (DB_VERSION << 16) + iconPixelSize,
+                    TABLE_NAME);
+        }
+
+        @Override
+        protected void onCreateTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_SHORTCUT_ID + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_LAST_CHANGED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON + " BLOB, " +
+                    "PRIMARY KEY (" + COLUMN_PACKAGE + ", " + COLUMN_USER + ", "
+                    + COLUMN_SHORTCUT_ID + ") " +
+                    ");");
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.launcher3.widget;
 
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.launcher3.IconCache;
@@ -68,6 +69,8 @@ public class WidgetsDiffReporter {
         WidgetListRowEntry orgRowEntry = orgIter.next();
         WidgetListRowEntry newRowEntry = newIter.next();
 
+        // Position of orgRowEntry in currentEntries, both lists are walked in the same order.
+        int index = 0;
         do {
             int diff = comparePackageName(orgRowEntry, newRowEntry, comparator);
             if (DEBUG) {
@@ -75,9 +78,7 @@ public class WidgetsDiffReporter {
                         diff, orgRowEntry != null? orgRowEntry.toString() : null,
                         newRowEntry != null? newRowEntry.toString() : null));
             }
-            int index = -1;
             if (diff < 0) {
-                index = currentEntries.indexOf(orgRowEntry);
                 mListener.notifyItemRemoved(index);
                 if (DEBUG) {
                     Log.d(TAG, String.format("notifyItemRemoved called (%d)%s", index,
@@ -86,8 +87,6 @@ public class WidgetsDiffReporter {
                 currentEntries.remove(index);
                 orgRowEntry = orgIter.hasNext() ? orgIter.next() : null;
             } else if (diff > 0) {
-                index = orgRowEntry != null? currentEntries.indexOf(orgRowEntry):
-                        currentEntries.size();
                 currentEntries.add(index, newRowEntry);
                 if (DEBUG) {
                     Log.d(TAG, String.format("notifyItemInserted called (%d)%s", index,
@@ -95,14 +94,12 @@ public class WidgetsDiffReporter {
                 }
                 newRowEntry = newIter.hasNext() ? newIter.next() : null;
                 mListener.notifyItemInserted(index);
-
+                index++;
             } else {
                 // same package name but,
                 // did the icon, title, etc, change?
                 // or did the widget size and desc, span, etc change?
-                if (!isSamePackageItemInfo(orgRowEntry.pkgItem, newRowEntry.pkgItem) ||
-                        !orgRowEntry.widgets.equals(newRowEntry.widgets)) {
-                    index = currentEntries.indexOf(orgRowEntry);
+                if (!isSameRow(orgRowEntry, newRowEntry)) {
                     currentEntries.set(index, newRowEntry);
                     mListener.notifyItemChanged(index);
                     if (DEBUG) {
@@ -112,6 +109,7 @@ public class WidgetsDiffReporter {
                 }
                 orgRowEntry = orgIter.hasNext() ? orgIter.next() : null;
                 newRowEntry = newIter.hasNext() ? newIter.next() : null;
+                index++;
             }
         } while(orgRowEntry != null || newRowEntry != null);
     }
@@ -134,8 +132,16 @@ public class WidgetsDiffReporter {
         return comparator.compare(curRow, newRow);
     }
 
-    private boolean isSamePackageItemInfo(PackageItemInfo curInfo, PackageItemInfo newInfo) {
-        return curInfo.iconBitmap.equals(newInfo.iconBitmap) &&
-                !mIconCache.isDefaultIcon(curInfo.iconBitmap, curInfo.user);
+    /**
+     * The model replaces the widgets list of a package when any of its widgets change, so
+     * unchanged widgets are detected without comparing their contents.
+     */
+    private boolean isSameRow(WidgetListRowEntry curRow, WidgetListRowEntry newRow) {
+        PackageItemInfo curInfo = curRow.pkgItem;
+        PackageItemInfo newInfo = newRow.pkgItem;
+        return curRow.widgets == newRow.widgets
+                && TextUtils.equals(curInfo.title, newInfo.title)
+                && curInfo.iconBitmap == newInfo.iconBitmap
+                && !mIconCache.isDefaultIcon(curInfo.iconBitmap, curInfo.user);
     }
 }
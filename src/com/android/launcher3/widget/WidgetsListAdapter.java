@@ -102,16 +102,15 @@ public class WidgetsListAdapter extends Adapter<WidgetsRowViewHolder> {
     }
 
     /**
-     * Update the widget list.
+     * Update the widget list. The widgets of each package are already sorted by the model and
+     * must not be modified.
      */
     public void setWidgets(MultiHashMap<PackageItemInfo, WidgetItem> widgets) {
         ArrayList<WidgetListRowEntry> tempEntries = new ArrayList<>();
 
-        WidgetItemComparator widgetComparator = new WidgetItemComparator();
         for (Map.Entry<PackageItemInfo, ArrayList<WidgetItem>> entry : widgets.entrySet()) {
             WidgetListRowEntry row = new WidgetListRowEntry(entry.getKey(), entry.getValue());
             row.titleSectionName = mIndexer.computeSectionName(row.pkgItem.title);
-            Collections.sort(row.widgets, widgetComparator);
             tempEntries.add(row);
         }
         WidgetListRowEntryComparator rowComparator = new WidgetListRowEntryComparator();
@@ -0,0 +1,447 @@
+package com.google.android.apps.nexuslauncher;
+
+import com.android.launcher3.model.LaunchFrequencyModel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.TimeZone;
+
+/**
+ * Predicts the apps to show in all apps from the launch history and the current context.
+ *
+ * For every component, the model keeps decaying launch scores (see {@link LaunchFrequencyModel}):
+ * one overall, and one per hour of day bucket, per weekday or weekend, and per source container,
+ * along with the last launch time. A launch updates one score per feature. A component is scored
+ * as its overall score times the smoothed probability of the current context among its launches,
+ * boosted if it was launched recently.
+ *
+ * Only the components with the highest overall scores are scored against the context. As their
+ * overall ranks are time independent, they are kept in a bounded min-heap updated on launches.
+ *
+ * This class is not thread safe.
+ */
+public class AppPredictionModel {
+
+    public static final int SOURCE_ALL_APPS = 0;
+    public static final int SOURCE_WORKSPACE = 1;
+    public static final int SOURCE_FOLDER = 2;
+    public static final int SOURCE_OTHER = 3;
+    private static final int SOURCE_COUNT = 4;
+    // Launches recorded before the source was known.
+    public static final int SOURCE_UNKNOWN = -1;
+
+    private static final int HOURS_PER_BUCKET = 3;
+    private static final int HOUR_BUCKETS = 24 / HOURS_PER_BUCKET;
+    // Weekday or weekend, as there are too few launches per week to learn each day.
+    private static final int DAY_BUCKETS = 2;
+
+    public static final int MAX_CANDIDATES = 32;
+
+    // Weights of the log probability of each feature.
+    private static final double WEIGHT_HOUR = 1;
+    private static final double WEIGHT_DAY = 0.5;
+    private static final double WEIGHT_SOURCE = 0.5;
+    // Score added to the log score of a component launched just now, which decays with the time
+    // since the launch.
+    private static final double WEIGHT_RECENCY = 0.5;
+    private static final double RECENCY_TAU_MS = 30 * 60 * 1000;
+    // Number of launches spread evenly over the buckets of each feature, so that components with
+    // few launches are not over-fitted to their context.
+    private static final double SMOOTHING = 2;
+
+    private static final double NO_RANK = LaunchFrequencyModel.NO_RANK;
+
+    private final HashMap<String, Integer> mIds = new HashMap<>();
+    private String[] mComponents = new String[16];
+    private double[] mRanks = new double[16];
+    private double[] mHourRanks = new double[16 * HOUR_BUCKETS];
+    private double[] mDayRanks = new double[16 * DAY_BUCKETS];
+    private double[] mSourceRanks = new double[16 * SOURCE_COUNT];
+    private long[] mLastLaunch = new long[16];
+    // Position of each id in the heap, or -1.
+    private int[] mHeapIndex = new int[16];
+    private int mCount;
+
+    // Min-heap of the ids with the highest overall ranks.
+    private final int[] mHeap = new int[MAX_CANDIDATES];
+    private int mHeapSize;
+
+    // Buffers used while predicting.
+    private final double[] mCandidateScores = new double[MAX_CANDIDATES];
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public String getComponent(int id) {
+        return mComponents[id];
+    }
+
+    /**
+     * Returns the id of the component, or -1 if it was never added to the model.
+     */
+    public int getId(String component) {
+        Integer id = mIds.get(component);
+        return id == null ? -1 : id;
+    }
+
+    public int getOrCreateId(String component) {
+        Integer existingId = mIds.get(component);
+        if (existingId != null) {
+            return existingId;
+        }
+        if (mCount == mComponents.length) {
+            int size = mCount * 2;
+            mComponents = Arrays.copyOf(mComponents, size);
+            mRanks = Arrays.copyOf(mRanks, size);
+            mHourRanks = Arrays.copyOf(mHourRanks, size * HOUR_BUCKETS);
+            mDayRanks = Arrays.copyOf(mDayRanks, size * DAY_BUCKETS);
+            mSourceRanks = Arrays.copyOf(mSourceRanks, size * SOURCE_COUNT);
+            mLastLaunch = Arrays.copyOf(mLastLaunch, size);
+            mHeapIndex = Arrays.copyOf(mHeapIndex, size);
+        }
+        int id = mCount++;
+        mIds.put(component, id);
+        mComponents[id] = component;
+        reset(id);
+        return id;
+    }
+
+    private void reset(int id) {
+        mRanks[id] = NO_RANK;
+        Arrays.fill(mHourRanks, id * HOUR_BUCKETS, (id + 1) * HOUR_BUCKETS, NO_RANK);
+        Arrays.fill(mDayRanks, id * DAY_BUCKETS, (id + 1) * DAY_BUCKETS, NO_RANK);
+        Arrays.fill(mSourceRanks, id * SOURCE_COUNT, (id + 1) * SOURCE_COUNT, NO_RANK);
+        mLastLaunch[id] = 0;
+        mHeapIndex[id] = -1;
+    }
+
+    public boolean hasScore(int id) {
+        return mRanks[id] != NO_RANK;
+    }
+
+    /**
+     * Records a launch of the component.
+     *
+     * @param source one of the SOURCE_ constants.
+     */
+    public void onAppLaunched(int id, long time, int source) {
+        mRanks[id] = LaunchFrequencyModel.addLaunch(mRanks[id], time);
+        mCalendar.setTimeInMillis(time);
+        int hour = id * HOUR_BUCKETS + getHourBucket(mCalendar);
+        mHourRanks[hour] = LaunchFrequencyModel.addLaunch(mHourRanks[hour], time);
+        int day = id * DAY_BUCKETS + getDayBucket(mCalendar);
+        mDayRanks[day] = LaunchFrequencyModel.addLaunch(mDayRanks[day], time);
+        if (source >= 0 && source < SOURCE_COUNT) {
+            int index = id * SOURCE_COUNT + source;
+            mSourceRanks[index] = LaunchFrequencyModel.addLaunch(mSourceRanks[index], time);
+        }
+        mLastLaunch[id] = Math.max(mLastLaunch[id], time);
+        onRankIncreased(id);
+    }
+
+    /**
+     * Adds launches without any context to the overall rank of the component.
+     */
+    public void addRank(int id, double rank) {
+        mRanks[id] = LaunchFrequencyModel.mergeRanks(mRanks[id], rank);
+        onRankIncreased(id);
+    }
+
+    /**
+     * Sets the overall rank of the component, keeping the scores of its context.
+     */
+    public void setRank(int id, double rank) {
+        removeFromHeap(id);
+        mRanks[id] = rank;
+        onRankIncreased(id);
+    }
+
+    public double getRank(int id) {
+        return mRanks[id];
+    }
+
+    public void remove(int id) {
+        removeFromHeap(id);
+        reset(id);
+    }
+
+    /**
+     * Sets the time zone of the hour of day and weekday buckets, which is the default time zone
+     * when the model is created.
+     */
+    public void setTimeZone(TimeZone timeZone) {
+        mCalendar.setTimeZone(timeZone);
+    }
+
+    public void clear() {
+        for (int id = 0; id < mCount; id++) {
+            reset(id);
+        }
+        mHeapSize = 0;
+    }
+
+    /**
+     * Adds the launches of the other model to this one.
+     */
+    public void merge(AppPredictionModel other) {
+        for (int otherId = 0; otherId < other.mCount; otherId++) {
+            if (!other.hasScore(otherId)) {
+                continue;
+            }
+            int id = getOrCreateId(other.mComponents[otherId]);
+            mRanks[id] = LaunchFrequencyModel.mergeRanks(mRanks[id], other.mRanks[otherId]);
+            mergeRanks(mHourRanks, id, other.mHourRanks, otherId, HOUR_BUCKETS);
+            mergeRanks(mDayRanks, id, other.mDayRanks, otherId, DAY_BUCKETS);
+            mergeRanks(mSourceRanks, id, other.mSourceRanks, otherId, SOURCE_COUNT);
+            mLastLaunch[id] = Math.max(mLastLaunch[id], other.mLastLaunch[otherId]);
+            onRankIncreased(id);
+        }
+    }
+
+    private static void mergeRanks(double[] ranks, int id, double[] otherRanks, int otherId,
+            int buckets) {
+        for (int i = 0; i < buckets; i++) {
+            ranks[id * buckets + i] = LaunchFrequencyModel.mergeRanks(
+                    ranks[id * buckets + i], otherRanks[otherId * buckets + i]);
+        }
+    }
+
+    /**
+     * Writes all the scores of the component, to be read by {@link #readScores}.
+     */
+    public void writeScores(int id, DataOutput out) throws IOException {
+        out.writeDouble(mRanks[id]);
+        writeRanks(out, mHourRanks, id, HOUR_BUCKETS);
+        writeRanks(out, mDayRanks, id, DAY_BUCKETS);
+        writeRanks(out, mSourceRanks, id, SOURCE_COUNT);
+        out.writeLong(mLastLaunch[id]);
+    }
+
+    private static void writeRanks(DataOutput out, double[] ranks, int id, int buckets)
+            throws IOException {
+        out.writeByte(buckets);
+        for (int i = 0; i < buckets; i++) {
+            out.writeDouble(ranks[id * buckets + i]);
+        }
+    }
+
+    public void readScores(int id, DataInput in) throws IOException {
+        mRanks[id] = in.readDouble();
+        readRanks(in, mHourRanks, id, HOUR_BUCKETS);
+        readRanks(in, mDayRanks, id, DAY_BUCKETS);
+        readRanks(in, mSourceRanks, id, SOURCE_COUNT);
+        mLastLaunch[id] = in.readLong();
+        removeFromHeap(id);
+        onRankIncreased(id);
+    }
+
+    public static void skipScores(DataInput in) throws IOException {
+        in.readDouble();
+        for (int i = 0; i < 3; i++) {
+            int count = in.readByte();
+            for (int j = 0; j < count; j++) {
+                in.readDouble();
+            }
+        }
+        in.readLong();
+    }
+
+    private static void readRanks(DataInput in, double[] ranks, int id, int buckets)
+            throws IOException {
+        int count = in.readByte();
+        for (int i = 0; i < count; i++) {
+            double rank = in.readDouble();
+            if (i < buckets) {
+                ranks[id * buckets + i] = rank;
+            }
+        }
+    }
+
+    /**
+     * Fills {@param outIds} with the ids of the components most likely to be launched from all
+     * apps at {@param now}, most likely first, and returns their number.
+     */
+    public int predict(long now, int[] outIds) {
+        mCalendar.setTimeInMillis(now);
+        int hourBucket = getHourBucket(mCalendar);
+        int dayBucket = getDayBucket(mCalendar);
+
+        int limit = Math.min(outIds.length, mCandidateScores.length);
+        int count = 0;
+        for (int i = 0; i < mHeapSize; i++) {
+            int id = mHeap[i];
+            double score = getContextScore(id, now, hourBucket, dayBucket);
+            // Insertion into the sorted results, there are few candidates.
+            int j = count - 1;
+            while (j >= 0 && mCandidateScores[j] < score) {
+                if (j + 1 < limit) {
+                    mCandidateScores[j + 1] = mCandidateScores[j];
+                    outIds[j + 1] = outIds[j];
+                }
+                j--;
+            }
+            if (j + 1 < limit) {
+                mCandidateScores[j + 1] = score;
+                outIds[j + 1] = id;
+                count = Math.min(count + 1, limit);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Fills {@param outIds} with the ids of the components with the highest overall scores,
+     * ignoring the context, and returns their number.
+     */
+    public int predictByFrequency(int[] outIds) {
+        int count = 0;
+        for (int i = 0; i < mHeapSize; i++) {
+            int id = mHeap[i];
+            int j = count - 1;
+            while (j >= 0 && mRanks[outIds[j]] < mRanks[id]) {
+                if (j + 1 < outIds.length) {
+                    outIds[j + 1] = outIds[j];
+                }
+                j--;
+            }
+            if (j + 1 < outIds.length) {
+                outIds[j + 1] = id;
+                count = Math.min(count + 1, outIds.length);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the log of the score of the component in the given context.
+     */
+    private double getContextScore(int id, long now, int hourBucket, int dayBucket) {
+        double total = LaunchFrequencyModel.getScore(mRanks[id], now);
+        double score = Math.log(total)
+                + WEIGHT_HOUR * getLogProbability(total, mHourRanks, id, HOUR_BUCKETS,
+                        hourBucket, now)
+                + WEIGHT_DAY * getLogProbability(total, mDayRanks, id, DAY_BUCKETS,
+                        dayBucket, now)
+                + WEIGHT_SOURCE * getLogProbability(total, mSourceRanks, id, SOURCE_COUNT,
+                        SOURCE_ALL_APPS, now);
+        if (mLastLaunch[id] > 0 && now >= mLastLaunch[id]) {
+            score += WEIGHT_RECENCY * Math.exp(-(now - mLastLaunch[id]) / RECENCY_TAU_MS);
+        }
+        return score;
+    }
+
+    /**
+     * Returns the log of the smoothed probability that a launch of the component happens in the
+     * given bucket. Launches recorded without this feature are spread evenly over the buckets.
+     */
+    private static double getLogProbability(double total, double[] ranks, int id, int buckets,
+            int bucket, long now) {
+        double known = 0;
+        double inBucket = 0;
+        for (int i = 0; i < buckets; i++) {
+            double score = LaunchFrequencyModel.getScore(ranks[id * buckets + i], now);
+            known += score;
+            if (i == bucket) {
+                inBucket = score;
+            }
+        }
+        double spread = (Math.max(0, total - known) + SMOOTHING) / buckets;
+        return Math.log((inBucket + spread) / (total + SMOOTHING));
+    }
+
+    private static int getHourBucket(Calendar calendar) {
+        return calendar.get(Calendar.HOUR_OF_DAY) / HOURS_PER_BUCKET;
+    }
+
+    private static int getDayBucket(Calendar calendar) {
+        int day = calendar.get(Calendar.DAY_OF_WEEK);
+        return day == Calendar.SATURDAY || day == Calendar.SUNDAY ? 1 : 0;
+    }
+
+    private void onRankIncreased(int id) {
+        int index = mHeapIndex[id];
+        if (mRanks[id] == NO_RANK) {
+            return;
+        } else if (index >= 0) {
+            siftDown(index);
+        } else if (mHeapSize < mHeap.length) {
+            mHeap[mHeapSize] = id;
+            mHeapIndex[id] = mHeapSize;
+            siftUp(mHeapSize++);
+        } else if (mRanks[id] > mRanks[mHeap[0]]) {
+            mHeapIndex[mHeap[0]] = -1;
+            mHeap[0] = id;
+            mHeapIndex[id] = 0;
+            siftDown(0);
+        }
+    }
+
+    private void removeFromHeap(int id) {
+        int index = mHeapIndex[id];
+        if (index < 0) {
+            return;
+        }
+        mHeapIndex[id] = -1;
+        int last = mHeap[--mHeapSize];
+        if (index < mHeapSize) {
+            mHeap[index] = last;
+            mHeapIndex[last] = index;
+            siftDown(index);
+            siftUp(mHeapIndex[last]);
+        }
+
+        // Refill the heap with the best remaining component, if any.
+        int best = -1;
+        for (int i = 0; i < mCount; i++) {
+            if (i != id && mHeapIndex[i] < 0 && mRanks[i] != NO_RANK
+                    && (best < 0 || mRanks[i] > mRanks[best])) {
+                best = i;
+            }
+        }
+        if (best >= 0) {
+            onRankIncreased(best);
+        }
+    }
+
+    private void siftUp(int index) {
+        int id = mHeap[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (mRanks[mHeap[parent]] <= mRanks[id]) {
+                break;
+            }
+            mHeap[index] = mHeap[parent];
+            mHeapIndex[mHeap[index]] = index;
+            index = parent;
+        }
+        mHeap[index] = id;
+        mHeapIndex[id] = index;
+    }
+
+    private void siftDown(int index) {
+        int id = mHeap[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= mHeapSize) {
+                break;
+            }
+            if (child + 1 < mHeapSize && mRanks[mHeap[child + 1]] < mRanks[mHeap[child]]) {
+                child++;
+            }
+            if (mRanks[id] <= mRanks[mHeap[child]]) {
+                break;
+            }
+            mHeap[index] = mHeap[child];
+            mHeapIndex[mHeap[index]] = index;
+            index = child;
+        }
+        mHeap[index] = id;
+        mHeapIndex[id] = index;
+    }
+}
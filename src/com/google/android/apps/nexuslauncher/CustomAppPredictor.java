@@ -4,13 +4,14 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.content.pm.PackageManager;
 import android.os.Process;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewParent;
 
 import com.android.launcher3.AppInfo;
+import com.android.launcher3.ItemInfo;
+import com.android.launcher3.LauncherSettings;
 import com.android.launcher3.Utilities;
 import com.android.launcher3.allapps.AllAppsContainerView;
 import com.android.launcher3.logging.UserEventDispatcher;
@@ -18,96 +19,38 @@ import com.android.launcher3.util.ComponentKey;
 import com.android.launcher3.util.ComponentKeyMapper;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 public class CustomAppPredictor extends UserEventDispatcher implements SharedPreferences.OnSharedPreferenceChangeListener {
-    private static final int MAX_PREDICTIONS = 10;
-    private static final int BOOST_ON_OPEN = 7;
+    // More than fit in the row, as all apps skips the predictions which are not installed.
+    private static final int MAX_PREDICTIONS = AppPredictionModel.MAX_CANDIDATES;
+    // Preferences used before the launch history store, migrated on first use.
     private static final String PREDICTION_SET = "pref_prediction_set";
     private static final String PREDICTION_PREFIX = "pref_prediction_count_";
     private static final Set<String> EMPTY_SET = new HashSet<>();
+    // Whether the preferences were migrated by this process. Only accessed on the UI thread.
+    private static boolean sPrefsMigrated;
     private final Context mContext;
     private final SharedPreferences mPrefs;
-    private final PackageManager mPackageManager;
-
-    private final static String[] PLACE_HOLDERS = new String[] {
-            "com.google.android.apps.photos",
-            "com.google.android.apps.maps",
-            "com.google.android.gm",
-            "com.google.android.deskclock",
-            "com.android.settings",
-            "com.whatsapp",
-            "com.facebook.katana",
-            "com.facebook.orca",
-            "com.google.android.youtube",
-            "com.yodo1.crossyroad",
-            "com.spotify.music",
-            "com.android.chrome",
-            "com.instagram.android",
-            "com.skype.raider",
-            "com.snapchat.android",
-            "com.viber.voip",
-            "com.twitter.android",
-            "com.android.phone",
-            "com.google.android.music",
-            "com.google.android.calendar",
-            "com.google.android.apps.genie.geniewidget",
-            "com.netflix.mediaclient",
-            "bbc.iplayer.android",
-            "com.google.android.videos",
-            "com.amazon.mShop.android.shopping",
-            "com.microsoft.office.word",
-            "com.google.android.apps.docs",
-            "com.google.android.keep",
-            "com.google.android.apps.plus",
-            "com.google.android.talk"
-    };
+    private final LaunchHistoryStore mHistory;
 
     public CustomAppPredictor(Context context) {
         mContext = context;
         mPrefs = Utilities.getPrefs(context);
         mPrefs.registerOnSharedPreferenceChangeListener(this);
-        mPackageManager = context.getPackageManager();
+        mHistory = LaunchHistoryStore.getInstance(context);
+        migratePredictionPrefs();
     }
 
     List<ComponentKeyMapper<AppInfo>> getPredictions() {
         List<ComponentKeyMapper<AppInfo>> list = new ArrayList<>();
         if (isPredictorEnabled()) {
-            clearNonExistentPackages();
-
-            List<String> predictionList = new ArrayList<>(getStringSetCopy());
-
-            Collections.sort(predictionList, new Comparator<String>() {
-                @Override
-                public int compare(String o1, String o2) {
-                    return Integer.compare(getLaunchCount(o2), getLaunchCount(o1));
-                }
-            });
-
-            for (String prediction : predictionList) {
+            for (String prediction : mHistory.getPredictions(MAX_PREDICTIONS)) {
                 list.add(getComponentFromString(prediction));
             }
-
-            if (list.size() < MAX_PREDICTIONS) {
-                for (String placeHolder : PLACE_HOLDERS) {
-                    Intent intent = mPackageManager.getLaunchIntentForPackage(placeHolder);
-                    if (intent != null) {
-                        ComponentName componentInfo = intent.getComponent();
-                        String prediction = componentInfo.getPackageName() + '/' + componentInfo.getClassName();
-                        if (!predictionList.contains(prediction)) {
-                            list.add(new ComponentKeyMapper<AppInfo>(new ComponentKey(componentInfo, Process.myUserHandle())));
-                        }
-                    }
-                }
-            }
-
-            if (list.size() > MAX_PREDICTIONS) {
-                list = list.subList(0, MAX_PREDICTIONS);
-            }
         }
         return list;
     }
@@ -115,43 +58,58 @@ public class CustomAppPredictor extends UserEventDispatcher implements SharedPre
     @Override
     public void logAppLaunch(View v, Intent intent) {
         super.logAppLaunch(v, intent);
-        if (isPredictorEnabled() && recursiveIsDrawer(v)) {
-            clearNonExistentPackages();
-
-            ComponentName componentInfo = intent.getComponent();
-            String prediction = componentInfo.getPackageName() + '/' + componentInfo.getClassName();
-
-            Set<String> predictionSet = getStringSetCopy();
-            SharedPreferences.Editor edit = mPrefs.edit();
+        ComponentName componentInfo = intent.getComponent();
+        if (isPredictorEnabled() && componentInfo != null) {
+            mHistory.onAppLaunched(
+                    componentInfo.getPackageName() + '/' + componentInfo.getClassName(),
+                    getLaunchSource(v));
+        }
+    }
 
-            if (predictionSet.contains(prediction)) {
-                edit.putInt(PREDICTION_PREFIX + prediction, getLaunchCount(prediction) + BOOST_ON_OPEN);
-            } else if (predictionSet.size() < MAX_PREDICTIONS || decayHasSpotFree(predictionSet, edit)) {
-                predictionSet.add(prediction);
+    private int getLaunchSource(View v) {
+        if (recursiveIsDrawer(v)) {
+            return AppPredictionModel.SOURCE_ALL_APPS;
+        }
+        if (v != null && v.getTag() instanceof ItemInfo) {
+            long container = ((ItemInfo) v.getTag()).container;
+            if (container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                    || container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                return AppPredictionModel.SOURCE_WORKSPACE;
+            } else if (container >= 0) {
+                return AppPredictionModel.SOURCE_FOLDER;
             }
-
-            edit.putStringSet(PREDICTION_SET, predictionSet);
-            edit.apply();
         }
+        return AppPredictionModel.SOURCE_OTHER;
     }
 
-    private boolean decayHasSpotFree(Set<String> toDecay, SharedPreferences.Editor edit) {
-        boolean spotFree = false;
-        Set<String> toRemove = new HashSet<>();
-        for (String prediction : toDecay) {
-            int launchCount = getLaunchCount(prediction);
-            if (launchCount > 0) {
-                edit.putInt(PREDICTION_PREFIX + prediction, --launchCount);
-            } else if (!spotFree) {
-                edit.remove(PREDICTION_PREFIX + prediction);
-                toRemove.add(prediction);
-                spotFree = true;
-            }
+    /**
+     * Moves the launch counts stored in the preferences to the launch history store. The counts
+     * are only removed once the history is written, so that they are not lost if the process
+     * dies before.
+     */
+    private void migratePredictionPrefs() {
+        if (sPrefsMigrated || !mPrefs.contains(PREDICTION_SET)) {
+            return;
         }
-        for (String prediction : toRemove) {
-            toDecay.remove(prediction);
+        // The preferences are still there until the history is written, so the counts must not
+        // be added again by another instance.
+        sPrefsMigrated = true;
+        final Set<String> predictions = getStringSetCopy();
+        HashMap<String, Double> scores = new HashMap<>();
+        for (String prediction : predictions) {
+            scores.put(prediction, (double) getLaunchCount(prediction) + 1);
         }
-        return spotFree;
+        mHistory.addScores(scores, new Runnable() {
+            @Override
+            public void run() {
+                SharedPreferences.Editor edit = mPrefs.edit();
+                for (String prediction : predictions) {
+                    edit.remove(PREDICTION_PREFIX + prediction);
+                }
+                edit.remove(PREDICTION_SET);
+                edit.apply();
+            }
+        });
     }
 
     /**
@@ -183,15 +141,8 @@ public class CustomAppPredictor extends UserEventDispatcher implements SharedPre
     @Override
     public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
         if (key.equals(SettingsActivity.SHOW_PREDICTIONS_PREF) && !isPredictorEnabled()) {
-            Set<String> predictionSet = getStringSetCopy();
-
-            SharedPreferences.Editor edit = mPrefs.edit();
-            for (String prediction : predictionSet) {
-                Log.i("Predictor", "Clearing " + prediction + " at " + getLaunchCount(prediction));
-                edit.remove(PREDICTION_PREFIX + prediction);
-            }
-            edit.putStringSet(PREDICTION_SET, EMPTY_SET);
-            edit.apply();
+            Log.i("Predictor", "Clearing launch history");
+            mHistory.clear();
         }
     }
 
@@ -200,24 +151,6 @@ public class CustomAppPredictor extends UserEventDispatcher implements SharedPre
         return new ComponentKeyMapper<>(new ComponentKey(new ComponentName(str.substring(0, index), str.substring(index + 1)), Process.myUserHandle()));
     }
 
-    private void clearNonExistentPackages() {
-        Set<String> originalSet = mPrefs.getStringSet(PREDICTION_SET, EMPTY_SET);
-        Set<String> predictionSet = new HashSet<>(originalSet);
-
-        SharedPreferences.Editor edit = mPrefs.edit();
-        for (String prediction : originalSet) {
-            try {
-                mPackageManager.getPackageInfo(prediction.substring(0, prediction.indexOf('/')), 0);
-            } catch (PackageManager.NameNotFoundException e) {
-                predictionSet.remove(prediction);
-                edit.remove(PREDICTION_PREFIX + prediction);
-            }
-        }
-
-        edit.putStringSet(PREDICTION_SET, predictionSet);
-        edit.apply();
-    }
-
     private Set<String> getStringSetCopy() {
         Set<String> set = new HashSet<>();
         set.addAll(mPrefs.getStringSet(PREDICTION_SET, EMPTY_SET));
@@ -0,0 +1,476 @@
+package com.google.android.apps.nexuslauncher;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import com.android.launcher3.LauncherFiles;
+import com.android.launcher3.LauncherModel;
+import com.android.launcher3.model.LaunchFrequencyModel;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Launch history of the apps, used for the predicted apps in all apps.
+ *
+ * The history is kept in memory in an {@link AppPredictionModel}. Changes are appended to a
+ * binary log on the worker thread, which is compacted into a snapshot of the model when it grows
+ * too long, and whenever it is loaded.
+ *
+ * The same launches also update {@link LaunchFrequencyModel}, which ranks the search results. It
+ * is kept separately as it covers the apps of all the users, and must not be cleared when the
+ * predictions are turned off. Both use its rank math, so the overall scores match.
+ */
+public class LaunchHistoryStore {
+    private static final String TAG = "LaunchHistoryStore";
+
+    private static final int FILE_MAGIC = 0x4C485331; // "LHS1"
+    private static final int FILE_VERSION = 2;
+    // Oldest version which can still be read, as later versions only add record types.
+    private static final int MIN_READ_VERSION = 1;
+
+    private static final byte RECORD_DEFINE = 1; // id, component
+    private static final byte RECORD_LAUNCH = 2; // id, time
+    private static final byte RECORD_RANK = 3; // id, rank
+    private static final byte RECORD_REMOVE = 4; // id
+    // Added in version 2
+    private static final byte RECORD_LAUNCH_FROM = 5; // id, time, source
+    private static final byte RECORD_SCORES = 6; // id, scores
+
+    // Records appended since the last compaction after which the log is compacted.
+    private static final int MAX_APPENDED_RECORDS = 512;
+    private static final long WRITE_DELAY_MS = 5000;
+
+    private static LaunchHistoryStore sInstance;
+    private static final Object sInstanceLock = new Object();
+
+    public static LaunchHistoryStore getInstance(Context context) {
+        synchronized (sInstanceLock) {
+            if (sInstance == null) {
+                sInstance = new LaunchHistoryStore(context.getApplicationContext());
+            }
+            return sInstance;
+        }
+    }
+
+    private final Context mContext;
+    private final Handler mWorkerHandler;
+
+    private final Object mLock = new Object();
+    private final AppPredictionModel mModel = new AppPredictionModel();
+    // Ids of the components defined in the log, which can be used in records.
+    private final BitSet mDefined = new BitSet();
+
+    // Records which have not been written to the log yet.
+    private final ByteArrayOutputStream mPendingBytes = new ByteArrayOutputStream();
+    private final DataOutputStream mPendingRecords = new DataOutputStream(mPendingBytes);
+    private int mAppendedRecords;
+    private boolean mNeedsCompaction = true;
+    // Callbacks to run once the next snapshot is written.
+    private final ArrayList<Runnable> mPersistedCallbacks = new ArrayList<>();
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            write();
+        }
+    };
+
+    private LaunchHistoryStore(Context context) {
+        mContext = context;
+        mWorkerHandler = new Handler(LauncherModel.getWorkerLooper());
+        mWorkerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                write();
+            }
+        });
+
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                synchronized (mLock) {
+                    mModel.setTimeZone(TimeZone.getTimeZone(intent.getStringExtra("time-zone")));
+                }
+            }
+        }, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED), null, mWorkerHandler);
+
+        IntentFilter packageFilter = new IntentFilter(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        mContext.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                    removePackage(intent.getData().getSchemeSpecificPart());
+                }
+            }
+        }, packageFilter, null, mWorkerHandler);
+    }
+
+    /**
+     * @param source one of the {@link AppPredictionModel} SOURCE_ constants.
+     */
+    public void onAppLaunched(String component, int source) {
+        long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            int id = getDefinedId(component);
+            mModel.onAppLaunched(id, now, source);
+            try {
+                writeLaunch(mPendingRecords, id, now, source);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            mAppendedRecords++;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Adds launches without context, decaying from now, to the components, and runs
+     * {@param onPersisted} on the worker thread once they are written to the disk.
+     *
+     * @param scores number of launches of each component.
+     */
+    public void addScores(Map<String, Double> scores, Runnable onPersisted) {
+        long now = System.currentTimeMillis();
+        synchronized (mLock) {
+            for (Map.Entry<String, Double> score : scores.entrySet()) {
+                mModel.addRank(mModel.getOrCreateId(score.getKey()),
+                        LaunchFrequencyModel.getRank(score.getValue(), now));
+            }
+            // Written in the snapshot of the model.
+            mNeedsCompaction = true;
+            mPersistedCallbacks.add(onPersisted);
+        }
+        mWorkerHandler.removeCallbacks(mWriteRunnable);
+        mWorkerHandler.post(mWriteRunnable);
+    }
+
+    /**
+     * Removes all the components of the package, e.g. when it is uninstalled.
+     */
+    public void removePackage(String packageName) {
+        String prefix = packageName + '/';
+        synchronized (mLock) {
+            for (int id = 0; id < mModel.getCount(); id++) {
+                if (mModel.hasScore(id) && mModel.getComponent(id).startsWith(prefix)) {
+                    removeLocked(id);
+                }
+            }
+        }
+        scheduleWrite();
+    }
+
+    private void removeLocked(int id) {
+        mModel.remove(id);
+        if (mDefined.get(id)) {
+            try {
+                writeRemove(mPendingRecords, id);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            mAppendedRecords++;
+        }
+    }
+
+    public void clear() {
+        synchronized (mLock) {
+            mModel.clear();
+            mNeedsCompaction = true;
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Returns the components most likely to be launched from all apps now, most likely first.
+     */
+    public List<String> getPredictions(int maxCount) {
+        int[] ids = new int[maxCount];
+        synchronized (mLock) {
+            int count = mModel.predict(System.currentTimeMillis(), ids);
+            List<String> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(mModel.getComponent(ids[i]));
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Returns the id of the component, and makes sure it is defined in the log.
+     */
+    private int getDefinedId(String component) {
+        int id = mModel.getOrCreateId(component);
+        if (!mDefined.get(id)) {
+            mDefined.set(id);
+            try {
+                writeDefine(mPendingRecords, id, component);
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+            }
+            mAppendedRecords++;
+        }
+        return id;
+    }
+
+    private void scheduleWrite() {
+        mWorkerHandler.removeCallbacks(mWriteRunnable);
+        mWorkerHandler.postDelayed(mWriteRunnable, WRITE_DELAY_MS);
+    }
+
+    private AtomicFile getFile() {
+        return new AtomicFile(mContext.getFileStreamPath(LauncherFiles.APP_LAUNCH_HISTORY));
+    }
+
+    /**
+     * Replays the log and merges it with the launches recorded since the process started.
+     */
+    private void load() {
+        AppPredictionModel loaded = new AppPredictionModel();
+        InputStream in = null;
+        try {
+            in = getFile().openRead();
+            replay(in, loaded, null);
+        } catch (FileNotFoundException e) {
+            // No launches recorded yet.
+        } catch (IOException e) {
+            // The last record may be incomplete, the log is compacted below anyway.
+            Log.e(TAG, "Error reading launch history", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+
+        synchronized (mLock) {
+            mModel.merge(loaded);
+            // The ids of the log do not match the ids in memory.
+            mNeedsCompaction = true;
+        }
+    }
+
+    /**
+     * Returns the launches recorded in a log, in order. Launches compacted into a snapshot of the
+     * scores are not included.
+     */
+    public static List<PredictionEvaluator.Launch> readLaunches(InputStream in)
+            throws IOException {
+        List<PredictionEvaluator.Launch> launches = new ArrayList<>();
+        replay(in, new AppPredictionModel(), launches);
+        return launches;
+    }
+
+    /**
+     * Applies the records of the log to the model, and adds the recorded launches to
+     * {@param outLaunches} if not null.
+     */
+    @VisibleForTesting
+    static void replay(InputStream stream, AppPredictionModel model,
+            @Nullable List<PredictionEvaluator.Launch> outLaunches) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        int version;
+        if (in.readInt() != FILE_MAGIC || (version = in.readInt()) < MIN_READ_VERSION
+                || version > FILE_VERSION) {
+            Log.w(TAG, "Ignoring launch history with unknown format");
+            return;
+        }
+        // Ids in the log to ids in the model.
+        SparseIntArray ids = new SparseIntArray();
+        while (true) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException e) {
+                return;
+            }
+            if (type == RECORD_DEFINE) {
+                int logId = in.readInt();
+                ids.put(logId, model.getOrCreateId(in.readUTF()));
+                continue;
+            }
+            int id = ids.get(in.readInt(), -1);
+            if (type == RECORD_LAUNCH || type == RECORD_LAUNCH_FROM) {
+                long time = in.readLong();
+                int source = type == RECORD_LAUNCH_FROM
+                        ? in.readByte() : AppPredictionModel.SOURCE_UNKNOWN;
+                if (id >= 0) {
+                    model.onAppLaunched(id, time, source);
+                    if (outLaunches != null) {
+                        outLaunches.add(new PredictionEvaluator.Launch(
+                                model.getComponent(id), time, source));
+                    }
+                }
+            } else if (type == RECORD_RANK) {
+                double rank = in.readDouble();
+                if (id >= 0) {
+                    model.setRank(id, rank);
+                }
+            } else if (type == RECORD_SCORES) {
+                if (id >= 0) {
+                    model.readScores(id, in);
+                } else {
+                    AppPredictionModel.skipScores(in);
+                }
+            } else if (type == RECORD_REMOVE) {
+                if (id >= 0) {
+                    model.remove(id);
+                }
+            } else {
+                Log.w(TAG, "Unknown record type " + type);
+                return;
+            }
+        }
+    }
+
+    private void write() {
+        byte[] records;
+        boolean compact;
+        ArrayList<Runnable> persistedCallbacks = null;
+        synchronized (mLock) {
+            compact = mNeedsCompaction || mAppendedRecords > MAX_APPENDED_RECORDS;
+            if (compact) {
+                records = getSnapshotLocked();
+                mNeedsCompaction = false;
+                mAppendedRecords = 0;
+                if (!mPersistedCallbacks.isEmpty()) {
+                    persistedCallbacks = new ArrayList<>(mPersistedCallbacks);
+                    mPersistedCallbacks.clear();
+                }
+            } else {
+                records = mPendingBytes.toByteArray();
+            }
+            mPendingBytes.reset();
+        }
+
+        if (compact) {
+            AtomicFile file = getFile();
+            FileOutputStream fos = null;
+            try {
+                fos = file.startWrite();
+                DataOutputStream out = new DataOutputStream(fos);
+                writeHeader(out);
+                out.write(records);
+                out.flush();
+                file.finishWrite(fos);
+            } catch (IOException e) {
+                Log.e(TAG, "Error writing launch history", e);
+                if (fos != null) {
+                    file.failWrite(fos);
+                }
+                synchronized (mLock) {
+                    mNeedsCompaction = true;
+                    if (persistedCallbacks != null) {
+                        mPersistedCallbacks.addAll(persistedCallbacks);
+                    }
+                }
+                return;
+            }
+            if (persistedCallbacks != null) {
+                for (Runnable callback : persistedCallbacks) {
+                    callback.run();
+                }
+            }
+        } else if (records.length > 0) {
+            File file = getFile().getBaseFile();
+            FileOutputStream out = null;
+            try {
+                out = new FileOutputStream(file, true);
+                out.write(records);
+            } catch (IOException e) {
+                Log.e(TAG, "Error appending launch history", e);
+                synchronized (mLock) {
+                    mNeedsCompaction = true;
+                }
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) { }
+                }
+            }
+        }
+    }
+
+    private byte[] getSnapshotLocked() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            writeSnapshot(new DataOutputStream(bytes), mModel, System.currentTimeMillis(),
+                    mDefined);
+        } catch (IOException e) {
+            // Not thrown by a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the records defining all the components with a significant score at {@param now},
+     * and their scores. The ids of these components are set in {@param outDefined}.
+     */
+    @VisibleForTesting
+    static void writeSnapshot(DataOutput out, AppPredictionModel model, long now,
+            BitSet outDefined) throws IOException {
+        double minRank = LaunchFrequencyModel.getMinRank(now);
+        outDefined.clear();
+        for (int id = 0; id < model.getCount(); id++) {
+            if (model.getRank(id) >= minRank) {
+                outDefined.set(id);
+                writeDefine(out, id, model.getComponent(id));
+                out.writeByte(RECORD_SCORES);
+                out.writeInt(id);
+                model.writeScores(id, out);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static void writeHeader(DataOutput out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+    }
+
+    @VisibleForTesting
+    static void writeDefine(DataOutput out, int id, String component) throws IOException {
+        out.writeByte(RECORD_DEFINE);
+        out.writeInt(id);
+        out.writeUTF(component);
+    }
+
+    @VisibleForTesting
+    static void writeLaunch(DataOutput out, int id, long time, int source) throws IOException {
+        out.writeByte(RECORD_LAUNCH_FROM);
+        out.writeInt(id);
+        out.writeLong(time);
+        out.writeByte(source);
+    }
+
+    @VisibleForTesting
+    static void writeRemove(DataOutput out, int id) throws IOException {
+        out.writeByte(RECORD_REMOVE);
+        out.writeInt(id);
+    }
+}
@@ -0,0 +1,88 @@
+package com.google.android.apps.nexuslauncher;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline evaluation of {@link AppPredictionModel}: replays a launch log, and before each launch
+ * from all apps, checks whether the launched app was among the predicted apps.
+ *
+ * A recorded log can be read with {@link LaunchHistoryStore#readLaunches}.
+ */
+public class PredictionEvaluator {
+
+    // Number of predicted apps visible in the first row of all apps.
+    private static final int[] HIT_COUNTS = new int[] {4, 5};
+
+    /**
+     * A launch to replay.
+     */
+    public static class Launch {
+        public final String component;
+        public final long time;
+        public final int source;
+
+        public Launch(String component, long time, int source) {
+            this.component = component;
+            this.time = time;
+            this.source = source;
+        }
+    }
+
+    public static class Result {
+        // Number of launches from all apps which were predicted.
+        public int predictedLaunches;
+        // For each count of HIT_COUNTS, number of launched apps within the first predictions.
+        public final int[] hits = new int[HIT_COUNTS.length];
+        // Same as hits, for predictions by launch frequency only.
+        public final int[] frequencyHits = new int[HIT_COUNTS.length];
+
+        public float getHitRate(int index) {
+            return predictedLaunches == 0 ? 0 : (float) hits[index] / predictedLaunches;
+        }
+
+        public float getFrequencyHitRate(int index) {
+            return predictedLaunches == 0 ? 0 : (float) frequencyHits[index] / predictedLaunches;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("launches=" + predictedLaunches);
+            for (int i = 0; i < HIT_COUNTS.length; i++) {
+                sb.append(String.format(Locale.US, " hit@%d=%.3f (frequency %.3f)",
+                        HIT_COUNTS[i], getHitRate(i), getFrequencyHitRate(i)));
+            }
+            return sb.toString();
+        }
+    }
+
+    public static Result evaluate(List<Launch> launches) {
+        AppPredictionModel model = new AppPredictionModel();
+        int[] predicted = new int[HIT_COUNTS[HIT_COUNTS.length - 1]];
+        Result result = new Result();
+        for (Launch launch : launches) {
+            int id = model.getOrCreateId(launch.component);
+            if (launch.source == AppPredictionModel.SOURCE_ALL_APPS) {
+                result.predictedLaunches++;
+                countHits(id, predicted, model.predict(launch.time, predicted), result.hits);
+                countHits(id, predicted, model.predictByFrequency(predicted),
+                        result.frequencyHits);
+            }
+            model.onAppLaunched(id, launch.time, launch.source);
+        }
+        return result;
+    }
+
+    private static void countHits(int id, int[] predicted, int count, int[] hits) {
+        for (int i = 0; i < count; i++) {
+            if (predicted[i] == id) {
+                for (int j = 0; j < HIT_COUNTS.length; j++) {
+                    if (i < HIT_COUNTS[j]) {
+                        hits[j]++;
+                    }
+                }
+                return;
+            }
+        }
+    }
+}
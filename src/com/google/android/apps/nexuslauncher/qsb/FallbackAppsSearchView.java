@@ -38,10 +38,17 @@ public class FallbackAppsSearchView extends ExtendedEditText implements AllAppsS
     }
 
     private void notifyResultChanged() {
-        mQsbLayout.useAlpha(0);
-        mAppsRecyclerView.onSearchResultsChanged();
+        mApps.runAfterPendingUpdate(mResultChangedRunnable);
     }
 
+    private final Runnable mResultChangedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mQsbLayout.useAlpha(0);
+            mAppsRecyclerView.onSearchResultsChanged();
+        }
+    };
+
     public void bu(AllAppsQsbLayout qsbLayout, AlphabeticalAppsList apps, AllAppsRecyclerView appsRecyclerView) {
         mQsbLayout = qsbLayout;
         mApps = apps;
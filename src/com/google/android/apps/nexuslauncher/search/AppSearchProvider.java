@@ -14,19 +14,22 @@ import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.android.launcher3.AllAppsList;
 import com.android.launcher3.AppInfo;
+import com.android.launcher3.IconCache;
 import com.android.launcher3.LauncherAppState;
 import com.android.launcher3.LauncherModel;
 import com.android.launcher3.allapps.AppInfoComparator;
 import com.android.launcher3.allapps.search.DefaultAppSearchAlgorithm;
 import com.android.launcher3.compat.UserManagerCompat;
 import com.android.launcher3.model.BgDataModel;
+import com.android.launcher3.model.LaunchFrequencyModel;
 import com.android.launcher3.model.LoaderResults;
 import com.android.launcher3.util.ComponentKey;
-import com.android.launcher3.util.LooperExecutor;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -35,7 +38,6 @@ import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -43,18 +45,27 @@ import java.util.concurrent.TimeoutException;
 public class AppSearchProvider extends ContentProvider
 {
     private static final String[] eK = new String[] { "_id", "suggest_text_1", "suggest_icon_1", "suggest_intent_action", "suggest_intent_data" };
-    private final PipeDataWriter<Future> eL;
-    private LooperExecutor eM;
+    // Upper bound for the encoded icons kept in memory, in bytes.
+    private static final int MAX_ENCODED_ICON_CACHE_SIZE = 1 << 20;
+
+    private final PipeDataWriter<ComponentKey> eL;
+    private final LruCache<ComponentKey, EncodedIcon> mEncodedIcons;
     private LauncherAppState mApp;
 
     public AppSearchProvider() {
-        this.eL = new PipeDataWriter<Future>() {
+        this.mEncodedIcons = new LruCache<ComponentKey, EncodedIcon>(MAX_ENCODED_ICON_CACHE_SIZE) {
             @Override
-            public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri, @NonNull String mimeType, @Nullable Bundle opts, @Nullable Future args) {
+            protected int sizeOf(ComponentKey key, EncodedIcon value) {
+                return value.bytes.length;
+            }
+        };
+        this.eL = new PipeDataWriter<ComponentKey>() {
+            @Override
+            public void writeDataToPipe(@NonNull ParcelFileDescriptor output, @NonNull Uri uri, @NonNull String mimeType, @Nullable Bundle opts, @Nullable ComponentKey args) {
                 ParcelFileDescriptor.AutoCloseOutputStream outStream = null;
                 try {
                     outStream = new ParcelFileDescriptor.AutoCloseOutputStream(output);
-                    ((Bitmap) args.get()).compress(Bitmap.CompressFormat.PNG, 100, outStream);
+                    outStream.write(getEncodedIcon(args));
                 } catch (Throwable e) {
                     Log.w("AppSearchProvider", "fail to write to pipe", e);
                 }
@@ -68,6 +79,34 @@ public class AppSearchProvider extends ContentProvider
         };
     }
 
+    /**
+     * Loads the icon directly from the icon cache. {@link IconCache} is thread safe, so
+     * concurrent requests do not need to be serialized on the model thread.
+     */
+    private Bitmap loadIcon(final ComponentKey key) {
+        final AppItemInfoWithIcon info = new AppItemInfoWithIcon(key);
+        this.mApp.getIconCache().getTitleAndIcon(info, false);
+        return info.iconBitmap;
+    }
+
+    /**
+     * Returns the icon encoded as png. The encoded bytes are reused as long as the icon cache
+     * returns the same bitmap for the component.
+     */
+    private byte[] getEncodedIcon(final ComponentKey key) {
+        final Bitmap icon = loadIcon(key);
+        final int version = icon.getGenerationId();
+        final EncodedIcon cached = this.mEncodedIcons.get(key);
+        if (cached != null && cached.version == version) {
+            return cached.bytes;
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        icon.compress(Bitmap.CompressFormat.PNG, 100, out);
+        final byte[] bytes = out.toByteArray();
+        this.mEncodedIcons.put(key, new EncodedIcon(version, bytes));
+        return bytes;
+    }
+
     public static ComponentKey dl(final Uri uri, final Context context) {
         return new ComponentKey(ComponentName.unflattenFromString(uri.getQueryParameter("component")), UserManagerCompat.getInstance(context).getUserForSerialNumber(Long.parseLong(uri.getQueryParameter("user"))));
     }
@@ -92,6 +131,29 @@ public class AppSearchProvider extends ContentProvider
         return matrixCursor;
     }
 
+    /**
+     * Returns the apps matching the lower case query, ordered by relevance.
+     * Must be called on the model thread.
+     */
+    static List<AppInfo> searchApps(final LauncherAppState app, final AllAppsList allAppsList,
+                                    final String query) {
+        final ArrayList<AppInfo> list = new ArrayList<>();
+        final DefaultAppSearchAlgorithm.StringMatcher instance = DefaultAppSearchAlgorithm.StringMatcher.getInstance();
+        for (final AppInfo appInfo : allAppsList.data) {
+            if (DefaultAppSearchAlgorithm.matches(appInfo, query, instance)) {
+                list.add(appInfo);
+                if (!appInfo.usingLowResIcon) {
+                    continue;
+                }
+                app.getIconCache().getTitleAndIcon(appInfo, false);
+            }
+        }
+        Collections.sort(list, new AppInfoComparator(app.getContext()));
+        DefaultAppSearchAlgorithm.sortByLaunchFrequency(list,
+                LaunchFrequencyModel.getInstance(app.getContext()));
+        return list;
+    }
+
     public Bundle call(final String s, final String s2, final Bundle bundle) {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             Log.d("AppSearchProvider", "Content provider accessed on main thread");
@@ -101,12 +163,7 @@ public class AppSearchProvider extends ContentProvider
             try {
                 final Uri parse = Uri.parse(s2);
                 final ComponentKey dl = dl(parse, this.getContext());
-                final LooperExecutor em = this.eM;
-                final g g = new g(this, dl);
-                final LooperExecutor looperExecutor = em;
-                final Future<Bitmap> submit = looperExecutor.submit((Callable<Bitmap>)g);
-                final Bitmap value = submit.get();
-                final Bitmap bitmap = value;
+                final Bitmap bitmap = loadIcon(dl);
                 final Bundle bundle2 = new Bundle();
                 bundle2.putParcelable("suggest_icon_1", bitmap);
                 return bundle2;
@@ -132,7 +189,6 @@ public class AppSearchProvider extends ContentProvider
     }
 
     public boolean onCreate() {
-        this.eM = new LooperExecutor(LauncherModel.getWorkerLooper());
         this.mApp = LauncherAppState.getInstance(this.getContext());
         return true;
     }
@@ -144,12 +200,7 @@ public class AppSearchProvider extends ContentProvider
         }
         try {
             final ComponentKey dl = dl(uri, this.getContext());
-            final String s2 = "image/png";
-            final LooperExecutor em = this.eM;
-            final g g = new g(this, dl);
-            final LooperExecutor looperExecutor = em;
-            final Future<Object> submit = looperExecutor.submit((Callable<Object>)g);
-            return this.openPipeHelper(uri, s2, null, submit, this.eL);
+            return this.openPipeHelper(uri, "image/png", null, dl, this.eL);
         }
         catch (Exception ex) {
             throw new FileNotFoundException(ex.getMessage());
@@ -203,20 +254,7 @@ public class AppSearchProvider extends ContentProvider
                 Log.d("AppSearchProvider", "Loading workspace failed");
                 return Collections.emptyList();
             }
-            final ArrayList<AppInfo> list = new ArrayList<>();
-            final ArrayList<AppInfo> data = this.mAllAppsList.data;
-            final DefaultAppSearchAlgorithm.StringMatcher instance = DefaultAppSearchAlgorithm.StringMatcher.getInstance();
-            for (final AppInfo appInfo : data) {
-                if (DefaultAppSearchAlgorithm.matches(appInfo, this.mQuery, instance)) {
-                    list.add(appInfo);
-                    if (!appInfo.usingLowResIcon) {
-                        continue;
-                    }
-                    this.mApp.getIconCache().getTitleAndIcon(appInfo, false);
-                }
-            }
-            Collections.sort(list, new AppInfoComparator(this.mApp.getContext()));
-            return list;
+            return searchApps(this.mApp, this.mAllAppsList, this.mQuery);
         }
 
         public void init(final LauncherAppState mApp, final LauncherModel mModel, final BgDataModel mBgDataModel, final AllAppsList mAllAppsList, final Executor executor) {
@@ -231,20 +269,14 @@ public class AppSearchProvider extends ContentProvider
         }
     }
 
-    class g implements Callable
+    private static class EncodedIcon
     {
-        final ComponentKey eO;
-        final /* synthetic */ AppSearchProvider eP;
-
-        public g(final AppSearchProvider ep, final ComponentKey eo) {
-            this.eP = ep;
-            this.eO = eo;
-        }
+        final int version;
+        final byte[] bytes;
 
-        public Bitmap call() {
-            final AppItemInfoWithIcon d = new AppItemInfoWithIcon(this.eO);
-            this.eP.mApp.getIconCache().getTitleAndIcon(d, false);
-            return d.iconBitmap;
+        EncodedIcon(final int version, final byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
         }
     }
 }
@@ -1,64 +1,53 @@
 package com.google.android.apps.nexuslauncher.search;
 
 import android.content.Context;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
+import android.util.Log;
 
+import com.android.launcher3.AllAppsList;
+import com.android.launcher3.AppInfo;
+import com.android.launcher3.LauncherAppState;
+import com.android.launcher3.LauncherModel;
 import com.android.launcher3.allapps.search.AllAppsSearchBarController;
 import com.android.launcher3.allapps.search.SearchAlgorithm;
+import com.android.launcher3.model.BgDataModel;
+import com.android.launcher3.model.LoaderResults;
 
+import java.util.concurrent.Executor;
+
+/**
+ * Searches the apps directly on the model thread. Unlike {@link AppSearchProvider}, which is
+ * kept for external callers, this does not go through a cursor or any uri parsing.
+ */
 public class SearchThread implements SearchAlgorithm, Handler.Callback {
-    private static HandlerThread handlerThread;
-    private final Handler mHandler;
+    private static final int MSG_RESULT = 200;
+
     private final Context mContext;
     private final Handler mUiHandler;
 
+    // Incremented for every new request, so that superseded searches can be skipped.
+    private volatile int mRequestId;
+    // Results of requests up to this id are no longer delivered.
+    private int mInterruptedRequestId;
+
     public SearchThread(Context context) {
         mContext = context;
         mUiHandler = new Handler(this);
-        if (handlerThread == null) {
-            handlerThread = new HandlerThread("search-thread", -2);
-            handlerThread.start();
-        }
-        mHandler = new Handler(SearchThread.handlerThread.getLooper(), this);
-    }
-
-    private void dj(SearchResult componentList) {
-        Uri uri = new Uri.Builder()
-                .scheme("content")
-                .authority("com.google.android.apps.nexuslauncher.appssearch")
-                .appendPath(componentList.mQuery)
-                .build();
-
-        Cursor cursor = null;
-        try {
-            cursor = mContext.getContentResolver().query(uri, null, null, null, null);
-            int suggestIntentData = cursor.getColumnIndex("suggest_intent_data");
-            while (cursor.moveToNext()) {
-                componentList.mApps.add(AppSearchProvider.dl(Uri.parse(cursor.getString(suggestIntentData)), mContext));
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
-
-        Message.obtain(mUiHandler, 200, componentList).sendToTarget();
     }
 
     public void cancel(boolean interruptActiveRequests) {
-        mHandler.removeMessages(100);
+        mRequestId++;
         if (interruptActiveRequests) {
-            mUiHandler.removeMessages(200);
+            mInterruptedRequestId = mRequestId;
+            mUiHandler.removeMessages(MSG_RESULT);
         }
     }
 
     public void doSearch(String query, AllAppsSearchBarController.Callbacks callback) {
-        mHandler.removeMessages(100);
-        Message.obtain(mHandler, 100, new SearchResult(query, callback)).sendToTarget();
+        int requestId = ++mRequestId;
+        LauncherAppState.getInstance(mContext).getModel()
+                .enqueueModelUpdateTask(new SearchTask(new SearchResult(query, callback), requestId));
     }
 
     public boolean handleMessage(final Message message) {
@@ -66,16 +55,60 @@ public class SearchThread implements SearchAlgorithm, Handler.Callback {
             default: {
                 return false;
             }
-            case 100: {
-                dj((SearchResult) message.obj);
-                break;
-            }
-            case 200: {
-                SearchResult searchResult = (SearchResult) message.obj;
-                searchResult.mCallbacks.onSearchResult(searchResult.mQuery, searchResult.mApps);
+            case MSG_RESULT: {
+                if (message.arg1 > mInterruptedRequestId) {
+                    SearchResult searchResult = (SearchResult) message.obj;
+                    searchResult.mCallbacks.onSearchResult(searchResult.mQuery, searchResult.mApps);
+                }
                 break;
             }
         }
         return true;
     }
+
+    private class SearchTask implements LauncherModel.ModelUpdateTask {
+        private final SearchResult mResult;
+        private final int mId;
+        private LauncherAppState mApp;
+        private LauncherModel mModel;
+        private BgDataModel mBgDataModel;
+        private AllAppsList mAllAppsList;
+
+        SearchTask(SearchResult result, int id) {
+            mResult = result;
+            mId = id;
+        }
+
+        @Override
+        public void init(LauncherAppState app, LauncherModel model, BgDataModel dataModel,
+                         AllAppsList allAppsList, Executor uiExecutor) {
+            mApp = app;
+            mModel = model;
+            mBgDataModel = dataModel;
+            mAllAppsList = allAppsList;
+        }
+
+        @Override
+        public void run() {
+            if (mId != mRequestId) {
+                // A newer search was started or the search was cancelled.
+                return;
+            }
+            if (!mModel.isModelLoaded()) {
+                // Loads synchronously, as this runs on the worker thread.
+                Log.d("SearchThread", "Workspace not loaded, loading now");
+                mModel.startLoaderForResults(
+                        new LoaderResults(mApp, mBgDataModel, mAllAppsList, 0, null));
+            }
+            if (mModel.isModelLoaded()) {
+                for (AppInfo info : AppSearchProvider.searchApps(mApp, mAllAppsList,
+                        mResult.mQuery.toLowerCase())) {
+                    mResult.mApps.add(info.toComponentKey());
+                }
+            } else {
+                Log.d("SearchThread", "Loading workspace failed");
+            }
+            Message.obtain(mUiHandler, MSG_RESULT, mId, 0, mResult).sendToTarget();
+        }
+    }
 }
@@ -0,0 +1,184 @@
+package com.android.launcher3;
+
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.AtomicFile;
+
+import com.android.launcher3.compat.UserManagerCompat;
+
+import org.json.JSONObject;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests for {@link InstallQueueJournal}
+ */
+@SmallTest
+public class InstallQueueJournalTest extends AndroidTestCase {
+
+    // Writes synchronously, so that the file can be checked right away.
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable r) {
+            r.run();
+        }
+    };
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFile = new File(getContext().getCacheDir(), "install_queue_test.bin");
+        mFile.delete();
+        getBackupFile().delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        getBackupFile().delete();
+        super.tearDown();
+    }
+
+    public void testRemovePackages_matchesPackageAndUser() {
+        InstallQueueJournal journal = createJournal();
+        journal.add("pkg.a", 0, new byte[] {1});
+        journal.add("pkg.a", 10, new byte[] {2});
+        journal.add("pkg.b", 0, new byte[] {3});
+        journal.add(null, 0, new byte[] {4});
+
+        journal.removePackages(Collections.singleton("pkg.a"), 0);
+        assertData(journal.getEntries(), 2, 3, 4);
+        assertData(createJournal().getEntries(), 2, 3, 4);
+
+        journal.removePackages(Arrays.asList("pkg.a", "pkg.b"), 10);
+        assertData(journal.getEntries(), 3, 4);
+        assertData(createJournal().getEntries(), 3, 4);
+    }
+
+    public void testReload_afterAppend() {
+        InstallQueueJournal journal = createJournal();
+        journal.add("pkg.a", 0, new byte[] {1});
+        // Appended to the file written for the first item.
+        journal.add("pkg.b", 10, new byte[] {2, 3});
+
+        List<InstallQueueJournal.Entry> entries = createJournal().getEntries();
+        assertData(entries, 1, 2);
+        assertEquals("pkg.b", entries.get(1).packageName);
+        assertEquals(10, entries.get(1).userSerial);
+        assertTrue(Arrays.equals(new byte[] {2, 3}, entries.get(1).data));
+    }
+
+    public void testReload_afterDrain() {
+        InstallQueueJournal journal = createJournal();
+        journal.add("pkg.a", 0, new byte[] {1});
+        journal.add("pkg.b", 0, new byte[] {2});
+        assertData(journal.drain(), 1, 2);
+        assertTrue(createJournal().isEmpty());
+
+        journal.add("pkg.c", 0, new byte[] {3});
+        assertData(createJournal().getEntries(), 3);
+    }
+
+    public void testReload_afterDrainWithBackup() {
+        InstallQueueJournal journal = createJournal();
+        journal.add("pkg.a", 0, new byte[] {1});
+        // Left by a rewrite which failed, and read instead of the file if still there.
+        assertTrue(mFile.renameTo(getBackupFile()));
+
+        assertData(journal.drain(), 1);
+        assertFalse(getBackupFile().exists());
+        assertTrue(createJournal().isEmpty());
+    }
+
+    public void testRewrite_afterManyRecords() {
+        InstallQueueJournal journal = createJournal();
+        journal.add("pkg.a", 0, new byte[] {1});
+        long singleItemLength = mFile.length();
+        for (int i = 0; i < 4 * InstallQueueJournal.MAX_EXTRA_RECORDS; i++) {
+            journal.add("pkg.b", 0, new byte[] {2});
+            journal.removePackages(Collections.singleton("pkg.b"), 0);
+        }
+
+        // Only the records since the last rewrite are kept.
+        assertTrue(mFile.length()
+                < singleItemLength * (InstallQueueJournal.MAX_EXTRA_RECORDS + 2));
+        assertData(createJournal().getEntries(), 1);
+    }
+
+    public void testReload_truncatedLastRecord() throws Exception {
+        InstallQueueJournal journal = createJournal();
+        journal.add("pkg.a", 0, new byte[] {1});
+        journal.add("pkg.b", 0, new byte[] {2, 3, 4});
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.setLength(file.length() - 2);
+        file.close();
+
+        journal = createJournal();
+        assertData(journal.getEntries(), 1);
+        // The incomplete record was removed from the file.
+        journal.add("pkg.c", 0, new byte[] {5});
+        assertData(createJournal().getEntries(), 1, 5);
+    }
+
+    public void testReload_invalidItemLength() throws Exception {
+        createJournal().add("pkg.a", 0, new byte[] {1});
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile, true));
+        out.writeByte(1); // Add record
+        out.writeInt(1); // id
+        out.writeBoolean(false); // No package
+        out.writeLong(0); // User
+        out.writeInt(Integer.MAX_VALUE); // Item length
+        out.close();
+
+        assertData(createJournal().getEntries(), 1);
+    }
+
+    public void testMigrateInstallQueue() {
+        Intent intent = new Intent(Intent.ACTION_MAIN).setClassName("pkg.a", "pkg.a.Main");
+        String encoded = "{\"intent.launch\":" + JSONObject.quote(intent.toUri(0)) + "}";
+        SharedPreferences prefs = Utilities.getPrefs(getContext());
+        prefs.edit().putStringSet(InstallShortcutReceiver.APPS_PENDING_INSTALL,
+                new HashSet<>(Collections.singleton(encoded))).commit();
+
+        InstallQueueJournal journal = createJournal();
+        InstallShortcutReceiver.migrateInstallQueueLocked(getContext(), journal);
+
+        assertFalse(prefs.contains(InstallShortcutReceiver.APPS_PENDING_INSTALL));
+        List<InstallQueueJournal.Entry> entries = createJournal().getEntries();
+        assertEquals(1, entries.size());
+        assertEquals("pkg.a", entries.get(0).packageName);
+        assertEquals(UserManagerCompat.getInstance(getContext())
+                .getSerialNumberForUser(Process.myUserHandle()), entries.get(0).userSerial);
+    }
+
+    private File getBackupFile() {
+        return new File(mFile.getPath() + ".bak");
+    }
+
+    private InstallQueueJournal createJournal() {
+        return new InstallQueueJournal(new AtomicFile(mFile), DIRECT_EXECUTOR);
+    }
+
+    /**
+     * Asserts that the entries are the items with the given single byte data, in order.
+     */
+    private static void assertData(List<InstallQueueJournal.Entry> entries, int... data) {
+        assertEquals(data.length, entries.size());
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(data[i], entries.get(i).data[0]);
+        }
+    }
+}
@@ -20,10 +20,16 @@ import android.support.test.runner.AndroidJUnit4;
 
 import com.android.launcher3.AppInfo;
 import com.android.launcher3.Utilities;
+import com.android.launcher3.model.LaunchFrequencyModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -90,6 +96,21 @@ public class DefaultAppSearchAlgorithmTest {
         assertFalse(DefaultAppSearchAlgorithm.matches(getInfo("abc"), "åç", MATCHER));
     }
 
+    @Test
+    public void testSortByRank_keepsOrderOfTies() {
+        AppInfo blackCow = getInfo("black cow");
+        AppInfo cowboy = getInfo("Cowboy");
+        AppInfo whiteCow = getInfo("white cow");
+        AppInfo cow = getInfo("cow");
+        List<AppInfo> apps = new ArrayList<>(Arrays.asList(blackCow, cowboy, whiteCow, cow));
+
+        double none = LaunchFrequencyModel.NO_RANK;
+        DefaultAppSearchAlgorithm.sortByRank(apps, new double[] {none, 2, none, 5});
+
+        // Launched apps come first, the remaining order is preserved.
+        assertEquals(Arrays.asList(cow, cowboy, blackCow, whiteCow), apps);
+    }
+
     private AppInfo getInfo(String title) {
         AppInfo info = new AppInfo();
         info.title = title;
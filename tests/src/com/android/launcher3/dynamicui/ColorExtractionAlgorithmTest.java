@@ -0,0 +1,88 @@
+package com.android.launcher3.dynamicui;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.android.launcher3.dynamicui.ColorExtractionAlgorithm.ColorRange;
+import com.android.launcher3.dynamicui.ColorExtractionAlgorithm.TonalPalette;
+
+import java.util.Random;
+
+/**
+ * Tests for {@link ColorExtractionAlgorithm} lookups, which must return the same results as
+ * scanning all the palettes and blacklisted ranges.
+ */
+@SmallTest
+public class ColorExtractionAlgorithmTest extends AndroidTestCase {
+
+    private static final String TAG = "ColorExtractionTest";
+
+    private static final int HUE_STEPS = 100000;
+    private static final int ITERATIONS = 200000;
+
+    private final TonalPalette[] mPalettes = ColorExtractionAlgorithm.TONAL_PALETTES;
+
+    public void testFindTonalPalette_sameAsLinearSearch() {
+        for (int i = 0; i <= HUE_STEPS; i++) {
+            float hue = (float) i / HUE_STEPS;
+            assertSame("Hue " + hue,
+                    ColorExtractionAlgorithm.findTonalPaletteLinear(mPalettes, hue),
+                    ColorExtractionAlgorithm.findTonalPalette(hue, 1f));
+        }
+        for (TonalPalette palette : mPalettes) {
+            float[] hues = new float[] {palette.minHue, palette.maxHue,
+                    ColorExtractionAlgorithm.fract(palette.minHue),
+                    ColorExtractionAlgorithm.fract(palette.maxHue)};
+            for (float hue : hues) {
+                assertSame("Hue " + hue,
+                        ColorExtractionAlgorithm.findTonalPaletteLinear(mPalettes, hue),
+                        ColorExtractionAlgorithm.findTonalPalette(hue, 1f));
+            }
+        }
+    }
+
+    public void testIsBlacklisted_sameAsColorRanges() {
+        Random random = new Random(42);
+        float[] hsl = new float[3];
+        for (int i = 0; i < ITERATIONS; i++) {
+            hsl[0] = random.nextFloat() * 360;
+            hsl[1] = random.nextFloat();
+            hsl[2] = random.nextFloat();
+            assertEquals(isBlacklistedByRanges(hsl), ColorExtractionAlgorithm.isBlacklisted(hsl));
+        }
+    }
+
+    public void testLookupPerformance() {
+        Random random = new Random(42);
+        float[] hues = new float[ITERATIONS];
+        for (int i = 0; i < ITERATIONS; i++) {
+            hues[i] = random.nextFloat();
+        }
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (float hue : hues) {
+            ColorExtractionAlgorithm.findTonalPaletteLinear(mPalettes, hue);
+        }
+        long linearTime = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (float hue : hues) {
+            ColorExtractionAlgorithm.findTonalPalette(hue, 1f);
+        }
+        long indexedTime = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.d(TAG, "findTonalPalette: linear=" + linearTime / ITERATIONS + "ns indexed="
+                + indexedTime / ITERATIONS + "ns per lookup");
+    }
+
+    private static boolean isBlacklistedByRanges(float[] hsl) {
+        for (ColorRange range : ColorExtractionAlgorithm.BLACKLISTED_COLORS) {
+            if (range.containsColor(hsl[0], hsl[1], hsl[2])) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
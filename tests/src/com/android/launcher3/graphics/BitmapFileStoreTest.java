@@ -0,0 +1,76 @@
+package com.android.launcher3.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Tests for {@link BitmapFileStore}
+ */
+@SmallTest
+public class BitmapFileStoreTest extends AndroidTestCase {
+
+    private File mTempDir;
+    private BitmapFileStore mStore;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int count = 0;
+        do {
+            mTempDir = new File(getContext().getCacheDir(), "bitmap-store-test-" + (count++));
+        } while(!mTempDir.mkdir());
+        mStore = new BitmapFileStore(mTempDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.retainAll(Collections.<String>emptySet());
+        mTempDir.delete();
+        super.tearDown();
+    }
+
+    public void testWriteAndRead() throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(20, 10, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        bitmap.setPixel(3, 4, Color.BLUE);
+
+        assertTrue(mStore.write("preview", bitmap) > 0);
+        Bitmap read = mStore.read("preview", null);
+        assertNotNull(read);
+        assertTrue(bitmap.sameAs(read));
+    }
+
+    public void testReadIntoRecycledBitmap() throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(20, 10, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.GREEN);
+        mStore.write("preview", bitmap);
+
+        Bitmap recycle = Bitmap.createBitmap(30, 30, Bitmap.Config.ARGB_8888);
+        Bitmap read = mStore.read("preview", recycle);
+        assertSame(recycle, read);
+        assertEquals(20, read.getWidth());
+        assertEquals(10, read.getHeight());
+        assertTrue(bitmap.sameAs(read));
+
+        // Too small to hold the stored bitmap
+        Bitmap small = Bitmap.createBitmap(5, 5, Bitmap.Config.ARGB_8888);
+        assertNotSame(small, mStore.read("preview", small));
+    }
+
+    public void testDeleteAndRetain() throws Exception {
+        Bitmap bitmap = Bitmap.createBitmap(4, 4, Bitmap.Config.ARGB_8888);
+        mStore.write("a", bitmap);
+        mStore.write("b", bitmap);
+
+        mStore.delete("a");
+        assertNull(mStore.read("a", null));
+
+        mStore.retainAll(Collections.singleton("a"));
+        assertNull(mStore.read("b", null));
+    }
+}
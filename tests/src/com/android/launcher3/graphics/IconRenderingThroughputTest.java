@@ -0,0 +1,94 @@
+package com.android.launcher3.graphics;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.graphics.drawable.AdaptiveIconDrawable;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.graphics.drawable.ShapeDrawable;
+import android.graphics.drawable.shapes.OvalShape;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.launcher3.Utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput of {@link LauncherIcons#createBadgedIconBitmap} when icons are rendered
+ * on several threads at once.
+ */
+@LargeTest
+public class IconRenderingThroughputTest extends AndroidTestCase {
+
+    private static final String TAG = "IconRenderingThroughput";
+
+    private static final int ICON_COUNT = 500;
+    private static final int[] THREAD_COUNTS = new int[] {1, 2, 4, 8};
+
+    public void testRenderingThroughput() throws Exception {
+        // Warm up the singletons, so that their creation is not measured.
+        renderIcons(1, 10);
+
+        for (int threads : THREAD_COUNTS) {
+            long start = SystemClock.uptimeMillis();
+            renderIcons(threads, ICON_COUNT);
+            long duration = Math.max(1, SystemClock.uptimeMillis() - start);
+            Log.d(TAG, threads + " threads: " + ICON_COUNT + " icons in " + duration + "ms ("
+                    + (ICON_COUNT * 1000 / duration) + " icons/s)");
+        }
+    }
+
+    private void renderIcons(int threads, int count) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Bitmap>> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final boolean adaptive = (i % 2) == 0;
+                final int color = Color.HSVToColor(new float[] {(i * 7) % 360, 0.8f, 0.8f});
+                results.add(executor.submit(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() throws Exception {
+                        return renderIcon(adaptive, color);
+                    }
+                }));
+            }
+            for (Future<Bitmap> result : results) {
+                assertNotNull(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Bitmap renderIcon(boolean adaptive, int color) {
+        Drawable icon;
+        int targetSdk;
+        if (adaptive && Utilities.ATLEAST_OREO) {
+            icon = new AdaptiveIconDrawable(new ColorDrawable(color), createLegacyIcon(color));
+            targetSdk = Build.VERSION_CODES.O;
+        } else {
+            icon = createLegacyIcon(color);
+            targetSdk = Build.VERSION_CODES.N;
+        }
+        return LauncherIcons.createBadgedIconBitmap(
+                icon, Process.myUserHandle(), getContext(), targetSdk);
+    }
+
+    private static Drawable createLegacyIcon(int color) {
+        ShapeDrawable icon = new ShapeDrawable(new OvalShape());
+        icon.getPaint().setColor(color);
+        icon.setIntrinsicWidth(96);
+        icon.setIntrinsicHeight(96);
+        return icon;
+    }
+}
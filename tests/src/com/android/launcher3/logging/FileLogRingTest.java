@@ -0,0 +1,132 @@
+package com.android.launcher3.logging;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.logging.FileLog.LogRing;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tests for the ring buffer format of {@link FileLog}
+ */
+@SmallTest
+public class FileLogRingTest extends AndroidTestCase {
+
+    private static final String TAG = "Testing";
+
+    private ByteBuffer mBuffer;
+    private LogRing mRing;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBuffer = ByteBuffer.allocate(FileLog.LOG_FILE_SIZE);
+        mRing = LogRing.create(mBuffer);
+    }
+
+    public void testReserve_roundsToSlots() {
+        assertEquals(0, mRing.reserve(1));
+        assertEquals(LogRing.SLOT_SIZE, mRing.reserve(LogRing.SLOT_SIZE));
+        assertEquals(2 * LogRing.SLOT_SIZE, mRing.reserve(LogRing.SLOT_SIZE + 1));
+        assertEquals(4 * LogRing.SLOT_SIZE, mRing.reserve(1));
+    }
+
+    public void testReserve_padsEndOfBuffer() {
+        assertEquals(0, mRing.reserve(LogRing.CAPACITY - LogRing.SLOT_SIZE));
+        // Does not fit in the last slot, so it starts at the beginning of the buffer.
+        assertEquals(LogRing.CAPACITY, mRing.reserve(2 * LogRing.SLOT_SIZE));
+        assertEquals(LogRing.CAPACITY + 2 * LogRing.SLOT_SIZE, mRing.reserve(1));
+    }
+
+    public void testDump_recordsInOrder() {
+        mRing.append(1000, getTag(), "first");
+        mRing.append(2000, getTag(), "second");
+
+        String[] lines = dump().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].endsWith(TAG + " first"));
+        assertTrue(lines[1].endsWith(TAG + " second"));
+    }
+
+    public void testDump_afterPadding() {
+        // Leaves less than a record of space at the end of the buffer.
+        int fillerLength = LogRing.CAPACITY - LogRing.RECORD_OVERHEAD - getTag().length
+                - 2 * LogRing.SLOT_SIZE;
+        mRing.append(1000, getTag(), repeat('a', fillerLength));
+        mRing.append(2000, getTag(), repeat('b', 2 * LogRing.SLOT_SIZE));
+
+        // The new record overwrites the start of the filler, which is no longer valid.
+        String[] lines = dump().split("\n");
+        assertEquals(1, lines.length);
+        assertTrue(lines[0].endsWith(repeat('b', 2 * LogRing.SLOT_SIZE)));
+    }
+
+    public void testDump_afterWrap() {
+        // Each record fits in a single slot.
+        int slotCount = LogRing.CAPACITY / LogRing.SLOT_SIZE;
+        int count = slotCount + 100;
+        for (int i = 0; i < count; i++) {
+            mRing.append(1000, getTag(), String.format("record-%05d", i));
+        }
+
+        String dump = dump();
+        assertEquals(slotCount, dump.split("\n").length);
+        assertFalse(dump.contains(String.format("record-%05d", count - slotCount - 1)));
+        assertTrue(dump.contains(String.format("record-%05d", count - slotCount)));
+        assertTrue(dump.contains(String.format("record-%05d", count - 1)));
+    }
+
+    public void testDump_skipsIncompleteRecord() {
+        mRing.append(1000, getTag(), "first");
+        mRing.append(2000, getTag(), "second");
+        mRing.append(3000, getTag(), "third");
+        // The marker of a record is only set once it is fully written.
+        mBuffer.putInt(LogRing.HEADER_SIZE + LogRing.SLOT_SIZE, 0);
+
+        String dump = dump();
+        assertTrue(dump.contains("first"));
+        assertFalse(dump.contains("second"));
+        assertTrue(dump.contains("third"));
+    }
+
+    public void testAppend_truncatesOnCodePoint() {
+        int end = (LogRing.CAPACITY - LogRing.RECORD_OVERHEAD - getTag().length) / 3;
+        StringBuilder message = new StringBuilder();
+        if (end % 2 == 0) {
+            // Makes the truncation fall in the middle of a surrogate pair.
+            message.append('x');
+        }
+        while (message.length() < 2 * end) {
+            message.append("\uD83D\uDE00");
+        }
+        mRing.append(1000, getTag(), message.toString());
+
+        String dump = dump();
+        assertTrue(dump.contains("\uD83D\uDE00"));
+        assertFalse(dump.contains("\uFFFD"));
+    }
+
+    private static byte[] getTag() {
+        return TAG.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private String dump() {
+        StringWriter writer = new StringWriter();
+        PrintWriter out = new PrintWriter(writer);
+        LogRing.dump(out, mBuffer);
+        out.flush();
+        return writer.toString().trim();
+    }
+}
@@ -42,6 +42,7 @@ import org.mockito.MockitoAnnotations;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
@@ -105,6 +106,17 @@ public class WidgetsListAdapterTest {
         verify(mListener, times(1)).notifyItemChanged(0);
     }
 
+    @Test
+    public void testNotifyItemChanged_sameRowsNotChanged() throws Exception {
+        MultiHashMap<PackageItemInfo, WidgetItem> map = generateSampleMap(2);
+        MultiHashMap<PackageItemInfo, WidgetItem> copy = new MultiHashMap<>();
+        copy.putAll(map);
+        mAdapter.setWidgets(map);
+        mAdapter.setWidgets(copy);
+        verify(mListener, times(1)).notifyDataSetChanged();
+        verify(mListener, never()).notifyItemChanged(anyInt());
+    }
+
     @Test
     public void testNotifyItemChanged_widgetItemInfoDiff() throws Exception {
         // TODO: same package name but item number changed
@@ -0,0 +1,142 @@
+package com.google.android.apps.nexuslauncher;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.launcher3.model.LaunchFrequencyModel;
+import com.google.android.apps.nexuslauncher.PredictionEvaluator.Launch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tests for the log format of {@link LaunchHistoryStore}.
+ */
+@SmallTest
+public class LaunchHistoryStoreTest extends AndroidTestCase {
+
+    private ByteArrayOutputStream mBytes;
+    private DataOutputStream mOut;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBytes = new ByteArrayOutputStream();
+        mOut = new DataOutputStream(mBytes);
+        LaunchHistoryStore.writeHeader(mOut);
+    }
+
+    public void testReplay_appliesRecords() throws Exception {
+        long now = System.currentTimeMillis();
+        LaunchHistoryStore.writeDefine(mOut, 7, "a/.A");
+        LaunchHistoryStore.writeDefine(mOut, 3, "b/.B");
+        LaunchHistoryStore.writeLaunch(mOut, 7, now - 1000, AppPredictionModel.SOURCE_ALL_APPS);
+        LaunchHistoryStore.writeLaunch(mOut, 3, now - 500, AppPredictionModel.SOURCE_WORKSPACE);
+        LaunchHistoryStore.writeLaunch(mOut, 7, now, AppPredictionModel.SOURCE_FOLDER);
+        LaunchHistoryStore.writeRemove(mOut, 3);
+
+        AppPredictionModel model = new AppPredictionModel();
+        List<Launch> launches = new ArrayList<>();
+        replay(model, launches);
+
+        assertEquals(3, launches.size());
+        assertEquals("a/.A", launches.get(0).component);
+        assertEquals(now - 1000, launches.get(0).time);
+        assertEquals("b/.B", launches.get(1).component);
+        assertEquals(AppPredictionModel.SOURCE_WORKSPACE, launches.get(1).source);
+        assertEquals(AppPredictionModel.SOURCE_FOLDER, launches.get(2).source);
+
+        AppPredictionModel expected = new AppPredictionModel();
+        int expectedId = expected.getOrCreateId("a/.A");
+        expected.onAppLaunched(expectedId, now - 1000, AppPredictionModel.SOURCE_ALL_APPS);
+        expected.onAppLaunched(expectedId, now, AppPredictionModel.SOURCE_FOLDER);
+        assertEquals(expected.getRank(expectedId), model.getRank(model.getId("a/.A")), 1e-9);
+        assertFalse(model.hasScore(model.getId("b/.B")));
+    }
+
+    public void testReplay_keepsRecordsBeforeTruncatedRecord() throws Exception {
+        long now = System.currentTimeMillis();
+        LaunchHistoryStore.writeDefine(mOut, 0, "a/.A");
+        LaunchHistoryStore.writeLaunch(mOut, 0, now, AppPredictionModel.SOURCE_ALL_APPS);
+        LaunchHistoryStore.writeLaunch(mOut, 0, now, AppPredictionModel.SOURCE_ALL_APPS);
+        mOut.flush();
+        byte[] bytes = mBytes.toByteArray();
+
+        AppPredictionModel model = new AppPredictionModel();
+        try {
+            LaunchHistoryStore.replay(new ByteArrayInputStream(bytes, 0, bytes.length - 3),
+                    model, null);
+            fail("Truncated record was read");
+        } catch (IOException e) {
+            // Expected
+        }
+        AppPredictionModel expected = new AppPredictionModel();
+        int expectedId = expected.getOrCreateId("a/.A");
+        expected.onAppLaunched(expectedId, now, AppPredictionModel.SOURCE_ALL_APPS);
+        assertEquals(expected.getRank(expectedId), model.getRank(model.getId("a/.A")), 1e-9);
+    }
+
+    public void testSnapshot_keepsSignificantScores() throws Exception {
+        long now = System.currentTimeMillis();
+        AppPredictionModel model = new AppPredictionModel();
+        int a = model.getOrCreateId("a/.A");
+        int b = model.getOrCreateId("b/.B");
+        int c = model.getOrCreateId("c/.C");
+        model.onAppLaunched(a, now - 4 * 3600000L, AppPredictionModel.SOURCE_ALL_APPS);
+        model.onAppLaunched(a, now, AppPredictionModel.SOURCE_WORKSPACE);
+        model.onAppLaunched(b, now - 3600000L, AppPredictionModel.SOURCE_FOLDER);
+        model.setRank(c, LaunchFrequencyModel.getMinRank(now) - 1);
+
+        BitSet defined = new BitSet();
+        LaunchHistoryStore.writeSnapshot(mOut, model, now, defined);
+        assertTrue(defined.get(a));
+        assertTrue(defined.get(b));
+        assertFalse(defined.get(c));
+
+        AppPredictionModel compacted = new AppPredictionModel();
+        replay(compacted, null);
+        assertEquals(-1, compacted.getId("c/.C"));
+        assertEquals(model.getRank(a), compacted.getRank(compacted.getId("a/.A")), 1e-9);
+        assertEquals(model.getRank(b), compacted.getRank(compacted.getId("b/.B")), 1e-9);
+
+        int[] expected = new int[2];
+        int[] actual = new int[2];
+        assertEquals(2, model.predict(now, expected));
+        assertEquals(2, compacted.predict(now, actual));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(model.getComponent(expected[i]), compacted.getComponent(actual[i]));
+        }
+    }
+
+    public void testReplay_refillsCandidatesOnRemove() throws Exception {
+        long now = System.currentTimeMillis();
+        // More components than the candidates of the model.
+        for (int i = 0; i < 40; i++) {
+            LaunchHistoryStore.writeDefine(mOut, i, "pkg" + i + "/.Main");
+            for (int j = 0; j <= i; j++) {
+                LaunchHistoryStore.writeLaunch(mOut, i, now, AppPredictionModel.SOURCE_ALL_APPS);
+            }
+        }
+        LaunchHistoryStore.writeRemove(mOut, 39);
+
+        AppPredictionModel model = new AppPredictionModel();
+        replay(model, null);
+
+        int[] predicted = new int[32];
+        assertEquals(32, model.predictByFrequency(predicted));
+        assertEquals("pkg38/.Main", model.getComponent(predicted[0]));
+        // The removed component was replaced by the best component which was not a candidate.
+        assertEquals("pkg7/.Main", model.getComponent(predicted[31]));
+    }
+
+    private void replay(AppPredictionModel model, List<Launch> outLaunches) throws IOException {
+        mOut.flush();
+        LaunchHistoryStore.replay(new ByteArrayInputStream(mBytes.toByteArray()), model,
+                outLaunches);
+    }
+}
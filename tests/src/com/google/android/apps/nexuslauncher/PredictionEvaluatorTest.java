@@ -0,0 +1,96 @@
+package com.google.android.apps.nexuslauncher;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Log;
+
+import com.google.android.apps.nexuslauncher.PredictionEvaluator.Launch;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link AppPredictionModel} using {@link PredictionEvaluator}.
+ */
+@SmallTest
+public class PredictionEvaluatorTest extends AndroidTestCase {
+
+    private static final String TAG = "PredictionEvaluatorTest";
+
+    private static final int DAYS = 56;
+    private static final int NOISE_APPS = 12;
+
+    public void testContextImprovesHitRate() {
+        PredictionEvaluator.Result result = PredictionEvaluator.evaluate(createRoutineLog());
+        Log.d(TAG, result.toString());
+
+        assertTrue(result.predictedLaunches > 0);
+        assertTrue(result.getHitRate(0) >= result.getFrequencyHitRate(0));
+        assertTrue(result.getHitRate(1) >= result.getHitRate(0));
+    }
+
+    public void testRemovedComponentNotPredicted() {
+        AppPredictionModel model = new AppPredictionModel();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 40; i++) {
+            int id = model.getOrCreateId("pkg" + i + "/.Main");
+            for (int j = 0; j <= i; j++) {
+                model.onAppLaunched(id, now, AppPredictionModel.SOURCE_ALL_APPS);
+            }
+        }
+        int removed = model.getId("pkg39/.Main");
+        model.remove(removed);
+
+        int[] predicted = new int[5];
+        assertEquals(5, model.predictByFrequency(predicted));
+        assertEquals(model.getId("pkg38/.Main"), predicted[0]);
+        for (int id : predicted) {
+            assertTrue(id != removed);
+        }
+        assertEquals(5, model.predict(now, predicted));
+        for (int id : predicted) {
+            assertTrue(id != removed);
+        }
+    }
+
+    /**
+     * Returns launches of apps used at a given time of the day, mixed with more frequent launches
+     * of apps at random times.
+     */
+    private static List<Launch> createRoutineLog() {
+        Random random = new Random(42);
+        Calendar cal = Calendar.getInstance();
+        cal.set(2017, Calendar.JANUARY, 2, 0, 0, 0);
+        List<Launch> launches = new ArrayList<>();
+        for (int day = 0; day < DAYS; day++) {
+            long dayStart = cal.getTimeInMillis();
+            addLaunches(launches, random, "com.morning/.Main", dayStart, 7, 9, 2);
+            addLaunches(launches, random, "com.work/.Main", dayStart, 9, 17, 4);
+            addLaunches(launches, random, "com.evening/.Main", dayStart, 19, 23, 3);
+            for (int i = 0; i < NOISE_APPS; i++) {
+                addLaunches(launches, random, "com.noise" + i + "/.Main", dayStart, 0, 24, 2);
+            }
+            cal.add(Calendar.DAY_OF_YEAR, 1);
+        }
+        Collections.sort(launches, new Comparator<Launch>() {
+            @Override
+            public int compare(Launch a, Launch b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+        return launches;
+    }
+
+    private static void addLaunches(List<Launch> launches, Random random, String component,
+            long dayStart, int startHour, int endHour, int count) {
+        for (int i = 0; i < count; i++) {
+            long time = dayStart + startHour * 3600000L
+                    + (long) (random.nextDouble() * (endHour - startHour) * 3600000L);
+            launches.add(new Launch(component, time, AppPredictionModel.SOURCE_ALL_APPS));
+        }
+    }
+}